@@ -7,6 +7,8 @@ import com.obdreader.data.obd.parser.ResponseParser
 import com.obdreader.data.obd.isotp.ISOTPReassembler
 import com.obdreader.domain.error.OBDError
 import com.obdreader.domain.model.*
+import com.spacetec.core.common.transport.CommandPriority
+import com.spacetec.core.common.transport.CommandScheduler
 import kotlinx.coroutines.*
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
@@ -21,7 +23,10 @@ class ELM327Protocol(
     private val scope: CoroutineScope = CoroutineScope(Dispatchers.IO + SupervisorJob())
 ) : OBDProtocol {
     
-    private val commandQueue = CommandQueue()
+    // One command on the adapter at a time, user requests ahead of live-data polls
+    private val commandScheduler = CommandScheduler()
+    @Volatile
+    private var pendingResponse: CompletableDeferred<String>? = null
     private val protocolDetector = ProtocolDetector()
     private val responseParser = ResponseParser()
     private val pidParser = PIDParser()
@@ -34,7 +39,9 @@ class ELM327Protocol(
     private var adapterVersion: String? = null
     private var supportedPIDsCache = mutableMapOf<Int, Set<Int>>()
     
-    private val responseBuffer = StringBuilder()
+    // Raw bytes of the response being received, reused across commands
+    private var responseBuffer = ByteArray(RESPONSE_BUFFER_SIZE)
+    private var responseLength = 0
     private var responseJob: Job? = null
     
     init {
@@ -50,21 +57,48 @@ class ELM327Protocol(
     }
     
     private suspend fun processIncomingData(data: ByteArray) {
-        val dataString = String(data, Charsets.ISO_8859_1)
-        responseBuffer.append(dataString)
+        if (responseLength + data.size > responseBuffer.size) {
+            responseBuffer = responseBuffer.copyOf(maxOf(responseBuffer.size * 2, responseLength + data.size))
+        }
+        System.arraycopy(data, 0, responseBuffer, responseLength, data.size)
+        val searchFrom = responseLength
+        responseLength += data.size
         
-        if (responseBuffer.contains(">")) {
-            val response = responseBuffer.toString()
-                .substringBefore(">")
-                .trim()
-                .replace("\r", "")
-                .replace("\n", "")
-            
-            responseBuffer.clear()
-            commandQueue.peek()?.response?.complete(response)
+        val prompt = indexOfPrompt(searchFrom)
+        if (prompt >= 0) {
+            val response = compactResponse(prompt)
+            responseLength = 0
+            pendingResponse?.complete(response)
+        }
+    }
+    
+    private fun indexOfPrompt(from: Int): Int {
+        for (i in from until responseLength) {
+            if (responseBuffer[i] == PROMPT) return i
         }
+        return -1
     }
     
+    /**
+     * Response text before the prompt, trimmed, with line breaks removed.
+     */
+    private fun compactResponse(end: Int): String {
+        var start = 0
+        var stop = end
+        while (start < stop && isWhitespace(responseBuffer[start])) start++
+        while (stop > start && isWhitespace(responseBuffer[stop - 1])) stop--
+        
+        // Drop line breaks in place; the buffer is reset afterwards
+        var length = 0
+        for (i in start until stop) {
+            val b = responseBuffer[i]
+            if (b != CR && b != LF) responseBuffer[start + length++] = b
+        }
+        return String(responseBuffer, start, length, Charsets.ISO_8859_1)
+    }
+    
+    private fun isWhitespace(b: Byte): Boolean = b == SPACE || b == CR || b == LF || b == TAB
+    
     override suspend fun initialize(): Result<AdapterInfo> = mutex.withLock {
         try {
             // Reset adapter
@@ -126,17 +160,26 @@ class ELM327Protocol(
         return sendCommandInternal(command, timeout)
     }
     
-    private suspend fun sendCommandInternal(command: String, timeout: Long = 2000): Result<String> {
+    private suspend fun sendCommandInternal(
+        command: String,
+        timeout: Long = 2000,
+        priority: CommandPriority = CommandPriority.of(command)
+    ): Result<String> {
         return try {
-            val deferred = commandQueue.enqueue(command, timeout)
-            
-            val sendResult = connection.send("$command\r".toByteArray(Charsets.ISO_8859_1))
-            if (sendResult.isFailure) {
-                deferred.completeExceptionally(sendResult.exceptionOrNull() ?: Exception("Unknown error"))
-                return Result.failure(sendResult.exceptionOrNull() ?: Exception("Unknown error"))
+            val exchange = commandScheduler.execute(priority) {
+                val deferred = CompletableDeferred<String>()
+                pendingResponse = deferred
+                try {
+                    val sendResult = connection.send("$command\r".toByteArray(Charsets.ISO_8859_1))
+                    if (sendResult.isFailure) {
+                        return@execute Result.failure(sendResult.exceptionOrNull() ?: Exception("Unknown error"))
+                    }
+                    Result.success(withTimeout(timeout) { deferred.await() })
+                } finally {
+                    pendingResponse = null
+                }
             }
-            
-            val response = withTimeout(timeout) { deferred.await() }
+            val response = exchange.getOrElse { return Result.failure(it) }
             
             when {
                 response.contains("UNABLE TO CONNECT") -> 
@@ -325,7 +368,7 @@ class ELM327Protocol(
     
     override suspend fun close() {
         responseJob?.cancel()
-        commandQueue.clearWithError(OBDError.ConnectionClosedError())
+        pendingResponse?.completeExceptionally(OBDError.ConnectionClosedError())
         isInitialized.set(false)
     }
     
@@ -363,4 +406,13 @@ class ELM327Protocol(
         
         return supported
     }
+    
+    private companion object {
+        const val RESPONSE_BUFFER_SIZE = 512
+        const val PROMPT = '>'.code.toByte()
+        const val CR = '\r'.code.toByte()
+        const val LF = '\n'.code.toByte()
+        const val SPACE = ' '.code.toByte()
+        const val TAB = '\t'.code.toByte()
+    }
 }
\ No newline at end of file
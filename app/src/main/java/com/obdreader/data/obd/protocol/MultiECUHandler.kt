@@ -1,9 +1,13 @@
 package com.obdreader.data.obd.protocol
 
 import android.util.Log
+import com.spacetec.core.common.transport.Elm327ResponseParser
 
 /**
  * Handler for multi-ECU vehicle communication
+ *
+ * Keeps a reusable response parser, so an instance must not be shared
+ * between threads.
  */
 class MultiECUHandler {
     
@@ -24,11 +28,11 @@ class MultiECUHandler {
         // Response address offset
         const val RESPONSE_OFFSET = 0x08
         
-        // Header patterns for parsing
-        private val HEADER_PATTERN_11BIT = Regex("^([0-9A-Fa-f]{3})([0-9A-Fa-f]+)")
-        private val HEADER_PATTERN_29BIT = Regex("^([0-9A-Fa-f]{8})([0-9A-Fa-f]+)")
+        private const val HEX_DIGITS = "0123456789ABCDEF"
     }
     
+    private val parser = Elm327ResponseParser()
+    
     enum class ECUType(val description: String) {
         ENGINE("Engine Control Unit"),
         TRANSMISSION("Transmission Control Unit"),
@@ -64,54 +68,50 @@ class MultiECUHandler {
      * Parse response with headers enabled (ATH1)
      */
     fun parseMultiECUResponse(response: String): List<ECUResponse> {
-        val responses = mutableListOf<ECUResponse>()
-        
-        // Split by newlines and process each line
-        val lines = response.split(Regex("[\\r\\n]+"))
-            .map { it.trim() }
-            .filter { it.isNotEmpty() && !it.startsWith(">") && it != "OK" }
+        val bytes = response.toByteArray(Charsets.ISO_8859_1)
+        return parseMultiECUResponse(bytes, 0, bytes.size)
+    }
+    
+    /**
+     * Parse response with headers enabled (ATH1) straight from a receive
+     * buffer. 11-bit and 29-bit CAN IDs are told apart by line length.
+     */
+    fun parseMultiECUResponse(buffer: ByteArray, offset: Int, length: Int): List<ECUResponse> {
+        val frameCount = parser.parse(buffer, offset, length, Elm327ResponseParser.HEADER_CAN_AUTO)
+        val responses = ArrayList<ECUResponse>(frameCount)
         
-        for (line in lines) {
-            val cleanLine = line.replace(" ", "")
-            
-            // Try 11-bit header
-            val match11 = HEADER_PATTERN_11BIT.find(cleanLine)
-            if (match11 != null) {
-                val header = match11.groupValues[1].uppercase()
-                val data = match11.groupValues[2]
-                
-                val ecuType = getECUTypeFromResponse(header)
-                val dataBytes = hexStringToBytes(data)
-                
-                responses.add(ECUResponse(
-                    ecuAddress = header,
-                    ecuType = ecuType,
-                    responseData = dataBytes,
-                    rawResponse = line
-                ))
-                continue
+        for (frame in 0 until frameCount) {
+            val header = formatHeader(parser.header(frame), parser.headerDigits(frame))
+            val ecuType = if (parser.headerDigits(frame) == Elm327ResponseParser.HEADER_CAN_11BIT) {
+                getECUTypeFromResponse(header)
+            } else {
+                ECUType.UNKNOWN
             }
             
-            // Try 29-bit header
-            val match29 = HEADER_PATTERN_29BIT.find(cleanLine)
-            if (match29 != null) {
-                val header = match29.groupValues[1].uppercase()
-                val data = match29.groupValues[2]
-                
-                val dataBytes = hexStringToBytes(data)
-                
-                responses.add(ECUResponse(
-                    ecuAddress = header,
-                    ecuType = ECUType.UNKNOWN,
-                    responseData = dataBytes,
-                    rawResponse = line
-                ))
-            }
+            responses.add(ECUResponse(
+                ecuAddress = header,
+                ecuType = ecuType,
+                responseData = parser.dataOf(frame),
+                rawResponse = String(
+                    buffer,
+                    parser.lineStart(frame),
+                    parser.lineEnd(frame) - parser.lineStart(frame),
+                    Charsets.ISO_8859_1
+                )
+            ))
         }
         
         return responses
     }
     
+    private fun formatHeader(header: Int, digits: Int): String {
+        val chars = CharArray(digits)
+        for (i in 0 until digits) {
+            chars[i] = HEX_DIGITS[(header ushr ((digits - 1 - i) * 4)) and 0x0F]
+        }
+        return String(chars)
+    }
+    
     /**
      * Get ECU type from response address
      */
@@ -187,11 +187,4 @@ class MultiECUHandler {
         return responses.find { it.ecuType == ECUType.ENGINE }
             ?: responses.firstOrNull()
     }
-    
-    private fun hexStringToBytes(hex: String): ByteArray {
-        val cleanHex = hex.replace(" ", "")
-        return ByteArray(cleanHex.length / 2) { i ->
-            cleanHex.substring(i * 2, i * 2 + 2).toInt(16).toByte()
-        }
-    }
 }
@@ -31,6 +31,11 @@ class ObdConnection(private val context: Context) {
     private val _currentProtocol = MutableStateFlow("AUTO")
     val currentProtocol: StateFlow<String> = _currentProtocol
 
+    /** Whether the adapter prints CAN headers (`ATH1`), as last commanded. */
+    @Volatile
+    var headersEnabled: Boolean = false
+        private set
+
     private val bluetoothAdapter: BluetoothAdapter? by lazy {
         (context.getSystemService(Context.BLUETOOTH_SERVICE) as? BluetoothManager)?.adapter
     }
@@ -295,6 +300,7 @@ class ObdConnection(private val context: Context) {
         withContext(Dispatchers.IO) {
             try {
                 clearInputBuffer()
+                trackHeaders(command)
                 outputStream?.write("$command\r".toByteArray())
                 outputStream?.flush()
                 readResponseWithTimeout(timeout)
@@ -304,6 +310,14 @@ class ObdConnection(private val context: Context) {
             }
         }
 
+    private fun trackHeaders(command: String) {
+        when (command.replace(" ", "").uppercase()) {
+            "ATH1" -> headersEnabled = true
+            // A reset restores the default, headers off
+            "ATH0", "ATZ", "ATWS", "ATD" -> headersEnabled = false
+        }
+    }
+
     private suspend fun readResponseWithTimeout(timeout: Long): String {
         val response = StringBuilder()
         val startTime = System.currentTimeMillis()
@@ -1,7 +1,6 @@
 package com.spacetec.obd.obd
 
 import android.util.Log
-import kotlinx.coroutines.delay
 
 /**
  * VW/VAG-specific protocol manager with enhanced initialization.
@@ -259,33 +258,70 @@ class VwProtocolManager(private val connection: ObdConnection) {
 
     /**
      * Scan all ECUs (VW vehicles often have 50+ ECUs)
+     *
+     * One functional 0100 with headers on names every OBD ECU that answers;
+     * only the addresses that stayed silent are then probed one by one.
+     * The adapter handles one request at a time, so probes stay sequential,
+     * but without a fixed delay after each header change.
      */
     suspend fun scanAllEcus(): List<EcuInfo> {
-        val ecus = mutableListOf<EcuInfo>()
+        val found = sortedSetOf<String>()
         
         // Standard OBD ECU addresses
         val standardAddresses = listOf("7E0", "7E1", "7E2", "7E3", "7E4", "7E5", "7E6", "7E7")
         
+        // Headers name the responders; restored afterwards if they were off
+        val headersWereOn = connection.headersEnabled
+        try {
+            if (!headersWereOn) connection.sendCommand("ATH1")
+            connection.sendCommand("ATSH7DF")
+            found.addAll(parseResponders(connection.sendCommand("0100")))
+        } catch (e: Exception) { }
+        
         for (addr in standardAddresses) {
+            if (addr in found) continue
             try {
                 // Set header to specific ECU
                 connection.sendCommand("ATSH$addr")
-                delay(100)
                 
                 val response = connection.sendCommand("0100")
                 if (!response.contains("NO DATA") && !response.contains("ERROR")) {
-                    ecus.add(EcuInfo(
-                        address = addr,
-                        name = getEcuName(addr)
-                    ))
+                    found.add(addr)
                 }
             } catch (e: Exception) { }
         }
         
         // Reset to functional addressing
         connection.sendCommand("ATSH7DF")
+        if (!headersWereOn) connection.sendCommand("ATH0")
         
-        return ecus
+        return found.map { EcuInfo(address = it, name = getEcuName(it)) }
+    }
+
+    /**
+     * Request addresses of the ECUs whose positive answer appears in a
+     * response read with headers on. [ObdConnection] joins the response
+     * lines with single spaces, so a frame is either spaced tokens
+     * (`7E8 06 41 00 BE 3F A8 13`, `ATS1`) or one token
+     * (`7E8064100BE3FA813`, `ATS0`).
+     */
+    private fun parseResponders(response: String): Set<String> {
+        val responders = mutableSetOf<String>()
+        val tokens = response.uppercase().split(" ")
+        for (i in tokens.indices) {
+            val token = tokens[i]
+            if (token.length < 3 || !token.all { it in '0'..'9' || it in 'A'..'F' }) continue
+            val source = token.substring(0, 3).toInt(16)
+            if (source !in 0x7E8..0x7EF) continue
+            // Single frame: header, length byte, then 41
+            val service = when {
+                token.length == 3 -> tokens.getOrNull(i + 2)
+                token.length >= 7 && token.length % 2 == 1 -> token.substring(5, 7)
+                else -> null
+            }
+            if (service == "41") responders.add(String.format("%03X", source - 8))
+        }
+        return responders
     }
 
     private fun getEcuName(address: String): String {
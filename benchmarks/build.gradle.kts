@@ -0,0 +1,44 @@
+// ============================================================================
+// JMH BENCHMARKS - JVM-only microbenchmarks for protocol and data hot paths
+//
+// Run:     ./gradlew :benchmarks:jmh
+// Filter:  ./gradlew :benchmarks:jmh -Pjmh.includes=IsoTp
+// Results: benchmarks/build/results/jmh/results.json (JMH JSON format), one
+//          file per run, to be archived per commit and compared with any JMH
+//          JSON diff tool.
+// ============================================================================
+
+plugins {
+    id("org.jetbrains.kotlin.jvm")
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+// Most of the code under test lives in Android library modules, which a JVM
+// module cannot depend on. What needs nothing but the JDK, coroutines and
+// kotlinx.serialization lives in :core:jvm, which the Android modules depend
+// on as well, so the benchmarks measure the shipped code. Code that needs the
+// Android SDK is not benchmarked here.
+
+kotlin {
+    jvmToolchain(17)
+}
+
+dependencies {
+    implementation(project(":core:jvm"))
+}
+
+jmh {
+    jmhVersion.set("1.37")
+    warmupIterations.set(3)
+    warmup.set("1s")
+    iterations.set(5)
+    timeOnIteration.set("1s")
+    fork.set(1)
+    failOnError.set(true)
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+    jvmArgs.add("-Djava.awt.headless=true")
+
+    (project.findProperty("jmh.includes") as String?)?.let { includes.add(it) }
+}
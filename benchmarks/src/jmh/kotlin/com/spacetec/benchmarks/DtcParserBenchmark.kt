@@ -0,0 +1,43 @@
+package com.spacetec.benchmarks
+
+import com.obdreader.data.obd.parser.DTCParser
+import com.obdreader.domain.model.DTC
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * [DTCParser] on ELM327 responses to mode 03/07.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class DtcParserBenchmark {
+
+    private val parser = DTCParser()
+
+    @Benchmark
+    fun parseMode03SingleEcu(): List<DTC> = parser.parseMode03(SINGLE_ECU_RESPONSE)
+
+    @Benchmark
+    fun parseMode03MultiEcuWithHeaders(): List<DTC> = parser.parseMode03(MULTI_ECU_RESPONSE)
+
+    @Benchmark
+    fun parseMode07(): List<DTC> = parser.parseMode07(PENDING_RESPONSE)
+
+    private companion object {
+        const val SINGLE_ECU_RESPONSE = "43 03 01 33 01 71 04 20\r\r"
+
+        // Headers on (ATH1), engine and transmission ECUs answering
+        const val MULTI_ECU_RESPONSE =
+            "7E8 08 43 03 01 33 01 71 04 20\r" +
+                "7E9 06 43 02 07 00 C1 23\r" +
+                "7E8 06 43 02 03 00 01 01\r\r"
+
+        const val PENDING_RESPONSE = "47 01 71 03 00 00 00\r\r"
+    }
+}
@@ -0,0 +1,74 @@
+package com.spacetec.benchmarks
+
+import com.spacetec.core.common.transport.Elm327ResponseParser
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * ELM327 response parsing: [Elm327ResponseParser] against the string
+ * pipelines it replaced, kept here as `legacy*` baselines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class Elm327ResponseParserBenchmark {
+
+    private val parser = Elm327ResponseParser()
+    private val receiveBuffer = MULTI_ECU_RESPONSE.toByteArray(Charsets.US_ASCII)
+
+    /** Former `Elm327Adapter.readResponse` normalization. */
+    @Benchmark
+    fun legacyResponseText(): String = String(receiveBuffer, Charsets.US_ASCII)
+        .replace("\r", "\n")
+        .replace(">", "")
+        .trim()
+        .lines()
+        .filter { it.isNotBlank() }
+        .joinToString("\n")
+
+    @Benchmark
+    fun responseText(): String = Elm327ResponseParser.responseText(receiveBuffer)
+
+    /** Former `MultiECUHandler.parseMultiECUResponse`: regex per line, substring per byte. */
+    @Benchmark
+    fun legacyMultiEcuParse(): Int {
+        var bytes = 0
+        val lines = MULTI_ECU_RESPONSE.split(Regex("[\\r\\n]+"))
+            .map { it.trim() }
+            .filter { it.isNotEmpty() && !it.startsWith(">") && it != "OK" }
+        for (line in lines) {
+            val match = HEADER_PATTERN_11BIT.find(line.replace(" ", "")) ?: continue
+            val data = match.groupValues[2].replace(" ", "")
+            val dataBytes = ByteArray(data.length / 2) { i ->
+                data.substring(i * 2, i * 2 + 2).toInt(16).toByte()
+            }
+            bytes += dataBytes.size + match.groupValues[1].uppercase().length
+        }
+        return bytes
+    }
+
+    /** Frames decoded in place, nothing allocated. */
+    @Benchmark
+    fun parseFrames(): Int {
+        parser.parse(receiveBuffer, headerDigits = Elm327ResponseParser.HEADER_CAN_AUTO)
+        var sum = 0
+        for (frame in 0 until parser.frameCount) sum += parser.header(frame) + parser.dataLength(frame)
+        return sum
+    }
+
+    private companion object {
+        val HEADER_PATTERN_11BIT = Regex("^([0-9A-Fa-f]{3})([0-9A-Fa-f]+)")
+
+        // Headers on (ATH1), spaces on, three ECUs answering 0100
+        const val MULTI_ECU_RESPONSE =
+            "SEARCHING...\r" +
+                "7E8 06 41 00 BE 3E A8 13 \r" +
+                "7E9 06 41 00 98 18 00 01 \r" +
+                "7EA 06 41 00 80 00 00 01 \r\r>"
+    }
+}
@@ -0,0 +1,67 @@
+package com.spacetec.benchmarks
+
+import com.spacetec.core.logging.FileLogTarget
+import com.spacetec.core.logging.FileLoggerConfig
+import com.spacetec.core.logging.LogEntry
+import com.spacetec.core.logging.LogFormat
+import com.spacetec.core.logging.LogLevel
+import kotlinx.coroutines.runBlocking
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+/**
+ * [FileLogTarget.write] for a protocol trace entry, as logged for every
+ * request and response when tracing is on.
+ *
+ * Each call runs in `runBlocking` because `write` is suspending; that cost is
+ * part of what a non-coroutine caller pays and is included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class FileLogTargetBenchmark {
+
+    @Param("STANDARD", "JSON")
+    var format: String = "STANDARD"
+
+    private lateinit var directory: File
+    private lateinit var target: FileLogTarget
+
+    private val entry = LogEntry(
+        level = LogLevel.DEBUG,
+        tag = "UDSProtocol",
+        message = "Raw response: 62 F1 90 57 56 57 5A 5A 5A 31 4B 5A 38 57 31 32 33 34 35 36",
+        context = mapOf("ecu" to "7E8", "service" to "0x22")
+    )
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        directory = Files.createTempDirectory("spacetec-jmh-log").toFile()
+        target = FileLogTarget(
+            format = LogFormat.valueOf(format),
+            config = FileLoggerConfig(directory = directory)
+        )
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        runBlocking { target.close() }
+        directory.deleteRecursively()
+    }
+
+    @Benchmark
+    fun write() = runBlocking {
+        target.write(entry)
+    }
+}
@@ -0,0 +1,64 @@
+package com.spacetec.benchmarks
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+import com.spacetec.core.common.hexToByteArray as commonHexToBytes
+import com.spacetec.core.common.toHexString as commonToHex
+import com.spacetec.obd.core.common.extension.hexToByteArray as extensionHexToBytes
+import com.spacetec.obd.core.common.extension.toHexString as extensionToHex
+import com.spacetec.protocol.core.base.hexToByteArray as protocolHexToBytes
+import com.spacetec.protocol.core.base.toHexString as protocolToHex
+
+/**
+ * The three hex conversion helpers used on the request/response logging and
+ * parsing paths:
+ * - `common`: core/common `Extensions.kt`
+ * - `extension`: core/common `extension/ByteArrayExtensions.kt`
+ * - `protocol`: protocol/core `HexExtensions.kt` (used by [BaseProtocol] logging)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class HexBenchmark {
+
+    /** 8: a single CAN frame, 256: a typical multi-frame UDS response. */
+    @Param("8", "256")
+    var size: Int = 0
+
+    private lateinit var bytes: ByteArray
+    private lateinit var compactHex: String
+    private lateinit var spacedHex: String
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        bytes = ByteArray(size) { (it * 37 + 11).toByte() }
+        compactHex = bytes.commonToHex()
+        spacedHex = bytes.extensionToHex()
+    }
+
+    @Benchmark
+    fun commonToHexString(): String = bytes.commonToHex()
+
+    @Benchmark
+    fun commonHexToByteArray(): ByteArray = compactHex.commonHexToBytes()
+
+    @Benchmark
+    fun extensionToHexString(): String = bytes.extensionToHex()
+
+    @Benchmark
+    fun extensionHexToByteArray(): ByteArray = spacedHex.extensionHexToBytes()
+
+    @Benchmark
+    fun protocolToHexString(): String = bytes.protocolToHex()
+
+    @Benchmark
+    fun protocolHexToByteArray(): ByteArray = spacedHex.protocolHexToBytes()
+}
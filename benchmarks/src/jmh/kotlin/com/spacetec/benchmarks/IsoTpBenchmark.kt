@@ -0,0 +1,85 @@
+package com.spacetec.benchmarks
+
+import com.spacetec.protocol.can.isotp.ISOTPReassembler
+import com.spacetec.protocol.can.isotp.ISOTPSegmenter
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * ISO-TP segmentation and reassembly, single stream and with eight ECUs
+ * answering a functional request at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class IsoTpBenchmark {
+
+    /** 7: single frame, 62: a VIN-sized response, 4095: largest classic message, 4096: escape first frame. */
+    @Param("7", "62", "4095", "4096")
+    var messageSize: Int = 0
+
+    private val segmenter = ISOTPSegmenter()
+    private val reassembler = ISOTPReassembler()
+
+    private lateinit var message: ByteArray
+    private lateinit var frames: List<ByteArray>
+    private lateinit var interleavedIds: IntArray
+    private lateinit var interleavedFrames: List<ByteArray>
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        message = ByteArray(messageSize) { (it * 31).toByte() }
+        frames = segmenter.segment(message)
+
+        // Round-robin interleaving as frames from several ECUs appear on the bus
+        val ids = ArrayList<Int>()
+        val interleaved = ArrayList<ByteArray>()
+        for (index in frames.indices) {
+            for (canId in ECU_IDS) {
+                ids.add(canId)
+                interleaved.add(frames[index])
+            }
+        }
+        interleavedIds = ids.toIntArray()
+        interleavedFrames = interleaved
+    }
+
+    @Benchmark
+    fun segment(): List<ByteArray> = segmenter.segment(message)
+
+    @Benchmark
+    fun reassembleSingleStream(): ByteArray? {
+        var message: ByteArray? = null
+        for (frame in frames) {
+            if (reassembler.processFrame(RESPONSE_ID, frame) == ISOTPReassembler.FrameResult.COMPLETE) {
+                message = reassembler.takeMessage(RESPONSE_ID)
+            }
+        }
+        return message
+    }
+
+    @Benchmark
+    fun reassembleInterleaved(): Int {
+        var completed = 0
+        for (i in interleavedFrames.indices) {
+            val canId = interleavedIds[i]
+            if (reassembler.processFrame(canId, interleavedFrames[i]) == ISOTPReassembler.FrameResult.COMPLETE) {
+                if (reassembler.takeMessage(canId) != null) completed++
+            }
+        }
+        return completed
+    }
+
+    private companion object {
+        const val RESPONSE_ID = 0x7E8
+        val ECU_IDS = intArrayOf(0x7E8, 0x7E9, 0x7EA, 0x7EB, 0x7EC, 0x7ED, 0x7EE, 0x7EF)
+    }
+}
@@ -0,0 +1,51 @@
+package com.spacetec.benchmarks
+
+import com.spacetec.core.common.serialization.JsonColumns
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * JSON round-trips through [JsonColumns], which backs the collection type
+ * converters in `DataConverters.kt`, as paid on every insert and read of a
+ * row holding a collection column.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class JsonColumnsBenchmark {
+
+    private val dtcCodes = List(20) { "P0${100 + it}" }
+    private val pidValues = List(32) { it * 1000L + 7 }
+    private val ecuNames = (0 until 16).associate { "7E${it.toString(16)}" to "ECU $it" }
+    private val freezeFrame: Map<String, Any?> = mapOf(
+        "rpm" to 1726,
+        "speed" to 54,
+        "coolant" to 88.5,
+        "mil" to true,
+        "dtc" to "P0301",
+        "fuelSystem" to listOf(2, 0),
+        "o2" to mapOf("b1s1" to 0.45, "b1s2" to 0.72),
+        "note" to null
+    )
+
+    @Benchmark
+    fun stringListRoundTrip(): List<String>? =
+        JsonColumns.decodeStringList(JsonColumns.encodeStringList(dtcCodes))
+
+    @Benchmark
+    fun longListRoundTrip(): List<Long>? =
+        JsonColumns.decodeLongList(JsonColumns.encodeLongList(pidValues))
+
+    @Benchmark
+    fun stringMapRoundTrip(): Map<String, String>? =
+        JsonColumns.decodeStringMap(JsonColumns.encodeStringMap(ecuNames))
+
+    @Benchmark
+    fun anyMapRoundTrip(): Map<String, Any?>? =
+        JsonColumns.encodeAnyMap(freezeFrame)?.let { JsonColumns.decodeAnyMap(it) }
+}
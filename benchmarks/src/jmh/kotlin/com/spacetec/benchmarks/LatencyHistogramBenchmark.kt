@@ -0,0 +1,56 @@
+package com.spacetec.benchmarks
+
+import com.spacetec.obd.scanner.core.CommandClass
+import com.spacetec.obd.scanner.core.LatencyHistogram
+import com.spacetec.obd.scanner.core.LatencySnapshot
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Threads
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * Per-response cost of latency recording on the connection read path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class LatencyHistogramBenchmark {
+
+    private val histogram = LatencyHistogram()
+    private val latencies = Random(7).let { random -> LongArray(SAMPLES) { 1_000L + random.nextInt(200_000) } }
+
+    @State(Scope.Thread)
+    open class Cursor {
+        var next = 0
+    }
+
+    @Benchmark
+    fun record(cursor: Cursor) {
+        histogram.record(latencies[cursor.next++ and (SAMPLES - 1)])
+    }
+
+    /** Four read paths recording into the same class. */
+    @Benchmark
+    @Threads(4)
+    fun recordContended(cursor: Cursor) {
+        histogram.record(latencies[cursor.next++ and (SAMPLES - 1)])
+    }
+
+    @Benchmark
+    fun classifyCommand(): Int = CommandClass.of("010C0D")
+
+    @Benchmark
+    fun snapshotP99(): Long = histogram.snapshot().p99Micros
+
+    @Benchmark
+    fun mergeSnapshots(): LatencySnapshot = histogram.snapshot().merge(histogram.snapshot())
+
+    private companion object {
+        const val SAMPLES = 1 shl 12
+    }
+}
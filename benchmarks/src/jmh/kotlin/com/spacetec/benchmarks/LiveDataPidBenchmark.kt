@@ -0,0 +1,47 @@
+package com.spacetec.benchmarks
+
+import com.spacetec.domain.models.livedata.LiveDataPID
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * [LiveDataPID.decode] for the PIDs a live-data dashboard polls continuously.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class LiveDataPidBenchmark {
+
+    private val rpm = LiveDataPID.ENGINE_RPM
+    private val speed = LiveDataPID.VEHICLE_SPEED
+    private val coolant = LiveDataPID.COOLANT_TEMP
+    private val load = LiveDataPID.ENGINE_LOAD
+    private val throttle = LiveDataPID.THROTTLE_POSITION
+
+    private val twoBytes = byteArrayOf(0x1A, 0xF8.toByte())
+    private val oneByte = byteArrayOf(0x5A)
+
+    @Benchmark
+    fun decodeEngineRpm(): Double = rpm.decode(twoBytes)
+
+    @Benchmark
+    fun decodeVehicleSpeed(): Double = speed.decode(oneByte)
+
+    /**
+     * One dashboard refresh: five PIDs decoded back to back.
+     */
+    @Benchmark
+    fun decodeDashboardFrame(blackhole: Blackhole) {
+        blackhole.consume(rpm.decode(twoBytes))
+        blackhole.consume(speed.decode(oneByte))
+        blackhole.consume(coolant.decode(oneByte))
+        blackhole.consume(load.decode(oneByte))
+        blackhole.consume(throttle.decode(oneByte))
+    }
+}
@@ -35,6 +35,7 @@ android {
 }
 
 dependencies {
+    api(project(":core:jvm"))
     api(libs.kotlin.stdlib)
     api(libs.kotlinx.coroutines.core)
     api(libs.kotlinx.coroutines.android)
@@ -47,5 +48,6 @@ dependencies {
     api(libs.javax.inject)
     
     testImplementation(libs.junit)
+    testImplementation(libs.kotlinx.coroutines.test)
     androidTestImplementation(libs.androidx.test.ext.junit)
 }
@@ -0,0 +1,107 @@
+package com.spacetec.core.common.capability
+
+/**
+ * What one ECU was found to support.
+ *
+ * @property responseId CAN ID (or legacy source address) the ECU answers from
+ * @property supportedPids Mode 01 PIDs from the supported-PID bitmaps
+ *   (0100, 0120, ...), range PIDs included
+ * @property supportedDids UDS data identifiers known to be readable
+ */
+data class EcuCapabilities(
+    val responseId: Int,
+    val supportedPids: Set<Int> = emptySet(),
+    val supportedDids: Set<Int> = emptySet()
+) {
+    /** Whether the ECU answers OBD mode 01 requests. */
+    val isObdResponder: Boolean
+        get() = supportedPids.isNotEmpty()
+}
+
+/**
+ * Everything connection setup learns about a vehicle through one adapter.
+ *
+ * Discovering this takes the protocol search, the supported-PID bitmaps of
+ * every ECU and the VIN read; a cached copy lets the next connection skip
+ * all of it after a short validation.
+ *
+ * @property vin Vehicle identification number, the cache key
+ * @property adapterType Adapter identification (e.g. the `ATI` string); the
+ *   secondary key, since the protocol number and timing are adapter specific
+ * @property protocol ELM327 protocol number (`ATSPn`, 1..C)
+ * @property ecus ECUs that answered, by response ID
+ * @property responseTimeoutMs Learned response timeout: the slowest observed
+ *   round trip with headroom, applied with `ATST` on the next connection
+ * @property discoveredAt When the full discovery ran, in epoch milliseconds
+ * @property validatedAt When a connection last confirmed the entry
+ */
+data class VehicleCapabilities(
+    val vin: String,
+    val adapterType: String,
+    val protocol: Int,
+    val ecus: List<EcuCapabilities>,
+    val responseTimeoutMs: Long,
+    val discoveredAt: Long,
+    val validatedAt: Long = discoveredAt
+) {
+    /** Response IDs of the ECUs that answer OBD mode 01. */
+    val obdResponderIds: Set<Int>
+        get() = ecus.filter { it.isObdResponder }.mapTo(HashSet()) { it.responseId }
+
+    /** The ECU answering from [responseId], or null. */
+    fun ecu(responseId: Int): EcuCapabilities? = ecus.firstOrNull { it.responseId == responseId }
+}
+
+/**
+ * Cache of [VehicleCapabilities], keyed by VIN and adapter type.
+ */
+interface CapabilityStore {
+
+    /**
+     * Returns the entry for [vin] through [adapterType], or null.
+     */
+    suspend fun find(vin: String, adapterType: String): VehicleCapabilities?
+
+    /**
+     * Returns up to [limit] entries for [adapterType], most recently
+     * validated first. Used to guess the protocol before the VIN is known.
+     */
+    suspend fun recent(adapterType: String, limit: Int): List<VehicleCapabilities>
+
+    /**
+     * Stores [capabilities], replacing any entry with the same keys.
+     */
+    suspend fun save(capabilities: VehicleCapabilities)
+
+    /**
+     * Removes the entry for [vin] through [adapterType], if any.
+     */
+    suspend fun invalidate(vin: String, adapterType: String)
+}
+
+/**
+ * [CapabilityStore] kept in memory.
+ */
+class InMemoryCapabilityStore : CapabilityStore {
+
+    private val entries = LinkedHashMap<Pair<String, String>, VehicleCapabilities>()
+
+    override suspend fun find(vin: String, adapterType: String): VehicleCapabilities? =
+        synchronized(entries) { entries[vin to adapterType] }
+
+    override suspend fun recent(adapterType: String, limit: Int): List<VehicleCapabilities> =
+        synchronized(entries) {
+            entries.values
+                .filter { it.adapterType == adapterType }
+                .sortedByDescending { it.validatedAt }
+                .take(limit)
+        }
+
+    override suspend fun save(capabilities: VehicleCapabilities) {
+        synchronized(entries) { entries[capabilities.vin to capabilities.adapterType] = capabilities }
+    }
+
+    override suspend fun invalidate(vin: String, adapterType: String) {
+        synchronized(entries) { entries.remove(vin to adapterType) }
+    }
+}
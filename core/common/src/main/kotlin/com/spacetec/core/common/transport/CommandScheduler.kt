@@ -0,0 +1,274 @@
+package com.spacetec.core.common.transport
+
+import com.spacetec.core.common.exceptions.TimeoutException
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.coroutines.resume
+
+/**
+ * Priority class of a diagnostic request.
+ *
+ * Declared from most to least urgent; [CommandScheduler] always hands the
+ * bus to the most urgent waiting request.
+ */
+enum class CommandPriority {
+    /** Checks that must not wait behind anything, e.g. before an actuator test. */
+    SAFETY,
+
+    /** Requests the user is waiting on: DTC reads, clears, VIN, UDS services. */
+    INTERACTIVE,
+
+    /** Work nobody is watching: discovery sweeps, cache refreshes. */
+    BACKGROUND,
+
+    /** Periodic live-data polling (services 01 and 02). */
+    POLLING;
+
+    companion object {
+        /**
+         * Default priority of an OBD/UDS request by service ID: live data
+         * polls at [POLLING], everything else at [INTERACTIVE].
+         */
+        fun ofService(serviceId: Int): CommandPriority = when (serviceId) {
+            0x01, 0x02 -> POLLING
+            else -> INTERACTIVE
+        }
+
+        /**
+         * Default priority of an ELM327 command line: AT commands at
+         * [INTERACTIVE], hex requests by their service ID.
+         */
+        fun of(command: CharSequence): CommandPriority {
+            if (command.length < 2) return INTERACTIVE
+            val high = Character.digit(command[0], 16)
+            val low = Character.digit(command[1], 16)
+            if (high < 0 || low < 0) return INTERACTIVE
+            return ofService(high shl 4 or low)
+        }
+    }
+}
+
+/**
+ * Grants exclusive use of a diagnostic transport to one request at a time,
+ * most urgent first.
+ *
+ * Replaces a plain `Mutex` in front of the bus. A mutex is fair in arrival
+ * order, so a user's DTC read queues behind every live-data poll that got
+ * there first; here it only waits for the request already on the bus.
+ * Within one [CommandPriority] requests run in arrival order.
+ *
+ * Each request holds the bus for exactly one exchange, so a long polling
+ * cycle issued as individual requests yields to more urgent work at every
+ * request boundary without any cooperation from the poller.
+ *
+ * A request may carry a queue deadline: if it cannot start on the bus within
+ * that time it is dropped with a [TimeoutException] and never transmitted,
+ * so a stale poll does not waste bus time after the caller has moved on.
+ *
+ * The scheduler is not reentrant: calling [execute] from inside another
+ * [execute] block on the same scheduler deadlocks, as with a `Mutex`.
+ *
+ * ```kotlin
+ * val dtcs = scheduler.execute(CommandPriority.INTERACTIVE) { adapter.exchange("03") }
+ * ```
+ */
+class CommandScheduler {
+
+    // Fields are guarded by the scheduler lock
+    private class Waiter(val priority: CommandPriority) {
+        var continuation: CancellableContinuation<Unit>? = null
+        var granted = false
+    }
+
+    private val lock = Any()
+    private var busy = false
+    private val queues = Array(PRIORITIES.size) { ArrayDeque<Waiter>() }
+    private var waiting = 0
+
+    // Per priority: executed, expired, wait total, wait max, bus total, bus max
+    private val counters = AtomicLongArray(PRIORITIES.size * COUNTER_STRIDE)
+
+    /**
+     * Number of requests waiting for the bus.
+     */
+    val queueLength: Int
+        get() = synchronized(lock) { waiting }
+
+    /**
+     * Runs [block] with exclusive use of the bus once every more urgent
+     * request, and every earlier one of the same [priority], has run.
+     *
+     * @param priority Priority class of the request
+     * @param deadlineMs Longest time to wait for the bus; 0 waits forever
+     * @param block The exchange to run
+     * @return The result of [block]
+     * @throws TimeoutException If the request could not start within [deadlineMs]
+     */
+    suspend fun <T> execute(
+        priority: CommandPriority,
+        deadlineMs: Long = 0L,
+        block: suspend () -> T
+    ): T {
+        val enqueuedAt = System.nanoTime()
+        if (deadlineMs > 0) {
+            withTimeoutOrNull(deadlineMs) { acquire(priority) } ?: run {
+                counters.incrementAndGet(priority.ordinal * COUNTER_STRIDE + EXPIRED)
+                throw TimeoutException(
+                    "$priority request expired after waiting ${deadlineMs}ms for the bus"
+                )
+            }
+        } else {
+            acquire(priority)
+        }
+
+        val startedAt = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            release()
+            record(priority, startedAt - enqueuedAt, System.nanoTime() - startedAt)
+        }
+    }
+
+    /**
+     * Snapshot of queue-wait and bus-time figures per priority class.
+     */
+    fun statistics(): SchedulerStatistics = SchedulerStatistics(
+        PRIORITIES.associateWith { priority ->
+            val base = priority.ordinal * COUNTER_STRIDE
+            PriorityStatistics(
+                executed = counters[base + EXECUTED],
+                expired = counters[base + EXPIRED],
+                totalQueueWaitNanos = counters[base + WAIT_TOTAL],
+                maxQueueWaitNanos = counters[base + WAIT_MAX],
+                totalBusNanos = counters[base + BUS_TOTAL],
+                maxBusNanos = counters[base + BUS_MAX]
+            )
+        }
+    )
+
+    /**
+     * Clears the statistics.
+     */
+    fun resetStatistics() {
+        for (i in 0 until counters.length()) counters[i] = 0
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // INTERNAL
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private suspend fun acquire(priority: CommandPriority) {
+        val waiter: Waiter
+        synchronized(lock) {
+            if (!busy) {
+                busy = true
+                return
+            }
+            waiter = Waiter(priority)
+            queues[priority.ordinal].addLast(waiter)
+            waiting++
+        }
+
+        try {
+            suspendCancellableCoroutine<Unit> { continuation ->
+                synchronized(lock) {
+                    if (!waiter.granted) {
+                        waiter.continuation = continuation
+                        return@suspendCancellableCoroutine
+                    }
+                }
+                // Granted before we got to park
+                continuation.resume(Unit)
+            }
+        } catch (e: CancellationException) {
+            val granted = synchronized(lock) {
+                if (!waiter.granted && queues[priority.ordinal].remove(waiter)) waiting--
+                waiter.granted
+            }
+            // Cancelled after being granted: pass the bus on
+            if (granted) release()
+            throw e
+        }
+    }
+
+    private fun release() {
+        val next: Waiter
+        val continuation: CancellableContinuation<Unit>?
+        synchronized(lock) {
+            next = queues.firstOrNull { it.isNotEmpty() }?.removeFirst() ?: run {
+                busy = false
+                return
+            }
+            waiting--
+            next.granted = true
+            continuation = next.continuation
+        }
+        continuation?.resume(Unit)
+    }
+
+    private fun record(priority: CommandPriority, waitNanos: Long, busNanos: Long) {
+        val base = priority.ordinal * COUNTER_STRIDE
+        counters.incrementAndGet(base + EXECUTED)
+        counters.addAndGet(base + WAIT_TOTAL, waitNanos)
+        counters.accumulateAndGet(base + WAIT_MAX, waitNanos, ::maxOf)
+        counters.addAndGet(base + BUS_TOTAL, busNanos)
+        counters.accumulateAndGet(base + BUS_MAX, busNanos, ::maxOf)
+    }
+
+    private companion object {
+        val PRIORITIES = CommandPriority.values()
+
+        const val EXECUTED = 0
+        const val EXPIRED = 1
+        const val WAIT_TOTAL = 2
+        const val WAIT_MAX = 3
+        const val BUS_TOTAL = 4
+        const val BUS_MAX = 5
+        const val COUNTER_STRIDE = 6
+    }
+}
+
+/**
+ * Queue-wait and bus-time figures of a [CommandScheduler].
+ *
+ * @property byPriority Figures per priority class
+ */
+data class SchedulerStatistics(
+    val byPriority: Map<CommandPriority, PriorityStatistics>
+) {
+    operator fun get(priority: CommandPriority): PriorityStatistics = byPriority.getValue(priority)
+}
+
+/**
+ * Figures of one priority class.
+ *
+ * Queue wait runs from [CommandScheduler.execute] being called to the
+ * request getting the bus; bus time from then until the exchange returns.
+ *
+ * @property executed Requests that got the bus
+ * @property expired Requests dropped because their queue deadline passed
+ */
+data class PriorityStatistics(
+    val executed: Long,
+    val expired: Long,
+    val totalQueueWaitNanos: Long,
+    val maxQueueWaitNanos: Long,
+    val totalBusNanos: Long,
+    val maxBusNanos: Long
+) {
+    val meanQueueWaitMicros: Long
+        get() = if (executed == 0L) 0 else totalQueueWaitNanos / executed / 1_000
+
+    val maxQueueWaitMicros: Long
+        get() = maxQueueWaitNanos / 1_000
+
+    val meanBusMicros: Long
+        get() = if (executed == 0L) 0 else totalBusNanos / executed / 1_000
+
+    val maxBusMicros: Long
+        get() = maxBusNanos / 1_000
+}
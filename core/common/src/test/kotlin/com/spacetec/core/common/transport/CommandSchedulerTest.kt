@@ -0,0 +1,191 @@
+package com.spacetec.core.common.transport
+
+import com.spacetec.core.common.exceptions.TimeoutException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import kotlinx.coroutines.yield
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [CommandScheduler].
+ */
+class CommandSchedulerTest {
+
+    private val scheduler = CommandScheduler()
+
+    @Test
+    fun testMostUrgentWaiterGetsTheBusNext() = runTest {
+        val order = mutableListOf<String>()
+        val busy = holdBus()
+
+        for ((name, priority) in listOf(
+            "poll1" to CommandPriority.POLLING,
+            "background" to CommandPriority.BACKGROUND,
+            "poll2" to CommandPriority.POLLING,
+            "user1" to CommandPriority.INTERACTIVE,
+            "safety" to CommandPriority.SAFETY,
+            "user2" to CommandPriority.INTERACTIVE
+        )) {
+            launch { scheduler.execute(priority) { order += name } }
+        }
+        runCurrent()
+        assertEquals(6, scheduler.queueLength)
+
+        busy.complete(Unit)
+        runCurrent()
+
+        assertEquals(listOf("safety", "user1", "user2", "background", "poll1", "poll2"), order)
+        assertEquals(0, scheduler.queueLength)
+    }
+
+    @Test
+    fun testExpiredRequestIsNeverRun() = runTest {
+        val busy = holdBus()
+        var ran = false
+
+        val stale = async {
+            runCatching { scheduler.execute(CommandPriority.POLLING, deadlineMs = 100) { ran = true } }
+        }
+        val patient = async { scheduler.execute(CommandPriority.POLLING) { "ok" } }
+
+        delay(500)
+        busy.complete(Unit)
+
+        assertTrue(stale.await().exceptionOrNull() is TimeoutException)
+        assertEquals("ok", patient.await())
+        assertFalse(ran)
+        assertEquals(1, scheduler.statistics()[CommandPriority.POLLING].expired)
+    }
+
+    @Test
+    fun testCancelledWaiterDoesNotHoldUpTheQueue() = runTest {
+        val busy = holdBus()
+        val cancelled = launch { scheduler.execute(CommandPriority.SAFETY) { fail("Cancelled request ran") } }
+        val next = async { scheduler.execute(CommandPriority.POLLING) { "ok" } }
+        runCurrent()
+
+        cancelled.cancel()
+        busy.complete(Unit)
+
+        assertEquals("ok", next.await())
+        assertEquals(0, scheduler.queueLength)
+    }
+
+    @Test
+    fun testFailingBlockReleasesTheBus() = runTest {
+        val failure = runCatching {
+            scheduler.execute(CommandPriority.INTERACTIVE) { throw IllegalStateException("bus error") }
+        }
+
+        assertTrue(failure.exceptionOrNull() is IllegalStateException)
+        assertEquals(1, scheduler.execute(CommandPriority.INTERACTIVE) { 1 })
+    }
+
+    @Test
+    fun testInteractiveLatencyIsBoundedUnderSaturatedPolling() = runTest {
+        // Four live-data loops keep the bus permanently busy with 50 ms
+        // requests; a user request arrives every 370 ms
+        val exchangeMs = 50L
+        val scheduled = measureInteractiveWaits(
+            exchangeMs,
+            poll = { block -> scheduler.execute(CommandPriority.POLLING) { block() } },
+            interactive = { block -> scheduler.execute(CommandPriority.INTERACTIVE) { block() } }
+        )
+        val mutex = Mutex()
+        val fifo = measureInteractiveWaits(
+            exchangeMs,
+            poll = { block -> mutex.withLock { block() } },
+            interactive = { block -> mutex.withLock { block() } }
+        )
+
+        // Never more than the one exchange already on the bus
+        assertTrue("Scheduler waits $scheduled", scheduled.max() <= exchangeMs)
+        // A FIFO mutex queues behind every poller
+        assertTrue("Mutex waits $fifo", fifo.max() >= 3 * exchangeMs)
+    }
+
+    @Test
+    fun testStatisticsSeparateQueueWaitFromBusTime() = runBlocking {
+        val first = async { scheduler.execute(CommandPriority.INTERACTIVE) { delay(30) } }
+        yield()
+        val second = async { scheduler.execute(CommandPriority.POLLING) { delay(10) } }
+        first.await()
+        second.await()
+
+        val stats = scheduler.statistics()
+        val interactive = stats[CommandPriority.INTERACTIVE]
+        val polling = stats[CommandPriority.POLLING]
+        assertEquals(1, interactive.executed)
+        assertEquals(1, polling.executed)
+        assertTrue(interactive.maxBusMicros >= 30_000)
+        assertTrue(polling.maxBusMicros >= 10_000)
+        assertTrue(polling.maxQueueWaitMicros >= 25_000)
+        assertTrue(interactive.maxQueueWaitMicros < 25_000)
+
+        scheduler.resetStatistics()
+        assertEquals(0, scheduler.statistics()[CommandPriority.INTERACTIVE].executed)
+    }
+
+    @Test
+    fun testDefaultPriorityOfCommands() {
+        assertEquals(CommandPriority.POLLING, CommandPriority.of("010C0D"))
+        assertEquals(CommandPriority.POLLING, CommandPriority.of("020C00"))
+        assertEquals(CommandPriority.INTERACTIVE, CommandPriority.of("03"))
+        assertEquals(CommandPriority.INTERACTIVE, CommandPriority.of("22F190"))
+        assertEquals(CommandPriority.INTERACTIVE, CommandPriority.of("ATRV"))
+        assertEquals(CommandPriority.INTERACTIVE, CommandPriority.of("0"))
+        assertEquals(CommandPriority.POLLING, CommandPriority.ofService(0x01))
+        assertEquals(CommandPriority.INTERACTIVE, CommandPriority.ofService(0x19))
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Occupies the bus until the returned deferred is completed.
+     */
+    private fun TestScope.holdBus(): CompletableDeferred<Unit> {
+        val release = CompletableDeferred<Unit>()
+        launch { scheduler.execute(CommandPriority.POLLING) { release.await() } }
+        runCurrent()
+        return release
+    }
+
+    /**
+     * Runs four saturating pollers through [poll] and returns the queue wait
+     * in virtual milliseconds of each request sent through [interactive].
+     */
+    private suspend fun TestScope.measureInteractiveWaits(
+        exchangeMs: Long,
+        poll: suspend (suspend () -> Unit) -> Unit,
+        interactive: suspend (suspend () -> Unit) -> Unit
+    ): List<Long> {
+        val pollers = List(4) {
+            launch {
+                while (isActive) poll { delay(exchangeMs) }
+            }
+        }
+        val waits = mutableListOf<Long>()
+        repeat(20) {
+            delay(370)
+            val requested = testScheduler.currentTime
+            interactive {
+                waits += testScheduler.currentTime - requested
+                delay(exchangeMs)
+            }
+        }
+        pollers.forEach { it.cancel() }
+        return waits
+    }
+}
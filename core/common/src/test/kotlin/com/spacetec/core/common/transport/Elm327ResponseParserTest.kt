@@ -0,0 +1,212 @@
+package com.spacetec.core.common.transport
+
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [Elm327ResponseParser], including parity with the string-based
+ * parsing it replaces in `Elm327Adapter.readResponse` and
+ * `MultiECUHandler.parseMultiECUResponse`.
+ */
+class Elm327ResponseParserTest {
+
+    private val parser = Elm327ResponseParser()
+
+    @Test
+    fun testCanHeadersWithAndWithoutSpaces() {
+        parse("7E8 06 41 00 BE 3E A8 13 \r7E906410098180001\r\r>", Elm327ResponseParser.HEADER_CAN_11BIT)
+
+        assertEquals(2, parser.frameCount)
+        assertTrue(parser.promptSeen)
+        assertEquals(0x7E8, parser.header(0))
+        assertEquals(0x7E9, parser.header(1))
+        assertArrayEquals(bytes(0x06, 0x41, 0x00, 0xBE, 0x3E, 0xA8, 0x13), parser.dataOf(0))
+        assertArrayEquals(bytes(0x06, 0x41, 0x00, 0x98, 0x18, 0x00, 0x01), parser.dataOf(1))
+        assertEquals(0, parser.status)
+    }
+
+    @Test
+    fun testAutoHeaderTellsElevenFromTwentyNineBit() {
+        parse("7E803410D32\r18DAF11103410D32\r>", Elm327ResponseParser.HEADER_CAN_AUTO)
+
+        assertEquals(0x7E8, parser.header(0))
+        assertEquals(3, parser.headerDigits(0))
+        assertEquals(0x18DAF111, parser.header(1))
+        assertEquals(8, parser.headerDigits(1))
+        assertArrayEquals(parser.dataOf(0), parser.dataOf(1))
+    }
+
+    @Test
+    fun testLegacyHeader() {
+        parse("48 6B 10 41 0C 1A F8 9C\r>", Elm327ResponseParser.HEADER_LEGACY)
+
+        assertEquals(0x486B10, parser.header(0))
+        assertArrayEquals(bytes(0x41, 0x0C, 0x1A, 0xF8, 0x9C), parser.dataOf(0))
+    }
+
+    @Test
+    fun testIsoTpLinePrefixesWithoutHeaders() {
+        parse("014\r0: 49 02 01 31 47 31\r1: 4A 43 35 34 34 34 52\r2: 37 32 35 32 33 36 37\r\r>")
+
+        assertEquals(0x14, parser.messageLength)
+        assertEquals(3, parser.frameCount)
+        for (frame in 0 until 3) {
+            assertEquals(frame, parser.lineIndex(frame))
+            assertEquals(-1, parser.header(frame))
+        }
+        assertArrayEquals(bytes(0x49, 0x02, 0x01, 0x31, 0x47, 0x31), parser.dataOf(0))
+        assertEquals(7, parser.dataLength(2))
+        assertEquals(0x37, parser.dataByte(2, 6))
+    }
+
+    @Test
+    fun testStatusWords() {
+        val cases = mapOf(
+            "NO DATA" to Elm327ResponseParser.STATUS_NO_DATA,
+            "BUFFER FULL" to Elm327ResponseParser.STATUS_BUFFER_FULL,
+            "STOPPED" to Elm327ResponseParser.STATUS_STOPPED,
+            "CAN ERROR" to Elm327ResponseParser.STATUS_CAN_ERROR,
+            "BUS BUSY" to Elm327ResponseParser.STATUS_BUS_ERROR,
+            "FB ERROR" to Elm327ResponseParser.STATUS_BUS_ERROR,
+            "UNABLE TO CONNECT" to Elm327ResponseParser.STATUS_UNABLE_TO_CONNECT,
+            "?" to Elm327ResponseParser.STATUS_UNKNOWN_COMMAND,
+            "ERROR" to Elm327ResponseParser.STATUS_ERROR,
+            "OK" to Elm327ResponseParser.STATUS_OK,
+            "ELM327 v1.5" to Elm327ResponseParser.STATUS_OTHER
+        )
+        for ((text, flag) in cases) {
+            parse("$text\r\r>")
+            assertEquals(text, flag, parser.status)
+            assertTrue(text, parser.isEmpty)
+        }
+    }
+
+    @Test
+    fun testDataBeforeStatusIsKept() {
+        parse("SEARCHING...\r7E804410C1AF8\r7E9 03 41 0D <DATA ERROR\rBUFFER FULL\r>", Elm327ResponseParser.HEADER_CAN_AUTO)
+
+        assertEquals(2, parser.frameCount)
+        assertArrayEquals(bytes(0x03, 0x41, 0x0D), parser.dataOf(1))
+        assertTrue(parser.hasStatus(Elm327ResponseParser.STATUS_SEARCHING))
+        assertTrue(parser.hasStatus(Elm327ResponseParser.STATUS_DATA_ERROR))
+        assertTrue(parser.hasStatus(Elm327ResponseParser.STATUS_BUFFER_FULL))
+        assertFalse(parser.hasStatus(Elm327ResponseParser.STATUS_FAILURE_MASK))
+    }
+
+    @Test
+    fun testStorageLimitsTruncate() {
+        val small = Elm327ResponseParser(maxFrames = 2, maxDataBytes = 64)
+        val text = "7E804410C1AF8\r7E904410C1AF8\r7EA04410C1AF8\r>".toByteArray(Charsets.US_ASCII)
+
+        assertEquals(2, small.parse(text, headerDigits = Elm327ResponseParser.HEADER_CAN_11BIT))
+        assertTrue(small.hasStatus(Elm327ResponseParser.STATUS_TRUNCATED))
+    }
+
+    @Test
+    fun testParsesSliceOfReceiveBuffer() {
+        val buffer = "xxxx7E804410C1AF8\r>yyyy".toByteArray(Charsets.US_ASCII)
+
+        parser.parse(buffer, 4, buffer.size - 4, Elm327ResponseParser.HEADER_CAN_11BIT)
+
+        assertEquals(1, parser.frameCount)
+        assertEquals(4, parser.lineStart(0))
+        assertEquals(17, parser.lineEnd(0))
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // PARITY WITH THE STRING PARSERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    @Test
+    fun testResponseTextParity() {
+        for (response in CORPUS) {
+            val bytes = response.toByteArray(Charsets.US_ASCII)
+            assertEquals(response, legacyResponseText(response), Elm327ResponseParser.responseText(bytes))
+        }
+    }
+
+    @Test
+    fun testMultiEcuParity() {
+        for (response in CORPUS.filter { !it.contains("18DA") }) {
+            val expected = legacyMultiEcu(response)
+            parser.parse(response.toByteArray(Charsets.ISO_8859_1), headerDigits = Elm327ResponseParser.HEADER_CAN_AUTO)
+
+            val actual = (0 until parser.frameCount).map { frame ->
+                Triple(
+                    "%03X".format(parser.header(frame)),
+                    parser.dataOf(frame).toList(),
+                    response.substring(parser.lineStart(frame), parser.lineEnd(frame))
+                )
+            }
+            assertEquals(response, expected, actual)
+        }
+    }
+
+    @Test
+    fun testTwentyNineBitHeadersAreNoLongerSplitAfterThreeDigits() {
+        val response = "18DAF11106410D32000000\r>"
+
+        parser.parse(response.toByteArray(Charsets.US_ASCII), headerDigits = Elm327ResponseParser.HEADER_CAN_AUTO)
+
+        // The regex parser read this as header 18D with data AF 11 06 ...
+        assertEquals("18D", legacyMultiEcu(response).single().first)
+        assertEquals(0x18DAF111, parser.header(0))
+        assertArrayEquals(bytes(0x06, 0x41, 0x0D, 0x32, 0x00, 0x00, 0x00), parser.dataOf(0))
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun parse(text: String, headerDigits: Int = Elm327ResponseParser.NO_HEADER) {
+        val bytes = text.toByteArray(Charsets.US_ASCII)
+        parser.parse(bytes, headerDigits = headerDigits)
+    }
+
+    private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+    /** Former `Elm327Adapter.readResponse` text normalization. */
+    private fun legacyResponseText(response: String): String = response
+        .replace("\r", "\n")
+        .replace(">", "")
+        .trim()
+        .lines()
+        .filter { it.isNotBlank() }
+        .joinToString("\n")
+
+    /** Former `MultiECUHandler.parseMultiECUResponse`: header, data, raw line. */
+    private fun legacyMultiEcu(response: String): List<Triple<String, List<Byte>, String>> {
+        val pattern = Regex("^([0-9A-Fa-f]{3})([0-9A-Fa-f]+)")
+        return response.split(Regex("[\\r\\n]+"))
+            .map { it.trim() }
+            .filter { it.isNotEmpty() && !it.startsWith(">") && it != "OK" }
+            .mapNotNull { line ->
+                val match = pattern.find(line.replace(" ", "")) ?: return@mapNotNull null
+                val data = match.groupValues[2]
+                val bytes = List(data.length / 2) { data.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+                Triple(match.groupValues[1].uppercase(), bytes, line)
+            }
+    }
+
+    companion object {
+        /** Responses as captured from ELM327 adapters, with ATH1 on CAN. */
+        private val CORPUS = listOf(
+            "7E804410C1AF8\r\r>",
+            "7E8 04 41 0C 1A F8 \r\r>",
+            "SEARCHING...\r7E8064100BE3EA813\r7E906410098180001\r\r>",
+            "7E8064100BE3EA813\r7E906410098180001\r7EA06410080000001\r\r>",
+            "\r\n7E8 03 41 0D 32 \r\n\r\n>",
+            "7e803410d32\r>",
+            "NO DATA\r\r>",
+            "STOPPED\r\r>",
+            "CAN ERROR\r\r>",
+            "OK\r\r>",
+            "?\r\r>",
+            "7E810144902013147\r7E82131414A43353434\r7E8223452373235323336\r\r>",
+            "7E806410C1AF80D32\r7E9034100BE\rBUFFER FULL\r\r>",
+            "7E8 03 41 0D 32 <DATA ERROR\r\r>",
+            "BUS INIT: ...OK\r7E804410C1AF8\r\r>",
+            "18DAF11106410D32000000\r\r>"
+        )
+    }
+}
@@ -21,6 +21,14 @@ interface ScannerConnection {
      */
     val isConnected: Boolean
 
+    /**
+     * Whether the scanner is an ELM327-compatible interpreter, taking AT
+     * commands such as `ATSH` (request header) and `ATST` (response timeout)
+     * between requests.
+     */
+    val isElm327: Boolean
+        get() = false
+
     /**
      * Write data to the scanner.
      * This method sends raw bytes to the connected scanner device.
@@ -0,0 +1,18 @@
+plugins {
+    id("org.jetbrains.kotlin.jvm")
+}
+
+// Pure JVM part of the core: code that needs nothing but the JDK, coroutines
+// and kotlinx.serialization. Android modules reach it through :core:common,
+// and the JMH benchmarks depend on it directly.
+
+kotlin {
+    jvmToolchain(17)
+}
+
+dependencies {
+    api(libs.kotlinx.coroutines.core)
+    api(libs.kotlinx.serialization.json)
+
+    testImplementation(libs.junit)
+}
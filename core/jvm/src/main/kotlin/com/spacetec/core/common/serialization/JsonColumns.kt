@@ -0,0 +1,155 @@
+package com.spacetec.core.common.serialization
+
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.booleanOrNull
+import kotlinx.serialization.json.doubleOrNull
+import kotlinx.serialization.json.floatOrNull
+import kotlinx.serialization.json.intOrNull
+import kotlinx.serialization.json.longOrNull
+
+/**
+ * JSON encoding of collection values stored in a single text column.
+ *
+ * Backs the collection type converters of the Room databases, kept free of
+ * Android dependencies so that the encoding can be tested and benchmarked
+ * on a plain JVM. Decoding returns null for malformed input instead of
+ * throwing, so that one corrupt row does not fail a whole query.
+ */
+object JsonColumns {
+
+    /**
+     * Shared JSON configuration for all serialization operations.
+     * Configured with:
+     * - Lenient parsing for backward compatibility
+     * - Ignore unknown keys for forward compatibility
+     * - No pretty printing for storage efficiency
+     */
+    private val json = Json {
+        ignoreUnknownKeys = true
+        isLenient = true
+        encodeDefaults = true
+        explicitNulls = false
+    }
+
+    /** Encodes [list] as a JSON array. */
+    fun encodeStringList(list: List<String>): String = json.encodeToString(list)
+
+    /** Decodes a JSON array of strings, or returns null if [jsonString] is invalid. */
+    fun decodeStringList(jsonString: String): List<String>? = decodeOrNull { json.decodeFromString<List<String>>(jsonString) }
+
+    /** Encodes [list] as a JSON array. */
+    fun encodeIntList(list: List<Int>): String = json.encodeToString(list)
+
+    /** Decodes a JSON array of integers, or returns null if [jsonString] is invalid. */
+    fun decodeIntList(jsonString: String): List<Int>? = decodeOrNull { json.decodeFromString<List<Int>>(jsonString) }
+
+    /** Encodes [list] as a JSON array. */
+    fun encodeLongList(list: List<Long>): String = json.encodeToString(list)
+
+    /** Decodes a JSON array of longs, or returns null if [jsonString] is invalid. */
+    fun decodeLongList(jsonString: String): List<Long>? = decodeOrNull { json.decodeFromString<List<Long>>(jsonString) }
+
+    /** Encodes [map] as a JSON object. */
+    fun encodeStringMap(map: Map<String, String>): String = json.encodeToString(map)
+
+    /** Decodes a JSON object of strings, or returns null if [jsonString] is invalid. */
+    fun decodeStringMap(jsonString: String): Map<String, String>? =
+        decodeOrNull { json.decodeFromString<Map<String, String>>(jsonString) }
+
+    /**
+     * Encodes [map] as a JSON object, or returns null if it cannot be.
+     *
+     * Supports the following value types:
+     * - String
+     * - Number (Int, Long, Float, Double)
+     * - Boolean
+     * - null
+     * - Nested Map<String, Any?>
+     * - List<Any?>
+     *
+     * Other values are stored as their [toString].
+     */
+    fun encodeAnyMap(map: Map<String, Any?>): String? =
+        decodeOrNull { json.encodeToString(JsonElement.serializer(), mapToJsonElement(map)) }
+
+    /**
+     * Decodes a JSON object into a map of the matching Kotlin types, or
+     * returns null if [jsonString] is invalid or not an object.
+     */
+    fun decodeAnyMap(jsonString: String): Map<String, Any?>? =
+        decodeOrNull { jsonElementToMap(json.decodeFromString(JsonElement.serializer(), jsonString)) }
+
+    private inline fun <T> decodeOrNull(block: () -> T): T? = try {
+        block()
+    } catch (e: Exception) {
+        null
+    }
+
+    /**
+     * Recursively converts a Map to a JsonElement.
+     */
+    private fun mapToJsonElement(map: Map<String, Any?>): JsonObject {
+        val content = map.mapValues { (_, value) -> anyToJsonElement(value) }
+        return JsonObject(content)
+    }
+
+    /**
+     * Converts any supported value to a JsonElement.
+     */
+    private fun anyToJsonElement(value: Any?): JsonElement {
+        return when (value) {
+            null -> JsonNull
+            is String -> JsonPrimitive(value)
+            is Number -> JsonPrimitive(value)
+            is Boolean -> JsonPrimitive(value)
+            is Map<*, *> -> {
+                @Suppress("UNCHECKED_CAST")
+                mapToJsonElement(value as Map<String, Any?>)
+            }
+            is List<*> -> {
+                JsonArray(value.map { anyToJsonElement(it) })
+            }
+            else -> JsonPrimitive(value.toString())
+        }
+    }
+
+    /**
+     * Recursively converts a JsonElement to a Map.
+     */
+    private fun jsonElementToMap(element: JsonElement): Map<String, Any?>? {
+        return when (element) {
+            is JsonObject -> {
+                element.mapValues { (_, v) -> jsonElementToAny(v) }
+            }
+            else -> null
+        }
+    }
+
+    /**
+     * Converts a JsonElement to the appropriate Kotlin type.
+     */
+    private fun jsonElementToAny(element: JsonElement): Any? {
+        return when (element) {
+            is JsonNull -> null
+            is JsonPrimitive -> {
+                when {
+                    element.isString -> element.content
+                    element.booleanOrNull != null -> element.booleanOrNull
+                    element.intOrNull != null -> element.intOrNull
+                    element.longOrNull != null -> element.longOrNull
+                    element.floatOrNull != null -> element.floatOrNull
+                    element.doubleOrNull != null -> element.doubleOrNull
+                    else -> element.content
+                }
+            }
+            is JsonArray -> element.map { jsonElementToAny(it) }
+            is JsonObject -> element.mapValues { (_, v) -> jsonElementToAny(v) }
+        }
+    }
+}
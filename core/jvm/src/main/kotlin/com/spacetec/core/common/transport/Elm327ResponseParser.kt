@@ -0,0 +1,396 @@
+package com.spacetec.core.common.transport
+
+/**
+ * Byte-level parser for ELM327 ASCII responses.
+ *
+ * Decodes the hex lines of a response straight from the receive buffer into
+ * frames held in preallocated arrays, so parsing a response allocates
+ * nothing. Handles:
+ * - headers (ATH1): 11-bit and 29-bit CAN IDs, or the 3-byte J1850/ISO 9141
+ *   header, selected with the `headerDigits` argument of [parse]
+ * - spaces between bytes (ATS1) or not (ATS0)
+ * - CAN auto formatting without headers: the message length line (`014`)
+ *   and the `0:`, `1:` ... ISO-TP line prefixes
+ * - status words (`NO DATA`, `BUFFER FULL`, `STOPPED`, `CAN ERROR`, `?` ...),
+ *   reported as [status] flags, including a trailing `<DATA ERROR` or
+ *   `<RX ERROR` after the bytes of a frame
+ *
+ * Results stay valid until the next [parse] or [reset]. Not thread-safe;
+ * use one instance per reader.
+ *
+ * @param maxFrames Frames kept per response; further frames set [STATUS_TRUNCATED]
+ * @param maxDataBytes Total data bytes kept per response
+ */
+class Elm327ResponseParser(
+    maxFrames: Int = DEFAULT_MAX_FRAMES,
+    maxDataBytes: Int = DEFAULT_MAX_DATA_BYTES
+) {
+
+    private val headers = IntArray(maxFrames)
+    private val headerDigitCounts = IntArray(maxFrames)
+    private val lineIndices = IntArray(maxFrames)
+    private val dataOffsets = IntArray(maxFrames)
+    private val dataLengths = IntArray(maxFrames)
+    private val lineStarts = IntArray(maxFrames)
+    private val lineEnds = IntArray(maxFrames)
+    private val data = ByteArray(maxDataBytes)
+    private var dataUsed = 0
+
+    /** Frames decoded by the last [parse]. */
+    var frameCount: Int = 0
+        private set
+
+    /** `STATUS_*` flags seen in the last response. */
+    var status: Int = 0
+        private set
+
+    /**
+     * Message length announced by the length line of a CAN response without
+     * headers (`014` = 20 bytes), or -1.
+     */
+    var messageLength: Int = -1
+        private set
+
+    /** Whether the `>` prompt ended the parsed input. */
+    var promptSeen: Boolean = false
+        private set
+
+    /**
+     * Parses one response.
+     *
+     * Stops at the `>` prompt or at the end of the input.
+     *
+     * @param buffer Receive buffer holding ASCII text
+     * @param offset Start of the response in [buffer]
+     * @param length Number of bytes to parse
+     * @param headerDigits Hex digits of the header on each data line: [NO_HEADER],
+     *   [HEADER_CAN_11BIT], [HEADER_CAN_29BIT], [HEADER_LEGACY], or
+     *   [HEADER_CAN_AUTO] to pick 11 or 29 bit per line
+     * @return Number of frames decoded
+     */
+    fun parse(
+        buffer: ByteArray,
+        offset: Int = 0,
+        length: Int = buffer.size - offset,
+        headerDigits: Int = NO_HEADER
+    ): Int {
+        reset()
+        val end = offset + length
+        var lineStart = offset
+        var i = offset
+
+        while (i < end) {
+            val c = buffer[i].toInt()
+            if (c == PROMPT) {
+                promptSeen = true
+                break
+            }
+            if (c == CR || c == LF) {
+                parseLine(buffer, lineStart, i, headerDigits)
+                lineStart = i + 1
+            }
+            i++
+        }
+        parseLine(buffer, lineStart, i, headerDigits)
+        return frameCount
+    }
+
+    /**
+     * Clears all results.
+     */
+    fun reset() {
+        frameCount = 0
+        dataUsed = 0
+        status = 0
+        messageLength = -1
+        promptSeen = false
+    }
+
+    fun hasStatus(flag: Int): Boolean = status and flag != 0
+
+    /** True if the response carried no frames, only status words. */
+    val isEmpty: Boolean
+        get() = frameCount == 0
+
+    /**
+     * Header of [frame] as a number (CAN ID, or the 3 J1850/ISO 9141
+     * header bytes), or -1 when the line had none.
+     */
+    fun header(frame: Int): Int = if (headerDigitCounts[checkFrame(frame)] == 0) -1 else headers[frame]
+
+    /** Hex digits of the header of [frame]: 0, 3, 6 or 8. */
+    fun headerDigits(frame: Int): Int = headerDigitCounts[checkFrame(frame)]
+
+    /** ISO-TP line index of [frame] (the `n` of `n:`), or -1. */
+    fun lineIndex(frame: Int): Int = lineIndices[checkFrame(frame)]
+
+    /** Number of data bytes in [frame], excluding the header. */
+    fun dataLength(frame: Int): Int = dataLengths[checkFrame(frame)]
+
+    /** Data byte [index] of [frame] as 0..255. */
+    fun dataByte(frame: Int, index: Int): Int {
+        if (index !in 0 until dataLengths[checkFrame(frame)]) throw IndexOutOfBoundsException("Byte $index")
+        return data[dataOffsets[frame] + index].toInt() and 0xFF
+    }
+
+    /**
+     * Copies the data bytes of [frame] into [destination].
+     *
+     * @return Number of bytes copied
+     */
+    fun copyData(frame: Int, destination: ByteArray, destinationOffset: Int = 0): Int {
+        val count = dataLengths[checkFrame(frame)]
+        System.arraycopy(data, dataOffsets[frame], destination, destinationOffset, count)
+        return count
+    }
+
+    /** Data bytes of [frame] in a new array. */
+    fun dataOf(frame: Int): ByteArray = ByteArray(dataLength(frame)).also { copyData(frame, it) }
+
+    /** Start of the trimmed source line of [frame] in the parsed buffer. */
+    fun lineStart(frame: Int): Int = lineStarts[checkFrame(frame)]
+
+    /** End (exclusive) of the trimmed source line of [frame] in the parsed buffer. */
+    fun lineEnd(frame: Int): Int = lineEnds[checkFrame(frame)]
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // LINE PARSING
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun parseLine(buffer: ByteArray, from: Int, to: Int, headerDigits: Int) {
+        var start = from
+        var end = to
+        while (start < end && isBlank(buffer[start].toInt())) start++
+        while (end > start && isBlank(buffer[end - 1].toInt())) end--
+        if (start == end) return
+
+        // Classify: hex digits, spaces and an optional index colon are data;
+        // anything else up to a '<' makes the line a status word
+        var digits = 0
+        var colon = -1
+        var dataEnd = end
+        var i = start
+        while (i < end) {
+            val c = buffer[i].toInt()
+            when {
+                hexValue(c) >= 0 -> digits++
+                isBlank(c) -> Unit
+                c == COLON && colon < 0 && digits in 1..2 -> colon = i
+                c == LESS_THAN && digits > 0 -> {
+                    dataEnd = i
+                    status = status or matchStatus(buffer, i, end)
+                    break
+                }
+                else -> {
+                    status = status or matchStatus(buffer, start, end)
+                    return
+                }
+            }
+            i++
+        }
+
+        var index = -1
+        var dataStart = start
+        if (colon >= 0) {
+            index = 0
+            for (j in start until colon) {
+                val v = hexValue(buffer[j].toInt())
+                if (v >= 0) index = (index shl 4) or v
+            }
+            dataStart = colon + 1
+            digits = countHexDigits(buffer, dataStart, dataEnd)
+        }
+
+        var headerLength = when (headerDigits) {
+            HEADER_CAN_AUTO -> if (digits % 2 == 1) HEADER_CAN_11BIT else HEADER_CAN_29BIT
+            else -> headerDigits
+        }
+        if (index >= 0) headerLength = NO_HEADER
+
+        if (index < 0 && headerLength == NO_HEADER && digits == LENGTH_LINE_DIGITS) {
+            messageLength = parseHex(buffer, dataStart, dataEnd)
+            return
+        }
+        if (digits - headerLength < 2) {
+            // Header with no data, or a stray digit
+            status = status or STATUS_MALFORMED
+            return
+        }
+
+        if (frameCount == headers.size || dataUsed + (digits - headerLength) / 2 > data.size) {
+            status = status or STATUS_TRUNCATED
+            return
+        }
+
+        val frame = frameCount
+        var header = 0
+        var digitIndex = 0
+        var high = -1
+        val frameDataStart = dataUsed
+        for (j in dataStart until dataEnd) {
+            val v = hexValue(buffer[j].toInt())
+            if (v < 0) continue
+            if (digitIndex < headerLength) {
+                header = (header shl 4) or v
+            } else if (high < 0) {
+                high = v
+            } else {
+                data[dataUsed++] = ((high shl 4) or v).toByte()
+                high = -1
+            }
+            digitIndex++
+        }
+
+        headers[frame] = header
+        headerDigitCounts[frame] = headerLength
+        lineIndices[frame] = index
+        dataOffsets[frame] = frameDataStart
+        dataLengths[frame] = dataUsed - frameDataStart
+        lineStarts[frame] = start
+        lineEnds[frame] = end
+        frameCount++
+    }
+
+    private fun matchStatus(buffer: ByteArray, start: Int, end: Int): Int {
+        for (k in STATUS_WORDS.indices) {
+            if (startsWith(buffer, start, end, STATUS_WORDS[k])) return STATUS_FLAGS[k]
+        }
+        return STATUS_OTHER
+    }
+
+    private fun startsWith(buffer: ByteArray, start: Int, end: Int, word: ByteArray): Boolean {
+        if (end - start < word.size) return false
+        for (k in word.indices) {
+            if (buffer[start + k] != word[k]) return false
+        }
+        return true
+    }
+
+    private fun countHexDigits(buffer: ByteArray, start: Int, end: Int): Int {
+        var count = 0
+        for (j in start until end) if (hexValue(buffer[j].toInt()) >= 0) count++
+        return count
+    }
+
+    private fun parseHex(buffer: ByteArray, start: Int, end: Int): Int {
+        var value = 0
+        for (j in start until end) {
+            val v = hexValue(buffer[j].toInt())
+            if (v >= 0) value = (value shl 4) or v
+        }
+        return value
+    }
+
+    private fun checkFrame(frame: Int): Int {
+        if (frame !in 0 until frameCount) throw IndexOutOfBoundsException("Frame $frame of $frameCount")
+        return frame
+    }
+
+    companion object {
+        const val DEFAULT_MAX_FRAMES = 64
+        const val DEFAULT_MAX_DATA_BYTES = 4096
+
+        /** Lines carry no header (ATH0). */
+        const val NO_HEADER = 0
+        /** 11-bit CAN ID: 3 hex digits. */
+        const val HEADER_CAN_11BIT = 3
+        /** J1850 / ISO 9141 / KWP: 3 header bytes. */
+        const val HEADER_LEGACY = 6
+        /** 29-bit CAN ID: 8 hex digits. */
+        const val HEADER_CAN_29BIT = 8
+        /**
+         * CAN with headers, 11 or 29 bit decided per line: an 11-bit line
+         * has an odd digit count, a 29-bit line an even one.
+         */
+        const val HEADER_CAN_AUTO = -1
+
+        const val STATUS_NO_DATA = 1 shl 0
+        const val STATUS_BUFFER_FULL = 1 shl 1
+        const val STATUS_STOPPED = 1 shl 2
+        const val STATUS_CAN_ERROR = 1 shl 3
+        const val STATUS_BUS_ERROR = 1 shl 4
+        const val STATUS_DATA_ERROR = 1 shl 5
+        const val STATUS_UNABLE_TO_CONNECT = 1 shl 6
+        const val STATUS_SEARCHING = 1 shl 7
+        const val STATUS_BUS_INIT = 1 shl 8
+        const val STATUS_UNKNOWN_COMMAND = 1 shl 9
+        const val STATUS_ERROR = 1 shl 10
+        const val STATUS_OK = 1 shl 11
+        /** A text line that is not a known status word. */
+        const val STATUS_OTHER = 1 shl 12
+        /** A data line too short to hold its header and one byte. */
+        const val STATUS_MALFORMED = 1 shl 13
+        /** Frames were dropped because the parser's storage was full. */
+        const val STATUS_TRUNCATED = 1 shl 14
+
+        /** Flags meaning the request got no usable answer. */
+        const val STATUS_FAILURE_MASK = STATUS_NO_DATA or STATUS_STOPPED or STATUS_CAN_ERROR or
+            STATUS_BUS_ERROR or STATUS_UNABLE_TO_CONNECT or STATUS_UNKNOWN_COMMAND or STATUS_ERROR
+
+        private const val PROMPT = '>'.code
+        private const val CR = '\r'.code
+        private const val LF = '\n'.code
+        private const val COLON = ':'.code
+        private const val LESS_THAN = '<'.code
+        private const val LENGTH_LINE_DIGITS = 3
+
+        // Longer words first where one is a prefix of another
+        private val STATUS_WORDS = arrayOf(
+            "NO DATA", "BUFFER FULL", "STOPPED", "CAN ERROR", "BUS INIT", "BUS BUSY", "BUS ERROR",
+            "FB ERROR", "<DATA ERROR", "DATA ERROR", "<RX ERROR", "UNABLE TO CONNECT", "SEARCHING",
+            "?", "ERROR", "OK"
+        ).map { it.toByteArray(Charsets.US_ASCII) }.toTypedArray()
+
+        private val STATUS_FLAGS = intArrayOf(
+            STATUS_NO_DATA, STATUS_BUFFER_FULL, STATUS_STOPPED, STATUS_CAN_ERROR, STATUS_BUS_INIT,
+            STATUS_BUS_ERROR, STATUS_BUS_ERROR, STATUS_BUS_ERROR, STATUS_DATA_ERROR, STATUS_DATA_ERROR,
+            STATUS_DATA_ERROR, STATUS_UNABLE_TO_CONNECT, STATUS_SEARCHING, STATUS_UNKNOWN_COMMAND,
+            STATUS_ERROR, STATUS_OK
+        )
+
+        private fun isBlank(c: Int): Boolean = c == ' '.code || c == '\t'.code || c == CR || c == LF
+
+        private fun hexValue(c: Int): Int = when (c) {
+            in '0'.code..'9'.code -> c - '0'.code
+            in 'A'.code..'F'.code -> c - 'A'.code + 10
+            in 'a'.code..'f'.code -> c - 'a'.code + 10
+            else -> -1
+        }
+
+        /**
+         * Builds the text of a response in one pass: stops at the `>`
+         * prompt, drops blank lines, trims the response and joins the lines
+         * with `\n`.
+         *
+         * Produces what `replace("\r", "\n").replace(">", "").trim().lines()
+         * .filter { it.isNotBlank() }.joinToString("\n")` did, without the
+         * intermediate strings, for any input ending at its first prompt.
+         */
+        fun responseText(buffer: ByteArray, offset: Int = 0, length: Int = buffer.size - offset): String {
+            var end = offset
+            val limit = offset + length
+            while (end < limit && buffer[end].toInt() != PROMPT) end++
+
+            val chars = CharArray(end - offset)
+            var count = 0
+            var lineStart = offset
+            var i = offset
+            while (i <= end) {
+                if (i == end || buffer[i].toInt() == CR || buffer[i].toInt() == LF) {
+                    var s = lineStart
+                    while (s < i && isBlank(buffer[s].toInt())) s++
+                    if (s < i) {
+                        // Non-blank line: keep it, trimming only the response edges
+                        val from = if (count == 0) s else lineStart
+                        if (count > 0) chars[count++] = '\n'
+                        for (j in from until i) chars[count++] = (buffer[j].toInt() and 0xFF).toChar()
+                    }
+                    lineStart = i + 1
+                }
+                i++
+            }
+            while (count > 0 && chars[count - 1].isWhitespace()) count--
+            return String(chars, 0, count)
+        }
+    }
+}
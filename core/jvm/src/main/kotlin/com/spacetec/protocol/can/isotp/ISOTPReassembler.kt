@@ -0,0 +1,376 @@
+package com.spacetec.protocol.can.isotp
+
+/**
+ * ISO-TP (ISO 15765-2) Reassembler for combining CAN frames into complete messages
+ *
+ * Runs an independent receive state machine per CAN ID, so responses to a
+ * functional request (0x7DF) from several ECUs (0x7E8-0x7EF) can be
+ * reassembled while their frames are interleaved on the bus.
+ *
+ * Each stream copies payload bytes straight into a buffer allocated once
+ * from the first-frame length; consecutive frames never grow or re-copy the
+ * message. Sequence numbers are validated per stream, and a stream that sees
+ * no frame for [timeoutMs] (N_Cr) is evicted.
+ *
+ * Not thread-safe: feed frames from a single reader.
+ *
+ * @param timeoutMs Maximum gap between frames of one message before the stream is dropped
+ * @param maxStreams Maximum number of concurrent receive streams
+ * @param maxMessageLength Largest accepted message; larger first frames report [FrameResult.OVERFLOW]
+ * @param clock Millisecond time source
+ */
+class ISOTPReassembler(
+    private val timeoutMs: Long = DEFAULT_TIMEOUT_MS,
+    private val maxStreams: Int = DEFAULT_MAX_STREAMS,
+    private val maxMessageLength: Int = MAX_MESSAGE_LENGTH,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+    /**
+     * Outcome of feeding one frame to the reassembler.
+     */
+    enum class FrameResult {
+        /** A message for the frame's CAN ID is complete; fetch it with [takeMessage]. */
+        COMPLETE,
+        /** The frame was accepted and the message needs more consecutive frames. */
+        IN_PROGRESS,
+        /** Flow control or a consecutive frame with no reception in progress. */
+        IGNORED,
+        /** Wrong sequence number; the stream was aborted. */
+        SEQUENCE_ERROR,
+        /** The previous frame for this stream is older than the timeout; the stream was aborted. */
+        TIMEOUT,
+        /** First frame announces more than [maxMessageLength] bytes, or no stream slot is free. */
+        OVERFLOW,
+        /** Truncated frame or invalid length. */
+        INVALID_FRAME
+    }
+
+    /**
+     * Receive state for one CAN ID. Slots are reused across messages.
+     */
+    private class Stream {
+        var canId = NO_STREAM
+        var buffer: ByteArray? = null
+        var expectedLength = 0
+        var received = 0
+        var nextSequence = 0
+        var lastFrameAt = 0L
+        var completed: ByteArray? = null
+
+        val isReceiving: Boolean
+            get() = buffer != null
+
+        fun abort() {
+            buffer = null
+            expectedLength = 0
+            received = 0
+            nextSequence = 0
+        }
+
+        fun release() {
+            abort()
+            completed = null
+            canId = NO_STREAM
+        }
+    }
+
+    private val streams = Array(maxStreams) { Stream() }
+    private var lastCompleted: ByteArray = ByteArray(0)
+    private var lastSweepAt = 0L
+
+    /**
+     * Total number of streams dropped because of the timeout.
+     */
+    var evictedCount: Long = 0
+        private set
+
+    /**
+     * Feeds one frame received on [canId].
+     *
+     * @param canId CAN identifier the frame was received on
+     * @param frame Array holding the frame, starting with the PCI byte
+     * @param offset Start of the frame in [frame]
+     * @param length Frame length (8 for classic CAN, up to 64 for CAN FD)
+     */
+    fun processFrame(
+        canId: Int,
+        frame: ByteArray,
+        offset: Int = 0,
+        length: Int = frame.size - offset
+    ): FrameResult {
+        if (length <= 0) return FrameResult.INVALID_FRAME
+
+        val now = clock()
+        if (now - lastSweepAt >= timeoutMs) {
+            evictExpired(now)
+        }
+
+        val pci = frame[offset].toInt() and 0xFF
+        return when ((pci shr 4) and 0x0F) {
+            0x00 -> onSingleFrame(canId, frame, offset, length, pci, now)
+            0x01 -> onFirstFrame(canId, frame, offset, length, pci, now)
+            0x02 -> onConsecutiveFrame(canId, frame, offset, length, pci, now)
+            else -> FrameResult.IGNORED // Flow control is sent by the receiver
+        }
+    }
+
+    /**
+     * Returns and clears the completed message for [canId], or null.
+     */
+    fun takeMessage(canId: Int): ByteArray? {
+        val stream = find(canId) ?: return null
+        val message = stream.completed ?: return null
+        stream.completed = null
+        if (!stream.isReceiving) stream.canId = NO_STREAM
+        return message
+    }
+
+    /**
+     * Checks if a multi-frame message is in progress on [canId].
+     */
+    fun isReceiving(canId: Int): Boolean = find(canId)?.isReceiving == true
+
+    /**
+     * Number of streams currently receiving a multi-frame message.
+     */
+    val activeStreams: Int
+        get() = streams.count { it.isReceiving }
+
+    /**
+     * Drops every stream whose last frame is older than the timeout, along
+     * with completed messages that were never taken.
+     *
+     * Called opportunistically from [processFrame]; call it directly when no
+     * frames are arriving.
+     *
+     * @return Number of streams evicted
+     */
+    fun evictExpired(now: Long = clock()): Int {
+        lastSweepAt = now
+        var evicted = 0
+        for (stream in streams) {
+            if (stream.canId == NO_STREAM || now - stream.lastFrameAt <= timeoutMs) continue
+            if (stream.isReceiving) {
+                stream.abort()
+                evicted++
+            }
+            // Completed messages nobody collected also give up their slot
+            stream.release()
+        }
+        evictedCount += evicted
+        return evicted
+    }
+
+    /**
+     * Resets the stream for [canId].
+     */
+    fun reset(canId: Int) {
+        find(canId)?.release()
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // SINGLE-STREAM API
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Reassembles ISO-TP frames into a complete message
+     * @param frame The incoming CAN frame
+     * @return True if the message is complete, false otherwise
+     */
+    fun processFrame(frame: ByteArray): Boolean {
+        if (frame.isEmpty()) return false
+        if (processFrame(DEFAULT_CAN_ID, frame) != FrameResult.COMPLETE) return false
+        lastCompleted = takeMessage(DEFAULT_CAN_ID) ?: return false
+        return true
+    }
+
+    /**
+     * Gets the complete reassembled message
+     */
+    fun getCompleteMessage(): ByteArray {
+        return lastCompleted
+    }
+
+    /**
+     * Checks if we're currently receiving a multi-frame message
+     */
+    fun isReceiving(): Boolean {
+        return activeStreams > 0
+    }
+
+    /**
+     * Resets the reassembly state
+     */
+    fun reset() {
+        for (stream in streams) stream.release()
+        lastCompleted = ByteArray(0)
+    }
+
+    /**
+     * Processes multiple frames until a complete message is received
+     */
+    fun processFrames(frames: List<ByteArray>): ByteArray? {
+        reset()
+
+        for (frame in frames) {
+            if (processFrame(frame)) {
+                return getCompleteMessage()
+            }
+        }
+
+        return null // Message not complete
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // FRAME HANDLERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun onSingleFrame(
+        canId: Int,
+        frame: ByteArray,
+        offset: Int,
+        length: Int,
+        pci: Int,
+        now: Long
+    ): FrameResult {
+        // SF_DL of 0 is the CAN FD escape: length in the next byte
+        var dataLength = pci and 0x0F
+        var dataStart = 1
+        if (dataLength == 0) {
+            if (length < 2) return FrameResult.INVALID_FRAME
+            dataLength = frame[offset + 1].toInt() and 0xFF
+            dataStart = 2
+        }
+        if (dataLength == 0 || length < dataStart + dataLength) return FrameResult.INVALID_FRAME
+
+        val stream = acquire(canId) ?: return FrameResult.OVERFLOW
+        // A single frame ends any reception in progress on this ID
+        stream.abort()
+        stream.completed = frame.copyOfRange(offset + dataStart, offset + dataStart + dataLength)
+        stream.lastFrameAt = now
+        return FrameResult.COMPLETE
+    }
+
+    private fun onFirstFrame(
+        canId: Int,
+        frame: ByteArray,
+        offset: Int,
+        length: Int,
+        pci: Int,
+        now: Long
+    ): FrameResult {
+        if (length < 2) return FrameResult.INVALID_FRAME
+
+        // FF_DL of 0 is the escape for messages over 4095 bytes: 32-bit length follows
+        var messageLength = ((pci and 0x0F) shl 8) or (frame[offset + 1].toInt() and 0xFF)
+        var dataStart = 2
+        if (messageLength == 0) {
+            if (length < 6) return FrameResult.INVALID_FRAME
+            val longLength = ((frame[offset + 2].toLong() and 0xFF) shl 24) or
+                ((frame[offset + 3].toLong() and 0xFF) shl 16) or
+                ((frame[offset + 4].toLong() and 0xFF) shl 8) or
+                (frame[offset + 5].toLong() and 0xFF)
+            if (longLength > maxMessageLength) return overflow(canId)
+            messageLength = longLength.toInt()
+            dataStart = 6
+        }
+        if (messageLength > maxMessageLength) return overflow(canId)
+        if (messageLength < length - dataStart) return FrameResult.INVALID_FRAME
+
+        val stream = acquire(canId) ?: return FrameResult.OVERFLOW
+
+        // A new first frame restarts reception on this ID
+        val buffer = ByteArray(messageLength)
+        val count = length - dataStart
+        System.arraycopy(frame, offset + dataStart, buffer, 0, count)
+
+        stream.buffer = buffer
+        stream.expectedLength = messageLength
+        stream.received = count
+        stream.nextSequence = 1
+        stream.lastFrameAt = now
+        return FrameResult.IN_PROGRESS
+    }
+
+    private fun onConsecutiveFrame(
+        canId: Int,
+        frame: ByteArray,
+        offset: Int,
+        length: Int,
+        pci: Int,
+        now: Long
+    ): FrameResult {
+        val stream = find(canId)
+        val buffer = stream?.buffer ?: return FrameResult.IGNORED
+
+        if (now - stream.lastFrameAt > timeoutMs) {
+            stream.abort()
+            evictedCount++
+            return FrameResult.TIMEOUT
+        }
+
+        if ((pci and 0x0F) != stream.nextSequence) {
+            stream.abort()
+            return FrameResult.SEQUENCE_ERROR
+        }
+
+        // Trailing padding in the last frame is dropped
+        val count = minOf(length - 1, stream.expectedLength - stream.received)
+        System.arraycopy(frame, offset + 1, buffer, stream.received, count)
+        stream.received += count
+        stream.lastFrameAt = now
+
+        if (stream.received >= stream.expectedLength) {
+            stream.completed = buffer
+            stream.abort()
+            return FrameResult.COMPLETE
+        }
+
+        stream.nextSequence = (stream.nextSequence + 1) and 0x0F
+        return FrameResult.IN_PROGRESS
+    }
+
+    private fun overflow(canId: Int): FrameResult {
+        find(canId)?.abort()
+        return FrameResult.OVERFLOW
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // STREAM TABLE
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun find(canId: Int): Stream? {
+        for (stream in streams) {
+            if (stream.canId == canId) return stream
+        }
+        return null
+    }
+
+    private fun acquire(canId: Int): Stream? {
+        find(canId)?.let { return it }
+        for (stream in streams) {
+            if (stream.canId == NO_STREAM) {
+                stream.canId = canId
+                return stream
+            }
+        }
+        return null
+    }
+
+    companion object {
+        /** N_Cr: maximum time between consecutive frames (ISO 15765-2). */
+        const val DEFAULT_TIMEOUT_MS = 1000L
+
+        /** Enough for every physical response ID plus functional traffic. */
+        const val DEFAULT_MAX_STREAMS = 32
+
+        /** Largest message accepted by default. */
+        const val MAX_MESSAGE_LENGTH = 64 * 1024
+
+        /** Stream used by the single-stream API. */
+        const val DEFAULT_CAN_ID = 0x7E8
+
+        private const val NO_STREAM = -1
+    }
+}
@@ -27,8 +27,8 @@ class ISOTPSegmenter {
             val totalLength = data.size
             val firstFrameData = ByteArray(8)
             
-            // First frame PCI (0x10 = first frame, upper 4 bits = length upper bits)
-            val pci = (0x10 shl 4) or ((totalLength shr 8) and 0x0F)
+            // First frame PCI (0x1 = first frame, low nibble = length upper bits)
+            val pci = 0x10 or ((totalLength shr 8) and 0x0F)
             firstFrameData[0] = pci.toByte()
             firstFrameData[1] = (totalLength and 0xFF).toByte() // Lower length bits
             System.arraycopy(data, 0, firstFrameData, 2, 6) // First 6 bytes of data
@@ -57,17 +57,18 @@ class ISOTPSegmenter {
             val totalLength = data.size
             val firstFrameData = ByteArray(8)
             
-            // First frame PCI with extended addressing (0x10 + length in next 4 bytes)
+            // Escape first frame (ISO 15765-2:2016): 12-bit length of 0 followed
+            // by a 32-bit length in bytes 2-5
             firstFrameData[0] = 0x10.toByte() // First frame
-            firstFrameData[1] = 0x00.toByte() // Extended address (0 for now)
+            firstFrameData[1] = 0x00.toByte() // FF_DL = 0 selects the 32-bit length
             firstFrameData[2] = ((totalLength shr 24) and 0xFF).toByte() // Length bytes
             firstFrameData[3] = ((totalLength shr 16) and 0xFF).toByte()
             firstFrameData[4] = ((totalLength shr 8) and 0xFF).toByte()
             firstFrameData[5] = (totalLength and 0xFF).toByte()
             
             // Fill with remaining data
-            val dataBytesAvailable = minOf(3, totalLength) // Only 3 bytes available after length
-            System.arraycopy(data, 0, firstFrameData, 5, dataBytesAvailable)
+            val dataBytesAvailable = 2 // Only 2 bytes available after length
+            System.arraycopy(data, 0, firstFrameData, 6, dataBytesAvailable)
             
             frames.add(firstFrameData)
             
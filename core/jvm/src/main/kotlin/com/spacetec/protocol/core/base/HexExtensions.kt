@@ -0,0 +1,23 @@
+/**
+ * HexExtensions.kt
+ *
+ * Hex conversion helpers used for protocol logging and message building.
+ */
+
+package com.spacetec.protocol.core.base
+
+/**
+ * Converts a ByteArray to a hex string for logging.
+ */
+fun ByteArray.toHexString(): String =
+    joinToString(" ") { String.format("%02X", it) }
+
+/**
+ * Converts a hex string to ByteArray.
+ */
+fun String.hexToByteArray(): ByteArray {
+    val cleanHex = replace(" ", "").replace("0x", "")
+    return ByteArray(cleanHex.length / 2) { i ->
+        cleanHex.substring(i * 2, i * 2 + 2).toInt(16).toByte()
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free, fixed-size latency histogram with logarithmic buckets.
+ *
+ * Values are recorded in microseconds. Values below 16 µs get a bucket
+ * each; above that every power of two is split into 8 linear sub-buckets,
+ * as in HdrHistogram, so a reported percentile is never more than 12.5%
+ * above the true value. Values of [MAX_TRACKABLE_MICROS] and above
+ * (about 16.7 s) share the last bucket.
+ *
+ * [record] is a single increment on an [AtomicLongArray]: no locks, no CAS
+ * retry loops, no allocation. There is deliberately no running sum, which
+ * would double the cost; the mean is estimated from bucket midpoints, with
+ * the same precision as the percentiles. Readers take a
+ * [LatencySnapshot] at any time; a snapshot taken while recording is in
+ * progress may miss samples recorded concurrently, but is never corrupt.
+ *
+ * @author SpaceTec Development Team
+ * @since 1.1.0
+ */
+class LatencyHistogram {
+
+    private val counts = AtomicLongArray(BUCKET_COUNT)
+    private val startedAt = AtomicLong(System.currentTimeMillis())
+
+    /**
+     * Records one latency in microseconds. Negative values count as zero.
+     */
+    fun record(micros: Long) {
+        val value = if (micros < 0) 0 else micros
+        counts.incrementAndGet(bucketIndex(value))
+    }
+
+    /**
+     * Records one latency measured with [System.nanoTime].
+     */
+    fun recordNanos(nanos: Long) {
+        record(nanos / 1_000)
+    }
+
+    /**
+     * Copies the current counts into an immutable snapshot.
+     */
+    fun snapshot(): LatencySnapshot {
+        val copy = LongArray(BUCKET_COUNT)
+        var count = 0L
+        for (i in 0 until BUCKET_COUNT) {
+            val bucket = counts.get(i)
+            copy[i] = bucket
+            count += bucket
+        }
+        return LatencySnapshot(copy, count, startedAt.get(), System.currentTimeMillis())
+    }
+
+    /**
+     * Adds the current counts into [target], which must hold
+     * [BUCKET_COUNT] entries.
+     *
+     * @return Number of samples added
+     */
+    internal fun addTo(target: LongArray): Long {
+        var count = 0L
+        for (i in 0 until BUCKET_COUNT) {
+            val bucket = counts.get(i)
+            target[i] += bucket
+            count += bucket
+        }
+        return count
+    }
+
+    internal val startTime: Long
+        get() = startedAt.get()
+
+    /**
+     * Clears all samples and restarts the throughput interval.
+     */
+    fun reset() {
+        for (i in 0 until BUCKET_COUNT) {
+            counts.set(i, 0)
+        }
+        startedAt.set(System.currentTimeMillis())
+    }
+
+    companion object {
+        /** Linear sub-buckets per power of two, as a bit count. */
+        internal const val SUB_BUCKET_BITS = 3
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        private const val LINEAR_LIMIT = 2 * SUB_BUCKETS
+
+        /** Largest power of two with its own buckets. */
+        private const val MAX_MAGNITUDE = 23
+
+        /** Values from here on are counted in the last bucket. */
+        const val MAX_TRACKABLE_MICROS = 1L shl (MAX_MAGNITUDE + 1)
+
+        /** Buckets per histogram. */
+        const val BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS
+
+        /**
+         * Bucket holding [micros], which must not be negative.
+         */
+        internal fun bucketIndex(micros: Long): Int {
+            if (micros < LINEAR_LIMIT) return micros.toInt()
+            if (micros >= MAX_TRACKABLE_MICROS) return BUCKET_COUNT - 1
+            val magnitude = 63 - java.lang.Long.numberOfLeadingZeros(micros)
+            val shift = magnitude - SUB_BUCKET_BITS
+            return (shift * SUB_BUCKETS + (micros ushr shift)).toInt()
+        }
+
+        /**
+         * Smallest value counted in bucket [index].
+         */
+        internal fun lowestValue(index: Int): Long {
+            if (index < LINEAR_LIMIT) return index.toLong()
+            val shift = index / SUB_BUCKETS - 1
+            val subBucket = index % SUB_BUCKETS + SUB_BUCKETS
+            return subBucket.toLong() shl shift
+        }
+
+        /**
+         * Largest value counted in bucket [index].
+         */
+        internal fun highestValue(index: Int): Long {
+            if (index < LINEAR_LIMIT) return index.toLong()
+            if (index == BUCKET_COUNT - 1) return MAX_TRACKABLE_MICROS
+            val shift = index / SUB_BUCKETS - 1
+            return lowestValue(index) + (1L shl shift) - 1
+        }
+    }
+}
+
+/**
+ * Immutable copy of a [LatencyHistogram], or of several merged ones.
+ *
+ * Percentiles are reported as the highest value of the bucket they fall
+ * in, so they err on the slow side. All latencies are in microseconds.
+ *
+ * @property count Samples recorded
+ * @property startedAt When recording started (epoch milliseconds)
+ * @property takenAt When the snapshot was taken (epoch milliseconds)
+ */
+class LatencySnapshot internal constructor(
+    private val counts: LongArray,
+    val count: Long,
+    val startedAt: Long,
+    val takenAt: Long
+) {
+
+    /** Mean latency from bucket midpoints, or 0 without samples. */
+    val meanMicros: Long
+        get() {
+            if (count == 0L) return 0
+            var total = 0.0
+            for (i in counts.indices) {
+                if (counts[i] == 0L) continue
+                val midpoint = (LatencyHistogram.lowestValue(i) + LatencyHistogram.highestValue(i)) / 2.0
+                total += midpoint * counts[i]
+            }
+            return (total / count).toLong()
+        }
+
+    val p50Micros: Long
+        get() = percentileMicros(50.0)
+
+    val p90Micros: Long
+        get() = percentileMicros(90.0)
+
+    val p99Micros: Long
+        get() = percentileMicros(99.0)
+
+    val p999Micros: Long
+        get() = percentileMicros(99.9)
+
+    /** Upper bound of the slowest non-empty bucket. */
+    val maxMicros: Long
+        get() {
+            for (i in counts.indices.reversed()) {
+                if (counts[i] > 0) return LatencyHistogram.highestValue(i)
+            }
+            return 0
+        }
+
+    /** Samples per second between [startedAt] and [takenAt]. */
+    val throughputPerSecond: Double
+        get() {
+            val interval = takenAt - startedAt
+            return if (interval > 0) count * 1000.0 / interval else 0.0
+        }
+
+    /**
+     * Latency at or below which [percentile] percent of the samples fall,
+     * or 0 without samples.
+     */
+    fun percentileMicros(percentile: Double): Long {
+        if (count == 0L) return 0
+        val rank = Math.ceil(count * percentile.coerceIn(0.0, 100.0) / 100.0).toLong().coerceAtLeast(1)
+        var seen = 0L
+        for (i in counts.indices) {
+            seen += counts[i]
+            if (seen >= rank) return LatencyHistogram.highestValue(i)
+        }
+        return maxMicros
+    }
+
+    /**
+     * Combines this snapshot with [other], e.g. several command classes or
+     * several connections. The interval spans both.
+     */
+    fun merge(other: LatencySnapshot): LatencySnapshot {
+        if (other.count == 0L) return this
+        if (count == 0L) return other
+        val merged = LongArray(counts.size) { counts[it] + other.counts[it] }
+        return LatencySnapshot(
+            merged,
+            count + other.count,
+            minOf(startedAt, other.startedAt),
+            maxOf(takenAt, other.takenAt)
+        )
+    }
+
+    override fun toString(): String =
+        "n=$count p50=${p50Micros}µs p90=${p90Micros}µs p99=${p99Micros}µs p99.9=${p999Micros}µs " +
+            "max=${maxMicros}µs %.1f/s".format(throughputPerSecond)
+
+    companion object {
+        val EMPTY = LatencySnapshot(LongArray(LatencyHistogram.BUCKET_COUNT), 0, 0, 0)
+
+        /**
+         * Sums [histograms] into one snapshot with a single array copy.
+         */
+        fun of(histograms: List<LatencyHistogram>): LatencySnapshot {
+            if (histograms.isEmpty()) return EMPTY
+            val counts = LongArray(LatencyHistogram.BUCKET_COUNT)
+            var count = 0L
+            var started = Long.MAX_VALUE
+            for (histogram in histograms) {
+                count += histogram.addTo(counts)
+                started = minOf(started, histogram.startTime)
+            }
+            return LatencySnapshot(counts, count, started, System.currentTimeMillis())
+        }
+    }
+}
+
+/**
+ * Command classes that latency is tracked for separately: AT/ST adapter
+ * commands, each OBD-II mode, and the common UDS services.
+ *
+ * Classes are plain indices so that classifying a command on the send
+ * path allocates nothing.
+ */
+object CommandClass {
+
+    /** ELM327 `AT` and STN `ST` commands. */
+    const val AT = 0
+
+    /** OBD-II modes 01-0A map to indices 1-10. */
+    private const val OBD_FIRST = 1
+    private const val OBD_LAST_MODE = 0x0A
+
+    private val UDS_SERVICES = intArrayOf(
+        0x10, 0x11, 0x14, 0x19, 0x22, 0x23, 0x27, 0x28, 0x2A, 0x2C,
+        0x2E, 0x2F, 0x31, 0x34, 0x35, 0x36, 0x37, 0x3E, 0x85
+    )
+    private const val UDS_FIRST = OBD_FIRST + OBD_LAST_MODE
+
+    /** UDS/KWP services without a class of their own. */
+    const val UDS_OTHER = UDS_FIRST + 19
+
+    /** Anything else, including raw writes. */
+    const val OTHER = UDS_OTHER + 1
+
+    /** Number of classes. */
+    const val COUNT = OTHER + 1
+
+    private val byService = IntArray(256) { service ->
+        when {
+            service in 0x01..OBD_LAST_MODE -> OBD_FIRST + service - 1
+            service in UDS_SERVICES -> UDS_FIRST + UDS_SERVICES.indexOf(service)
+            service in 0x10..0x3E || service in 0x80..0xBF -> UDS_OTHER
+            else -> OTHER
+        }
+    }
+
+    /**
+     * Class of a request whose first byte is [service].
+     */
+    fun ofService(service: Int): Int = byService[service and 0xFF]
+
+    /**
+     * Class of an ASCII adapter command such as `ATSP0`, `010C` or `22F190`.
+     */
+    fun of(command: CharSequence): Int {
+        var i = 0
+        while (i < command.length && command[i] == ' ') i++
+        if (i + 1 >= command.length) return OTHER
+
+        val first = command[i]
+        val second = command[i + 1]
+        if ((first == 'A' || first == 'a' || first == 'S' || first == 's') && (second == 'T' || second == 't')) {
+            return AT
+        }
+        val high = Character.digit(first, 16)
+        val low = Character.digit(second, 16)
+        if (high < 0 || low < 0) return OTHER
+        return byService[(high shl 4) or low]
+    }
+
+    /**
+     * Display name of class [index], e.g. `AT`, `OBD 01`, `UDS 22`.
+     */
+    fun name(index: Int): String = when {
+        index == AT -> "AT"
+        index < UDS_FIRST -> "OBD %02X".format(index - OBD_FIRST + 1)
+        index < UDS_OTHER -> "UDS %02X".format(UDS_SERVICES[index - UDS_FIRST])
+        index == UDS_OTHER -> "UDS other"
+        else -> "Other"
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
+
+/**
+ * Tests for [LatencyHistogram], [LatencySnapshot] and [CommandClass].
+ *
+ * **Feature: scanner-connection-system, Latency Histograms**
+ */
+class LatencyHistogramTest {
+
+    @Test
+    fun `buckets are contiguous and bounded`() {
+        var expectedLow = 0L
+        for (index in 0 until LatencyHistogram.BUCKET_COUNT - 1) {
+            val low = LatencyHistogram.lowestValue(index)
+            val high = LatencyHistogram.highestValue(index)
+            assertEquals("bucket $index", expectedLow, low)
+            assertEquals(index, LatencyHistogram.bucketIndex(low))
+            assertEquals(index, LatencyHistogram.bucketIndex(high))
+            // Bucket width stays within 1/8 of its values
+            assertTrue("bucket $index", (high - low) * 8 <= low.coerceAtLeast(1))
+            expectedLow = high + 1
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE))
+    }
+
+    @Test
+    fun `percentiles are within bucket precision`() {
+        val random = Random(42)
+        val histogram = LatencyHistogram()
+        // Mostly 20-60 ms ELM327 round trips with a slow tail
+        val values = LongArray(100_000) {
+            if (random.nextInt(100) == 0) 200_000L + random.nextInt(800_000) else 20_000L + random.nextInt(40_000)
+        }
+        values.forEach(histogram::record)
+        values.sort()
+
+        val snapshot = histogram.snapshot()
+        assertEquals(values.size.toLong(), snapshot.count)
+        val mean = values.sum() / values.size
+        assertEquals(mean.toDouble(), snapshot.meanMicros.toDouble(), mean / 16.0)
+        for (percentile in doubleArrayOf(50.0, 90.0, 99.0, 99.9)) {
+            val exact = values[Math.ceil(values.size * percentile / 100).toInt() - 1]
+            val reported = snapshot.percentileMicros(percentile)
+            assertTrue("p$percentile $reported < $exact", reported >= exact)
+            assertTrue("p$percentile $reported vs $exact", reported <= exact + exact / 8)
+        }
+        assertTrue(snapshot.p99Micros > 4 * snapshot.p50Micros)
+    }
+
+    @Test
+    fun `empty snapshot reports zero`() {
+        val snapshot = LatencyHistogram().snapshot()
+
+        assertEquals(0L, snapshot.count)
+        assertEquals(0L, snapshot.p99Micros)
+        assertEquals(0L, snapshot.maxMicros)
+        assertEquals(0L, snapshot.meanMicros)
+    }
+
+    @Test
+    fun `merge combines counts`() {
+        val fast = LatencyHistogram()
+        val slow = LatencyHistogram()
+        repeat(90) { fast.record(1_000) }
+        repeat(10) { slow.record(100_000) }
+
+        val merged = fast.snapshot().merge(slow.snapshot())
+
+        assertEquals(100L, merged.count)
+        assertTrue(merged.p50Micros < 1_200)
+        assertTrue(merged.p99Micros >= 100_000)
+        assertEquals(merged.count, LatencySnapshot.of(listOf(fast, slow)).count)
+        assertSame(merged, merged.merge(LatencySnapshot.EMPTY))
+    }
+
+    @Test
+    fun `concurrent recording loses no samples`() {
+        val histogram = LatencyHistogram()
+        val threads = 4
+        val perThread = 250_000
+        val start = CountDownLatch(1)
+        val workers = List(threads) { worker ->
+            thread {
+                start.await()
+                for (i in 0 until perThread) histogram.record((i % 5_000 + worker).toLong())
+            }
+        }
+        start.countDown()
+        workers.forEach { it.join() }
+
+        assertEquals((threads * perThread).toLong(), histogram.snapshot().count)
+    }
+
+    @Test
+    fun `commands are classified without allocation`() {
+        assertEquals(CommandClass.AT, CommandClass.of("ATSP0"))
+        assertEquals(CommandClass.AT, CommandClass.of("stdi"))
+        assertEquals("OBD 01", CommandClass.name(CommandClass.of("010C")))
+        assertEquals("OBD 09", CommandClass.name(CommandClass.of("09 02")))
+        assertEquals("UDS 22", CommandClass.name(CommandClass.of("22F190")))
+        assertEquals("UDS 3E", CommandClass.name(CommandClass.of("3E00")))
+        assertEquals(CommandClass.UDS_OTHER, CommandClass.of("1A90"))
+        assertEquals(CommandClass.OTHER, CommandClass.of("?"))
+        assertEquals(CommandClass.OTHER, CommandClass.of("FF"))
+        assertEquals("UDS 27", CommandClass.name(CommandClass.ofService(0x27)))
+    }
+
+    @Test
+    fun `recording cost`() {
+        val histogram = LatencyHistogram()
+        val random = Random(7)
+        val values = LongArray(1 shl 16) { 1_000L + random.nextInt(200_000) }
+        val mask = values.size - 1
+        repeat(5_000_000) { histogram.record(values[it and mask]) }
+
+        val iterations = 20_000_000
+        val start = System.nanoTime()
+        for (i in 0 until iterations) histogram.record(values[i and mask])
+        val nanosPerRecord = (System.nanoTime() - start).toDouble() / iterations
+
+        println("LatencyHistogram.record: %.1f ns".format(nanosPerRecord))
+        assertEquals(25_000_000L, histogram.snapshot().count)
+    }
+}
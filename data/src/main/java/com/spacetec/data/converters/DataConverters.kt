@@ -18,18 +18,7 @@ package com.spacetec.core.database.converters
 
 import android.net.Uri
 import androidx.room.TypeConverter
-import kotlinx.serialization.encodeToString
-import kotlinx.serialization.json.Json
-import kotlinx.serialization.json.JsonArray
-import kotlinx.serialization.json.JsonElement
-import kotlinx.serialization.json.JsonNull
-import kotlinx.serialization.json.JsonObject
-import kotlinx.serialization.json.JsonPrimitive
-import kotlinx.serialization.json.booleanOrNull
-import kotlinx.serialization.json.doubleOrNull
-import kotlinx.serialization.json.floatOrNull
-import kotlinx.serialization.json.intOrNull
-import kotlinx.serialization.json.longOrNull
+import com.spacetec.core.common.serialization.JsonColumns
 import java.math.BigDecimal
 import java.net.InetAddress
 import java.time.Duration
@@ -81,8 +70,8 @@ import java.util.UUID
  * - [VIN] ↔ [String]
  *
  * ## Thread Safety
- * All converters are stateless and thread-safe. The [Json] instance is configured
- * for lenient parsing to handle legacy data gracefully.
+ * All converters are stateless and thread-safe. Collections are encoded by
+ * [JsonColumns], which parses leniently to handle legacy data gracefully.
  *
  * ## Error Handling
  * Converters return null for invalid input rather than throwing exceptions,
@@ -93,20 +82,6 @@ import java.util.UUID
 class DateConverters {
 
     companion object {
-        /**
-         * Shared JSON configuration for all serialization operations.
-         * Configured with:
-         * - Lenient parsing for backward compatibility
-         * - Ignore unknown keys for forward compatibility
-         * - No pretty printing for storage efficiency
-         */
-        private val json = Json {
-            ignoreUnknownKeys = true
-            isLenient = true
-            encodeDefaults = true
-            explicitNulls = false
-        }
-
         /**
          * Characters used for hexadecimal encoding.
          */
@@ -293,7 +268,7 @@ class DateConverters {
      */
     @TypeConverter
     fun stringListToJson(list: List<String>?): String? {
-        return list?.let { json.encodeToString(it) }
+        return list?.let { JsonColumns.encodeStringList(it) }
     }
 
     /**
@@ -304,13 +279,7 @@ class DateConverters {
      */
     @TypeConverter
     fun jsonToStringList(jsonString: String?): List<String>? {
-        return jsonString?.let {
-            try {
-                json.decodeFromString<List<String>>(it)
-            } catch (e: Exception) {
-                null
-            }
-        }
+        return jsonString?.let { JsonColumns.decodeStringList(it) }
     }
 
     /**
@@ -321,7 +290,7 @@ class DateConverters {
      */
     @TypeConverter
     fun intListToJson(list: List<Int>?): String? {
-        return list?.let { json.encodeToString(it) }
+        return list?.let { JsonColumns.encodeIntList(it) }
     }
 
     /**
@@ -332,13 +301,7 @@ class DateConverters {
      */
     @TypeConverter
     fun jsonToIntList(jsonString: String?): List<Int>? {
-        return jsonString?.let {
-            try {
-                json.decodeFromString<List<Int>>(it)
-            } catch (e: Exception) {
-                null
-            }
-        }
+        return jsonString?.let { JsonColumns.decodeIntList(it) }
     }
 
     /**
@@ -349,7 +312,7 @@ class DateConverters {
      */
     @TypeConverter
     fun longListToJson(list: List<Long>?): String? {
-        return list?.let { json.encodeToString(it) }
+        return list?.let { JsonColumns.encodeLongList(it) }
     }
 
     /**
@@ -360,13 +323,7 @@ class DateConverters {
      */
     @TypeConverter
     fun jsonToLongList(jsonString: String?): List<Long>? {
-        return jsonString?.let {
-            try {
-                json.decodeFromString<List<Long>>(it)
-            } catch (e: Exception) {
-                null
-            }
-        }
+        return jsonString?.let { JsonColumns.decodeLongList(it) }
     }
 
     /**
@@ -377,7 +334,7 @@ class DateConverters {
      */
     @TypeConverter
     fun stringSetToJson(set: Set<String>?): String? {
-        return set?.let { json.encodeToString(it.toList()) }
+        return set?.let { JsonColumns.encodeStringList(it.toList()) }
     }
 
     /**
@@ -388,13 +345,7 @@ class DateConverters {
      */
     @TypeConverter
     fun jsonToStringSet(jsonString: String?): Set<String>? {
-        return jsonString?.let {
-            try {
-                json.decodeFromString<List<String>>(it).toSet()
-            } catch (e: Exception) {
-                null
-            }
-        }
+        return jsonString?.let { JsonColumns.decodeStringList(it)?.toSet() }
     }
 
     /**
@@ -405,7 +356,7 @@ class DateConverters {
      */
     @TypeConverter
     fun stringMapToJson(map: Map<String, String>?): String? {
-        return map?.let { json.encodeToString(it) }
+        return map?.let { JsonColumns.encodeStringMap(it) }
     }
 
     /**
@@ -416,39 +367,20 @@ class DateConverters {
      */
     @TypeConverter
     fun jsonToStringMap(jsonString: String?): Map<String, String>? {
-        return jsonString?.let {
-            try {
-                json.decodeFromString<Map<String, String>>(it)
-            } catch (e: Exception) {
-                null
-            }
-        }
+        return jsonString?.let { JsonColumns.decodeStringMap(it) }
     }
 
     /**
      * Converts a [Map] of [String] to [Any]? to a JSON object [String].
      *
-     * Supports the following value types:
-     * - String
-     * - Number (Int, Long, Float, Double)
-     * - Boolean
-     * - null
-     * - Nested Map<String, Any?>
-     * - List<Any?>
+     * Supports the value types listed at [JsonColumns.encodeAnyMap].
      *
      * @param map The map to convert, may be null
      * @return JSON object string, or null if input is null
      */
     @TypeConverter
     fun anyMapToJson(map: Map<String, Any?>?): String? {
-        return map?.let {
-            try {
-                val jsonObject = mapToJsonElement(it)
-                json.encodeToString(JsonElement.serializer(), jsonObject)
-            } catch (e: Exception) {
-                null
-            }
-        }
+        return map?.let { JsonColumns.encodeAnyMap(it) }
     }
 
     /**
@@ -459,76 +391,7 @@ class DateConverters {
      */
     @TypeConverter
     fun jsonToAnyMap(jsonString: String?): Map<String, Any?>? {
-        return jsonString?.let {
-            try {
-                val jsonElement = json.decodeFromString(JsonElement.serializer(), it)
-                jsonElementToMap(jsonElement)
-            } catch (e: Exception) {
-                null
-            }
-        }
-    }
-
-    /**
-     * Recursively converts a Map to a JsonElement.
-     */
-    private fun mapToJsonElement(map: Map<String, Any?>): JsonObject {
-        val content = map.mapValues { (_, value) -> anyToJsonElement(value) }
-        return JsonObject(content)
-    }
-
-    /**
-     * Converts any supported value to a JsonElement.
-     */
-    private fun anyToJsonElement(value: Any?): JsonElement {
-        return when (value) {
-            null -> JsonNull
-            is String -> JsonPrimitive(value)
-            is Number -> JsonPrimitive(value)
-            is Boolean -> JsonPrimitive(value)
-            is Map<*, *> -> {
-                @Suppress("UNCHECKED_CAST")
-                mapToJsonElement(value as Map<String, Any?>)
-            }
-            is List<*> -> {
-                JsonArray(value.map { anyToJsonElement(it) })
-            }
-            else -> JsonPrimitive(value.toString())
-        }
-    }
-
-    /**
-     * Recursively converts a JsonElement to a Map.
-     */
-    private fun jsonElementToMap(element: JsonElement): Map<String, Any?>? {
-        return when (element) {
-            is JsonObject -> {
-                element.mapValues { (_, v) -> jsonElementToAny(v) }
-            }
-            else -> null
-        }
-    }
-
-    /**
-     * Converts a JsonElement to the appropriate Kotlin type.
-     */
-    private fun jsonElementToAny(element: JsonElement): Any? {
-        return when (element) {
-            is JsonNull -> null
-            is JsonPrimitive -> {
-                when {
-                    element.isString -> element.content
-                    element.booleanOrNull != null -> element.booleanOrNull
-                    element.intOrNull != null -> element.intOrNull
-                    element.longOrNull != null -> element.longOrNull
-                    element.floatOrNull != null -> element.floatOrNull
-                    element.doubleOrNull != null -> element.doubleOrNull
-                    else -> element.content
-                }
-            }
-            is JsonArray -> element.map { jsonElementToAny(it) }
-            is JsonObject -> element.mapValues { (_, v) -> jsonElementToAny(v) }
-        }
+        return jsonString?.let { JsonColumns.decodeAnyMap(it) }
     }
 
     // ==================== BYTE ARRAY CONVERTERS ====================
@@ -7,6 +7,7 @@ plugins {
 dependencies {
     // Kotlin stdlib is added automatically by the Kotlin plugin
     // Add other dependencies as needed
+    api(project(":core:jvm"))
     testImplementation(libs.junit)
 }
 
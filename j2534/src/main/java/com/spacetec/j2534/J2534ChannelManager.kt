@@ -8,6 +8,7 @@ package com.spacetec.j2534
 import com.spacetec.core.common.exceptions.ConnectionException
 import com.spacetec.core.common.exceptions.CommunicationException
 import com.spacetec.core.common.result.Result
+import com.spacetec.j2534.api.PassThruApi
 import com.spacetec.j2534.constants.J2534Constants
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
@@ -32,6 +33,9 @@ class J2534ChannelManager(
     private val channelPriorities = ConcurrentHashMap<Int, ChannelPriority>()
     private val resourceAllocations = ConcurrentHashMap<Int, ResourceAllocation>()
     
+    // Channels opened for protocol detection, by PassThru channel ID
+    private val probeChannels = ConcurrentHashMap<Long, PhysicalLayer>()
+    
     private val nextChannelId = AtomicInteger(1)
     private var maxConcurrentChannels = J2534Constants.MAX_CHANNELS
     
@@ -247,6 +251,14 @@ class J2534ChannelManager(
             ))
         }
         
+        // Protocol detection holds the layer until its probe is closed
+        val layer = physicalLayer(protocolId)
+        if (layer in probeChannels.values) {
+            return Result.Error(ConnectionException(
+                "Cannot create channel while protocol detection is probing the $layer layer"
+            ))
+        }
+        
         // Check for protocol-specific conflicts
         when (protocolId) {
             J2534Constants.CAN, J2534Constants.ISO15765 -> {
@@ -315,6 +327,55 @@ class J2534ChannelManager(
         }
     }
     
+    // ═══════════════════════════════════════════════════════════════════════
+    // PROTOCOL DETECTION
+    // ═══════════════════════════════════════════════════════════════════════
+    
+    /**
+     * Opens a short-lived channel for a protocol detection probe.
+     *
+     * A probe gets its physical layer to itself: it is refused while a
+     * managed channel or another probe uses the layer, and no managed
+     * channel is created on the layer until [closeProbeChannel].
+     *
+     * @return The PassThru channel ID, or null if the layer is in use or
+     *   PassThruConnect failed
+     */
+    suspend fun openProbeChannel(
+        api: PassThruApi,
+        deviceId: Long,
+        protocolId: Int,
+        flags: Int,
+        baudRate: Int
+    ): Long? = mutex.withLock {
+        val layer = physicalLayer(protocolId)
+        if (layer in probeChannels.values || channels.values.any { physicalLayer(it.channel.protocolId) == layer }) {
+            return null
+        }
+        
+        val channelIds = LongArray(1)
+        val status = api.passThruConnect(deviceId, protocolId.toLong(), flags.toLong(), baudRate.toLong(), channelIds)
+        if (status != J2534Errors.STATUS_NOERROR) {
+            return null
+        }
+        
+        probeChannels[channelIds[0]] = layer
+        return channelIds[0]
+    }
+    
+    /**
+     * Disconnects a probe channel and frees its physical layer. Does not
+     * suspend, so a cancelled probe can still release its channel.
+     */
+    fun closeProbeChannel(api: PassThruApi, channelId: Long) {
+        if (!probeChannels.containsKey(channelId)) return
+        try {
+            api.passThruDisconnect(channelId)
+        } finally {
+            probeChannels.remove(channelId)
+        }
+    }
+    
     // ═══════════════════════════════════════════════════════════════════════
     // CHANNEL PRIORITY AND RESOURCE ALLOCATION
     // ═══════════════════════════════════════════════════════════════════════
@@ -593,8 +654,32 @@ class J2534ChannelManager(
      */
     fun getActiveChannelCount(): Int = channels.values.count { it.isActive }
     
+    /**
+     * Vehicle-side wiring a protocol uses. Channels on different layers can
+     * be open at the same time; channels on the same layer compete for the
+     * same pins.
+     */
+    enum class PhysicalLayer {
+        CAN,
+        K_LINE,
+        J1850,
+        SCI
+    }
+    
     companion object {
         
+        /**
+         * Gets the physical layer of a protocol.
+         */
+        fun physicalLayer(protocolId: Int): PhysicalLayer {
+            return when (protocolId) {
+                J2534Constants.CAN, J2534Constants.ISO15765 -> PhysicalLayer.CAN
+                J2534Constants.ISO9141, J2534Constants.ISO14230 -> PhysicalLayer.K_LINE
+                J2534Constants.J1850VPW, J2534Constants.J1850PWM -> PhysicalLayer.J1850
+                else -> PhysicalLayer.SCI
+            }
+        }
+        
         /**
          * Creates a new channel manager.
          */
@@ -3,6 +3,9 @@ package com.spacetec.j2534
 import com.spacetec.core.common.exceptions.CommunicationException
 import com.spacetec.core.common.exceptions.ConnectionException
 import com.spacetec.core.common.result.AppResult
+import com.spacetec.core.common.result.Result
+import com.spacetec.j2534.api.PassThruApi
+import com.spacetec.j2534.api.PassThruApiImpl
 import com.spacetec.j2534.constants.J2534Constants
 import com.spacetec.transport.contract.ScannerConnection
 import com.spacetec.transport.contract.ConnectionState
@@ -15,12 +18,20 @@ import kotlinx.coroutines.flow.asStateFlow
  * J2534 Connection implementation following SAE J2534-1 and J2534-2 standards
  * This class provides a complete implementation of the J2534 Pass-Thru API with proper
  * error handling, protocol support, and ISO compliance.
+ *
+ * Channels, including the probes of [detectProtocol], are allocated through
+ * one [J2534ChannelManager].
  */
 class J2534Connection(
-    private val deviceName: String? = null
+    private val deviceName: String? = null,
+    private val passThruApi: PassThruApi = PassThruApiImpl()
 ) : ScannerConnection {
     
     private val j2534Interface = J2534Interface()
+    private val channelManager = J2534ChannelManager(
+        j2534Interface,
+        J2534Device(usbDevice = null, deviceName = deviceName ?: DEFAULT_DEVICE_NAME, vendorId = 0, productId = 0)
+    )
     private var deviceId: Int = -1
     private var channelId: Int = -1
     private val _connectionState = MutableStateFlow<ConnectionState>(ConnectionState.Disconnected)
@@ -60,7 +71,7 @@ class J2534Connection(
             
             // Close the channel if it's open
             if (channelId != -1) {
-                val disconnectResult = j2534Interface.passThruDisconnect(channelId)
+                val disconnectResult = channelManager.closeChannel(channelId)
                 if (disconnectResult.isError) {
                     result = AppResult.Failure("Failed to disconnect channel: ${disconnectResult.exception?.message}")
                 }
@@ -97,7 +108,7 @@ class J2534Connection(
         }
         
         return try {
-            val connectResult = j2534Interface.passThruConnect(deviceId, protocolId, flags, baudRate)
+            val connectResult = channelManager.createChannel(protocolId, flags, baudRate)
             if (connectResult.isError) {
                 AppResult.Failure("Failed to connect channel: ${connectResult.exception?.message}")
             } else {
@@ -109,6 +120,41 @@ class J2534Connection(
         }
     }
     
+    /**
+     * Detects the vehicle protocol with [J2534ProtocolDetector] and connects
+     * the channel on it.
+     *
+     * The probes get their channels from the same [J2534ChannelManager] as
+     * [connectChannel], which would leave the layer of an open channel
+     * unprobed, so the open channel is closed first.
+     */
+    suspend fun detectProtocol(parallel: Boolean = true): AppResult<J2534ProbeCandidate> {
+        if (deviceId == -1) {
+            return AppResult.Failure("Device not opened")
+        }
+        
+        if (channelId != -1) {
+            val disconnectResult = channelManager.closeChannel(channelId)
+            if (disconnectResult.isError) {
+                return AppResult.Failure("Failed to disconnect channel: ${disconnectResult.exception?.message}")
+            }
+            channelId = -1
+        }
+        
+        val detector = J2534ProtocolDetector(passThruApi, deviceId.toLong(), channelManager)
+        val detectResult = detector.detect(parallel = parallel)
+        if (detectResult !is Result.Success) {
+            return AppResult.Failure("Protocol detection failed: ${detectResult.exception?.message}")
+        }
+        
+        val candidate = detectResult.data.candidate
+        val connectResult = connectChannel(candidate.protocolId, candidate.flags, candidate.baudRate)
+        if (connectResult.isError) {
+            return AppResult.Failure("Detected ${candidate.name}, but the channel failed: ${connectResult.exception?.message}")
+        }
+        return AppResult.Success(candidate)
+    }
+    
     /**
      * Write data to the J2534 device
      */
@@ -246,6 +292,8 @@ class J2534Connection(
     }
     
     companion object {
+        private const val DEFAULT_DEVICE_NAME = "J2534"
+        
         /**
          * Create a J2534 connection with the default device
          */
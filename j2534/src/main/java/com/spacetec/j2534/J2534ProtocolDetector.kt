@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ */
+
+package com.spacetec.j2534
+
+import com.spacetec.core.common.exceptions.ProtocolException
+import com.spacetec.core.common.result.Result
+import com.spacetec.j2534.api.PassThruApi
+import com.spacetec.j2534.constants.J2534Constants
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import kotlin.coroutines.coroutineContext
+
+/**
+ * One protocol configuration tried during detection.
+ *
+ * @property name Display name
+ * @property protocolId J2534 protocol ID
+ * @property flags PassThruConnect flags
+ * @property baudRate Bus speed
+ * @property initIoctl FAST_INIT or FIVE_BAUD_INIT for K-line protocols, or null
+ * @property request OBD request 01 00 including the protocol header, or null
+ *   to only listen for traffic (J1939 broadcasts)
+ * @property headerLength Header bytes in front of the service ID in responses
+ */
+class J2534ProbeCandidate(
+    val name: String,
+    val protocolId: Int,
+    val flags: Int = 0,
+    val baudRate: Int,
+    val initIoctl: Int? = null,
+    val request: ByteArray?,
+    val headerLength: Int
+) {
+
+    /**
+     * Physical layer the candidate occupies while it is probed.
+     */
+    val physicalLayer: J2534ChannelManager.PhysicalLayer
+        get() = J2534ChannelManager.physicalLayer(protocolId)
+
+    /**
+     * Checks if a received message confirms the protocol.
+     */
+    fun accepts(message: J2534Message): Boolean {
+        if (message.rxStatus and J2534Constants.TX_MSG_TYPE != 0) return false
+        if (request == null) return message.dataSize > 0
+        val data = message.data
+        return message.dataSize >= headerLength + 2 &&
+            data[headerLength] == OBD_POSITIVE_RESPONSE &&
+            data[headerLength + 1] == request[request.size - 1]
+    }
+
+    override fun toString(): String = name
+
+    private companion object {
+        const val OBD_POSITIVE_RESPONSE: Byte = 0x41
+    }
+}
+
+/**
+ * Result of a successful protocol detection.
+ *
+ * @property candidate Protocol configuration that answered
+ * @property detectionTimeMs Time from the start of detection to the answer
+ * @property probesStarted Candidates whose channel was opened
+ */
+data class J2534DetectionResult(
+    val candidate: J2534ProbeCandidate,
+    val detectionTimeMs: Long,
+    val probesStarted: Int
+)
+
+/**
+ * Protocol detection on J2534 hardware, probing physical layers in parallel.
+ *
+ * The candidates are grouped by [J2534ChannelManager.PhysicalLayer]. CAN,
+ * K-line and J1850 use different pins, so one channel per layer can be open
+ * at a time and the layers are probed concurrently, each trying its own
+ * candidates in order. The first valid response wins and the other probes
+ * are cancelled.
+ *
+ * Probe channels are allocated through [channelManager], the owner of the
+ * device's channels: a layer that already has a channel open is not probed,
+ * and no channel is created on a layer while it is being probed.
+ *
+ * The probes make blocking PassThru calls. A cancelled probe stops at its
+ * next read poll, or after a running 5-baud init finishes, and then
+ * disconnects its channel. [detect] does not wait for that: the winning
+ * layer is free as soon as its own probe has disconnected.
+ *
+ * With sequential detection a vehicle that only answers on the K-line or on
+ * J1850 waits for every CAN probe to time out first; in parallel it waits
+ * only for the probes on its own layer.
+ *
+ * @param api PassThru API of the device
+ * @param deviceId Device opened with PassThruOpen
+ * @param channelManager Channel owner of the device
+ * @param probeTimeoutMs Time to wait for a response after the request
+ * @param dispatcher Dispatcher for the blocking PassThru calls
+ */
+class J2534ProtocolDetector(
+    private val api: PassThruApi,
+    private val deviceId: Long,
+    private val channelManager: J2534ChannelManager,
+    private val probeTimeoutMs: Long = DEFAULT_PROBE_TIMEOUT_MS,
+    private val dispatcher: CoroutineDispatcher = Dispatchers.IO
+) {
+
+    private val probeScope = CoroutineScope(SupervisorJob() + dispatcher)
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // DETECTION
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Detects the vehicle protocol.
+     *
+     * @param candidates Configurations to try, in order of preference within
+     *   each physical layer
+     * @param parallel Whether to probe the physical layers concurrently;
+     *   false tries all candidates one after another
+     * @return The first candidate that answered, or [Result.Error] with a
+     *   [ProtocolException] if none did
+     */
+    suspend fun detect(
+        candidates: List<J2534ProbeCandidate> = STANDARD_CANDIDATES,
+        parallel: Boolean = true
+    ): Result<J2534DetectionResult> {
+        val startTime = System.currentTimeMillis()
+        var probesStarted = 0
+
+        val winner = if (parallel) {
+            val found = CompletableDeferred<J2534ProbeCandidate?>()
+            val lanes = candidates.groupBy { it.physicalLayer }.values.map { lane ->
+                probeScope.launch {
+                    for (candidate in lane) {
+                        synchronized(this@J2534ProtocolDetector) { probesStarted++ }
+                        if (probe(candidate)) {
+                            found.complete(candidate)
+                            break
+                        }
+                    }
+                }
+            }
+            val all = probeScope.launch {
+                lanes.joinAll()
+                found.complete(null)
+            }
+            try {
+                found.await()
+            } finally {
+                all.cancel()
+                lanes.forEach(Job::cancel)
+            }
+        } else {
+            withContext(dispatcher) {
+                candidates.firstOrNull { candidate ->
+                    probesStarted++
+                    probe(candidate)
+                }
+            }
+        }
+
+        return if (winner != null) {
+            Result.Success(J2534DetectionResult(winner, System.currentTimeMillis() - startTime, probesStarted))
+        } else {
+            Result.Error(ProtocolException("No compatible protocol found"))
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // PROBING
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Opens a channel for [candidate], sends its request and waits for a
+     * valid response. The channel is always closed again.
+     */
+    private suspend fun probe(candidate: J2534ProbeCandidate): Boolean {
+        coroutineContext.ensureActive()
+        val channelId = channelManager.openProbeChannel(
+            api,
+            deviceId,
+            candidate.protocolId,
+            candidate.flags,
+            candidate.baudRate
+        ) ?: return false
+
+        try {
+            if (!startFilter(channelId, candidate)) return false
+
+            val init = candidate.initIoctl
+            if (init != null && api.passThruIoctl(channelId, init.toLong(), 0, 0) != J2534Errors.STATUS_NOERROR) {
+                return false
+            }
+            coroutineContext.ensureActive()
+
+            val request = candidate.request
+            if (request != null) {
+                val message = J2534Message.createTxMessage(candidate.protocolId, request, candidate.flags)
+                if (api.passThruWriteMsgs(channelId, arrayOf(message), intArrayOf(1), WRITE_TIMEOUT_MS) !=
+                    J2534Errors.STATUS_NOERROR
+                ) {
+                    return false
+                }
+            }
+
+            val buffer = Array(READ_BATCH) { J2534Message.createRxMessage(candidate.protocolId) }
+            val deadline = System.currentTimeMillis() + probeTimeoutMs
+            while (true) {
+                coroutineContext.ensureActive()
+                val remaining = deadline - System.currentTimeMillis()
+                if (remaining <= 0) return false
+
+                val count = intArrayOf(READ_BATCH)
+                val read = api.passThruReadMsgs(channelId, buffer, count, minOf(remaining, READ_POLL_MS))
+                if (read != J2534Errors.STATUS_NOERROR && read != J2534Errors.ERR_BUFFER_EMPTY &&
+                    read != J2534Errors.ERR_TIMEOUT
+                ) {
+                    return false
+                }
+                for (i in 0 until count[0]) {
+                    if (candidate.accepts(buffer[i])) return true
+                }
+            }
+        } finally {
+            channelManager.closeProbeChannel(api, channelId)
+        }
+    }
+
+    /**
+     * Sets up reception: a flow control filter for the engine ECU on
+     * ISO 15765, a pass-all filter otherwise.
+     */
+    private fun startFilter(channelId: Long, candidate: J2534ProbeCandidate): Boolean {
+        val filterIds = LongArray(1)
+        val protocolId = candidate.protocolId
+        val status = if (protocolId == J2534Constants.ISO15765) {
+            val extended = candidate.flags and J2534Constants.CAN_29BIT_ID != 0
+            val (response, request) = if (extended) {
+                ENGINE_RESPONSE_ID_29BIT to ENGINE_REQUEST_ID_29BIT
+            } else {
+                ENGINE_RESPONSE_ID_11BIT to ENGINE_REQUEST_ID_11BIT
+            }
+            api.passThruStartMsgFilter(
+                channelId,
+                J2534Constants.FLOW_CONTROL_FILTER.toLong(),
+                J2534Message.createTxMessage(protocolId, idBytes(0xFFFFFFFF.toInt()), candidate.flags),
+                J2534Message.createTxMessage(protocolId, idBytes(response), candidate.flags),
+                J2534Message.createTxMessage(protocolId, idBytes(request), candidate.flags),
+                filterIds
+            )
+        } else {
+            val length = if (protocolId == J2534Constants.CAN) 4 else 1
+            api.passThruStartMsgFilter(
+                channelId,
+                J2534Constants.PASS_FILTER.toLong(),
+                J2534Message.createTxMessage(protocolId, ByteArray(length), candidate.flags),
+                J2534Message.createTxMessage(protocolId, ByteArray(length), candidate.flags),
+                null,
+                filterIds
+            )
+        }
+        return status == J2534Errors.STATUS_NOERROR
+    }
+
+    companion object {
+        const val DEFAULT_PROBE_TIMEOUT_MS = 300L
+
+        private const val WRITE_TIMEOUT_MS = 100L
+        private const val READ_POLL_MS = 25L
+        private const val READ_BATCH = 8
+
+        private const val ENGINE_REQUEST_ID_11BIT = 0x7E0
+        private const val ENGINE_RESPONSE_ID_11BIT = 0x7E8
+        private const val ENGINE_REQUEST_ID_29BIT = 0x18DA10F1
+        private const val ENGINE_RESPONSE_ID_29BIT = 0x18DAF110
+
+        private fun idBytes(id: Int) =
+            byteArrayOf((id shr 24).toByte(), (id shr 16).toByte(), (id shr 8).toByte(), id.toByte())
+
+        private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+        /**
+         * The OBD-II protocols in the order ProtocolDetector tests them, each
+         * sending 01 00 with its functional header, plus J1939 (listen only).
+         */
+        val STANDARD_CANDIDATES: List<J2534ProbeCandidate> = listOf(
+            J2534ProbeCandidate(
+                "ISO 15765-4 CAN 11-bit 500k", J2534Constants.ISO15765, 0, 500_000,
+                request = bytes(0x00, 0x00, 0x07, 0xDF, 0x01, 0x00), headerLength = 4
+            ),
+            J2534ProbeCandidate(
+                "ISO 15765-4 CAN 29-bit 500k", J2534Constants.ISO15765, J2534Constants.CAN_29BIT_ID, 500_000,
+                request = bytes(0x18, 0xDB, 0x33, 0xF1, 0x01, 0x00), headerLength = 4
+            ),
+            J2534ProbeCandidate(
+                "ISO 15765-4 CAN 11-bit 250k", J2534Constants.ISO15765, 0, 250_000,
+                request = bytes(0x00, 0x00, 0x07, 0xDF, 0x01, 0x00), headerLength = 4
+            ),
+            J2534ProbeCandidate(
+                "ISO 15765-4 CAN 29-bit 250k", J2534Constants.ISO15765, J2534Constants.CAN_29BIT_ID, 250_000,
+                request = bytes(0x18, 0xDB, 0x33, 0xF1, 0x01, 0x00), headerLength = 4
+            ),
+            J2534ProbeCandidate(
+                "ISO 14230-4 KWP fast init", J2534Constants.ISO14230, 0, 10_400,
+                initIoctl = J2534Constants.FAST_INIT,
+                request = bytes(0xC2, 0x33, 0xF1, 0x01, 0x00), headerLength = 3
+            ),
+            J2534ProbeCandidate(
+                "ISO 14230-4 KWP 5-baud init", J2534Constants.ISO14230, 0, 10_400,
+                initIoctl = J2534Constants.FIVE_BAUD_INIT,
+                request = bytes(0xC2, 0x33, 0xF1, 0x01, 0x00), headerLength = 3
+            ),
+            J2534ProbeCandidate(
+                "ISO 9141-2", J2534Constants.ISO9141, 0, 10_400,
+                initIoctl = J2534Constants.FIVE_BAUD_INIT,
+                request = bytes(0x68, 0x6A, 0xF1, 0x01, 0x00), headerLength = 3
+            ),
+            J2534ProbeCandidate(
+                "SAE J1850 VPW", J2534Constants.J1850VPW, 0, 10_400,
+                request = bytes(0x68, 0x6A, 0xF1, 0x01, 0x00), headerLength = 3
+            ),
+            J2534ProbeCandidate(
+                "SAE J1850 PWM", J2534Constants.J1850PWM, 0, 41_600,
+                request = bytes(0x61, 0x6A, 0xF1, 0x01, 0x00), headerLength = 3
+            ),
+            J2534ProbeCandidate(
+                "SAE J1939", J2534Constants.CAN, J2534Constants.CAN_29BIT_ID, 250_000,
+                request = null, headerLength = 4
+            )
+        )
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ */
+
+package com.spacetec.j2534
+
+import com.spacetec.core.common.exceptions.ProtocolException
+import com.spacetec.core.common.result.Result
+import com.spacetec.j2534.api.PassThruApi
+import com.spacetec.j2534.constants.J2534Constants
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Tests for [J2534ProtocolDetector] against a simulated PassThru device.
+ *
+ * Simulated times are a tenth of real bus times: a 5-baud init takes 260 ms
+ * instead of 2.6 s, the probe timeout is 30 ms instead of 300 ms.
+ */
+class J2534ProtocolDetectorTest {
+
+    @Test
+    fun testCanVehicleIsDetectedOnFirstCandidate() = runBlocking {
+        val device = SimulatedPassThru(J2534Constants.ISO15765, flags = 0, baudRate = 500_000)
+
+        val result = detect(device, parallel = true)
+
+        assertEquals("ISO 15765-4 CAN 11-bit 500k", result.candidate.name)
+        assertEquals(0, device.conflicts.get())
+    }
+
+    @Test
+    fun testJ1850VehicleDoesNotWaitForOtherLayers() = runBlocking {
+        val sequential = detect(SimulatedPassThru(J2534Constants.J1850VPW, baudRate = 10_400), parallel = false)
+        val parallel = detect(SimulatedPassThru(J2534Constants.J1850VPW, baudRate = 10_400), parallel = true)
+
+        println(
+            "J2534 detection, J1850 VPW vehicle: sequential ${sequential.detectionTimeMs}ms " +
+                "(${sequential.probesStarted} probes), parallel ${parallel.detectionTimeMs}ms"
+        )
+        assertEquals("SAE J1850 VPW", sequential.candidate.name)
+        assertEquals("SAE J1850 VPW", parallel.candidate.name)
+        assertTrue(parallel.detectionTimeMs * 4 < sequential.detectionTimeMs)
+    }
+
+    @Test
+    fun testKLineVehicleDoesNotWaitForCanProbes() = runBlocking {
+        val sequential = detect(
+            SimulatedPassThru(J2534Constants.ISO9141, baudRate = 10_400, init = J2534Constants.FIVE_BAUD_INIT),
+            parallel = false
+        )
+        val parallel = detect(
+            SimulatedPassThru(J2534Constants.ISO9141, baudRate = 10_400, init = J2534Constants.FIVE_BAUD_INIT),
+            parallel = true
+        )
+
+        println(
+            "J2534 detection, ISO 9141-2 vehicle: sequential ${sequential.detectionTimeMs}ms, " +
+                "parallel ${parallel.detectionTimeMs}ms"
+        )
+        assertEquals("ISO 9141-2", parallel.candidate.name)
+        // The K-line candidates still run in turn; the four CAN probes overlap them
+        assertTrue(parallel.detectionTimeMs + 4 * PROBE_TIMEOUT_MS - 40 < sequential.detectionTimeMs)
+    }
+
+    @Test
+    fun testOnlyOneChannelPerPhysicalLayer() = runBlocking {
+        val device = SimulatedPassThru(J2534Constants.J1850PWM, baudRate = 41_600)
+
+        detect(device, parallel = true)
+        device.awaitAllClosed()
+
+        assertEquals(0, device.conflicts.get())
+        assertTrue(device.maxOpenChannels >= 2)
+        assertEquals(device.connects.get(), device.disconnects.get())
+    }
+
+    @Test
+    fun testLosingProbesAreCancelled() = runBlocking {
+        val device = SimulatedPassThru(J2534Constants.ISO15765, baudRate = 500_000)
+
+        val result = detect(device, parallel = true)
+        device.awaitAllClosed()
+
+        assertEquals("ISO 15765-4 CAN 11-bit 500k", result.candidate.name)
+        // CAN answered during the fast init; the K-line lane never got to a 5-baud init
+        assertEquals(0, device.fiveBaudInits.get())
+        assertEquals(device.connects.get(), device.disconnects.get())
+    }
+
+    @Test
+    fun testNoProtocolFound() = runBlocking {
+        val device = SimulatedPassThru(protocolId = -1, baudRate = 0)
+        val detector = J2534ProtocolDetector(device, DEVICE_ID, channelManager(), PROBE_TIMEOUT_MS)
+
+        val result = detector.detect()
+
+        assertTrue(result is Result.Error)
+        assertTrue((result as Result.Error).exception is ProtocolException)
+        device.awaitAllClosed()
+        assertEquals(0, device.conflicts.get())
+    }
+
+    @Test
+    fun testProbeHoldsItsLayerInTheChannelManager() = runBlocking {
+        val device = SimulatedPassThru(J2534Constants.ISO15765, baudRate = 500_000)
+        val manager = channelManager()
+
+        val probe = manager.openProbeChannel(device, DEVICE_ID, J2534Constants.ISO15765, 0, 500_000)
+        assertNotNull(probe)
+        // Same layer: refused by the manager, never reaches the device
+        assertNull(manager.openProbeChannel(device, DEVICE_ID, J2534Constants.CAN, J2534Constants.CAN_29BIT_ID, 250_000))
+        assertNotNull(manager.openProbeChannel(device, DEVICE_ID, J2534Constants.J1850VPW, 0, 10_400))
+
+        manager.closeProbeChannel(device, probe!!)
+        assertNotNull(manager.openProbeChannel(device, DEVICE_ID, J2534Constants.CAN, J2534Constants.CAN_29BIT_ID, 250_000))
+        assertEquals(0, device.conflicts.get())
+        assertEquals(3, device.connects.get())
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun channelManager() =
+        J2534ChannelManager(J2534Interface(), J2534Device(usbDevice = null, deviceName = "SIM", vendorId = 0, productId = 0))
+
+    private suspend fun detect(device: SimulatedPassThru, parallel: Boolean): J2534DetectionResult {
+        val result = J2534ProtocolDetector(device, DEVICE_ID, channelManager(), PROBE_TIMEOUT_MS).detect(parallel = parallel)
+        assertTrue("$result", result is Result.Success)
+        return (result as Result.Success).data
+    }
+
+    /**
+     * PassThru device connected to a vehicle that answers 01 00 on one
+     * protocol. Opening a second channel on a physical layer that is in use
+     * fails with ERR_CHANNEL_IN_USE and is counted as a conflict.
+     */
+    private class SimulatedPassThru(
+        private val protocolId: Int,
+        private val flags: Int = 0,
+        private val baudRate: Int,
+        private val init: Int? = null
+    ) : PassThruApi {
+
+        private class Channel(val protocolId: Int, val flags: Int, val baudRate: Int) {
+            val layer = J2534ChannelManager.physicalLayer(protocolId)
+            var initialized = false
+            var responseDueAt = Long.MAX_VALUE
+            var response: ByteArray? = null
+        }
+
+        private val channels = ConcurrentHashMap<Long, Channel>()
+        private val nextChannelId = AtomicLong(1)
+
+        val conflicts = AtomicInteger()
+        val connects = AtomicInteger()
+        val disconnects = AtomicInteger()
+        val fiveBaudInits = AtomicInteger()
+
+        @Volatile
+        var maxOpenChannels = 0
+
+        fun awaitAllClosed() {
+            val deadline = System.currentTimeMillis() + 2_000
+            while (channels.isNotEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(5)
+            assertTrue("Channels left open: ${channels.size}", channels.isEmpty())
+        }
+
+        override fun passThruConnect(
+            DeviceID: Long,
+            ProtocolID: Long,
+            Flags: Long,
+            Baudrate: Long,
+            pChannelID: LongArray
+        ): Long {
+            val channel = Channel(ProtocolID.toInt(), Flags.toInt(), Baudrate.toInt())
+            synchronized(channels) {
+                if (channels.values.any { it.layer == channel.layer }) {
+                    conflicts.incrementAndGet()
+                    return J2534Errors.ERR_CHANNEL_IN_USE
+                }
+                val id = nextChannelId.getAndIncrement()
+                channels[id] = channel
+                maxOpenChannels = maxOf(maxOpenChannels, channels.size)
+                pChannelID[0] = id
+            }
+            connects.incrementAndGet()
+            Thread.sleep(CONNECT_MS)
+            return J2534Errors.STATUS_NOERROR
+        }
+
+        override fun passThruDisconnect(ChannelID: Long): Long {
+            if (channels.remove(ChannelID) == null) return J2534Errors.ERR_INVALID_CHANNEL_ID
+            disconnects.incrementAndGet()
+            return J2534Errors.STATUS_NOERROR
+        }
+
+        override fun passThruIoctl(Handle: Long, IoctlID: Long, pInput: Long, pOutput: Long): Long {
+            val channel = channels[Handle] ?: return J2534Errors.ERR_INVALID_CHANNEL_ID
+            when (IoctlID.toInt()) {
+                J2534Constants.FAST_INIT -> Thread.sleep(FAST_INIT_MS)
+                J2534Constants.FIVE_BAUD_INIT -> {
+                    fiveBaudInits.incrementAndGet()
+                    Thread.sleep(FIVE_BAUD_INIT_MS)
+                }
+                else -> return J2534Errors.STATUS_NOERROR
+            }
+            channel.initialized = channel.protocolId == protocolId && IoctlID.toInt() == init
+            return if (channel.initialized) J2534Errors.STATUS_NOERROR else J2534Errors.ERR_FAILED
+        }
+
+        override fun passThruWriteMsgs(
+            ChannelID: Long,
+            pMsg: Array<J2534Message>,
+            pNumMsgs: IntArray,
+            Timeout: Long
+        ): Long {
+            val channel = channels[ChannelID] ?: return J2534Errors.ERR_INVALID_CHANNEL_ID
+            val matches = channel.protocolId == protocolId && channel.baudRate == baudRate &&
+                channel.flags and J2534Constants.CAN_29BIT_ID == flags and J2534Constants.CAN_29BIT_ID &&
+                (init == null || channel.initialized)
+            if (matches) {
+                val request = pMsg[0].messageData
+                val headerLength = if (J2534Constants.isCanProtocol(protocolId)) 4 else 3
+                channel.response = request.copyOf(headerLength) + byteArrayOf(0x41, 0x00, 0xBE.toByte(), 0x1F, 0xA8.toByte(), 0x13)
+                channel.responseDueAt = System.currentTimeMillis() + RESPONSE_MS
+            }
+            return J2534Errors.STATUS_NOERROR
+        }
+
+        override fun passThruReadMsgs(
+            ChannelID: Long,
+            pMsg: Array<J2534Message>,
+            pNumMsgs: IntArray,
+            Timeout: Long
+        ): Long {
+            val deadline = System.currentTimeMillis() + Timeout
+            while (true) {
+                val channel = channels[ChannelID] ?: return J2534Errors.ERR_INVALID_CHANNEL_ID
+                val response = channel.response
+                if (response != null && System.currentTimeMillis() >= channel.responseDueAt) {
+                    channel.response = null
+                    pMsg[0] = J2534Message.createRxMessage(channel.protocolId).withData(response)
+                    pNumMsgs[0] = 1
+                    return J2534Errors.STATUS_NOERROR
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    pNumMsgs[0] = 0
+                    return J2534Errors.ERR_TIMEOUT
+                }
+                Thread.sleep(1)
+            }
+        }
+
+        override fun passThruStartMsgFilter(
+            ChannelID: Long,
+            FilterType: Long,
+            pMask: J2534Message,
+            pPattern: J2534Message,
+            pFlowControlData: J2534Message?,
+            pFilterID: LongArray
+        ): Long = if (channels.containsKey(ChannelID)) J2534Errors.STATUS_NOERROR else J2534Errors.ERR_INVALID_CHANNEL_ID
+
+        override fun passThruOpen(pDeviceID: LongArray): Long = J2534Errors.STATUS_NOERROR
+        override fun passThruClose(DeviceID: Long): Long = J2534Errors.STATUS_NOERROR
+        override fun passThruStartPeriodicMsg(
+            ChannelID: Long,
+            pMsg: J2534Message,
+            pMsgID: LongArray,
+            TimeInterval: Long
+        ): Long = J2534Errors.ERR_NOT_SUPPORTED
+        override fun passThruStopPeriodicMsg(ChannelID: Long, MsgID: Long): Long = J2534Errors.ERR_NOT_SUPPORTED
+        override fun passThruStopMsgFilter(ChannelID: Long, FilterID: Long): Long = J2534Errors.STATUS_NOERROR
+        override fun passThruSetProgrammingVoltage(DeviceID: Long, PinNumber: Long, Voltage: Long): Long =
+            J2534Errors.ERR_NOT_SUPPORTED
+        override fun passThruReadVersion(
+            DeviceID: Long,
+            pApiVersion: StringBuilder,
+            pDllVersion: StringBuilder,
+            pDevName: StringBuilder
+        ): Long = J2534Errors.STATUS_NOERROR
+        override fun passThruGetLastError(pErrorDescription: StringBuilder): Long = J2534Errors.STATUS_NOERROR
+    }
+
+    companion object {
+        private const val DEVICE_ID = 1L
+        private const val PROBE_TIMEOUT_MS = 30L
+        private const val CONNECT_MS = 1L
+        private const val RESPONSE_MS = 5L
+        private const val FAST_INIT_MS = 35L
+        private const val FIVE_BAUD_INIT_MS = 260L
+    }
+}
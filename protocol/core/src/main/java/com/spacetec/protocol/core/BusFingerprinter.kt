@@ -0,0 +1,344 @@
+/**
+ * BusFingerprinter.kt
+ *
+ * Passive, listen-only look at the CAN lines of the diagnostic connector
+ * before protocol detection sends its first request.
+ */
+
+package com.spacetec.protocol.core
+
+import com.spacetec.transport.contract.ProtocolType
+import com.spacetec.transport.contract.ScannerConnection
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * What passive monitoring learned about the CAN bus.
+ *
+ * @property bitrate Bit rate at which frames were decoded, or null if none were
+ * @property frames11Bit Frames seen with 11-bit identifiers
+ * @property frames29Bit Frames seen with 29-bit identifiers
+ * @property nodeIds Distinct arbitration IDs seen, up to [BusFingerprinter.MAX_NODE_IDS]
+ * @property listenedBitrates Bit rates the bus was monitored at, in order
+ * @property errorBitrates Bit rates at which the adapter reported bus errors
+ *   (traffic at a rate it could not decode)
+ * @property overflows Times the adapter's buffer overflowed (`BUFFER FULL`)
+ *   and monitoring was restarted
+ * @property listenTimeMs Time spent listening, AT setup included
+ * @property monitorSupported Whether the adapter accepted a monitor command
+ */
+data class BusFingerprint(
+    val bitrate: Int?,
+    val frames11Bit: Int = 0,
+    val frames29Bit: Int = 0,
+    val nodeIds: Set<Int> = emptySet(),
+    val listenedBitrates: List<Int> = emptyList(),
+    val errorBitrates: Set<Int> = emptySet(),
+    val overflows: Int = 0,
+    val listenTimeMs: Long = 0L,
+    val monitorSupported: Boolean = true
+) {
+    /** Whether any frame was decoded. */
+    val hasTraffic: Boolean
+        get() = bitrate != null
+
+    /** Addressing the bus mostly uses, or null without traffic. */
+    val is29Bit: Boolean?
+        get() = if (hasTraffic) frames29Bit > frames11Bit else null
+
+    /**
+     * Whether the CAN lines were quiet at every standard bit rate: no frames
+     * and no bus errors. The vehicle most likely has no CAN on the OBD
+     * connector, or the ignition is off.
+     */
+    val isSilent: Boolean
+        get() = monitorSupported && !hasTraffic && errorBitrates.isEmpty() &&
+            listenedBitrates.containsAll(BusFingerprinter.CAN_BITRATES)
+
+    /**
+     * Reorders [order] by what was heard, keeping the relative order within
+     * each group:
+     * - Traffic decoded: CAN protocols at the observed bit rate and
+     *   addressing first, then the other addressing at that rate, then the
+     *   rest.
+     * - Silent bus: non-CAN protocols first, CAN last.
+     * - Otherwise (no monitor support, bus errors only): unchanged.
+     */
+    fun prioritize(order: List<ProtocolType>): List<ProtocolType> {
+        val rate = bitrate
+        return when {
+            rate != null -> order.sortedBy { protocol ->
+                val can = canParameters(protocol)
+                when {
+                    can == null || can.first != rate -> 2
+                    can.second == is29Bit -> 0
+                    else -> 1
+                }
+            }
+            isSilent -> order.sortedBy { if (canParameters(it) != null) 1 else 0 }
+            else -> order
+        }
+    }
+
+    companion object {
+        /** Nothing learned; [prioritize] leaves the order as it is. */
+        val UNKNOWN = BusFingerprint(bitrate = null, monitorSupported = false)
+
+        /**
+         * Bit rate and 29-bit flag of a CAN protocol, or null for other
+         * protocols.
+         */
+        fun canParameters(protocol: ProtocolType): Pair<Int, Boolean>? = when (protocol) {
+            ProtocolType.ISO_15765_4_CAN_11BIT_500K,
+            ProtocolType.UDS_ON_CAN_11BIT_500K -> 500_000 to false
+            ProtocolType.ISO_15765_4_CAN_29BIT_500K,
+            ProtocolType.UDS_ON_CAN_29BIT_500K -> 500_000 to true
+            ProtocolType.ISO_15765_4_CAN_11BIT_250K -> 250_000 to false
+            ProtocolType.ISO_15765_4_CAN_29BIT_250K -> 250_000 to true
+            else -> null
+        }
+    }
+}
+
+/**
+ * Listens to the CAN bus through an ELM327 or STN adapter without
+ * transmitting, to find the bit rate, the addressing and the active nodes
+ * before [ProtocolDetector] starts probing.
+ *
+ * The adapter is put in silent monitoring (`ATCSM1`, no ACKs) with headers
+ * on, and monitors all frames (`STMA` on STN adapters, `ATMA` otherwise) at
+ * 500 kbit/s and then 250 kbit/s until frames are decoded. Each window ends
+ * after [windowMs], or as soon as [targetFrames] frames were seen; the whole
+ * fingerprint never takes longer than [maxListenMs]. A busy bus behind a
+ * slow host link overflows the adapter's buffer: the adapter stops with
+ * `BUFFER FULL`, the frames printed until then are kept and monitoring is
+ * restarted for the rest of the window.
+ *
+ * The adapter is left on the last monitored protocol; detection reconfigures
+ * it anyway.
+ *
+ * Not thread-safe; the connection must not be used by anyone else while
+ * [fingerprint] runs.
+ *
+ * @param connection Adapter connection
+ * @param windowMs Listening time per bit rate
+ * @param maxListenMs Upper bound for the whole fingerprint
+ * @param targetFrames Frames after which a window ends early
+ * @param clock Time source for [BusFingerprint.listenTimeMs]
+ */
+class BusFingerprinter(
+    private val connection: ScannerConnection,
+    private val windowMs: Long = DEFAULT_WINDOW_MS,
+    private val maxListenMs: Long = DEFAULT_MAX_LISTEN_MS,
+    private val targetFrames: Int = DEFAULT_TARGET_FRAMES,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+    /** What one monitor window produced. */
+    private class Window {
+        var frames11Bit = 0
+        var frames29Bit = 0
+        val nodeIds = LinkedHashSet<Int>()
+        var busError = false
+        var overflows = 0
+        var unsupported = false
+
+        val frames: Int
+            get() = frames11Bit + frames29Bit
+    }
+
+    private var monitorCommand = "STMA"
+
+    /**
+     * Listens to the bus and returns what was heard. Never throws on adapter
+     * errors; an adapter that does not understand monitoring yields
+     * [BusFingerprint.monitorSupported] false.
+     */
+    suspend fun fingerprint(): BusFingerprint {
+        val start = clock()
+        val listened = ArrayList<Int>()
+        val errors = HashSet<Int>()
+        var overflows = 0
+        var heardAt: Int? = null
+        var heard = Window()
+
+        val finished = withTimeoutOrNull(maxListenMs) {
+            for (command in SETUP_COMMANDS) command(command)
+            for ((bitrate, protocolNumber) in CAN_BITRATES.zip(MONITOR_PROTOCOLS)) {
+                command("ATSP$protocolNumber")
+                listened.add(bitrate)
+                val window = monitor()
+                overflows += window.overflows
+                if (window.busError) errors.add(bitrate)
+                if (window.unsupported) break
+                if (window.frames > 0) {
+                    heardAt = bitrate
+                    heard = window
+                    break
+                }
+            }
+        }
+        // A window cut short by maxListenMs leaves the adapter monitoring
+        if (finished == null) stopMonitoring()
+
+        return BusFingerprint(
+            bitrate = heardAt,
+            frames11Bit = heard.frames11Bit,
+            frames29Bit = heard.frames29Bit,
+            nodeIds = heard.nodeIds,
+            listenedBitrates = listened,
+            errorBitrates = errors,
+            overflows = overflows,
+            listenTimeMs = clock() - start,
+            monitorSupported = monitorCommand.isNotEmpty()
+        )
+    }
+
+    /**
+     * Monitors for one window, restarting after each `BUFFER FULL`.
+     */
+    private suspend fun monitor(): Window {
+        val window = Window()
+        val lines = LineCollector()
+        withTimeoutOrNull(windowMs) {
+            while (true) {
+                connection.writeBytes("$monitorCommand\r".toByteArray(Charsets.US_ASCII)).getOrNull()
+                var stopped = false
+                while (!stopped) {
+                    val chunk = connection.readBytes(POLL_MS).getOrNull() ?: continue
+                    for (line in lines.append(chunk)) {
+                        when (val parsed = parseMonitorLine(line)) {
+                            is MonitorLine.Frame -> {
+                                if (parsed.extended) window.frames29Bit++ else window.frames11Bit++
+                                if (window.nodeIds.size < MAX_NODE_IDS) window.nodeIds.add(parsed.id)
+                            }
+                            MonitorLine.BusError -> window.busError = true
+                            MonitorLine.Overflow -> window.overflows++
+                            MonitorLine.Unsupported -> {
+                                if (monitorCommand == "STMA") {
+                                    monitorCommand = "ATMA"
+                                } else {
+                                    monitorCommand = ""
+                                    window.unsupported = true
+                                }
+                            }
+                            MonitorLine.Other -> Unit
+                        }
+                    }
+                    if (window.frames >= targetFrames) {
+                        stopMonitoring()
+                        return@withTimeoutOrNull
+                    }
+                    stopped = lines.promptSeen
+                    lines.promptSeen = false
+                }
+                // The adapter gave up by itself: overflow (restart), bus error or no support
+                if (window.unsupported || window.busError) return@withTimeoutOrNull
+            }
+        } ?: stopMonitoring()
+        return window
+    }
+
+    /**
+     * Sends a character to end monitoring and drains the output up to the
+     * prompt.
+     */
+    private suspend fun stopMonitoring() {
+        connection.writeBytes("\r".toByteArray(Charsets.US_ASCII)).getOrNull()
+        drain()
+    }
+
+    private suspend fun command(command: String) {
+        connection.writeBytes("$command\r".toByteArray(Charsets.US_ASCII)).getOrNull()
+        drain()
+    }
+
+    private suspend fun drain() {
+        val lines = LineCollector()
+        withTimeoutOrNull(COMMAND_TIMEOUT_MS) {
+            while (!lines.promptSeen) {
+                val chunk = connection.readBytes(POLL_MS).getOrNull() ?: continue
+                lines.append(chunk)
+            }
+        }
+    }
+
+    /** Splits adapter output into lines and notices the `>` prompt. */
+    private class LineCollector {
+        private val pending = StringBuilder()
+        var promptSeen = false
+
+        fun append(chunk: ByteArray): List<String> {
+            val lines = ArrayList<String>()
+            for (byte in chunk) {
+                when (val char = (byte.toInt() and 0xFF).toChar()) {
+                    '\r', '\n' -> {
+                        if (pending.isNotBlank()) lines.add(pending.toString().trim())
+                        pending.setLength(0)
+                    }
+                    '>' -> promptSeen = true
+                    else -> pending.append(char)
+                }
+            }
+            return lines
+        }
+    }
+
+    /** One line of monitor output. */
+    internal sealed class MonitorLine {
+        data class Frame(val id: Int, val extended: Boolean) : MonitorLine()
+        object BusError : MonitorLine()
+        object Overflow : MonitorLine()
+        object Unsupported : MonitorLine()
+        object Other : MonitorLine()
+    }
+
+    companion object {
+        const val DEFAULT_WINDOW_MS = 400L
+        const val DEFAULT_MAX_LISTEN_MS = 1_200L
+        const val DEFAULT_TARGET_FRAMES = 20
+
+        /** Most node IDs kept in a fingerprint. */
+        const val MAX_NODE_IDS = 64
+
+        /** Standard OBD CAN bit rates, in the order they are tried. */
+        val CAN_BITRATES = listOf(500_000, 250_000)
+
+        /** ELM327 protocol numbers monitoring at [CAN_BITRATES]. */
+        private val MONITOR_PROTOCOLS = listOf("6", "8")
+
+        private val SETUP_COMMANDS = listOf("ATE0", "ATS1", "ATH1", "ATCSM1")
+        private const val POLL_MS = 20L
+        private const val COMMAND_TIMEOUT_MS = 300L
+
+        private val BUS_ERRORS = listOf("CAN ERROR", "BUS ERROR", "<RX ERROR", "BUS BUSY", "ERR")
+
+        /**
+         * Parses one line of `ATMA`/`STMA` output with headers and spaces on:
+         * `7E8 06 41 00 BE 1F A8 13` (11-bit) or `18 DA F1 10 06 41 00 ...`
+         * (29-bit).
+         */
+        internal fun parseMonitorLine(line: String): MonitorLine {
+            val text = line.trim().uppercase()
+            when {
+                text == "BUFFER FULL" -> return MonitorLine.Overflow
+                text == "?" -> return MonitorLine.Unsupported
+                BUS_ERRORS.any { text.startsWith(it) } -> return MonitorLine.BusError
+            }
+            val tokens = text.split(' ').filter { it.isNotEmpty() }
+            if (tokens.isEmpty() || tokens.any { token -> token.any { it !in HEX_DIGITS } }) {
+                return MonitorLine.Other
+            }
+            return when {
+                tokens[0].length == 3 && tokens.size >= 2 ->
+                    MonitorLine.Frame(tokens[0].toInt(16), extended = false)
+                tokens[0].length == 8 && tokens.size >= 2 ->
+                    MonitorLine.Frame(tokens[0].toLong(16).toInt(), extended = true)
+                tokens.size >= 5 && tokens.take(4).all { it.length == 2 } ->
+                    MonitorLine.Frame(tokens.take(4).joinToString("").toLong(16).toInt() and 0x1FFFFFFF, extended = true)
+                else -> MonitorLine.Other
+            }
+        }
+
+        private const val HEX_DIGITS = "0123456789ABCDEF"
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * EcuDiscovery.kt
+ *
+ * Finds the ECUs on a vehicle with one functional broadcast followed by
+ * concurrent physical probes of the addresses that stayed silent.
+ */
+
+package com.spacetec.protocol.core
+
+import com.spacetec.core.common.exceptions.TimeoutException
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * An ECU that answered the discovery probe.
+ *
+ * @property address Physical request address the ECU is reached at
+ * @property response Its answer to the probe; a negative response counts,
+ *   since it proves the ECU is there
+ * @property viaBroadcast Whether it answered the functional broadcast rather
+ *   than a physical probe
+ */
+class DiscoveredEcu(
+    val address: Int,
+    val response: ByteArray,
+    val viaBroadcast: Boolean
+)
+
+/**
+ * Discovers ECUs without paying a full timeout per missing address in
+ * sequence.
+ *
+ * 1. One functionally addressed probe collects every ECU listening to the
+ *    functional address (all emissions-related ECUs on OBD CAN) in a single
+ *    round.
+ * 2. The candidate addresses that did not answer are probed physically,
+ *    concurrently, with at most [maxInFlight] requests outstanding. Missing
+ *    ECUs still cost their timeout, but [maxInFlight] of them at once.
+ * 3. Each ECU found, by broadcast or probe, is handed to the enrichment step
+ *    as soon as it is found, so reading its identification overlaps with the
+ *    probes still running. Enrichment shares the same window, so the bus
+ *    never carries more than [maxInFlight] requests from discovery.
+ *
+ * [request] must support concurrent calls for different addresses, e.g.
+ * [com.spacetec.protocol.core.base.RequestCorrelator.request] on a CAN
+ * channel. On a serial adapter that handles one request at a time use
+ * [maxInFlight] 1; the broadcast and the pipelined enrichment still apply.
+ *
+ * @param broadcast Sends a functionally addressed request and returns every
+ *   answer heard before its timeout, keyed by the physical request address of
+ *   the responding ECU; empty, or [TimeoutException], if nobody answered
+ * @param request Sends a physically addressed request; null, or
+ *   [TimeoutException], if the ECU did not answer
+ * @param maxInFlight Requests outstanding at once
+ */
+class EcuDiscovery(
+    private val broadcast: suspend (request: ByteArray) -> Map<Int, ByteArray>,
+    private val request: suspend (target: Int, request: ByteArray) -> ByteArray?,
+    private val maxInFlight: Int = DEFAULT_MAX_IN_FLIGHT
+) {
+
+    init {
+        require(maxInFlight >= 1) { "At least one request must be allowed in flight: $maxInFlight" }
+    }
+
+    private val window = Semaphore(maxInFlight)
+    private val inFlight = AtomicInteger()
+    private val peak = AtomicInteger()
+
+    private val broadcastAnswers = AtomicLong()
+    private val probes = AtomicLong()
+    private val probeAnswers = AtomicLong()
+    private val probeErrors = AtomicLong()
+
+    /** ECUs that answered a functional broadcast. */
+    val broadcastResponders: Long get() = broadcastAnswers.get()
+
+    /** Physical probes sent. */
+    val probesSent: Long get() = probes.get()
+
+    /** Physical probes that were answered. */
+    val probesAnswered: Long get() = probeAnswers.get()
+
+    /** Physical probes that failed with something other than a timeout. */
+    val probesFailed: Long get() = probeErrors.get()
+
+    /** Most requests and enrichments in flight at once so far. */
+    val peakInFlight: Int get() = peak.get()
+
+    /**
+     * Finds the ECUs among [candidates] and enriches each one.
+     *
+     * ECUs answering the broadcast are included even if they are not in
+     * [candidates]. A probe that fails with an error other than a timeout
+     * counts as no answer, so one bad address does not end the scan; failures
+     * inside [enrich] are the caller's to handle.
+     *
+     * @param candidates Physical request addresses to look for ECUs at
+     * @param probe Request sent functionally, then to each silent candidate
+     * @param enrich Reads whatever else the caller needs from an ECU found
+     * @return Enriched ECUs in ascending address order
+     */
+    suspend fun <T> discover(
+        candidates: Collection<Int>,
+        probe: ByteArray,
+        enrich: suspend (DiscoveredEcu) -> T
+    ): List<T> = coroutineScope {
+        val found = Channel<DiscoveredEcu>(Channel.UNLIMITED)
+        launch {
+            try {
+                find(candidates, probe, found)
+            } finally {
+                found.close()
+            }
+        }
+
+        val enriched = ArrayList<Pair<Int, Deferred<T>>>()
+        for (ecu in found) {
+            enriched += ecu.address to async { occupy { enrich(ecu) } }
+        }
+        enriched.sortedBy { it.first }.map { it.second.await() }
+    }
+
+    private suspend fun find(candidates: Collection<Int>, probe: ByteArray, found: SendChannel<DiscoveredEcu>) {
+        val heard = try {
+            occupy { broadcast(probe) }
+        } catch (e: TimeoutException) {
+            emptyMap()
+        }
+        for ((address, response) in heard) {
+            broadcastAnswers.incrementAndGet()
+            found.send(DiscoveredEcu(address, response, viaBroadcast = true))
+        }
+
+        coroutineScope {
+            for (address in candidates.distinct()) {
+                if (address in heard) continue
+                // Acquire before launching, so ECUs already found get a
+                // permit for enrichment ahead of the probes still queued;
+                // started atomically so the permit is released on cancellation
+                window.acquire()
+                enter()
+                launch(start = CoroutineStart.ATOMIC) {
+                    try {
+                        probeAddress(address, probe)?.let { found.send(DiscoveredEcu(address, it, viaBroadcast = false)) }
+                    } finally {
+                        inFlight.decrementAndGet()
+                        window.release()
+                    }
+                }
+            }
+        }
+    }
+
+    private suspend fun probeAddress(address: Int, probe: ByteArray): ByteArray? {
+        probes.incrementAndGet()
+        val response = try {
+            request(address, probe)
+        } catch (e: TimeoutException) {
+            null
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            probeErrors.incrementAndGet()
+            null
+        }
+        if (response == null || response.isEmpty()) return null
+        probeAnswers.incrementAndGet()
+        return response
+    }
+
+    private suspend fun <R> occupy(block: suspend () -> R): R = window.withPermit {
+        enter()
+        try {
+            block()
+        } finally {
+            inFlight.decrementAndGet()
+        }
+    }
+
+    private fun enter() {
+        val now = inFlight.incrementAndGet()
+        peak.accumulateAndGet(now, ::maxOf)
+    }
+
+    companion object {
+        /** Default number of requests outstanding at once. */
+        const val DEFAULT_MAX_IN_FLIGHT = 8
+    }
+}
@@ -183,7 +183,8 @@ class ProtocolDetector @Inject constructor(
             _detectionState.value = DetectionState.Detecting(0f, null)
             
             val startTime = System.currentTimeMillis()
-            val protocolOrder = getDetectionOrder(config = config)
+            val fingerprint = listenBeforeProbing(connection, config)
+            val protocolOrder = getDetectionOrder(config = config, fingerprint = fingerprint)
             val testedProtocols = mutableMapOf<ProtocolType, ProtocolTestResult>()
             
             try {
@@ -256,7 +257,8 @@ class ProtocolDetector @Inject constructor(
         
         isCancelled.set(false)
         val startTime = System.currentTimeMillis()
-        val protocolOrder = getDetectionOrder(config = config)
+        val fingerprint = listenBeforeProbing(connection, config)
+        val protocolOrder = getDetectionOrder(config = config, fingerprint = fingerprint)
         val testedProtocols = mutableMapOf<ProtocolType, ProtocolTestResult>()
         var detectedProtocol: ProtocolType? = null
         
@@ -353,15 +355,21 @@ class ProtocolDetector @Inject constructor(
      * - Modern vehicles (2008+): CAN protocols only
      * - Heavy duty vehicles: 29-bit CAN first
      * 
+     * A [BusFingerprint] from passive listening overrides the hints: the CAN
+     * protocol matching the observed bit rate and addressing goes first, and
+     * a silent bus moves CAN behind the other protocols.
+     * 
      * @param vehicleYear Vehicle model year (optional)
      * @param vehicleMake Vehicle manufacturer (optional)
      * @param config Detection configuration
+     * @param fingerprint Result of [BusFingerprinter.fingerprint] (optional)
      * @return Ordered list of protocols to test
      */
     fun getDetectionOrder(
         vehicleYear: Int? = null,
         vehicleMake: String? = null,
-        config: DetectionConfig = DetectionConfig.DEFAULT
+        config: DetectionConfig = DetectionConfig.DEFAULT,
+        fingerprint: BusFingerprint? = null
     ): List<ProtocolType> {
         // Start with preferred protocol if specified
         val order = mutableListOf<ProtocolType>()
@@ -445,7 +453,7 @@ class ProtocolDetector @Inject constructor(
         }
         
         // Add base order protocols not already in the list
-        for (protocol in baseOrder) {
+        for (protocol in fingerprint?.prioritize(baseOrder) ?: baseOrder) {
             if (protocol !in order && protocol !in config.skipProtocols) {
                 order.add(protocol)
             }
@@ -468,6 +476,28 @@ class ProtocolDetector @Inject constructor(
     
     // ==================== Internal Detection Methods ====================
     
+    /**
+     * Listens to the bus for up to [DetectionConfig.passiveListenMs] before
+     * the first probe, or returns null if passive listening is disabled.
+     */
+    private suspend fun listenBeforeProbing(
+        connection: ScannerConnection,
+        config: DetectionConfig
+    ): BusFingerprint? {
+        if (config.passiveListenMs <= 0) return null
+        val fingerprint = BusFingerprinter(
+            connection = connection,
+            windowMs = config.passiveListenMs / BusFingerprinter.CAN_BITRATES.size,
+            maxListenMs = config.passiveListenMs
+        ).fingerprint()
+        logger.info(
+            "Bus fingerprint: bitrate=${fingerprint.bitrate}, 29-bit=${fingerprint.is29Bit}, " +
+                "nodes=${fingerprint.nodeIds.size}, silent=${fingerprint.isSilent}, " +
+                "${fingerprint.listenTimeMs}ms"
+        )
+        return fingerprint
+    }
+    
     /**
      * Internal method to test a specific protocol.
      */
@@ -1195,6 +1225,8 @@ class ProtocolDetector @Inject constructor(
  * @property skipProtocols Set of protocols to skip during detection
  * @property preferredProtocol Protocol to test first (if known)
  * @property totalTimeoutMs Overall detection timeout in milliseconds
+ * @property passiveListenMs Time to listen to the CAN bus before the first
+ *   probe to order the protocols (see [BusFingerprinter]); 0 disables it
  */
 data class DetectionConfig(
     val testTimeoutMs: Long = DEFAULT_TEST_TIMEOUT,
@@ -1203,7 +1235,8 @@ data class DetectionConfig(
     val stopOnFirstMatch: Boolean = true,
     val skipProtocols: Set<ProtocolType> = emptySet(),
     val preferredProtocol: ProtocolType? = null,
-    val totalTimeoutMs: Long = DEFAULT_TOTAL_TIMEOUT
+    val totalTimeoutMs: Long = DEFAULT_TOTAL_TIMEOUT,
+    val passiveListenMs: Long = 0L
 ) {
     /**
      * Builder for DetectionConfig.
@@ -1216,6 +1249,7 @@ data class DetectionConfig(
         private var skipProtocols: Set<ProtocolType> = emptySet()
         private var preferredProtocol: ProtocolType? = null
         private var totalTimeoutMs: Long = DEFAULT_TOTAL_TIMEOUT
+        private var passiveListenMs: Long = 0L
         
         fun testTimeout(ms: Long) = apply { testTimeoutMs = ms }
         fun retries(count: Int) = apply { retriesPerProtocol = count }
@@ -1224,6 +1258,7 @@ data class DetectionConfig(
         fun skip(protocols: Set<ProtocolType>) = apply { skipProtocols = protocols }
         fun prefer(protocol: ProtocolType) = apply { preferredProtocol = protocol }
         fun totalTimeout(ms: Long) = apply { totalTimeoutMs = ms }
+        fun passiveListen(ms: Long) = apply { passiveListenMs = ms }
         
         fun build() = DetectionConfig(
             testTimeoutMs = testTimeoutMs,
@@ -1232,7 +1267,8 @@ data class DetectionConfig(
             stopOnFirstMatch = stopOnFirstMatch,
             skipProtocols = skipProtocols,
             preferredProtocol = preferredProtocol,
-            totalTimeoutMs = totalTimeoutMs
+            totalTimeoutMs = totalTimeoutMs,
+            passiveListenMs = passiveListenMs
         )
     }
     
@@ -0,0 +1,154 @@
+/**
+ * VehicleInfoCollector.kt
+ *
+ * Service 09 vehicle information of every emissions-related ECU, collected
+ * with one functional request per InfoType.
+ */
+
+package com.spacetec.protocol.core
+
+import com.spacetec.core.common.exceptions.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Service 09 information one ECU reported.
+ *
+ * @property ecuId Identifier the ECU answered from, as keyed by the broadcast
+ * @property supportedInfoTypes InfoTypes 0x01-0x20 the ECU flags in InfoType
+ *   0x00; empty if it did not answer it
+ * @property vin VIN, or null if the ECU does not report one
+ * @property calibrationIds Calibration IDs (InfoType 0x04), in reported order
+ * @property cvns Calibration verification numbers (InfoType 0x06), in the
+ *   order of [calibrationIds]
+ * @property ecuName ECU name (InfoType 0x0A), or null
+ */
+class EcuVehicleInfo(
+    val ecuId: Int,
+    val supportedInfoTypes: Set<Int>,
+    val vin: String?,
+    val calibrationIds: List<String>,
+    val cvns: IntArray,
+    val ecuName: String?
+) {
+    /** CVN of calibration [index] as 8 hex digits. */
+    fun cvnHex(index: Int): String = VehicleInfoDecoder.formatCvn(cvns[index])
+
+    override fun toString(): String =
+        "EcuVehicleInfo(%03X, vin=%s, calibrationIds=%s, cvns=%s, ecuName=%s)".format(
+            ecuId, vin, calibrationIds, cvns.map { VehicleInfoDecoder.formatCvn(it) }, ecuName
+        )
+}
+
+/**
+ * Reads service 09 information from all ECUs at once.
+ *
+ * Read one ECU at a time, every InfoType costs a round trip per ECU, and
+ * the multi-frame answers (VIN, calibration IDs, ECU name) are reassembled
+ * before the next request goes out. Here each InfoType is requested once,
+ * functionally: every emissions-related ECU answers the same request, their
+ * ISO-TP transfers run side by side on the bus, and [broadcast] returns them
+ * reassembled per ECU. Reading N ECUs costs the same number of requests as
+ * reading one.
+ *
+ * InfoType 0x00 comes first; an InfoType no ECU flags is not requested. If
+ * no ECU answers InfoType 0x00 at all, every requested InfoType is tried.
+ * SAE J1979 allows a single InfoType per service 09 request on CAN, other
+ * than the supported-InfoType ranges, so the requests cannot be packed
+ * further.
+ *
+ * @param broadcast Sends a functionally addressed request and returns every
+ *   complete answer heard before its timeout (service ID first), keyed by
+ *   the identifier of the responding ECU; empty, or [TimeoutException], if
+ *   nobody answered
+ */
+class VehicleInfoCollector(
+    private val broadcast: suspend (request: ByteArray) -> Map<Int, ByteArray>
+) {
+
+    private val sent = AtomicLong()
+
+    /** Requests sent so far. */
+    val requests: Long get() = sent.get()
+
+    /**
+     * Collects [infoTypes] from every ECU that answers.
+     *
+     * @return Information per ECU, in ascending ECU identifier order; empty
+     *   if no ECU answered
+     */
+    suspend fun collect(infoTypes: Collection<Int> = DEFAULT_INFO_TYPES): List<EcuVehicleInfo> {
+        require(infoTypes.all { it in 0x01..0xFF }) { "InfoType out of range: $infoTypes" }
+
+        val supported = HashMap<Int, Set<Int>>()
+        for ((ecu, data) in request(VehicleInfoDecoder.INFO_TYPE_SUPPORTED)) {
+            VehicleInfoDecoder.supportedInfoTypes(data)?.let { supported[ecu] = it }
+        }
+
+        val answers = HashMap<Int, HashMap<Int, ByteArray>>()
+        for (infoType in infoTypes.distinct()) {
+            if (supported.isNotEmpty() && supported.values.none { infoType in it }) continue
+            for ((ecu, data) in request(infoType)) {
+                answers.getOrPut(ecu) { HashMap() }[infoType] = data
+            }
+        }
+
+        return (supported.keys + answers.keys).sorted().map { ecu ->
+            val data = answers[ecu].orEmpty()
+            EcuVehicleInfo(
+                ecuId = ecu,
+                supportedInfoTypes = supported[ecu].orEmpty(),
+                vin = data[VehicleInfoDecoder.INFO_TYPE_VIN]?.let { VehicleInfoDecoder.vin(it) },
+                calibrationIds = data[VehicleInfoDecoder.INFO_TYPE_CALIBRATION_ID]
+                    ?.let { VehicleInfoDecoder.calibrationIds(it) }.orEmpty(),
+                cvns = data[VehicleInfoDecoder.INFO_TYPE_CVN]?.let { VehicleInfoDecoder.cvns(it) } ?: IntArray(0),
+                ecuName = data[VehicleInfoDecoder.INFO_TYPE_ECU_NAME]?.let { VehicleInfoDecoder.ecuName(it) }
+            )
+        }
+    }
+
+    /**
+     * Sends service 09 [infoType] and returns the positive answers to it,
+     * service ID removed.
+     */
+    private suspend fun request(infoType: Int): Map<Int, ByteArray> {
+        sent.incrementAndGet()
+        val heard = try {
+            broadcast(byteArrayOf(SERVICE_VEHICLE_INFO.toByte(), infoType.toByte()))
+        } catch (e: TimeoutException) {
+            emptyMap()
+        }
+        val answers = HashMap<Int, ByteArray>()
+        for ((ecu, response) in heard) {
+            if (response.size < 2 || response[0].toInt() and 0xFF != SERVICE_VEHICLE_INFO + 0x40) continue
+            if (response[1].toInt() and 0xFF != infoType) continue
+            answers[ecu] = response.copyOfRange(1, response.size)
+        }
+        return answers
+    }
+
+    companion object {
+        /** VIN, calibration IDs, CVNs and ECU name. */
+        val DEFAULT_INFO_TYPES = listOf(
+            VehicleInfoDecoder.INFO_TYPE_VIN,
+            VehicleInfoDecoder.INFO_TYPE_CALIBRATION_ID,
+            VehicleInfoDecoder.INFO_TYPE_CVN,
+            VehicleInfoDecoder.INFO_TYPE_ECU_NAME
+        )
+
+        private const val SERVICE_VEHICLE_INFO = 0x09
+    }
+}
+
+/**
+ * Protocol that reads service 09 with a [VehicleInfoCollector] once the
+ * adapter underneath can send functional requests and tell the answering
+ * ECUs apart.
+ */
+interface VehicleInfoBroadcastTarget {
+
+    /**
+     * Hands over [broadcast] as described for [VehicleInfoCollector]; null
+     * goes back to reading a single ECU.
+     */
+    fun attachVehicleInfoBroadcast(broadcast: (suspend (request: ByteArray) -> Map<Int, ByteArray>)?)
+}
@@ -0,0 +1,122 @@
+/**
+ * VehicleInfoDecoder.kt
+ *
+ * Decoding of OBD-II service 09 (vehicle information) responses straight
+ * from the response bytes.
+ */
+
+package com.spacetec.protocol.core
+
+/**
+ * Decoding of service 09 responses in the ISO 15765-4 (CAN) format of SAE
+ * J1979: `InfoType count item...`, the count giving the number of data items
+ * that follow.
+ *
+ * Every function takes the response data after the service ID (0x49),
+ * starting with the InfoType byte, and returns null or an empty result if
+ * the data belongs to another InfoType or holds no complete item. Items
+ * beyond the data received are dropped rather than padded.
+ */
+object VehicleInfoDecoder {
+
+    /** InfoType 0x00: InfoTypes 0x01-0x20 supported. */
+    const val INFO_TYPE_SUPPORTED = 0x00
+
+    /** InfoType 0x02: vehicle identification number. */
+    const val INFO_TYPE_VIN = 0x02
+
+    /** InfoType 0x04: calibration IDs. */
+    const val INFO_TYPE_CALIBRATION_ID = 0x04
+
+    /** InfoType 0x06: calibration verification numbers. */
+    const val INFO_TYPE_CVN = 0x06
+
+    /** InfoType 0x0A: ECU name. */
+    const val INFO_TYPE_ECU_NAME = 0x0A
+
+    /** Characters of a VIN. */
+    const val VIN_LENGTH = 17
+
+    /** Bytes of one calibration ID, padded with 0x00. */
+    const val CALIBRATION_ID_LENGTH = 16
+
+    /** Bytes of one CVN. */
+    const val CVN_LENGTH = 4
+
+    /** Bytes of the ECU name, padded with 0x00. */
+    const val ECU_NAME_LENGTH = 20
+
+    /**
+     * InfoTypes flagged in an InfoType 0x00 response, or null if [data] is
+     * not one.
+     */
+    fun supportedInfoTypes(data: ByteArray): Set<Int>? {
+        if (data.size < 5 || data[0].toInt() and 0xFF != INFO_TYPE_SUPPORTED) return null
+        val supported = LinkedHashSet<Int>()
+        for (bit in 0 until 32) {
+            if (data[1 + bit / 8].toInt() and (0x80 ushr (bit % 8)) != 0) supported += bit + 1
+        }
+        return supported
+    }
+
+    /**
+     * VIN of an InfoType 0x02 response, or null unless 17 printable
+     * characters remain once padding is dropped. Some ECUs keep the 0x00
+     * fill bytes of the legacy format in front of the VIN.
+     */
+    fun vin(data: ByteArray): String? {
+        if (data.size < 2 || data[0].toInt() and 0xFF != INFO_TYPE_VIN) return null
+        val vin = printable(data, 2, data.size)
+        return vin.takeIf { it.length == VIN_LENGTH }
+    }
+
+    /** Calibration IDs of an InfoType 0x04 response, in reported order. */
+    fun calibrationIds(data: ByteArray): List<String> = text(data, INFO_TYPE_CALIBRATION_ID, CALIBRATION_ID_LENGTH)
+
+    /**
+     * CVNs of an InfoType 0x06 response, each the 4 bytes packed into an int,
+     * first byte highest. Empty if [data] is not one.
+     */
+    fun cvns(data: ByteArray): IntArray {
+        val count = itemCount(data, INFO_TYPE_CVN, CVN_LENGTH)
+        return IntArray(count) { index ->
+            val offset = 2 + index * CVN_LENGTH
+            ((data[offset].toInt() and 0xFF) shl 24) or ((data[offset + 1].toInt() and 0xFF) shl 16) or
+                ((data[offset + 2].toInt() and 0xFF) shl 8) or (data[offset + 3].toInt() and 0xFF)
+        }
+    }
+
+    /** ECU name of an InfoType 0x0A response, or null if [data] is not one. */
+    fun ecuName(data: ByteArray): String? = text(data, INFO_TYPE_ECU_NAME, ECU_NAME_LENGTH).firstOrNull()
+
+    /** CVN as the 8 hex digits scan tools and inspection reports show. */
+    fun formatCvn(cvn: Int): String = "%08X".format(cvn)
+
+    /**
+     * Complete items of [itemLength] bytes in [data], if it answers
+     * [infoType]: the count byte, bounded by the bytes received.
+     */
+    private fun itemCount(data: ByteArray, infoType: Int, itemLength: Int): Int {
+        if (data.size < 2 || data[0].toInt() and 0xFF != infoType) return 0
+        return minOf(data[1].toInt() and 0xFF, (data.size - 2) / itemLength)
+    }
+
+    /**
+     * ASCII items of [itemLength] bytes, padding (0x00 and non-printable
+     * bytes) and surrounding blanks dropped.
+     */
+    private fun text(data: ByteArray, infoType: Int, itemLength: Int): List<String> {
+        val count = itemCount(data, infoType, itemLength)
+        return List(count) { index -> printable(data, 2 + index * itemLength, 2 + (index + 1) * itemLength) }
+    }
+
+    private fun printable(data: ByteArray, from: Int, to: Int): String {
+        val chars = CharArray(to - from)
+        var length = 0
+        for (i in from until to) {
+            val value = data[i].toInt() and 0xFF
+            if (value in 0x20..0x7E) chars[length++] = value.toChar()
+        }
+        return String(chars, 0, length).trim()
+    }
+}
@@ -37,10 +37,11 @@ import com.spacetec.core.common.exceptions.CommunicationException
 import com.spacetec.core.common.exceptions.TimeoutException
 import com.spacetec.core.common.exceptions.ProtocolException
 import com.spacetec.core.common.constants.OBDConstants
+import com.spacetec.core.common.transport.CommandPriority
+import com.spacetec.core.common.transport.CommandScheduler
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.Job
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.delay
@@ -50,7 +51,6 @@ import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.asSharedFlow
 import kotlinx.coroutines.flow.asStateFlow
-import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
@@ -93,6 +93,7 @@ import java.util.concurrent.atomic.AtomicLong
  * 
  * All public methods are thread-safe through the use of:
  * - [Mutex] for state synchronization
+ * - [CommandScheduler] for message exchanges, most urgent first
  * - [StateFlow] for reactive state updates
  * - Atomic operations for counters
  * 
@@ -178,9 +179,14 @@ abstract class BaseProtocol : Protocol {
     protected val stateMutex: Mutex = Mutex()
 
     /**
-     * Mutex for synchronizing message operations.
+     * Serializes message exchanges, most urgent first (see [priorityOf]).
      */
-    protected val messageMutex: Mutex = Mutex()
+    protected val messageScheduler: CommandScheduler = CommandScheduler()
+
+    /**
+     * Waits out NRC 0x78 chains without holding [messageScheduler].
+     */
+    private val responsePending = ResponsePendingWaiter(messageScheduler)
 
     /**
      * Active scanner connection.
@@ -193,9 +199,44 @@ abstract class BaseProtocol : Protocol {
     protected var _config: ProtocolConfig = ProtocolConfig.DEFAULT
 
     /**
-     * Keep-alive job for session maintenance.
+     * Timer wheel sending this protocol's keep-alives, shared by all
+     * sessions unless overridden.
+     */
+    protected open val keepAliveScheduler: KeepAliveScheduler
+        get() = KeepAliveScheduler.shared
+
+    /**
+     * Longest idle time before a tester present is sent; requests sent in
+     * between postpone it.
+     */
+    protected open val keepAliveIntervalMs: Long
+        get() = DEFAULT_KEEP_ALIVE_INTERVAL_MS
+
+    /**
+     * Whether keep-alives are sent as `3E 80` (suppress positive response)
+     * instead of `3E 00`. Off by default.
+     */
+    protected open val suppressKeepAliveResponse: Boolean
+        get() = false
+
+    /**
+     * Whether [performFunctionalKeepAlive] really sends to the functional
+     * address, letting one tester present cover every session on the
+     * connection. Off by default: override both together.
+     */
+    protected open val supportsFunctionalKeepAlive: Boolean
+        get() = false
+
+    /**
+     * Registration of the active session with [keepAliveScheduler].
      */
-    protected var keepAliveJob: Job? = null
+    private var keepAlive: KeepAliveScheduler.Registration? = null
+
+    /**
+     * ECU the current session talks to, keying the adaptive timeouts in
+     * [timingManager]; [TimingManager.ANY_ECU] when functionally addressed.
+     */
+    protected var targetEcuAddress: Int = TimingManager.ANY_ECU
 
     /**
      * Message sequence counter for tracking.
@@ -376,8 +417,7 @@ abstract class BaseProtocol : Protocol {
             
             try {
                 // Cancel keep-alive
-                keepAliveJob?.cancel()
-                keepAliveJob = null
+                stopKeepAlive()
                 
                 // End active session if any
                 if (isSessionActive) {
@@ -441,8 +481,7 @@ abstract class BaseProtocol : Protocol {
      */
     protected open suspend fun baseReset() {
         // Cancel keep-alive
-        keepAliveJob?.cancel()
-        keepAliveJob = null
+        stopKeepAlive()
         
         // End session if active
         if (_state.value is ProtocolState.SessionActive) {
@@ -513,6 +552,16 @@ abstract class BaseProtocol : Protocol {
         timeoutMs: Long
     ): DiagnosticMessage
 
+    /**
+     * Priority at which a request for [serviceId] waits for the connection.
+     *
+     * Live-data services poll at [CommandPriority.POLLING] and yield to
+     * everything else between requests; override to raise safety-relevant
+     * services or to lower batch work.
+     */
+    protected open fun priorityOf(serviceId: Int): CommandPriority =
+        CommandPriority.ofService(serviceId)
+
     /**
      * Base implementation for sending messages with retry logic.
      * 
@@ -525,8 +574,9 @@ abstract class BaseProtocol : Protocol {
         request: DiagnosticMessage,
         timeoutMs: Long,
         transmit: suspend (ByteArray) -> ByteArray
-    ): DiagnosticMessage = messageMutex.withLock {
+    ): DiagnosticMessage = messageScheduler.execute(priorityOf(request.serviceId)) {
         validateState()
+        keepAlive?.touch()
         
         val sequence = messageSequence.incrementAndGet()
         val startTime = System.currentTimeMillis()
@@ -540,11 +590,24 @@ abstract class BaseProtocol : Protocol {
                 maxRetries = _config.maxRetries,
                 retryDelayMs = _config.retryDelayMs
             ) {
-                withTimeout(timeoutMs) {
-                    val requestBytes = request.toByteArray()
-                    val responseBytes = transmit(requestBytes)
-                    parseResponse(responseBytes, request.serviceId)
+                val attemptStart = System.currentTimeMillis()
+                val attempt = try {
+                    withTimeout(timeoutMs) {
+                        val requestBytes = request.toByteArray()
+                        val responseBytes = transmit(requestBytes)
+                        parseResponse(responseBytes, request.serviceId)
+                    }
+                } catch (e: kotlinx.coroutines.TimeoutCancellationException) {
+                    timingManager.recordExchange(targetEcuAddress, request.serviceId, timeoutMs, null)
+                    throw e
                 }
+                timingManager.recordExchange(
+                    targetEcuAddress,
+                    request.serviceId,
+                    System.currentTimeMillis() - attemptStart,
+                    attempt.toByteArray()
+                )
+                attempt
             }
             
             val elapsed = System.currentTimeMillis() - startTime
@@ -558,7 +621,7 @@ abstract class BaseProtocol : Protocol {
             
             // Handle negative response
             if (response.isNegativeResponse) {
-                return@withLock handleNegativeResponse(
+                return@execute handleNegativeResponse(
                     request.serviceId,
                     response.negativeResponseCode,
                     request
@@ -585,6 +648,15 @@ abstract class BaseProtocol : Protocol {
         }
     }
 
+    /**
+     * Response timeout for [serviceId] to the session's ECU, adapted to its
+     * reported P2 limits and observed response times.
+     * 
+     * @see TimingManager.getTimeout
+     */
+    protected fun responseTimeoutFor(serviceId: Int): Long =
+        timingManager.getTimeout(targetEcuAddress, serviceId)
+
     /**
      * Sends raw bytes and receives raw response.
      * 
@@ -612,17 +684,43 @@ abstract class BaseProtocol : Protocol {
      * @throws TimeoutException If no response received
      * @throws CommunicationException If communication fails
      */
-    override suspend fun sendRaw(data: ByteArray, timeoutMs: Long): ByteArray = messageMutex.withLock {
+    override suspend fun sendRaw(
+        data: ByteArray,
+        timeoutMs: Long
+    ): ByteArray = messageScheduler.execute(priorityOf(if (data.isEmpty()) -1 else data[0].toInt() and 0xFF)) {
         validateState()
-        
+        keepAlive?.touch()
+        transmitRaw(data, timeoutMs)
+    }
+
+    /**
+     * Sends raw bytes and reads the response in the [messageScheduler] slot
+     * the caller already holds: inside the transmit of [baseSendMessage] or
+     * an [exclusive] block, where [sendRaw] would wait for the slot forever.
+     * 
+     * @param data Raw bytes to send
+     * @param timeoutMs Custom timeout in milliseconds
+     * @param prologue Exchange to run before [data] is sent, e.g. to set up
+     *   the adapter for this request with no other message in between
+     * @return Raw response bytes
+     * 
+     * @throws TimeoutException If no response received
+     * @throws CommunicationException If communication fails
+     */
+    protected suspend fun transmitRaw(
+        data: ByteArray,
+        timeoutMs: Long,
+        prologue: suspend (ScannerConnection) -> Unit = { }
+    ): ByteArray {
         val conn = connection ?: throw CommunicationException("No active connection")
+        prologue(receiving(conn))
         
         logger.debug("Sending raw: ${data.toHexString()}")
         
-        try {
+        return try {
             withTimeout(timeoutMs) {
                 conn.write(data)
-                val response = conn.read(timeoutMs)
+                val response = receive(conn, timeoutMs)
                 logger.debug("Raw response: ${response.toHexString()}")
                 response
             }
@@ -631,6 +729,123 @@ abstract class BaseProtocol : Protocol {
         }
     }
 
+    /**
+     * Sends raw bytes and returns the final response, reading on through any
+     * number of NRC 0x78 (response pending) replies.
+     * 
+     * The request and its first response share one [messageScheduler] slot.
+     * While the ECU reports response pending, the slot is only held to read,
+     * in slices of [ResponsePendingWaiter.DEFAULT_POLL_MS], so other
+     * requests and keep-alives still reach the bus during a long chain;
+     * whichever of them reads the awaited response hands it over.
+     * 
+     * @param data Raw bytes to send
+     * @param timeoutMs Timeout for the first response
+     * @param pendingTimeoutMs Timeout after each NRC 0x78 (P2*)
+     * @param prologue Exchange to run before [data] is sent, in the same
+     *   slot; must not send through this protocol
+     * @return The first response that is not a response-pending reply
+     * 
+     * @throws TimeoutException If a response does not arrive in time
+     * @throws CommunicationException If communication fails
+     */
+    protected suspend fun sendRawAwaitingFinal(
+        data: ByteArray,
+        timeoutMs: Long,
+        pendingTimeoutMs: Long,
+        prologue: suspend (ScannerConnection) -> Unit = { }
+    ): ByteArray {
+        val serviceId = if (data.isEmpty()) -1 else data[0].toInt() and 0xFF
+        val conn = connection ?: throw CommunicationException("No active connection")
+        
+        val response = responsePending.exchange(
+            serviceId = serviceId,
+            priority = priorityOf(serviceId),
+            timeoutMs = timeoutMs,
+            pendingTimeoutMs = pendingTimeoutMs,
+            transmit = {
+                validateState()
+                keepAlive?.touch()
+                prologue(receiving(conn))
+                logger.debug("Sending raw: ${data.toHexString()}")
+                conn.write(data)
+            }
+        ) { waitMs ->
+            keepAlive?.touch()
+            poll(conn, waitMs)
+        }
+        logger.debug("Raw response: ${response.toHexString()}")
+        return response
+    }
+
+    /**
+     * Reads the next response, handing any that a response-pending request
+     * is waiting for to [responsePending].
+     */
+    private suspend fun receive(conn: ScannerConnection, timeoutMs: Long): ByteArray {
+        while (true) {
+            val response = conn.read(timeoutMs)
+            if (!responsePending.deliver(response)) return response
+        }
+    }
+
+    /**
+     * [conn] with reads going through [receive].
+     */
+    private fun receiving(conn: ScannerConnection): ScannerConnection = object : ScannerConnection by conn {
+        override suspend fun read(timeoutMs: Long): ByteArray = receive(conn, timeoutMs)
+    }
+
+    /**
+     * Reads within [timeoutMs], or returns null if nothing arrived.
+     */
+    private suspend fun poll(conn: ScannerConnection, timeoutMs: Long): ByteArray? = try {
+        conn.read(timeoutMs).takeIf { it.isNotEmpty() }
+    } catch (e: TimeoutException) {
+        null
+    }
+
+    /**
+     * Runs [block] on the connection in one [messageScheduler] slot, so that
+     * several writes and reads reach the bus with no other message between
+     * them.
+     * 
+     * @param serviceId Service the block sends, setting its priority
+     * @param block Exchange to run; must not send through this protocol
+     * 
+     * @throws CommunicationException If there is no active connection
+     */
+    protected suspend fun <T> exclusive(
+        serviceId: Int,
+        block: suspend (ScannerConnection) -> T
+    ): T = messageScheduler.execute(priorityOf(serviceId)) {
+        validateState()
+        
+        val conn = connection ?: throw CommunicationException("No active connection")
+        keepAlive?.touch()
+        block(receiving(conn))
+    }
+
+    /**
+     * Sends raw bytes for which no response is expected, such as a tester
+     * present with the suppress-positive-response bit set.
+     * 
+     * @param data Raw bytes to send
+     * 
+     * @throws CommunicationException If communication fails
+     */
+    protected suspend fun sendWithoutResponse(
+        data: ByteArray
+    ): Unit = messageScheduler.execute(priorityOf(if (data.isEmpty()) -1 else data[0].toInt() and 0xFF)) {
+        validateState()
+        
+        val conn = connection ?: throw CommunicationException("No active connection")
+        keepAlive?.touch()
+        
+        logger.debug("Sending without response: ${data.toHexString()}")
+        conn.write(data)
+    }
+
     // ==================== Session Methods ====================
 
     /**
@@ -663,6 +878,8 @@ abstract class BaseProtocol : Protocol {
                 (ecuAddress?.let { " to ECU 0x${it.toString(16)}" } ?: ""))
             
             try {
+                targetEcuAddress = ecuAddress ?: TimingManager.ANY_ECU
+                
                 // Perform protocol-specific session start
                 performSessionStart(sessionType, ecuAddress)
                 
@@ -729,8 +946,7 @@ abstract class BaseProtocol : Protocol {
         
         try {
             // Stop keep-alive
-            keepAliveJob?.cancel()
-            keepAliveJob = null
+            stopKeepAlive()
             
             // Perform protocol-specific session end
             performSessionEnd()
@@ -786,31 +1002,54 @@ abstract class BaseProtocol : Protocol {
      */
     protected open suspend fun performKeepAlive() {
         // Default: UDS Tester Present (0x3E)
-        val testerPresent = byteArrayOf(0x3E, 0x00)
-        sendRaw(testerPresent, _config.responseTimeoutMs)
+        if (suppressKeepAliveResponse) {
+            sendWithoutResponse(byteArrayOf(0x3E, 0x80.toByte()))
+        } else {
+            sendRaw(byteArrayOf(0x3E, 0x00), _config.responseTimeoutMs)
+        }
     }
 
     /**
-     * Starts the keep-alive coroutine.
+     * Sends one `3E 80` to the functional address, keeping every session on
+     * this connection alive; used when the scheduler batches keep-alives.
+     * 
+     * Only called when [supportsFunctionalKeepAlive] is true. A frame sent
+     * with the connection's current (physical) header would reach one ECU
+     * only, so there is no default.
+     */
+    protected open suspend fun performFunctionalKeepAlive() {
+        throw UnsupportedOperationException("Functional keep-alive not implemented")
+    }
+
+    /**
+     * Registers the session with [keepAliveScheduler].
      */
     private fun startKeepAlive() {
-        keepAliveJob?.cancel()
-        keepAliveJob = protocolScope.launch {
-            while (isActive && isSessionActive && !isShuttingDown.get()) {
-                delay(1000L)
-                if (isSessionActive) {
-                    try {
-                        sendKeepAlive()
-                    } catch (e: Exception) {
-                        if (!isShuttingDown.get()) {
-                            logger.warn("Keep-alive error: ${e.message}")
-                        }
-                    }
-                }
+        stopKeepAlive()
+        keepAlive = keepAliveScheduler.register(
+            channel = connection ?: this,
+            intervalMs = keepAliveIntervalMs,
+            suppressesResponse = suppressKeepAliveResponse,
+            sendFunctional = if (supportsFunctionalKeepAlive) {
+                { if (isSessionActive && !isShuttingDown.get()) performFunctionalKeepAlive() }
+            } else {
+                null
+            }
+        ) {
+            if (isSessionActive && !isShuttingDown.get()) {
+                sendKeepAlive()
             }
         }
     }
 
+    /**
+     * Cancels the session's keep-alives.
+     */
+    private fun stopKeepAlive() {
+        keepAlive?.cancel()
+        keepAlive = null
+    }
+
     // ==================== Protected Abstract Methods ====================
 
     /**
@@ -1052,6 +1291,9 @@ abstract class BaseProtocol : Protocol {
 
     companion object {
         private const val TAG = "BaseProtocol"
+
+        /** Keep-alive interval, well inside the 5 s UDS S3 server timeout. */
+        const val DEFAULT_KEEP_ALIVE_INTERVAL_MS = 2000L
     }
 }
 
@@ -1798,21 +2040,3 @@ object NegativeResponseCodes {
         REQUEST_CORRECTLY_RECEIVED_PENDING
     )
 }
-
-// ==================== Extension Functions ====================
-
-/**
- * Converts a ByteArray to a hex string for logging.
- */
-fun ByteArray.toHexString(): String =
-    joinToString(" ") { String.format("%02X", it) }
-
-/**
- * Converts a hex string to ByteArray.
- */
-fun String.hexToByteArray(): ByteArray {
-    val cleanHex = replace(" ", "").replace("0x", "")
-    return ByteArray(cleanHex.length / 2) { i ->
-        cleanHex.substring(i * 2, i * 2 + 2).toInt(16).toByte()
-    }
-}
\ No newline at end of file
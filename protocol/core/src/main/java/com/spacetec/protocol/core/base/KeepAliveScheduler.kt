@@ -0,0 +1,296 @@
+/**
+ * KeepAliveScheduler.kt
+ *
+ * Schedules tester-present keep-alives for every open diagnostic session on
+ * one hashed timer wheel, skipping those that real traffic made unnecessary.
+ */
+
+package com.spacetec.protocol.core.base
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * One timer for the keep-alives of all sessions, instead of a coroutine per
+ * session looping on `delay`.
+ *
+ * Registrations live in a hashed wheel of [wheelSize] slots of [tickMs]
+ * each; a registration due at tick `t` sits in slot `t % wheelSize`, and
+ * deadlines more than one revolution ahead wait in their slot until their
+ * round comes. A single ticker coroutine sleeps until the next occupied tick,
+ * so idle sessions due at the same tick cost one wakeup between them.
+ *
+ * A keep-alive is only needed if nothing else reached the ECU within the
+ * interval: callers [Registration.touch] their registration on every request,
+ * and a registration that fires less than [Registration.intervalMs] after
+ * its last activity is moved to `lastActivity + interval` without sending
+ * anything. Sessions under continuous traffic therefore send no keep-alives.
+ *
+ * Registrations on the same channel that allow a suppressed response
+ * (`3E 80`) and provide a functional sender are batched: when one of them
+ * fires, one functionally addressed tester present keeps every such session
+ * on that channel alive, and all of them are rescheduled to the same tick.
+ * After the first round, N idle sessions on one channel cost one frame and
+ * one wakeup per interval instead of N of each. Sessions without a
+ * functional sender are never counted as covered and keep their own
+ * physical keep-alive.
+ *
+ * Sends run in [scope], outside the wheel lock; a failing send is counted
+ * and otherwise ignored, as keep-alive is best effort.
+ *
+ * @param scope Scope running the ticker and the sends
+ * @param tickMs Timer resolution; deadlines are rounded up to a whole tick
+ * @param wheelSize Number of slots in the wheel
+ * @param clock Time source in milliseconds
+ */
+class KeepAliveScheduler(
+    private val scope: CoroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.Default),
+    private val tickMs: Long = DEFAULT_TICK_MS,
+    private val wheelSize: Int = DEFAULT_WHEEL_SIZE,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+    init {
+        require(tickMs > 0) { "Tick must be positive: $tickMs" }
+        require(wheelSize > 0) { "Wheel size must be positive: $wheelSize" }
+    }
+
+    /**
+     * A session's keep-alive, returned by [register].
+     *
+     * @property channel Connection the session communicates over
+     * @property intervalMs Longest time the session may go without traffic
+     * @property suppressesResponse Whether the session's tester present is
+     *   sent with the suppress-positive-response bit, making it batchable
+     */
+    inner class Registration internal constructor(
+        val channel: Any,
+        val intervalMs: Long,
+        val suppressesResponse: Boolean,
+        internal val send: suspend () -> Unit,
+        internal val sendFunctional: (suspend () -> Unit)?
+    ) {
+        @Volatile
+        internal var lastActivityMs: Long = clock()
+
+        @Volatile
+        internal var cancelled = false
+
+        /** Tick the registration is filed under; guarded by the wheel lock. */
+        internal var deadlineTick = 0L
+
+        /** Records traffic to the session, postponing its next keep-alive. */
+        fun touch() {
+            lastActivityMs = clock()
+        }
+
+        /** Stops the session's keep-alives. */
+        fun cancel() {
+            cancelled = true
+            synchronized(lock) {
+                slots[slotOf(deadlineTick)].remove(this)
+                byChannel[channel]?.let {
+                    it.remove(this)
+                    if (it.isEmpty()) byChannel.remove(channel)
+                }
+            }
+        }
+    }
+
+    private val lock = Any()
+    private val slots = Array(wheelSize) { ArrayList<Registration>() }
+    private val byChannel = HashMap<Any, MutableSet<Registration>>()
+    private var processedTick = -1L
+    private var ticker: Job? = null
+
+    /** Signals the ticker that a deadline earlier than it sleeps for was added. */
+    private val rescheduled = Channel<Unit>(Channel.CONFLATED)
+
+    private val wakeupCount = AtomicLong()
+    private val sentCount = AtomicLong()
+    private val batchedCount = AtomicLong()
+    private val deferredCount = AtomicLong()
+    private val failedCount = AtomicLong()
+
+    /** Times the ticker woke up to process due registrations. */
+    val wakeups: Long get() = wakeupCount.get()
+
+    /** Tester-present frames sent, physical and functional. */
+    val keepAlivesSent: Long get() = sentCount.get()
+
+    /** Keep-alives covered by a functional tester present for another session. */
+    val keepAlivesBatched: Long get() = batchedCount.get()
+
+    /** Keep-alives made unnecessary by traffic within the interval. */
+    val keepAlivesDeferred: Long get() = deferredCount.get()
+
+    /** Sends that threw. */
+    val keepAlivesFailed: Long get() = failedCount.get()
+
+    /** Number of sessions currently registered. */
+    val registrations: Int get() = synchronized(lock) { byChannel.values.sumOf { it.size } }
+
+    /**
+     * Schedules keep-alives for a session every [intervalMs] it stays idle.
+     *
+     * @param channel Connection the session uses; registrations on the same
+     *   channel are batched
+     * @param intervalMs Keep-alive interval, below the ECU's S3 timeout
+     * @param suppressesResponse Whether [send] uses `3E 80`
+     * @param sendFunctional Sends one `3E 80` to the functional address on
+     *   [channel], reaching every ECU; null if the session cannot address
+     *   it, in which case it is never batched
+     * @param send Sends the session's own tester present
+     */
+    fun register(
+        channel: Any,
+        intervalMs: Long,
+        suppressesResponse: Boolean = true,
+        sendFunctional: (suspend () -> Unit)? = null,
+        send: suspend () -> Unit
+    ): Registration {
+        require(intervalMs > 0) { "Keep-alive interval must be positive: $intervalMs" }
+        val registration = Registration(channel, intervalMs, suppressesResponse, send, sendFunctional)
+        synchronized(lock) {
+            byChannel.getOrPut(channel) { LinkedHashSet() }.add(registration)
+            schedule(registration, registration.lastActivityMs + intervalMs)
+            if (ticker == null) ticker = scope.launch { tick() }
+        }
+        rescheduled.trySend(Unit)
+        return registration
+    }
+
+    /** Stops all keep-alives and the ticker. */
+    fun shutdown() {
+        synchronized(lock) {
+            slots.forEach { slot -> slot.forEach { it.cancelled = true }; slot.clear() }
+            byChannel.clear()
+            ticker?.cancel()
+            ticker = null
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // WHEEL
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private suspend fun tick() {
+        while (true) {
+            val next = synchronized(lock) { nextDeadlineTick() }
+            if (next == null) {
+                rescheduled.receive()
+                continue
+            }
+            val sleepMs = next * tickMs - clock()
+            if (sleepMs > 0 && withTimeoutOrNull(sleepMs) { rescheduled.receive() } != null) continue
+
+            wakeupCount.incrementAndGet()
+            val due = synchronized(lock) { collectDue(clock()) }
+            due.forEach { (registration, functional) -> dispatch(registration, functional) }
+        }
+    }
+
+    /**
+     * Earliest tick with a registration, scanning one revolution of slots
+     * from the last processed tick; falls back to the smallest deadline for
+     * registrations further out.
+     */
+    private fun nextDeadlineTick(): Long? {
+        val from = processedTick + 1
+        for (offset in 0 until wheelSize) {
+            val tick = from + offset
+            if (slots[slotOf(tick)].any { it.deadlineTick <= tick }) return tick
+        }
+        return slots.asSequence().flatten().minOfOrNull { it.deadlineTick }
+    }
+
+    /**
+     * Takes every registration due by [nowMs] off the wheel, defers those
+     * with recent traffic, and returns the sends to make: one functional send
+     * per channel where batching applies, physical sends otherwise.
+     */
+    private fun collectDue(nowMs: Long): List<Pair<Registration, Boolean>> {
+        val nowTick = nowMs / tickMs
+        val scanned = if (nowTick - processedTick >= wheelSize) slots.indices.map { it.toLong() }
+        else (processedTick + 1..nowTick).toList()
+        processedTick = maxOf(processedTick, nowTick)
+
+        val due = ArrayList<Registration>()
+        for (tick in scanned) {
+            val slot = slots[slotOf(tick)]
+            val iterator = slot.iterator()
+            while (iterator.hasNext()) {
+                val registration = iterator.next()
+                if (registration.deadlineTick > nowTick) continue
+                iterator.remove()
+                if (nowMs - registration.lastActivityMs < registration.intervalMs) {
+                    deferredCount.incrementAndGet()
+                    schedule(registration, registration.lastActivityMs + registration.intervalMs)
+                } else {
+                    due.add(registration)
+                }
+            }
+        }
+
+        val sends = ArrayList<Pair<Registration, Boolean>>()
+        val covered = HashSet<Registration>()
+        for (registration in due) {
+            if (registration in covered) continue
+            val peers = byChannel[registration.channel].orEmpty().filter { it.suppressesResponse && it.sendFunctional != null }
+            if (registration.sendFunctional != null && registration.suppressesResponse && peers.size >= 2) {
+                // One functional 3E 80 keeps every batchable session on the channel alive
+                sends.add(registration to true)
+                for (peer in peers) {
+                    covered.add(peer)
+                    if (peer !== registration) batchedCount.incrementAndGet()
+                    peer.lastActivityMs = nowMs
+                    slots[slotOf(peer.deadlineTick)].remove(peer)
+                    schedule(peer, nowMs + peer.intervalMs)
+                }
+            } else {
+                sends.add(registration to false)
+                registration.lastActivityMs = nowMs
+                schedule(registration, nowMs + registration.intervalMs)
+            }
+        }
+        return sends
+    }
+
+    private fun dispatch(registration: Registration, functional: Boolean) {
+        sentCount.incrementAndGet()
+        scope.launch {
+            try {
+                if (functional) registration.sendFunctional!!.invoke() else registration.send()
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                failedCount.incrementAndGet()
+            }
+        }
+    }
+
+    /** Files [registration] under the first tick at or after [atMs]; caller holds the lock. */
+    private fun schedule(registration: Registration, atMs: Long) {
+        if (registration.cancelled) return
+        val tick = maxOf((atMs + tickMs - 1) / tickMs, processedTick + 1)
+        registration.deadlineTick = tick
+        slots[slotOf(tick)].add(registration)
+    }
+
+    private fun slotOf(tick: Long): Int = Math.floorMod(tick, wheelSize.toLong()).toInt()
+
+    companion object {
+        const val DEFAULT_TICK_MS = 50L
+        const val DEFAULT_WHEEL_SIZE = 128
+
+        /** Scheduler shared by all protocols that don't supply their own. */
+        val shared: KeepAliveScheduler by lazy { KeepAliveScheduler() }
+    }
+}
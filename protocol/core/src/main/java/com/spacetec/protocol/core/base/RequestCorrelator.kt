@@ -0,0 +1,220 @@
+/**
+ * RequestCorrelator.kt
+ *
+ * Matches diagnostic responses arriving on a shared channel to the requests
+ * waiting for them, with UDS response-pending handling.
+ */
+
+package com.spacetec.protocol.core.base
+
+import com.spacetec.core.common.NRCConstants
+import com.spacetec.core.common.exceptions.TimeoutException
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Correlates UDS/KWP responses with outstanding requests by ECU address and
+ * service ID, so requests to different ECUs share one channel concurrently.
+ *
+ * The channel's receive path pushes every incoming message into
+ * [onResponse]; [request] transmits through [transmit] and suspends until the
+ * final response for its ECU and service arrives. Each `7F xx 78` (request
+ * correctly received, response pending) from that ECU restarts the wait with
+ * the P2* timeout instead of P2, however many the ECU sends.
+ *
+ * Only one request per ECU is outstanding at a time, as ISO 14229 requires;
+ * further requests to the same ECU wait their turn, while requests to other
+ * ECUs go out immediately. A slow ECU therefore holds up only its own
+ * requests, not the whole bus. [transmit] may be called concurrently for
+ * different ECUs and must serialize channel writes itself if needed.
+ *
+ * Responses are matched by service ID only, so a late answer to a request
+ * that timed out would pass for the answer to the next request of the same
+ * service to that ECU (e.g. repeated `22` reads). The next request to an ECU
+ * after a timeout therefore first clears its channel: it waits up to P2
+ * (P2* after a response-pending NRC) for the late answer, drops it and
+ * counts it in [lateResponses], then transmits. This costs at most one P2
+ * window, and only after a timeout; an answer later than that window can
+ * still be misattributed.
+ *
+ * A response that matches no outstanding request (a late answer arriving
+ * after that window, or unsolicited traffic) is dropped and counted in
+ * [unmatchedResponses].
+ *
+ * The correlator needs a receive path that tags each message with its
+ * source address, such as a CAN channel, and is meant as the `exchange` of
+ * `DtcSweep` (protocol:uds) and the `request` of
+ * [com.spacetec.protocol.core.EcuDiscovery]. [BaseProtocol] does not use
+ * it: its connections return untagged payloads, read in a scheduler slot
+ * per request, so neither the concurrency nor the late-response clearing
+ * above applies to its send path.
+ *
+ * @param transmit Sends a request to the ECU at the given address
+ * @param p2TimeoutMs Time to wait for the first response (P2 client)
+ * @param p2StarTimeoutMs Time to wait after each response-pending NRC (P2* client)
+ * @param targetOf Maps the source address of a response to the address its
+ *   request was sent to, e.g. 0x7E8 to 0x7E0 for 11-bit OBD CAN IDs
+ */
+class RequestCorrelator(
+    private val transmit: suspend (target: Int, request: ByteArray) -> Unit,
+    private val p2TimeoutMs: Long = DEFAULT_P2_TIMEOUT_MS,
+    private val p2StarTimeoutMs: Long = DEFAULT_P2_STAR_TIMEOUT_MS,
+    private val targetOf: (source: Int) -> Int = { it }
+) {
+
+    private class Outstanding(val serviceId: Int) {
+        val responses = Channel<ByteArray>(Channel.UNLIMITED)
+
+        @Volatile
+        var timedOut = false
+    }
+
+    private val outstanding = ConcurrentHashMap<Int, Outstanding>()
+    private val targetLocks = ConcurrentHashMap<Int, Mutex>()
+
+    // Timed-out requests whose late answer has not been cleared yet, by target
+    private val timedOut = ConcurrentHashMap<Int, Outstanding>()
+
+    private val completed = AtomicLong()
+    private val pending = AtomicLong()
+    private val timeouts = AtomicLong()
+    private val unmatched = AtomicLong()
+    private val late = AtomicLong()
+
+    /** Requests that received a final response. */
+    val completedRequests: Long get() = completed.get()
+
+    /** Response-pending NRCs received. */
+    val responsePendingCount: Long get() = pending.get()
+
+    /** Requests that timed out waiting for a response. */
+    val timedOutRequests: Long get() = timeouts.get()
+
+    /** Responses that matched no outstanding request. */
+    val unmatchedResponses: Long get() = unmatched.get()
+
+    /** Late answers to timed-out requests, dropped while clearing the ECU's channel. */
+    val lateResponses: Long get() = late.get()
+
+    /** Number of requests currently waiting for a response. */
+    val outstandingRequests: Int get() = outstanding.values.count { !it.timedOut }
+
+    /**
+     * Sends [request] to the ECU at [target] and waits for its final response.
+     *
+     * @param target Address the request is sent to
+     * @param request Request bytes, starting with the service ID
+     * @param timeoutMs P2 timeout for this request
+     * @return The final response: positive, or negative with an NRC other
+     *   than response pending
+     * @throws TimeoutException If the ECU does not answer within P2, or
+     *   within P2* after a response-pending NRC
+     */
+    suspend fun request(target: Int, request: ByteArray, timeoutMs: Long = p2TimeoutMs): ByteArray {
+        require(request.isNotEmpty()) { "Empty request" }
+        val serviceId = request[0].toInt() and 0xFF
+
+        return targetLocks.getOrPut(target) { Mutex() }.withLock {
+            timedOut.remove(target)?.let { clearLateResponses(target, it) }
+
+            val entry = Outstanding(serviceId)
+            outstanding[target] = entry
+            try {
+                transmit(target, request)
+                awaitFinal(target, entry, timeoutMs)
+            } finally {
+                if (entry.timedOut) {
+                    // Stays registered to catch the late answer
+                    timedOut[target] = entry
+                } else {
+                    outstanding.remove(target, entry)
+                    entry.responses.close()
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivers a message received from the ECU at [source].
+     *
+     * @return true if it answered an outstanding request; false for a late
+     *   answer to a timed-out one
+     */
+    fun onResponse(source: Int, response: ByteArray): Boolean {
+        val entry = outstanding[targetOf(source)]
+        if (entry == null || response.isEmpty() || !answers(entry.serviceId, response)) {
+            unmatched.incrementAndGet()
+            return false
+        }
+        return entry.responses.trySend(response).isSuccess && !entry.timedOut
+    }
+
+    private suspend fun awaitFinal(target: Int, entry: Outstanding, timeoutMs: Long): ByteArray {
+        var timeout = timeoutMs
+        while (true) {
+            val response = withTimeoutOrNull(timeout) { entry.responses.receive() }
+            if (response == null) {
+                timeouts.incrementAndGet()
+                entry.timedOut = true
+                throw TimeoutException(
+                    "No response from ECU 0x%X to service 0x%02X within %dms".format(target, entry.serviceId, timeout)
+                )
+            }
+            if (isResponsePending(response)) {
+                pending.incrementAndGet()
+                timeout = p2StarTimeoutMs
+                continue
+            }
+            completed.incrementAndGet()
+            return response
+        }
+    }
+
+    /**
+     * Waits up to P2 for the late answer to [entry], a request to [target]
+     * that timed out, restarting with P2* on each response-pending NRC, and
+     * drops it. Ends at the first final answer or once the ECU stays quiet.
+     */
+    private suspend fun clearLateResponses(target: Int, entry: Outstanding) {
+        try {
+            var window = p2TimeoutMs
+            while (true) {
+                val response = withTimeoutOrNull(window) { entry.responses.receive() } ?: break
+                late.incrementAndGet()
+                if (!isResponsePending(response)) break
+                window = p2StarTimeoutMs
+            }
+        } finally {
+            outstanding.remove(target, entry)
+            entry.responses.close()
+        }
+    }
+
+    private fun answers(serviceId: Int, response: ByteArray): Boolean {
+        val first = response[0].toInt() and 0xFF
+        return if (first == NEGATIVE_RESPONSE) {
+            response.size >= 3 && (response[1].toInt() and 0xFF) == serviceId
+        } else {
+            first == serviceId + POSITIVE_RESPONSE_OFFSET
+        }
+    }
+
+    private fun isResponsePending(response: ByteArray): Boolean =
+        (response[0].toInt() and 0xFF) == NEGATIVE_RESPONSE &&
+            (response[2].toInt() and 0xFF) == NRCConstants.REQUEST_RECEIVED_RESPONSE_PENDING
+
+    companion object {
+        /** Default P2 client timeout. */
+        const val DEFAULT_P2_TIMEOUT_MS = 150L
+
+        /** Default P2* client timeout, ISO 14229-2 P2*server max plus margin. */
+        const val DEFAULT_P2_STAR_TIMEOUT_MS = 5_100L
+
+        private const val NEGATIVE_RESPONSE = 0x7F
+        private const val POSITIVE_RESPONSE_OFFSET = 0x40
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * ResponsePendingWaiter.kt
+ *
+ * Waits out UDS response-pending chains on a scheduled connection without
+ * keeping the connection to itself.
+ */
+
+package com.spacetec.protocol.core.base
+
+import com.spacetec.core.common.NRCConstants
+import com.spacetec.core.common.exceptions.TimeoutException
+import com.spacetec.core.common.transport.CommandPriority
+import com.spacetec.core.common.transport.CommandScheduler
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs request/response exchanges on a connection guarded by [scheduler],
+ * reading on through any number of `7F xx 78` (request correctly received,
+ * response pending) replies, while holding the scheduler only to read.
+ *
+ * The request and its first response share one scheduler slot. After a
+ * response-pending NRC the wait for the final response is split into reads
+ * of at most [pollMs], each in a slot of its own, so exchanges queued
+ * meanwhile (other ECUs, other sessions' keep-alives) wait for one read at
+ * most instead of the whole chain, which may last P2* per NRC for as many
+ * NRCs as the ECU sends. Each NRC restarts the wait with P2*.
+ *
+ * An exchange running in between may read the awaited response itself; it
+ * must pass whatever it reads to [deliver] first, which hands responses to
+ * the request waiting for them. Responses are matched by service ID, so one
+ * chain per service is waited out at a time, and other exchanges should not
+ * use a service while a request for it is pending.
+ *
+ * @param scheduler Scheduler guarding the connection
+ * @param pollMs Longest read per scheduler slot while a response is pending
+ */
+class ResponsePendingWaiter(
+    private val scheduler: CommandScheduler,
+    private val pollMs: Long = DEFAULT_POLL_MS
+) {
+
+    init {
+        require(pollMs > 0) { "Poll time must be positive: $pollMs" }
+    }
+
+    private val waiting = ConcurrentHashMap<Int, Channel<ByteArray>>()
+    private val serviceLocks = ConcurrentHashMap<Int, Mutex>()
+
+    private val pending = AtomicLong()
+    private val delivered = AtomicLong()
+
+    /** Response-pending NRCs received. */
+    val responsePendingCount: Long get() = pending.get()
+
+    /** Awaited responses read by another exchange and handed over. */
+    val deliveredResponses: Long get() = delivered.get()
+
+    /**
+     * Sends a request with [transmit] and returns its final response.
+     *
+     * @param serviceId Service ID of the request
+     * @param priority Scheduler priority of the request and of every read
+     * @param timeoutMs Timeout for the first response (P2)
+     * @param pendingTimeoutMs Timeout after each response-pending NRC (P2*)
+     * @param transmit Writes the request; runs inside a scheduler slot
+     * @param read Reads the next message from the connection within the
+     *   given time, or returns null if none arrived; runs inside a scheduler
+     *   slot. Messages awaited by other pending requests are passed on here
+     * @return The first response that is not a response-pending NRC
+     * @throws TimeoutException If a response does not arrive in time
+     */
+    suspend fun exchange(
+        serviceId: Int,
+        priority: CommandPriority,
+        timeoutMs: Long,
+        pendingTimeoutMs: Long,
+        transmit: suspend () -> Unit,
+        read: suspend (timeoutMs: Long) -> ByteArray?
+    ): ByteArray = serviceLocks.getOrPut(serviceId) { Mutex() }.withLock {
+        val responses = Channel<ByteArray>(Channel.UNLIMITED)
+        try {
+            val first = scheduler.execute(priority) {
+                transmit()
+                val response = readOwn(timeoutMs, read) ?: throw timeout(serviceId, timeoutMs)
+                // Registered before the slot is released, so no reader misses it
+                if (isResponsePending(response)) waiting[serviceId] = responses
+                response
+            }
+            if (!isResponsePending(first)) return@withLock first
+            pending.incrementAndGet()
+            awaitFinal(serviceId, priority, pendingTimeoutMs, responses, read)
+        } finally {
+            waiting.remove(serviceId, responses)
+            responses.close()
+        }
+    }
+
+    /**
+     * Hands [response], read by some other exchange, to the request waiting
+     * for it.
+     *
+     * @return true if a request was waiting for it; the caller must then
+     *   read on for its own response
+     */
+    fun deliver(response: ByteArray): Boolean {
+        val serviceId = serviceOf(response) ?: return false
+        val responses = waiting[serviceId] ?: return false
+        if (!responses.trySend(response).isSuccess) return false
+        delivered.incrementAndGet()
+        return true
+    }
+
+    private suspend fun awaitFinal(
+        serviceId: Int,
+        priority: CommandPriority,
+        pendingTimeoutMs: Long,
+        responses: Channel<ByteArray>,
+        read: suspend (timeoutMs: Long) -> ByteArray?
+    ): ByteArray {
+        while (true) {
+            val response = withTimeoutOrNull(pendingTimeoutMs) {
+                nextResponse(serviceId, priority, responses, read)
+            } ?: throw timeout(serviceId, pendingTimeoutMs)
+            if (!isResponsePending(response)) return response
+            pending.incrementAndGet()
+        }
+    }
+
+    /**
+     * Next response to [serviceId], handed over by another exchange or read
+     * in slots of at most [pollMs].
+     */
+    private suspend fun nextResponse(
+        serviceId: Int,
+        priority: CommandPriority,
+        responses: Channel<ByteArray>,
+        read: suspend (timeoutMs: Long) -> ByteArray?
+    ): ByteArray {
+        while (true) {
+            val response = responses.tryReceive().getOrNull()
+                ?: scheduler.execute(priority) { responses.tryReceive().getOrNull() ?: read(pollMs) }
+                ?: continue
+            if (serviceOf(response) == serviceId) return response
+            // Someone else's: pass it on if another chain awaits it
+            deliver(response)
+        }
+    }
+
+    /** Reads the first response no other pending chain awaits. */
+    private suspend fun readOwn(timeoutMs: Long, read: suspend (timeoutMs: Long) -> ByteArray?): ByteArray? {
+        while (true) {
+            val response = read(timeoutMs) ?: return null
+            if (!deliver(response)) return response
+        }
+    }
+
+    private fun timeout(serviceId: Int, timeoutMs: Long) =
+        TimeoutException("No response to service 0x%02X within %dms".format(serviceId, timeoutMs))
+
+    /** Service a response answers, or null if it is not a UDS response. */
+    private fun serviceOf(response: ByteArray): Int? {
+        if (response.isEmpty()) return null
+        val first = response[0].toInt() and 0xFF
+        return when {
+            first == NEGATIVE_RESPONSE -> if (response.size >= 3) response[1].toInt() and 0xFF else null
+            first >= POSITIVE_RESPONSE_OFFSET -> first - POSITIVE_RESPONSE_OFFSET
+            else -> null
+        }
+    }
+
+    private fun isResponsePending(response: ByteArray): Boolean =
+        response.size >= 3 && (response[0].toInt() and 0xFF) == NEGATIVE_RESPONSE &&
+            (response[2].toInt() and 0xFF) == NRCConstants.REQUEST_RECEIVED_RESPONSE_PENDING
+
+    companion object {
+        /** Default longest read per scheduler slot while a response is pending. */
+        const val DEFAULT_POLL_MS = 50L
+
+        private const val NEGATIVE_RESPONSE = 0x7F
+        private const val POSITIVE_RESPONSE_OFFSET = 0x40
+    }
+}
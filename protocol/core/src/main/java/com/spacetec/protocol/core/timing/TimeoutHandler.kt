@@ -0,0 +1,219 @@
+/**
+ * TimeoutHandler.kt
+ *
+ * Derives per-ECU response timeouts from the P2 limits the ECUs report and
+ * the response times actually observed.
+ */
+
+package com.spacetec.protocol.core.timing
+
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.ceil
+
+/**
+ * Adaptive response timeouts per ECU and service.
+ *
+ * Waiting the worst-case [TimingParameters.receiveTimeoutMs] for every
+ * request makes a scan as slow as its slowest possible answer, and a
+ * request to an absent ECU costs the whole timeout. This handler narrows the
+ * wait to what each ECU actually needs:
+ *
+ * 1. Before anything is known, the timeout is the worst case.
+ * 2. Once an ECU answered DiagnosticSessionControl ([onSessionResponse]),
+ *    its reported P2server_max applies, or 1.5 times the slowest response
+ *    seen so far if the ECU has already been slower than it claims.
+ * 3. Once [MIN_SAMPLES] response times were recorded ([recordResponse]),
+ *    the 99th percentile of the last [windowSize] samples, times 1.5 plus
+ *    [HEADROOM_MS], applies; per service where there are enough samples for
+ *    that service, per ECU otherwise. Response times are kept in a sliding
+ *    histogram of [BUCKET_MS] buckets, so a slower phase (a busy ECU, a
+ *    different session) shifts the timeout within one window.
+ *
+ * Every timeout is capped at the worst case. A request that timed out
+ * ([recordTimeout]) doubles the timeout for that ECU and service, up to the
+ * cap, until the next response arrives, so a timeout that was too tight
+ * costs at most one retry.
+ *
+ * Timeouts from [ecuTimeoutMs] are bus-side, the time the ECU may take;
+ * [timeoutFor] adds [transportMarginMs] for the adapter round trip and is
+ * what a host waits for. [elmTimeout] turns the bus-side value into an ELM327
+ * `ATST` argument.
+ *
+ * Thread-safe.
+ *
+ * @param parameters Current timing parameters; read on every call
+ * @param windowSize Response times kept per ECU and service
+ * @param transportMarginMs Adapter and link round trip added to host timeouts
+ */
+class TimeoutHandler(
+    private val parameters: () -> TimingParameters = { TimingParameters.DEFAULT },
+    private val windowSize: Int = DEFAULT_WINDOW_SIZE,
+    private val transportMarginMs: Long = DEFAULT_TRANSPORT_MARGIN_MS
+) {
+
+    init {
+        require(windowSize >= MIN_SAMPLES) { "Window must hold at least $MIN_SAMPLES samples: $windowSize" }
+    }
+
+    private val sessionTiming = ConcurrentHashMap<Int, TimingParameters>()
+    private val windows = ConcurrentHashMap<Long, ResponseTimeWindow>()
+    private val backoff = ConcurrentHashMap<Long, Int>()
+
+    /**
+     * Takes P2server_max and P2*server_max from [ecu]'s positive
+     * DiagnosticSessionControl response; other responses are ignored.
+     */
+    fun onSessionResponse(ecu: Int, response: ByteArray) {
+        val base = parameters()
+        val timing = base.withSessionResponse(response)
+        if (timing !== base) sessionTiming[ecu] = timing
+    }
+
+    /**
+     * Records that [ecu] answered [serviceId] after [elapsedMs], ending any
+     * back-off for that service.
+     */
+    fun recordResponse(ecu: Int, serviceId: Int, elapsedMs: Long) {
+        windows.computeIfAbsent(key(ecu, serviceId)) { ResponseTimeWindow(windowSize) }.add(elapsedMs)
+        windows.computeIfAbsent(key(ecu, ANY_SERVICE)) { ResponseTimeWindow(windowSize) }.add(elapsedMs)
+        backoff.remove(key(ecu, serviceId))
+    }
+
+    /**
+     * Records that a request for [serviceId] to [ecu] timed out, doubling
+     * the next timeout.
+     */
+    fun recordTimeout(ecu: Int, serviceId: Int) {
+        backoff.merge(key(ecu, serviceId), 1) { steps, _ -> minOf(steps + 1, MAX_BACKOFF_STEPS) }
+    }
+
+    /**
+     * Time [ecu] may take to start answering [serviceId], measured on the
+     * bus.
+     */
+    fun ecuTimeoutMs(ecu: Int, serviceId: Int): Long {
+        val ceiling = parameters().receiveTimeoutMs.coerceAtLeast(MIN_TIMEOUT_MS)
+        val steps = backoff[key(ecu, serviceId)] ?: 0
+        return minOf(baseTimeoutMs(ecu, serviceId, ceiling) shl steps, ceiling)
+    }
+
+    /**
+     * Time a host waits for [ecu]'s answer to [serviceId], including the
+     * adapter round trip.
+     */
+    fun timeoutFor(ecu: Int, serviceId: Int): Long = ecuTimeoutMs(ecu, serviceId) + transportMarginMs
+
+    /**
+     * Time a host waits after NRC 0x78 (response pending) from [ecu].
+     */
+    fun responsePendingTimeoutMs(ecu: Int): Long =
+        (sessionTiming[ecu] ?: parameters()).p2StarServerMaxMs + transportMarginMs
+
+    /**
+     * P2server_max that applies to [ecu]: reported by the ECU, or the default.
+     */
+    fun p2ServerMaxMs(ecu: Int): Long = (sessionTiming[ecu] ?: parameters()).p2ServerMaxMs
+
+    /**
+     * ELM327 `ATST` argument (4 ms units, 1..FF) for [ecu] and [serviceId].
+     */
+    fun elmTimeout(ecu: Int, serviceId: Int): Int = ((ecuTimeoutMs(ecu, serviceId) + 3) / 4).toInt().coerceIn(1, 0xFF)
+
+    /**
+     * ELM327 `ATST` argument covering every ECU in [ecus], for functionally
+     * addressed requests.
+     */
+    fun elmTimeout(ecus: Collection<Int>, serviceId: Int): Int =
+        ecus.maxOfOrNull { elmTimeout(it, serviceId) } ?: ((parameters().receiveTimeoutMs + 3) / 4).toInt().coerceIn(1, 0xFF)
+
+    /**
+     * Response times recorded for [ecu] and [serviceId] in the current
+     * window.
+     */
+    fun sampleCount(ecu: Int, serviceId: Int): Int = windows[key(ecu, serviceId)]?.size ?: 0
+
+    /**
+     * Forgets everything learned about [ecu], or about every ECU if null.
+     */
+    fun reset(ecu: Int? = null) {
+        if (ecu == null) {
+            sessionTiming.clear()
+            windows.clear()
+            backoff.clear()
+            return
+        }
+        sessionTiming.remove(ecu)
+        windows.keys.removeIf { it ushr 8 == ecu.toLong() }
+        backoff.keys.removeIf { it ushr 8 == ecu.toLong() }
+    }
+
+    private fun baseTimeoutMs(ecu: Int, serviceId: Int, ceiling: Long): Long {
+        val window = windows[key(ecu, serviceId)]?.takeIf { it.size >= MIN_SAMPLES }
+            ?: windows[key(ecu, ANY_SERVICE)]?.takeIf { it.size >= MIN_SAMPLES }
+        if (window != null) {
+            return (window.percentile(PERCENTILE) * 3 / 2 + HEADROOM_MS).coerceIn(MIN_TIMEOUT_MS, ceiling)
+        }
+        val reported = sessionTiming[ecu] ?: return ceiling
+        // An ECU already seen answering later than its P2 gets the slower time
+        val slowest = windows[key(ecu, ANY_SERVICE)]?.takeIf { it.size > 0 }?.percentile(1.0) ?: 0L
+        return (maxOf(reported.p2ServerMaxMs, slowest * 3 / 2) + HEADROOM_MS).coerceIn(MIN_TIMEOUT_MS, ceiling)
+    }
+
+    private fun key(ecu: Int, serviceId: Int): Long = (ecu.toLong() shl 8) or (serviceId.toLong() and 0xFF)
+
+    /**
+     * Histogram of the last [capacity] response times in [BUCKET_MS]
+     * buckets; the oldest sample drops out as a new one arrives.
+     */
+    private class ResponseTimeWindow(capacity: Int) {
+        private val samples = IntArray(capacity)
+        private val counts = IntArray(BUCKETS + 1)
+        private var next = 0
+
+        @Volatile
+        var size = 0
+            private set
+
+        @Synchronized
+        fun add(elapsedMs: Long) {
+            val bucket = (elapsedMs.coerceAtLeast(0) / BUCKET_MS).coerceAtMost(BUCKETS.toLong()).toInt()
+            if (size == samples.size) counts[samples[next]]-- else size++
+            samples[next] = bucket
+            counts[bucket]++
+            next = (next + 1) % samples.size
+        }
+
+        /** Upper bound of the bucket holding the [quantile] sample. */
+        @Synchronized
+        fun percentile(quantile: Double): Long {
+            val rank = ceil(quantile * size).toInt().coerceAtLeast(1)
+            var seen = 0
+            for (bucket in counts.indices) {
+                seen += counts[bucket]
+                if (seen >= rank) return (bucket + 1) * BUCKET_MS
+            }
+            return (BUCKETS + 1) * BUCKET_MS
+        }
+    }
+
+    companion object {
+        const val DEFAULT_WINDOW_SIZE = 64
+        const val DEFAULT_TRANSPORT_MARGIN_MS = 50L
+
+        /** Samples needed before observed response times replace P2. */
+        const val MIN_SAMPLES = 8
+
+        /** Shortest timeout handed out, whatever was observed. */
+        const val MIN_TIMEOUT_MS = 20L
+
+        /** Added to every derived timeout to absorb scheduling jitter. */
+        const val HEADROOM_MS = 10L
+
+        const val BUCKET_MS = 2L
+
+        private const val BUCKETS = 1024
+        private const val PERCENTILE = 0.99
+        private const val MAX_BACKOFF_STEPS = 6
+        private const val ANY_SERVICE = 0xFF
+    }
+}
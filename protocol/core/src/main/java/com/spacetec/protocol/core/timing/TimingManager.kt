@@ -12,6 +12,9 @@ package com.spacetec.protocol.core.timing
  *
  * Provides protocol-specific timing configurations and utilities
  * for managing timeouts, inter-byte delays, and session timing.
+ *
+ * Per-ECU response timeouts adapt to what the ECUs report and how fast
+ * they actually answer; see [TimeoutHandler].
  */
 class TimingManager {
 
@@ -21,6 +24,11 @@ class TimingManager {
     var parameters: TimingParameters = TimingParameters.DEFAULT
         private set
 
+    /**
+     * Adaptive per-ECU timeouts, bounded by [parameters].
+     */
+    val timeouts: TimeoutHandler = TimeoutHandler({ parameters })
+
     /**
      * Updates the timing parameters.
      */
@@ -33,6 +41,7 @@ class TimingManager {
      */
     fun reset() {
         parameters = TimingParameters.DEFAULT
+        timeouts.reset()
     }
 
     /**
@@ -46,7 +55,33 @@ class TimingManager {
         else -> parameters.defaultTimeoutMs
     }
 
+    /**
+     * Gets the response timeout for [serviceId] sent to [ecuAddress].
+     */
+    fun getTimeout(ecuAddress: Int, serviceId: Int): Long = timeouts.timeoutFor(ecuAddress, serviceId)
+
+    /**
+     * Records a response, or a timeout if [response] is null, for
+     * [serviceId] sent to [ecuAddress]. A DiagnosticSessionControl response
+     * also updates the ECU's P2 limits.
+     */
+    fun recordExchange(ecuAddress: Int, serviceId: Int, elapsedMs: Long, response: ByteArray?) {
+        if (response == null) {
+            timeouts.recordTimeout(ecuAddress, serviceId)
+            return
+        }
+        timeouts.recordResponse(ecuAddress, serviceId, elapsedMs)
+        if (serviceId == SESSION_CONTROL) timeouts.onSessionResponse(ecuAddress, response)
+    }
+
     companion object {
+        /**
+         * Key for requests not aimed at one ECU (functional addressing).
+         */
+        const val ANY_ECU = 0
+
+        private const val SESSION_CONTROL = 0x10
+
         /**
          * Default timing manager instance.
          */
@@ -8,6 +8,11 @@ package com.spacetec.protocol.core.timing
 
 /**
  * Timing parameters for diagnostic communication.
+ *
+ * [p2ServerMaxMs] and [p2StarServerMaxMs] are the ECU's own limits for
+ * starting a response and for continuing after NRC 0x78 (response pending),
+ * as reported in its DiagnosticSessionControl response; see
+ * [withSessionResponse].
  */
 data class TimingParameters(
     val connectTimeoutMs: Long = 5000L,
@@ -16,9 +21,39 @@ data class TimingParameters(
     val sessionTimeoutMs: Long = 50000L,
     val defaultTimeoutMs: Long = 1000L,
     val interByteTimeoutMs: Long = 50L,
-    val keepAliveIntervalMs: Long = 2000L
+    val keepAliveIntervalMs: Long = 2000L,
+    val p2ServerMaxMs: Long = DEFAULT_P2_SERVER_MAX_MS,
+    val p2StarServerMaxMs: Long = DEFAULT_P2_STAR_SERVER_MAX_MS
 ) {
+
+    /**
+     * Copies these parameters with P2server_max and P2*server_max taken from
+     * a positive DiagnosticSessionControl response (`50 ss P2hi P2lo P2*hi
+     * P2*lo`, P2 in 1 ms and P2* in 10 ms units, ISO 14229-2). Returns these
+     * parameters unchanged if [response] is anything else, e.g. a KWP2000
+     * response without timing record. A P2* of 0 keeps the current P2*, so
+     * that response-pending waits never drop to the transport margin.
+     */
+    fun withSessionResponse(response: ByteArray): TimingParameters {
+        if (response.size < 6 || response[0] != SESSION_CONTROL_RESPONSE) return this
+        val p2 = (response[2].toInt() and 0xFF shl 8) or (response[3].toInt() and 0xFF)
+        val p2Star = (response[4].toInt() and 0xFF shl 8) or (response[5].toInt() and 0xFF)
+        if (p2 == 0) return this
+        return copy(
+            p2ServerMaxMs = p2.toLong(),
+            p2StarServerMaxMs = if (p2Star == 0) p2StarServerMaxMs else p2Star * 10L
+        )
+    }
+
     companion object {
+        /** ISO 14229-2 default P2server_max. */
+        const val DEFAULT_P2_SERVER_MAX_MS = 50L
+
+        /** ISO 14229-2 default P2*server_max. */
+        const val DEFAULT_P2_STAR_SERVER_MAX_MS = 5000L
+
+        private const val SESSION_CONTROL_RESPONSE: Byte = 0x50
+
         val DEFAULT = TimingParameters()
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,195 @@
+package com.spacetec.protocol.core
+
+import com.spacetec.core.common.exceptions.TimeoutException
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [EcuDiscovery] in virtual time against a simulated 40-ECU
+ * vehicle, compared with probing one address after the other and enriching
+ * afterwards.
+ */
+class EcuDiscoveryTest {
+
+    @Test
+    fun testFortyEcuScanAgainstSequentialScan() = runTest {
+        val start = testScheduler.currentTime
+        val sequential = sequentialScan(Vehicle(clock()))
+        val sequentialMs = testScheduler.currentTime - start
+
+        val vehicle = Vehicle(clock())
+        val discovery = EcuDiscovery(vehicle::broadcast, vehicle::request)
+        val begin = testScheduler.currentTime
+        val found = discovery.discover(CANDIDATES, PROBE) { vehicle.enrich(it.address) }
+        val discoveryMs = testScheduler.currentTime - begin
+
+        println(
+            "ECU scan, ${ECUS.size} ECUs in ${CANDIDATES.size} addresses: sequential ${sequentialMs}ms, " +
+                "broadcast + ${EcuDiscovery.DEFAULT_MAX_IN_FLIGHT} in flight ${discoveryMs}ms"
+        )
+        assertEquals(sequential, found)
+        assertEquals(ECUS.keys.sorted(), found.map { it.address })
+        assertTrue(discoveryMs * 5 < sequentialMs)
+        assertTrue(discovery.peakInFlight <= EcuDiscovery.DEFAULT_MAX_IN_FLIGHT)
+        assertTrue(vehicle.peakOutstanding <= EcuDiscovery.DEFAULT_MAX_IN_FLIGHT)
+    }
+
+    @Test
+    fun testBroadcastRespondersAreNotProbedAgain() = runTest {
+        val vehicle = Vehicle(clock())
+        val discovery = EcuDiscovery(vehicle::broadcast, vehicle::request)
+
+        discovery.discover(CANDIDATES, PROBE) { it.viaBroadcast }
+
+        assertEquals(OBD_ECUS.size.toLong(), discovery.broadcastResponders)
+        assertEquals((CANDIDATES.size - OBD_ECUS.size).toLong(), discovery.probesSent)
+        assertEquals((ECUS.size - OBD_ECUS.size).toLong(), discovery.probesAnswered)
+        assertTrue(vehicle.probed.none { it in OBD_ECUS })
+    }
+
+    @Test
+    fun testEnrichmentOverlapsProbing() = runTest {
+        val vehicle = Vehicle(clock())
+        val discovery = EcuDiscovery(vehicle::broadcast, vehicle::request)
+        var firstEnriched = -1L
+
+        discovery.discover(CANDIDATES, PROBE) {
+            vehicle.enrich(it.address).also { if (firstEnriched < 0) firstEnriched = testScheduler.currentTime }
+        }
+
+        assertTrue(firstEnriched in 0 until vehicle.lastProbeAt)
+    }
+
+    @Test
+    fun testProbeErrorsDoNotEndScan() = runTest {
+        val vehicle = Vehicle(clock(), failing = setOf(0x710, 0x711))
+        val discovery = EcuDiscovery(vehicle::broadcast, vehicle::request)
+
+        val found = discovery.discover(CANDIDATES, PROBE) { it.address }
+
+        assertEquals(2L, discovery.probesFailed)
+        assertEquals(ECUS.keys.sorted(), found)
+    }
+
+    @Test
+    fun testSingleRequestWindowFindsSameEcus() = runTest {
+        val vehicle = Vehicle(clock())
+        val discovery = EcuDiscovery(vehicle::broadcast, vehicle::request, maxInFlight = 1)
+
+        val found = discovery.discover(CANDIDATES, PROBE) { it.address }
+
+        assertEquals(ECUS.keys.sorted(), found)
+        assertEquals(1, discovery.peakInFlight)
+    }
+
+    @Test
+    fun testEmptyBroadcastFallsBackToProbes() = runTest {
+        val vehicle = Vehicle(clock())
+        val discovery = EcuDiscovery({ throw TimeoutException("No functional response") }, vehicle::request)
+
+        val found = discovery.discover(CANDIDATES, PROBE) { it.address }
+
+        assertEquals(0L, discovery.broadcastResponders)
+        assertEquals(CANDIDATES.size.toLong(), discovery.probesSent)
+        assertEquals(ECUS.keys.sorted(), found)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private data class Identified(val address: Int, val vin: String, val calibrationId: String)
+
+    /**
+     * What `DiagnosticRepositoryImpl.scanECUs` does: probe each address in
+     * turn, waiting out the timeout for every missing ECU, then read the
+     * identification of each ECU found.
+     */
+    private suspend fun sequentialScan(vehicle: Vehicle): List<Identified> {
+        val present = CANDIDATES.filter { vehicle.request(it, PROBE) != null }
+        return present.map { vehicle.enrich(it) }
+    }
+
+    /**
+     * CAN bus with [ECUS]: each frame occupies the bus for [FRAME_MS], each
+     * ECU answers after its response time, a missing ECU costs
+     * [TIMEOUT_MS]. The OBD ECUs also answer the functional address, whose
+     * request always waits out [TIMEOUT_MS] to collect every answer.
+     */
+    private class Vehicle(private val clock: () -> Long, private val failing: Set<Int> = emptySet()) {
+        private val bus = Mutex()
+        private var outstanding = 0
+        var peakOutstanding = 0
+        var lastProbeAt = 0L
+        val probed = ArrayList<Int>()
+
+        suspend fun broadcast(request: ByteArray): Map<Int, ByteArray> = exchange {
+            delay(TIMEOUT_MS)
+            OBD_ECUS.associateWith { positive(request) }
+        }
+
+        suspend fun request(target: Int, request: ByteArray): ByteArray? {
+            if (request.contentEquals(PROBE)) {
+                probed += target
+                lastProbeAt = clock()
+            }
+            if (target in failing) throw IllegalStateException("Adapter rejected 0x%X".format(target))
+            return exchange {
+                val responseMs = ECUS[target]
+                if (responseMs == null) {
+                    delay(TIMEOUT_MS)
+                    null
+                } else {
+                    delay(responseMs)
+                    positive(request)
+                }
+            }
+        }
+
+        suspend fun enrich(address: Int): Identified {
+            val vin = request(address, byteArrayOf(0x09, 0x02))
+            val calibrationId = request(address, byteArrayOf(0x09, 0x04))
+            assertNotNull(vin)
+            assertNotNull(calibrationId)
+            return Identified(address, "VIN%03X".format(address), "CAL%03X".format(address))
+        }
+
+        private suspend fun <T> exchange(block: suspend () -> T): T {
+            outstanding++
+            peakOutstanding = maxOf(peakOutstanding, outstanding)
+            try {
+                bus.withLock { delay(FRAME_MS) }
+                return block()
+            } finally {
+                outstanding--
+            }
+        }
+
+        private fun positive(request: ByteArray): ByteArray =
+            byteArrayOf((request[0] + 0x40).toByte()) + request.copyOfRange(1, request.size)
+    }
+
+    private fun TestScope.clock(): () -> Long = { testScheduler.currentTime }
+
+    companion object {
+        private const val TIMEOUT_MS = 1000L
+        private const val FRAME_MS = 1L
+        private val PROBE = byteArrayOf(0x09, 0x00)
+
+        /** 11-bit physical request IDs 0x700-0x7E7, without the functional ID. */
+        private val CANDIDATES = (0x700..0x7E7).filter { it != 0x7DF }
+
+        private val OBD_ECUS = (0x7E0..0x7E7).toList()
+
+        /** 40 ECUs: the 8 OBD ECUs and 32 others, answering in 5 to 67 ms. */
+        private val ECUS: Map<Int, Long> =
+            (OBD_ECUS + (0 until 32).map { 0x700 + it * 6 }).withIndex().associate { (index, address) ->
+                address to 5L + index * 37 % 63
+            }
+    }
+}
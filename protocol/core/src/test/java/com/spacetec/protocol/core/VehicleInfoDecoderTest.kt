@@ -0,0 +1,82 @@
+package com.spacetec.protocol.core
+
+import com.spacetec.core.common.exceptions.TimeoutException
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [VehicleInfoDecoder] on service 09 responses as ECUs send them,
+ * and for the requests [VehicleInfoCollector] makes.
+ */
+class VehicleInfoDecoderTest {
+
+    @Test
+    fun testSupportedInfoTypes() {
+        // 49 00 54 40 00 00: 02, 04, 06, 0A
+        val data = bytes(0x00, 0x54, 0x40, 0x00, 0x00)
+
+        assertEquals(setOf(0x02, 0x04, 0x06, 0x0A), VehicleInfoDecoder.supportedInfoTypes(data))
+        assertNull(VehicleInfoDecoder.supportedInfoTypes(bytes(0x00, 0x54, 0x40)))
+        assertNull(VehicleInfoDecoder.supportedInfoTypes(bytes(0x20, 0x54, 0x40, 0x00, 0x00)))
+    }
+
+    @Test
+    fun testVin() {
+        val vin = "WVWZZZ1KZAW000001"
+
+        assertEquals(vin, VehicleInfoDecoder.vin(bytes(0x02, 0x01) + vin.toByteArray()))
+        // Legacy padding in front of the VIN
+        assertEquals(vin, VehicleInfoDecoder.vin(bytes(0x02, 0x01, 0x00, 0x00, 0x00) + vin.toByteArray()))
+        assertNull(VehicleInfoDecoder.vin(bytes(0x02, 0x01) + vin.dropLast(1).toByteArray()))
+        assertNull(VehicleInfoDecoder.vin(bytes(0x04, 0x01) + vin.toByteArray()))
+    }
+
+    @Test
+    fun testCalibrationIdsAndCvns() {
+        val calibrationIds = bytes(0x04, 0x02) + "JMB*36761500".toByteArray().copyOf(16) + "JMB*47872611".toByteArray().copyOf(16)
+        val cvns = bytes(0x06, 0x02, 0x17, 0x91, 0xBC, 0x82, 0xFF, 0x00, 0x00, 0x01)
+
+        assertEquals(listOf("JMB*36761500", "JMB*47872611"), VehicleInfoDecoder.calibrationIds(calibrationIds))
+        assertArrayEquals(intArrayOf(0x1791BC82, 0xFF000001.toInt()), VehicleInfoDecoder.cvns(cvns))
+        assertEquals("FF000001", VehicleInfoDecoder.formatCvn(0xFF000001.toInt()))
+        // The count is bounded by the bytes received
+        assertArrayEquals(intArrayOf(0x1791BC82), VehicleInfoDecoder.cvns(cvns.copyOf(8)))
+        assertEquals(0, VehicleInfoDecoder.cvns(calibrationIds).size)
+    }
+
+    @Test
+    fun testEcuName() {
+        val name = bytes(0x0A, 0x01) + "ECM".toByteArray() + bytes(0x00, '-'.code) + "EngineControl".toByteArray().copyOf(15)
+
+        assertEquals("ECM-EngineControl", VehicleInfoDecoder.ecuName(name))
+        assertNull(VehicleInfoDecoder.ecuName(name.copyOf(12)))
+    }
+
+    @Test
+    fun testCollectorSkipsInfoTypesNoEcuSupports() = runTest {
+        val sent = ArrayList<Int>()
+        val collector = VehicleInfoCollector { request ->
+            val infoType = request[1].toInt()
+            sent += infoType
+            when (infoType) {
+                // Only calibration IDs and CVNs
+                0x00 -> mapOf(0x7E8 to bytes(0x49, 0x00, 0x14, 0x00, 0x00, 0x00), 0x7E9 to bytes(0x7F, 0x09, 0x12))
+                0x04 -> mapOf(0x7E8 to bytes(0x49, 0x04, 0x01) + "CAL1".toByteArray().copyOf(16))
+                0x06 -> throw TimeoutException("No answer")
+                else -> mapOf(0x7E8 to bytes(0x49, 0x02, 0x01))
+            }
+        }
+
+        val ecus = collector.collect()
+
+        assertEquals(listOf(0x00, 0x04, 0x06), sent)
+        assertEquals(3L, collector.requests)
+        assertEquals(listOf(0x7E8), ecus.map { it.ecuId })
+        assertEquals(listOf("CAL1"), ecus[0].calibrationIds)
+        assertEquals(0, ecus[0].cvns.size)
+        assertNull(ecus[0].vin)
+    }
+
+    private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+}
@@ -0,0 +1,186 @@
+package com.spacetec.protocol.core.base
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Tests for [KeepAliveScheduler] in virtual time, counting tester-present
+ * frames on a simulated bus and ticker wakeups.
+ */
+class KeepAliveSchedulerTest {
+
+    @Test
+    fun testIdleSessionsOnOneChannelShareOneFrame() = runTest {
+        val baseline = perSessionLoops(SESSIONS)
+
+        val scheduler = scheduler()
+        val bus = Bus()
+        repeat(SESSIONS) { bus.register(scheduler, channel = CHANNEL) }
+        advanceTimeBy(RUN_MS + TICK_MS)
+        runCurrent()
+
+        println(
+            "Keep-alive, $SESSIONS idle sessions for ${RUN_MS}ms: per-session loops ${baseline.frames} frames " +
+                "${baseline.wakeups} wakeups, timer wheel ${bus.frames} frames ${scheduler.wakeups} wakeups"
+        )
+        assertEquals(SESSIONS * ROUNDS, baseline.frames)
+        assertEquals(ROUNDS, bus.functionalFrames.get())
+        assertEquals(0, bus.physicalFrames.get())
+        assertEquals(ROUNDS.toLong(), scheduler.wakeups)
+        assertEquals((SESSIONS - 1L) * ROUNDS, scheduler.keepAlivesBatched)
+    }
+
+    @Test
+    fun testSessionsOnSeparateChannelsShareWakeups() = runTest {
+        val scheduler = scheduler()
+        val bus = Bus()
+        // Sessions opened 10 ms apart: no batching, but they fall into few ticks
+        repeat(SESSIONS) {
+            bus.register(scheduler, channel = it)
+            delay(10)
+        }
+        advanceTimeBy(RUN_MS + TICK_MS)
+        runCurrent()
+
+        assertEquals(0, bus.functionalFrames.get())
+        assertTrue("${bus.physicalFrames}", bus.physicalFrames.get() >= SESSIONS * (ROUNDS - 1))
+        assertTrue("${scheduler.wakeups}", scheduler.wakeups * 3 < bus.physicalFrames.get())
+    }
+
+    @Test
+    fun testTrafficDefersKeepAlive() = runTest {
+        val scheduler = scheduler()
+        val bus = Bus()
+        val session = bus.register(scheduler, channel = CHANNEL)
+
+        // A request every 500 ms keeps the session alive by itself
+        repeat((RUN_MS / 500).toInt()) {
+            delay(500)
+            session.touch()
+        }
+        runCurrent()
+        assertEquals(0, bus.frames)
+        assertTrue(scheduler.keepAlivesDeferred > 0)
+
+        // Once the traffic stops, keep-alives resume one interval after the last request
+        advanceTimeBy(INTERVAL_MS + TICK_MS)
+        runCurrent()
+        assertEquals(1, bus.physicalFrames.get())
+    }
+
+    @Test
+    fun testSessionRequiringResponseIsNotBatched() = runTest {
+        val scheduler = scheduler()
+        val bus = Bus()
+        bus.register(scheduler, channel = CHANNEL)
+        bus.register(scheduler, channel = CHANNEL, suppress = false)
+        advanceTimeBy(INTERVAL_MS + TICK_MS)
+        runCurrent()
+
+        assertEquals(0, bus.functionalFrames.get())
+        assertEquals(2, bus.physicalFrames.get())
+        assertEquals(0L, scheduler.keepAlivesBatched)
+    }
+
+    @Test
+    fun testSessionWithoutFunctionalSenderKeepsItsOwnKeepAlive() = runTest {
+        val scheduler = scheduler()
+        val bus = Bus()
+        bus.register(scheduler, channel = CHANNEL)
+        bus.register(scheduler, channel = CHANNEL, functional = false)
+        bus.register(scheduler, channel = CHANNEL, functional = false)
+        advanceTimeBy(INTERVAL_MS + TICK_MS)
+        runCurrent()
+
+        // Nothing to batch with: each session reaches its own ECU
+        assertEquals(0, bus.functionalFrames.get())
+        assertEquals(3, bus.physicalFrames.get())
+        assertEquals(0L, scheduler.keepAlivesBatched)
+    }
+
+    @Test
+    fun testCancelledSessionSendsNothing() = runTest {
+        val scheduler = scheduler()
+        val bus = Bus()
+        val session = bus.register(scheduler, channel = CHANNEL)
+        advanceTimeBy(INTERVAL_MS + TICK_MS)
+        runCurrent()
+        assertEquals(1, bus.frames)
+
+        session.cancel()
+        advanceTimeBy(RUN_MS)
+        runCurrent()
+
+        assertEquals(1, bus.frames)
+        assertEquals(0, scheduler.registrations)
+    }
+
+    @Test
+    fun testFailingSendIsCounted() = runTest {
+        val scheduler = scheduler()
+        scheduler.register(CHANNEL, INTERVAL_MS) { throw IllegalStateException("link down") }
+        advanceTimeBy(INTERVAL_MS + TICK_MS)
+        runCurrent()
+
+        assertEquals(1L, scheduler.keepAlivesFailed)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun TestScope.scheduler() =
+        KeepAliveScheduler(backgroundScope, clock = { testScheduler.currentTime })
+
+    /** Tester-present frames seen on the bus. */
+    private class Bus {
+        val physicalFrames = AtomicInteger()
+        val functionalFrames = AtomicInteger()
+        val frames: Int get() = physicalFrames.get() + functionalFrames.get()
+
+        fun register(scheduler: KeepAliveScheduler, channel: Any, suppress: Boolean = true, functional: Boolean = true) =
+            scheduler.register(
+                channel,
+                INTERVAL_MS,
+                suppressesResponse = suppress,
+                sendFunctional = if (functional) ({ functionalFrames.incrementAndGet() }) else null
+            ) { physicalFrames.incrementAndGet() }
+    }
+
+    private class Baseline(val frames: Int, val wakeups: Int)
+
+    /** The previous design: one coroutine per session looping on delay. */
+    private suspend fun TestScope.perSessionLoops(sessions: Int): Baseline {
+        val frames = AtomicInteger()
+        val wakeups = AtomicInteger()
+        val loops = List(sessions) {
+            backgroundScope.launch {
+                while (true) {
+                    delay(INTERVAL_MS)
+                    wakeups.incrementAndGet()
+                    frames.incrementAndGet()
+                }
+            }
+        }
+        advanceTimeBy(RUN_MS + TICK_MS)
+        runCurrent()
+        loops.forEach { it.cancel() }
+        return Baseline(frames.get(), wakeups.get())
+    }
+
+    companion object {
+        private const val SESSIONS = 20
+        private const val INTERVAL_MS = 2_000L
+        private const val RUN_MS = 10_000L
+        private const val TICK_MS = KeepAliveScheduler.DEFAULT_TICK_MS
+        private const val ROUNDS = (RUN_MS / INTERVAL_MS).toInt()
+        private const val CHANNEL = "can0"
+    }
+}
@@ -0,0 +1,218 @@
+package com.spacetec.protocol.core.base
+
+import com.spacetec.core.common.exceptions.TimeoutException
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [RequestCorrelator] against simulated ECUs sharing one channel.
+ */
+class RequestCorrelatorTest {
+
+    @Test
+    fun testResponsesMatchedByAddressAndService() = runTest {
+        val bus = SimulatedBus(this)
+        bus.ecu(0x7E0, responseMs = 40)
+        bus.ecu(0x7E1, responseMs = 10)
+
+        val engine = async { bus.correlator.request(0x7E0, bytes(0x22, 0xF1, 0x90)) }
+        val transmission = async { bus.correlator.request(0x7E1, bytes(0x22, 0xF1, 0x90)) }
+
+        // The transmission answers first; each gets its own response
+        assertArrayEquals(bytes(0x62, 0xF1, 0x90, 0x7E, 0x08), engine.await())
+        assertArrayEquals(bytes(0x62, 0xF1, 0x90, 0x7E, 0x09), transmission.await())
+        assertEquals(40, testScheduler.currentTime)
+        assertEquals(2, bus.correlator.completedRequests)
+    }
+
+    @Test
+    fun testResponsePendingExtendsDeadlineToP2Star() = runTest {
+        val bus = SimulatedBus(this)
+        // Three pending NRCs 2 s apart: far beyond P2, within P2* each time
+        bus.ecu(0x7E0, responseMs = 20, pendingResponses = 3, pendingIntervalMs = 2_000)
+
+        val response = bus.correlator.request(0x7E0, bytes(0x31, 0x01, 0xFF, 0x00))
+
+        assertArrayEquals(bytes(0x71, 0x01, 0xFF, 0x00), response)
+        assertEquals(20L + 3 * 2_000, testScheduler.currentTime)
+        assertEquals(3, bus.correlator.responsePendingCount)
+    }
+
+    @Test
+    fun testNegativeResponseIsFinal() = runTest {
+        val bus = SimulatedBus(this)
+        bus.ecu(0x7E0, responseMs = 10, nrc = 0x31)
+
+        val response = bus.correlator.request(0x7E0, bytes(0x22, 0xAB, 0xCD))
+
+        assertArrayEquals(bytes(0x7F, 0x22, 0x31), response)
+    }
+
+    @Test
+    fun testTimeoutAndLateResponseIsNotMisattributed() = runTest {
+        val bus = SimulatedBus(this)
+        bus.ecu(0x7E0, responseMs = 400)
+
+        val failure = runCatching { bus.correlator.request(0x7E0, bytes(0x22, 0xF1, 0x90)) }
+        assertTrue(failure.exceptionOrNull() is TimeoutException)
+        assertEquals(150, testScheduler.currentTime)
+
+        // The late 0x62 arrives while this 0x3E request is outstanding
+        bus.ecu(0x7E0, responseMs = 300)
+        val response = bus.correlator.request(0x7E0, bytes(0x3E, 0x00), timeoutMs = 1_000)
+
+        assertArrayEquals(bytes(0x7E, 0x00), response)
+        assertEquals(1, bus.correlator.timedOutRequests)
+        assertEquals(1, bus.correlator.unmatchedResponses)
+    }
+
+    @Test
+    fun testLateResponseIsNotTakenForTheNextRequestOfTheSameService() = runTest {
+        val bus = SimulatedBus(this)
+        bus.ecu(0x7E0, responseMs = 200)
+
+        val failure = runCatching { bus.correlator.request(0x7E0, bytes(0x22, 0xF1, 0x90)) }
+        assertTrue(failure.exceptionOrNull() is TimeoutException)
+
+        // The late 62 F1 90 arrives at 200 ms, before the answer to F1 91
+        // would; the channel is cleared of it before F1 91 goes out
+        bus.ecu(0x7E0, responseMs = 100)
+        val response = bus.correlator.request(0x7E0, bytes(0x22, 0xF1, 0x91))
+
+        assertArrayEquals(bytes(0x62, 0xF1, 0x91, 0x7E, 0x08), response)
+        assertEquals(300, testScheduler.currentTime)
+        assertEquals(1, bus.correlator.lateResponses)
+        assertEquals(0, bus.correlator.unmatchedResponses)
+        assertEquals(0, bus.correlator.outstandingRequests)
+    }
+
+    @Test
+    fun testSlowEcuDoesNotBlockOtherEcus() = runTest {
+        val bus = SimulatedBus(this)
+        bus.ecu(0x7E0, responseMs = 20, pendingResponses = 2, pendingIntervalMs = 1_000)
+        bus.ecu(0x7E1, responseMs = 15)
+
+        val routine = async { bus.correlator.request(0x7E0, bytes(0x31, 0x01, 0x02, 0x03)) }
+        repeat(50) { bus.correlator.request(0x7E1, bytes(0x3E, 0x00)) }
+        val fastDone = testScheduler.currentTime
+
+        routine.await()
+        assertEquals(50 * 15L, fastDone)
+        assertEquals(2_020L, testScheduler.currentTime)
+    }
+
+    @Test
+    fun testRequestsToOneEcuAreNotInterleaved() = runTest {
+        val bus = SimulatedBus(this)
+        bus.ecu(0x7E0, responseMs = 30)
+
+        List(5) { async { bus.correlator.request(0x7E0, bytes(0x3E, 0x00)) } }.awaitAll()
+
+        assertEquals(1, bus.maxInFlight(0x7E0))
+        assertEquals(150, testScheduler.currentTime)
+    }
+
+    @Test
+    fun testAggregateThroughputScalesWithEcuCount() = runTest {
+        val bus = SimulatedBus(this)
+        val ecus = (0x7E0..0x7E7).toList()
+        // Mixed fleet: two ECUs answer every request with response pending
+        for ((i, ecu) in ecus.withIndex()) {
+            if (i < 2) {
+                bus.ecu(ecu, responseMs = 25, pendingResponses = 1, pendingIntervalMs = 200)
+            } else {
+                bus.ecu(ecu, responseMs = 25)
+            }
+        }
+        val perEcu = 40
+
+        ecus.map { ecu ->
+            async { repeat(perEcu) { bus.correlator.request(ecu, bytes(0x22, 0xF1, 0x90)) } }
+        }.awaitAll()
+
+        val requests = ecus.size * perEcu
+        val concurrentMs = testScheduler.currentTime
+        val serialMs = 2 * perEcu * 225L + 6 * perEcu * 25L
+        val throughput = requests * 1_000.0 / concurrentMs
+        println(
+            "correlator: $requests requests to ${ecus.size} ECUs in ${concurrentMs}ms " +
+                "(%.1f req/s), one at a time would take ${serialMs}ms (%.1f req/s)"
+                    .format(throughput, requests * 1_000.0 / serialMs)
+        )
+
+        assertEquals(requests.toLong(), bus.correlator.completedRequests)
+        // Bounded by the slowest ECU, not by the sum of all of them
+        assertEquals(perEcu * 225L, concurrentMs)
+        assertTrue(concurrentMs * 2 < serialMs)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+    /**
+     * Channel shared by simulated ECUs answering at 11-bit OBD addresses
+     * (request 0x7Ex, response 0x7Ex + 8).
+     */
+    private class SimulatedBus(private val scope: TestScope) {
+
+        private class Ecu(
+            val responseMs: Long,
+            val pendingResponses: Int,
+            val pendingIntervalMs: Long,
+            val nrc: Int?
+        ) {
+            var inFlight = 0
+            var maxInFlight = 0
+        }
+
+        private val ecus = HashMap<Int, Ecu>()
+
+        val correlator = RequestCorrelator(
+            transmit = { target, request -> deliver(target, request) },
+            targetOf = { source -> source - 8 }
+        )
+
+        fun ecu(
+            address: Int,
+            responseMs: Long,
+            pendingResponses: Int = 0,
+            pendingIntervalMs: Long = 0,
+            nrc: Int? = null
+        ) {
+            ecus[address] = Ecu(responseMs, pendingResponses, pendingIntervalMs, nrc)
+        }
+
+        fun maxInFlight(address: Int): Int = ecus.getValue(address).maxInFlight
+
+        private fun deliver(target: Int, request: ByteArray) {
+            val ecu = ecus[target] ?: return
+            ecu.inFlight++
+            ecu.maxInFlight = maxOf(ecu.maxInFlight, ecu.inFlight)
+            val sid = request[0].toInt() and 0xFF
+            scope.launch {
+                delay(ecu.responseMs)
+                repeat(ecu.pendingResponses) {
+                    correlator.onResponse(target + 8, byteArrayOf(0x7F, sid.toByte(), 0x78))
+                    delay(ecu.pendingIntervalMs)
+                }
+                ecu.inFlight--
+                correlator.onResponse(target + 8, response(target, sid, request, ecu.nrc))
+            }
+        }
+
+        private fun response(target: Int, sid: Int, request: ByteArray, nrc: Int?): ByteArray = when {
+            nrc != null -> byteArrayOf(0x7F, sid.toByte(), nrc.toByte())
+            sid == 0x22 -> byteArrayOf(0x62, request[1], request[2], 0x7E, ((target and 0x0F) + 8).toByte())
+            else -> byteArrayOf((sid + 0x40).toByte()) + request.copyOfRange(1, request.size)
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.spacetec.protocol.core.base
+
+import com.spacetec.core.common.exceptions.TimeoutException
+import com.spacetec.core.common.transport.CommandPriority
+import com.spacetec.core.common.transport.CommandScheduler
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [ResponsePendingWaiter] in virtual time, on a simulated bus
+ * shared through one [CommandScheduler].
+ */
+class ResponsePendingWaiterTest {
+
+    @Test
+    fun testSecondSessionKeepsItsKeepAliveDuringLongPendingChain() = runTest {
+        val baseline = keepAliveGapWhile { bus, scheduler -> holdingExchange(bus, scheduler) }
+        val gap = keepAliveGapWhile { bus, scheduler ->
+            ResponsePendingWaiter(scheduler).exchange(
+                ROUTINE, CommandPriority.INTERACTIVE, P2_MS, P2_STAR_MS,
+                transmit = { bus.write(ROUTINE_REQUEST) }
+            ) { bus.read(it) }
+        }
+
+        println(
+            "Keep-alive of a second session during a ${CHAIN_MS}ms 0x78 chain: longest gap " +
+                "${baseline}ms holding the scheduler, ${gap}ms releasing it"
+        )
+        assertTrue("Baseline gap $baseline", baseline >= CHAIN_MS)
+        assertTrue("Gap $gap", gap <= KEEP_ALIVE_MS + KeepAliveScheduler.DEFAULT_TICK_MS + ResponsePendingWaiter.DEFAULT_POLL_MS)
+    }
+
+    @Test
+    fun testResponseReadByAnotherExchangeReachesTheWaitingRequest() = runTest {
+        val bus = Bus(this, pendingFor = RESPONSE_MS, final = false)
+        val scheduler = CommandScheduler()
+        val waiter = ResponsePendingWaiter(scheduler)
+
+        val routine = async {
+            waiter.exchange(
+                ROUTINE, CommandPriority.INTERACTIVE, P2_MS, P2_STAR_MS,
+                transmit = { bus.write(ROUTINE_REQUEST) }
+            ) { bus.read(it) }
+        }
+        delay(500)
+        // The routine's answer arrives while a DID read holds the bus
+        val did = scheduler.execute(CommandPriority.INTERACTIVE) {
+            bus.write(byteArrayOf(0x22, 0xF1.toByte(), 0x90.toByte()))
+            bus.respond(0, ROUTINE_RESPONSE)
+            bus.respond(10, byteArrayOf(0x62, 0xF1.toByte(), 0x90.toByte(), 0x57))
+            var response = bus.read(P2_MS)!!
+            while (waiter.deliver(response)) response = bus.read(P2_MS)!!
+            response
+        }
+
+        assertEquals(0x62, did[0].toInt())
+        assertArrayEquals(ROUTINE_RESPONSE, routine.await())
+        assertEquals(1L, waiter.deliveredResponses)
+    }
+
+    @Test
+    fun testEachPendingNrcRestartsTheWait() = runTest {
+        val bus = Bus(this, pendingFor = 4 * P2_STAR_MS)
+        val waiter = ResponsePendingWaiter(CommandScheduler())
+
+        val started = testScheduler.currentTime
+        val response = waiter.exchange(
+            ROUTINE, CommandPriority.INTERACTIVE, P2_MS, P2_STAR_MS,
+            transmit = { bus.write(ROUTINE_REQUEST) }
+        ) { bus.read(it) }
+
+        assertArrayEquals(ROUTINE_RESPONSE, response)
+        assertTrue(testScheduler.currentTime - started >= 4 * P2_STAR_MS)
+        assertTrue(waiter.responsePendingCount >= 4 * P2_STAR_MS / PENDING_EVERY_MS)
+    }
+
+    @Test
+    fun testEcuFallingSilentAfterPendingTimesOutAfterP2Star() = runTest {
+        val bus = Bus(this, pendingFor = CHAIN_MS, final = false)
+        val waiter = ResponsePendingWaiter(CommandScheduler())
+
+        val started = testScheduler.currentTime
+        try {
+            waiter.exchange(
+                ROUTINE, CommandPriority.INTERACTIVE, P2_MS, P2_STAR_MS,
+                transmit = { bus.write(ROUTINE_REQUEST) }
+            ) { bus.read(it) }
+            fail("Expected a timeout")
+        } catch (e: TimeoutException) {
+            val elapsed = testScheduler.currentTime - started
+            assertTrue("Timed out after ${elapsed}ms", elapsed in CHAIN_MS..CHAIN_MS + P2_STAR_MS + PENDING_EVERY_MS)
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Runs a routine whose ECU answers response pending for [CHAIN_MS] while
+     * a second session on the same connection keeps its ECU alive, and
+     * returns the longest time between two of its tester presents.
+     */
+    private suspend fun TestScope.keepAliveGapWhile(
+        routine: suspend (Bus, CommandScheduler) -> ByteArray
+    ): Long {
+        val bus = Bus(this)
+        val scheduler = CommandScheduler()
+        val keepAlives = KeepAliveScheduler(backgroundScope, clock = { testScheduler.currentTime })
+        val testerPresents = ArrayList<Long>()
+        val session = keepAlives.register(CHANNEL, KEEP_ALIVE_MS, sendFunctional = null) {
+            scheduler.execute(CommandPriority.INTERACTIVE) {
+                bus.write(TESTER_PRESENT)
+                testerPresents.add(testScheduler.currentTime)
+            }
+        }
+
+        val started = testScheduler.currentTime
+        assertArrayEquals(ROUTINE_RESPONSE, routine(bus, scheduler))
+        val ended = testScheduler.currentTime
+        session.cancel()
+        keepAlives.shutdown()
+
+        return (listOf(started) + testerPresents.filter { it <= ended } + ended)
+            .zipWithNext { a, b -> b - a }
+            .max()
+    }
+
+    /** The previous design: the whole chain in one scheduler slot. */
+    private suspend fun holdingExchange(bus: Bus, scheduler: CommandScheduler): ByteArray =
+        scheduler.execute(CommandPriority.INTERACTIVE) {
+            bus.write(ROUTINE_REQUEST)
+            var response = bus.read(P2_MS)!!
+            while (response[0].toInt() == 0x7F && response[2].toInt() == 0x78) {
+                response = withTimeout(P2_STAR_MS) { bus.read(P2_STAR_MS)!! }
+            }
+            response
+        }
+
+    /**
+     * One connection: an ECU that answers a routine start with NRC 0x78
+     * every [PENDING_EVERY_MS] for [pendingFor], then with the result unless
+     * [final] is false, and ignores suppressed tester presents.
+     */
+    private class Bus(
+        private val scope: TestScope,
+        private val pendingFor: Long = CHAIN_MS,
+        private val final: Boolean = true
+    ) {
+        private val incoming = Channel<ByteArray>(Channel.UNLIMITED)
+
+        fun write(frame: ByteArray) {
+            if (frame[0] != ROUTINE_REQUEST[0]) return
+            scope.launch {
+                var elapsed = 0L
+                while (elapsed < pendingFor) {
+                    delay(if (elapsed == 0L) RESPONSE_MS else PENDING_EVERY_MS)
+                    elapsed += if (elapsed == 0L) RESPONSE_MS else PENDING_EVERY_MS
+                    incoming.send(byteArrayOf(0x7F, ROUTINE.toByte(), 0x78))
+                }
+                if (final) {
+                    delay(RESPONSE_MS)
+                    incoming.send(ROUTINE_RESPONSE)
+                }
+            }
+        }
+
+        fun respond(afterMs: Long, frame: ByteArray) {
+            scope.launch {
+                delay(afterMs)
+                incoming.send(frame)
+            }
+        }
+
+        suspend fun read(timeoutMs: Long): ByteArray? = withTimeoutOrNull(timeoutMs) { incoming.receive() }
+    }
+
+    companion object {
+        private const val ROUTINE = 0x31
+        private val ROUTINE_REQUEST = byteArrayOf(0x31, 0x01, 0xFF.toByte(), 0x00)
+        private val ROUTINE_RESPONSE = byteArrayOf(0x71, 0x01, 0xFF.toByte(), 0x00)
+        private val TESTER_PRESENT = byteArrayOf(0x3E, 0x80.toByte())
+        private const val RESPONSE_MS = 17L
+        private const val PENDING_EVERY_MS = 1_003L
+        private const val CHAIN_MS = 6_000L
+        private const val P2_MS = 150L
+        private const val P2_STAR_MS = 5_000L
+        private const val KEEP_ALIVE_MS = 2_000L
+        private const val CHANNEL = "can0"
+    }
+}
@@ -0,0 +1,153 @@
+package com.spacetec.protocol.core.timing
+
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [TimeoutHandler] and P2 parsing in [TimingParameters].
+ */
+class TimeoutHandlerTest {
+
+    @Test
+    fun testSessionResponseSetsP2() {
+        val timing = TimingParameters.DEFAULT.withSessionResponse(bytes(0x50, 0x03, 0x00, 0x19, 0x01, 0xF4))
+
+        assertEquals(25L, timing.p2ServerMaxMs)
+        assertEquals(5000L, timing.p2StarServerMaxMs)
+        assertSame(TimingParameters.DEFAULT, TimingParameters.DEFAULT.withSessionResponse(bytes(0x50, 0x03)))
+        assertSame(TimingParameters.DEFAULT, TimingParameters.DEFAULT.withSessionResponse(bytes(0x7F, 0x10, 0x12, 0, 0, 0)))
+    }
+
+    @Test
+    fun testWorstCaseUntilSomethingIsKnown() {
+        val handler = TimeoutHandler()
+
+        assertEquals(1000L, handler.ecuTimeoutMs(ECU, READ_DTC))
+        assertEquals(1000L + TimeoutHandler.DEFAULT_TRANSPORT_MARGIN_MS, handler.timeoutFor(ECU, READ_DTC))
+        assertEquals(0xFA, handler.elmTimeout(ECU, READ_DTC))
+    }
+
+    @Test
+    fun testReportedP2AppliesBeforeEnoughSamples() {
+        val handler = TimeoutHandler()
+        handler.onSessionResponse(ECU, bytes(0x50, 0x03, 0x00, 0x32, 0x01, 0xF4))
+
+        assertEquals(50L + TimeoutHandler.HEADROOM_MS, handler.ecuTimeoutMs(ECU, READ_DTC))
+        assertEquals(5000L + TimeoutHandler.DEFAULT_TRANSPORT_MARGIN_MS, handler.responsePendingTimeoutMs(ECU))
+        // Another ECU still gets the worst case
+        assertEquals(1000L, handler.ecuTimeoutMs(OTHER_ECU, READ_DTC))
+    }
+
+    @Test
+    fun testEcuSlowerThanP2IsNotCutOff() {
+        val handler = TimeoutHandler()
+        handler.onSessionResponse(ECU, bytes(0x50, 0x03, 0x00, 0x32, 0x01, 0xF4))
+        handler.recordResponse(ECU, SESSION_CONTROL, 90)
+
+        assertTrue(handler.ecuTimeoutMs(ECU, READ_DTC) >= 90 * 3 / 2)
+    }
+
+    @Test
+    fun testObservedResponseTimesTightenTimeout() {
+        val handler = TimeoutHandler()
+        repeat(TimeoutHandler.MIN_SAMPLES) { handler.recordResponse(ECU, READ_DTC, 11) }
+
+        // Bucket 10..12 ms, times 1.5, plus headroom
+        assertEquals(28L, handler.ecuTimeoutMs(ECU, READ_DTC))
+        assertEquals(7, handler.elmTimeout(ECU, READ_DTC))
+        // Other services of the same ECU use its overall window
+        assertEquals(28L, handler.ecuTimeoutMs(ECU, READ_DATA))
+    }
+
+    @Test
+    fun testSlidingWindowFollowsSlowerPhase() {
+        val handler = TimeoutHandler(windowSize = 16)
+        repeat(16) { handler.recordResponse(ECU, READ_DTC, 10) }
+        val fast = handler.ecuTimeoutMs(ECU, READ_DTC)
+
+        repeat(16) { handler.recordResponse(ECU, READ_DTC, 200) }
+        val slow = handler.ecuTimeoutMs(ECU, READ_DTC)
+
+        repeat(16) { handler.recordResponse(ECU, READ_DTC, 10) }
+
+        assertTrue(slow > 300)
+        assertEquals(fast, handler.ecuTimeoutMs(ECU, READ_DTC))
+        assertEquals(16, handler.sampleCount(ECU, READ_DTC))
+    }
+
+    @Test
+    fun testTimeoutBacksOffUntilResponse() {
+        val handler = TimeoutHandler()
+        repeat(TimeoutHandler.MIN_SAMPLES) { handler.recordResponse(ECU, READ_DTC, 11) }
+
+        handler.recordTimeout(ECU, READ_DTC)
+        assertEquals(56L, handler.ecuTimeoutMs(ECU, READ_DTC))
+        handler.recordTimeout(ECU, READ_DTC)
+        assertEquals(112L, handler.ecuTimeoutMs(ECU, READ_DTC))
+        repeat(10) { handler.recordTimeout(ECU, READ_DTC) }
+        assertEquals(1000L, handler.ecuTimeoutMs(ECU, READ_DTC))
+
+        handler.recordResponse(ECU, READ_DTC, 11)
+        assertEquals(28L, handler.ecuTimeoutMs(ECU, READ_DTC))
+    }
+
+    @Test
+    fun testFunctionalTimeoutCoversSlowestEcu() {
+        val handler = TimeoutHandler()
+        repeat(TimeoutHandler.MIN_SAMPLES) {
+            handler.recordResponse(ECU, READ_DTC, 11)
+            handler.recordResponse(OTHER_ECU, READ_DTC, 81)
+        }
+
+        assertEquals(handler.elmTimeout(OTHER_ECU, READ_DTC), handler.elmTimeout(listOf(ECU, OTHER_ECU), READ_DTC))
+    }
+
+    @Test
+    fun testZeroTimingNeverDisablesTheAdapterTimeout() {
+        val handler = TimeoutHandler({ TimingParameters(receiveTimeoutMs = 0) })
+        assertEquals(TimeoutHandler.MIN_TIMEOUT_MS, handler.ecuTimeoutMs(ECU, READ_DTC))
+        assertTrue(handler.elmTimeout(ECU, READ_DTC) >= 1)
+        assertTrue(handler.elmTimeout(emptyList(), READ_DTC) >= 1)
+
+        // P2* of 0 keeps the default response-pending wait
+        val timing = TimingParameters.DEFAULT.withSessionResponse(bytes(0x50, 0x03, 0x00, 0x19, 0x00, 0x00))
+        assertEquals(25L, timing.p2ServerMaxMs)
+        assertEquals(TimingParameters.DEFAULT_P2_STAR_SERVER_MAX_MS, timing.p2StarServerMaxMs)
+    }
+
+    @Test
+    fun testResetForgetsOneEcu() {
+        val handler = TimeoutHandler()
+        repeat(TimeoutHandler.MIN_SAMPLES) {
+            handler.recordResponse(ECU, READ_DTC, 11)
+            handler.recordResponse(OTHER_ECU, READ_DTC, 11)
+        }
+
+        handler.reset(ECU)
+
+        assertEquals(1000L, handler.ecuTimeoutMs(ECU, READ_DTC))
+        assertEquals(28L, handler.ecuTimeoutMs(OTHER_ECU, READ_DTC))
+    }
+
+    @Test
+    fun testTimingManagerRecordsExchanges() {
+        val manager = TimingManager()
+        manager.recordExchange(ECU, SESSION_CONTROL, 12, bytes(0x50, 0x03, 0x00, 0x19, 0x01, 0xF4))
+
+        assertEquals(25L, manager.timeouts.p2ServerMaxMs(ECU))
+
+        manager.recordExchange(ECU, READ_DTC, 1000, null)
+        manager.reset()
+        assertEquals(1000L + TimeoutHandler.DEFAULT_TRANSPORT_MARGIN_MS, manager.getTimeout(ECU, READ_DTC))
+    }
+
+    private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+    companion object {
+        private const val ECU = 0x7E0
+        private const val OTHER_ECU = 0x7E1
+        private const val SESSION_CONTROL = 0x10
+        private const val READ_DTC = 0x19
+        private const val READ_DATA = 0x22
+    }
+}
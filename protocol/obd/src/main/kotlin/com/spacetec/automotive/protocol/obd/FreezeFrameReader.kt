@@ -0,0 +1,162 @@
+package com.spacetec.obd.protocol.obd
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Sends one service 02 request carrying several PID/frame pairs.
+ */
+fun interface FreezeFrameTransport {
+    /**
+     * Requests [pairs] (PID, frame number) in a single message.
+     *
+     * @return Response data after the service ID (`PID frame data ...`), or
+     *   null if the ECU did not answer or answered negatively
+     */
+    suspend fun readFreezeFrame(pairs: List<Pair<Int, Int>>): ByteArray?
+}
+
+/**
+ * Data of one freeze frame.
+ *
+ * @property frameNumber Frame number the data was read for
+ * @property supported PIDs the frame's bitmaps list
+ * @property data Data bytes per PID; PID 0x02 is the DTC that stored the frame
+ */
+class FreezeFrameData(
+    val frameNumber: Int,
+    val supported: SupportedPids,
+    val data: Map<Int, ByteArray>
+) {
+    /** DTC that stored the frame, 2 bytes, or null if not reported. */
+    val dtc: ByteArray?
+        get() = data[PID_DTC]
+
+    /** Values of the frame's PIDs decoded with [PidDecoder], in PID order. */
+    fun decode(): List<PidValue> =
+        data.keys.filter { it != PID_DTC }.sorted().mapNotNull { PidDecoder.decode(it, data.getValue(it)) }
+
+    companion object {
+        /** Freeze frame PID holding the DTC that stored the frame. */
+        const val PID_DTC = 0x02
+    }
+}
+
+/**
+ * Service 02 (freeze frame) reader packing PID/frame pairs into as few
+ * requests as the ECU accepts.
+ *
+ * Reading a frame one PID at a time costs a round trip per PID, which on an
+ * ELM327 link is dominated by adapter and ECU latency rather than the bytes
+ * moved. The reader first reads the supported-PID bitmaps of every
+ * requested frame, following the range chain (0x00, 0x20, ...) as far as
+ * each frame's bitmap flags it, then reads the supported PIDs and the DTC
+ * (PID 0x02) in requests of up to [maxPairsPerRequest] pairs. Pairs of
+ * different frames share requests, so all stored frames are read in one
+ * pass. Responses are split with [PidDecoder].
+ *
+ * SAE J1979 limits a service 02 request on CAN to 3 pairs, which keeps it
+ * in a single frame. A PID of unknown length is requested alone, and a
+ * response that does not split is retried one pair per request.
+ *
+ * @param transport Sends one service 02 request
+ * @param maxPairsPerRequest PID/frame pairs packed into one request
+ */
+class FreezeFrameReader(
+    private val transport: FreezeFrameTransport,
+    private val maxPairsPerRequest: Int = MAX_PAIRS_PER_REQUEST
+) {
+
+    init {
+        require(maxPairsPerRequest in 1..MAX_PAIRS_PER_REQUEST) {
+            "Pairs per request must be 1..$MAX_PAIRS_PER_REQUEST: $maxPairsPerRequest"
+        }
+    }
+
+    private val sent = AtomicLong()
+
+    /** Requests sent so far. */
+    val requests: Long get() = sent.get()
+
+    /**
+     * Reads freeze frame [frameNumber].
+     *
+     * @return The frame, or null if the ECU has not stored it
+     */
+    suspend fun read(frameNumber: Int = 0): FreezeFrameData? = readAll(listOf(frameNumber)).firstOrNull()
+
+    /**
+     * Reads freeze frames [frameNumbers] in one pass.
+     *
+     * @return The frames the ECU has stored, in the order requested
+     */
+    suspend fun readAll(frameNumbers: Collection<Int>): List<FreezeFrameData> {
+        val frames = frameNumbers.distinct()
+        require(frames.all { it in 0x00..0xFF }) { "Frame number out of range: $frames" }
+
+        // Supported-PID bitmaps, one range per frame per round
+        val supported = LinkedHashMap<Int, SupportedPids>()
+        var ranges = frames.map { 0x00 to it }
+        while (ranges.isNotEmpty()) {
+            val next = ArrayList<Pair<Int, Int>>()
+            for ((pair, bitmap) in exchange(ranges)) {
+                val (basePid, frame) = pair
+                if (bitmap.size < SupportedPids.BITMAP_LENGTH) continue
+                val pids = supported.getOrPut(frame) { SupportedPids() }
+                if (pids.add(basePid, bitmap) && basePid + SupportedPids.RANGE_SIZE <= LAST_RANGE_PID) {
+                    next += basePid + SupportedPids.RANGE_SIZE to frame
+                }
+            }
+            ranges = next
+        }
+
+        // Data PIDs of the stored frames; PID 0x02 is mandatory and not
+        // always flagged in the bitmap
+        val pairs = frames.filter { it in supported }.flatMap { frame ->
+            val pids = supported.getValue(frame).toList().filterNot { SupportedPids.isRangePid(it) }
+            (listOf(FreezeFrameData.PID_DTC) + pids).distinct().map { it to frame }
+        }
+        val data = exchange(pairs)
+
+        return frames.mapNotNull { frame ->
+            val pids = supported[frame] ?: return@mapNotNull null
+            val frameData = data.entries.filter { it.key.second == frame }.associate { it.key.first to it.value }
+            FreezeFrameData(frame, pids, frameData)
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // REQUESTS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Reads [pairs], packed into as few requests as possible.
+     */
+    private suspend fun exchange(pairs: List<Pair<Int, Int>>): Map<Pair<Int, Int>, ByteArray> {
+        val (known, unknown) = pairs.partition { PidDecoder.dataLength(it.first) != null }
+        val result = LinkedHashMap<Pair<Int, Int>, ByteArray>()
+        for (chunk in known.chunked(maxPairsPerRequest) + unknown.map { listOf(it) }) {
+            val response = request(chunk) ?: continue
+            val split = PidDecoder.splitFreezeFrame(response, chunk)
+            if (split != null) {
+                result += split
+            } else if (chunk.size > 1) {
+                for (pair in chunk) {
+                    request(listOf(pair))?.let { PidDecoder.splitFreezeFrame(it, listOf(pair)) }?.let { result += it }
+                }
+            }
+        }
+        return result
+    }
+
+    private suspend fun request(pairs: List<Pair<Int, Int>>): ByteArray? {
+        sent.incrementAndGet()
+        return transport.readFreezeFrame(pairs)
+    }
+
+    companion object {
+        /** SAE J1979 maximum of PID/frame pairs per service 02 request on CAN. */
+        const val MAX_PAIRS_PER_REQUEST = 3
+
+        private const val LAST_RANGE_PID = 0xE0
+    }
+}
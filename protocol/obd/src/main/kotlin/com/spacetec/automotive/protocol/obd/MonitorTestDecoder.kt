@@ -0,0 +1,232 @@
+package com.spacetec.obd.protocol.obd
+
+/**
+ * Service 06 on-board monitoring test results, one test per index.
+ *
+ * Held in parallel primitive arrays rather than an object per test: a full
+ * read returns hundreds of tests, and screens mostly iterate or filter by
+ * MID.
+ */
+class MonitorTestResults internal constructor(
+    private val mids: IntArray,
+    private val tids: IntArray,
+    private val unitIds: IntArray,
+    private val rawValues: IntArray,
+    private val rawMins: IntArray,
+    private val rawMaxes: IntArray
+) {
+    /** Number of tests. */
+    val size: Int
+        get() = mids.size
+
+    /** On-board monitor ID of test [index]. */
+    fun mid(index: Int): Int = mids[index]
+
+    /** Test ID of test [index]. */
+    fun tid(index: Int): Int = tids[index]
+
+    /** Unit and scaling ID of test [index] (SAE J1979 Appendix E). */
+    fun unitId(index: Int): Int = unitIds[index]
+
+    /** Test value, scaled. */
+    fun value(index: Int): Double = MonitorTestDecoder.scale(unitIds[index], rawValues[index])
+
+    /** Minimum test limit, scaled. */
+    fun min(index: Int): Double = MonitorTestDecoder.scale(unitIds[index], rawMins[index])
+
+    /** Maximum test limit, scaled. */
+    fun max(index: Int): Double = MonitorTestDecoder.scale(unitIds[index], rawMaxes[index])
+
+    /** Unit of test [index], empty if dimensionless. */
+    fun unit(index: Int): String = MonitorTestDecoder.unit(unitIds[index])
+
+    /** Whether test [index] lies within its limits. */
+    fun passed(index: Int): Boolean = rawValues[index] in rawMins[index]..rawMaxes[index]
+
+    /** Scaled values of all tests. */
+    fun values(): DoubleArray = DoubleArray(size) { value(it) }
+
+    /** Indices of the tests of [mid]. */
+    fun indicesOf(mid: Int): IntArray = (0 until size).filter { mids[it] == mid }.toIntArray()
+
+    /** Distinct MIDs with tests, in response order. */
+    fun mids(): IntArray = mids.distinct().toIntArray()
+
+    companion object {
+        val EMPTY = MonitorTestResults(IntArray(0), IntArray(0), IntArray(0), IntArray(0), IntArray(0), IntArray(0))
+    }
+}
+
+/**
+ * Decoding of service 06 responses in the ISO 15765-4 (CAN) format of SAE
+ * J1979: one 9-byte record per test, `MID TID UASID value min max` with
+ * 2-byte values scaled by the unit and scaling ID (UASID).
+ */
+object MonitorTestDecoder {
+
+    /** Bytes per test record. */
+    const val RECORD_LENGTH = 9
+
+    /**
+     * Decodes the test records of several service 06 responses (service ID
+     * removed) into one [MonitorTestResults]. Responses whose length is not
+     * a whole number of records are skipped.
+     */
+    fun decode(responses: List<ByteArray>): MonitorTestResults {
+        var count = 0
+        for (response in responses) {
+            if (response.size % RECORD_LENGTH == 0) count += response.size / RECORD_LENGTH
+        }
+        if (count == 0) return MonitorTestResults.EMPTY
+
+        val mids = IntArray(count)
+        val tids = IntArray(count)
+        val unitIds = IntArray(count)
+        val values = IntArray(count)
+        val mins = IntArray(count)
+        val maxes = IntArray(count)
+        var index = 0
+        for (response in responses) {
+            if (response.size % RECORD_LENGTH != 0) continue
+            var position = 0
+            while (position < response.size) {
+                val unitId = response[position + 2].toInt() and 0xFF
+                val signed = isSigned(unitId)
+                mids[index] = response[position].toInt() and 0xFF
+                tids[index] = response[position + 1].toInt() and 0xFF
+                unitIds[index] = unitId
+                values[index] = word(response, position + 3, signed)
+                mins[index] = word(response, position + 5, signed)
+                maxes[index] = word(response, position + 7, signed)
+                index++
+                position += RECORD_LENGTH
+            }
+        }
+        return MonitorTestResults(mids, tids, unitIds, values, mins, maxes)
+    }
+
+    /**
+     * Scales [raw] (already sign-extended for signed UASIDs) by [unitId].
+     * Unknown UASIDs are returned unscaled.
+     */
+    fun scale(unitId: Int, raw: Int): Double = raw * SCALES[unitId and 0xFF] + OFFSETS[unitId and 0xFF]
+
+    /** Unit of [unitId], empty if dimensionless or unknown. */
+    fun unit(unitId: Int): String = UNITS[unitId and 0xFF]
+
+    /** UASIDs 0x81-0xFE carry two's complement values. */
+    fun isSigned(unitId: Int): Boolean = unitId in 0x81..0xFE
+
+    private fun word(data: ByteArray, offset: Int, signed: Boolean): Int {
+        val value = ((data[offset].toInt() and 0xFF) shl 8) or (data[offset + 1].toInt() and 0xFF)
+        return if (signed) value.toShort().toInt() else value
+    }
+
+    // ========================================================================
+    // UNIT AND SCALING IDS (SAE J1979 APPENDIX E)
+    // ========================================================================
+
+    private val SCALES = DoubleArray(256) { 1.0 }
+    private val OFFSETS = DoubleArray(256)
+    private val UNITS = Array(256) { "" }
+
+    private fun define(unitId: Int, scale: Double, unit: String = "", offset: Double = 0.0) {
+        SCALES[unitId] = scale
+        OFFSETS[unitId] = offset
+        UNITS[unitId] = unit
+    }
+
+    init {
+        define(0x01, 1.0)
+        define(0x02, 0.1)
+        define(0x03, 0.01)
+        define(0x04, 0.001)
+        define(0x05, 0.0000305)
+        define(0x06, 0.000305)
+        define(0x07, 0.25, "rpm")
+        define(0x08, 0.01, "km/h")
+        define(0x09, 1.0, "km/h")
+        define(0x0A, 0.122, "mV")
+        define(0x0B, 0.001, "V")
+        define(0x0C, 0.01, "V")
+        define(0x0D, 0.00390625, "mA")
+        define(0x0E, 0.001, "A")
+        define(0x0F, 0.01, "A")
+        define(0x10, 1.0, "ms")
+        define(0x11, 100.0, "ms")
+        define(0x12, 1.0, "s")
+        define(0x13, 1.0, "mΩ")
+        define(0x14, 1.0, "Ω")
+        define(0x15, 1.0, "kΩ")
+        define(0x16, 0.1, "°C", offset = -40.0)
+        define(0x17, 0.01, "kPa")
+        define(0x18, 0.0117, "kPa")
+        define(0x19, 0.079, "kPa")
+        define(0x1A, 1.0, "kPa")
+        define(0x1B, 10.0, "kPa")
+        define(0x1C, 0.01, "°")
+        define(0x1D, 0.5, "°")
+        define(0x1E, 0.0000305)
+        define(0x1F, 0.05)
+        define(0x20, 0.00390625)
+        define(0x21, 1.0, "mHz")
+        define(0x22, 1.0, "Hz")
+        define(0x23, 1.0, "kHz")
+        define(0x24, 1.0, "counts")
+        define(0x25, 1.0, "km")
+        define(0x26, 0.1, "mV/ms")
+        define(0x27, 0.01, "g/s")
+        define(0x28, 1.0, "g/s")
+        define(0x29, 0.25, "Pa/s")
+        define(0x2A, 0.001, "kg/h")
+        define(0x2B, 1.0, "switches")
+        define(0x2C, 0.01, "g/cyl")
+        define(0x2D, 0.01, "mg/stroke")
+        define(0x2E, 1.0)
+        define(0x2F, 0.01, "%")
+        define(0x30, 0.001526, "%")
+        define(0x31, 0.001, "L")
+        define(0x32, 0.0000305, "in")
+        define(0x33, 0.00024414)
+        define(0x34, 1.0, "min")
+        define(0x35, 10.0, "ms")
+        define(0x36, 0.01, "g")
+        define(0x37, 0.1, "g")
+        define(0x38, 1.0, "g")
+        define(0x39, 0.01, "%", offset = -327.68)
+        define(0x3A, 0.001, "g")
+        define(0x3B, 0.0001, "g")
+        define(0x3C, 0.1, "µs")
+        define(0x3D, 0.01, "mA")
+        define(0x3E, 0.00006103516, "mm²")
+        define(0x3F, 0.01, "L")
+        define(0x40, 1.0, "ppm")
+        define(0x41, 0.01, "µA")
+
+        define(0x81, 1.0)
+        define(0x82, 0.1)
+        define(0x83, 0.01)
+        define(0x84, 0.001)
+        define(0x85, 0.0000305)
+        define(0x86, 0.000305)
+        define(0x8A, 0.122, "mV")
+        define(0x8B, 0.001, "V")
+        define(0x8C, 0.01, "V")
+        define(0x8D, 0.00390625, "mA")
+        define(0x8E, 0.001, "A")
+        define(0x90, 1.0, "ms")
+        define(0x96, 0.1, "°C")
+        define(0x9C, 0.01, "°")
+        define(0x9D, 0.5, "°")
+        define(0xA8, 1.0, "g/s")
+        define(0xA9, 0.25, "Pa/s")
+        define(0xAD, 0.01, "mg/stroke")
+        define(0xAE, 0.1, "mg/stroke")
+        define(0xAF, 0.01, "%")
+        define(0xB0, 0.003052, "%")
+        define(0xB1, 2.0, "mV/s")
+        define(0xFC, 0.01, "kPa")
+        define(0xFD, 0.001, "kPa")
+        define(0xFE, 0.25, "Pa")
+    }
+}
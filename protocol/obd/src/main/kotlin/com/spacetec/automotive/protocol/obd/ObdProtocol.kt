@@ -15,6 +15,10 @@ import com.spacetec.obd.protocol.core.ProtocolHandler
 import com.spacetec.obd.protocol.core.ProtocolMessage
 import com.spacetec.obd.protocol.core.ProtocolService
 import com.spacetec.obd.protocol.core.ProtocolType
+import com.spacetec.protocol.core.EcuVehicleInfo
+import com.spacetec.protocol.core.VehicleInfoBroadcastTarget
+import com.spacetec.protocol.core.VehicleInfoCollector
+import com.spacetec.protocol.core.VehicleInfoDecoder
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.flow
 import timber.log.Timber
@@ -26,7 +30,7 @@ import javax.inject.Inject
  * Implements the On-Board Diagnostics II protocol according to
  * SAE J1979 / ISO 15031-5 standards, supporting services 01-0A.
  */
-class ObdProtocol @Inject constructor() : ProtocolHandler() {
+class ObdProtocol @Inject constructor() : ProtocolHandler(), VehicleInfoBroadcastTarget {
     
     override val protocolId: ProtocolType = ProtocolType.ISO_15765_4_CAN_11BIT_500K
     override val name: String = "OBD-II"
@@ -47,6 +51,15 @@ class ObdProtocol @Inject constructor() : ProtocolHandler() {
     private var detectedProtocol: ProtocolType = ProtocolType.AUTO
     private val ecuAddresses = mutableListOf<String>()
     
+    // Functional service 09 requests answered per ECU, if the adapter provides them
+    @Volatile
+    private var vehicleInfoBroadcast: (suspend (ByteArray) -> Map<Int, ByteArray>)? = null
+    
+    private val monitorReader = OnBoardMonitorReader(transport = { service, data ->
+        val message = ProtocolMessage.request(serviceId = service, data = data)
+        sendMessage(message).getOrNull()?.takeIf { it.isPositiveResponse() }?.data
+    })
+    
     // ========================================================================
     // INITIALIZATION
     // ========================================================================
@@ -67,6 +80,8 @@ class ObdProtocol @Inject constructor() : ProtocolHandler() {
     override suspend fun performShutdown() {
         Timber.d("Shutting down OBD-II protocol")
         ecuAddresses.clear()
+        // The next connection may be in another ignition cycle
+        monitorReader.invalidate()
     }
     
     private suspend fun autoDetectProtocol(): AppResult<Unit> {
@@ -325,6 +340,8 @@ class ObdProtocol @Inject constructor() : ProtocolHandler() {
         return sendMessage(message).map { response ->
             if (response.isPositiveResponse) {
                 Timber.i("DTCs cleared successfully")
+                // Clearing resets every monitor
+                monitorReader.invalidate()
                 Unit
             } else {
                 throw IllegalStateException("Clear DTCs failed")
@@ -340,84 +357,52 @@ class ObdProtocol @Inject constructor() : ProtocolHandler() {
      * Reads freeze frame data for a specific frame number.
      */
     suspend fun readFreezeFrame(frameNumber: Int = 0): AppResult<FreezeFrame> {
-        val parameters = mutableListOf<FreezeFrameParameter>()
-        
-        // Read supported PIDs for freeze frame
-        val supportedPidsResult = readFreezeFramePid(0x00, frameNumber)
-        if (supportedPidsResult.isFailure) {
-            return Result.failure(supportedPidsResult.exceptionOrNull() ?: Exception("Unknown error"))
-        }
-        
-        val supportedPidsResultValue = supportedPidsResult.getOrNull()
-        val supportedPids = if (supportedPidsResultValue != null) {
-            parseSupportedPids(supportedPidsResultValue)
-        } else {
-            emptyList()
-        }
-        
-        // Read each supported PID
-        for (pid in supportedPids) {
-            if (pid == 0x00) continue // Skip supported PIDs PID
-            
-            val pidResult = readFreezeFramePid(pid, frameNumber)
-            if (pidResult.isSuccess) {
-                val pidValue = pidResult.getOrNull()
-                if (pidValue != null) {
-                    val parameter = parsePidValue(pid, pidValue)
-                if (parameter != null) {
-                    parameters.add(parameter)
-                }
-            }
-        }
-        
-        // Get DTC that triggered freeze frame (PID 02)
-        val dtcResult = readFreezeFramePid(0x02, frameNumber)
-        val dtcCode = if (dtcResult.isSuccess) {
-            val dtcBytes = dtcResult.getOrNull()
-            if (dtcBytes != null) {
-                DtcCode.fromObdBytes(dtcBytes)?.code ?: ""
-            } else {
-                ""
-            }
-        } else ""
-        
-        return Result.success(FreezeFrame(
-            dtcCode = dtcCode,
-            frameNumber = frameNumber,
-            parameters = parameters
-        ))
+        val frame = readFreezeFrames(listOf(frameNumber)).getOrNull()?.firstOrNull()
+            ?: return Result.failure(SpaceTecError.ProtocolError.InvalidResponse(
+                message = "No freeze frame $frameNumber stored"
+            ))
+        return Result.success(frame)
+    }
+    
+    /**
+     * Reads several freeze frames in one pass, packing PID/frame pairs into
+     * multi-pair service 02 requests. See [FreezeFrameReader].
+     *
+     * @return The frames the ECU has stored, in the order requested
+     */
+    suspend fun readFreezeFrames(frameNumbers: List<Int>): AppResult<List<FreezeFrame>> {
+        val reader = FreezeFrameReader(transport = { pairs ->
+            readFreezeFramePairs(pairs)
+        })
+        val frames = reader.readAll(frameNumbers)
+        Timber.d("Read ${frames.size} freeze frames in ${reader.requests} requests")
+        
+        return Result.success(frames.map { frame ->
+            FreezeFrame(
+                dtcCode = frame.dtc?.let { DtcCode.fromObdBytes(it)?.code } ?: "",
+                frameNumber = frame.frameNumber,
+                parameters = frame.decode().map { FreezeFrameParameter(it.pid, it.name, it.value, it.unit) }
+            )
+        })
+    }
+    
+    /**
+     * Reads the freeze frames of all stored DTCs (frame n belongs to the
+     * n-th stored DTC; frame 0 always exists while a DTC is stored).
+     */
+    suspend fun readAllFreezeFrames(): AppResult<List<FreezeFrame>> {
+        val stored = readStoredDtcs().getOrNull()?.size ?: 0
+        return readFreezeFrames((0 until maxOf(stored, 1)).toList())
     }
     
-    private suspend fun readFreezeFramePid(pid: Int, frameNumber: Int): AppResult<ByteArray> {
+    private suspend fun readFreezeFramePairs(pairs: List<Pair<Int, Int>>): ByteArray? {
         val message = ProtocolMessage.request(
             serviceId = ProtocolService.OBD_SERVICE_02_FREEZE_FRAME,
-            data = byteArrayOf(pid.toByte(), frameNumber.toByte())
+            data = pairs.flatMap { (pid, frame) -> listOf(pid.toByte(), frame.toByte()) }.toByteArray()
         )
         
-        return sendMessage(message).map { response ->
-            // Response format: [PID] [Frame#] [Data...]
-            if (response.data.size >= 2) {
-                response.data.copyOfRange(2, response.data.size)
-            } else {
-                byteArrayOf()
-            }
-        }
-    }
-    
-    private fun parseSupportedPids(data: ByteArray): List<Int> {
-        val pids = mutableListOf<Int>()
-        
-        for (byteIndex in data.indices) {
-            val byte = data[byteIndex].toInt() and 0xFF
-            for (bitIndex in 0..7) {
-                if ((byte shr (7 - bitIndex)) and 1 == 1) {
-                    val pid = (byteIndex * 8) + bitIndex + 1
-                    pids.add(pid)
-                }
-            }
-        }
-        
-        return pids
+        // Response format: [PID] [Frame#] [Data...] per pair
+        return sendMessage(message).getOrNull()?.takeIf { it.isPositiveResponse() }?.data
     }
     
     // ========================================================================
@@ -461,63 +446,10 @@ class ObdProtocol @Inject constructor() : ProtocolHandler() {
         )
         
         return sendMessage(message).map { response ->
-            parseMultiplePidResponse(response.data, pids)
+            PidDecoder.splitCurrentData(response.data, pids) ?: emptyMap()
         }
     }
     
-    private fun parseMultiplePidResponse(data: ByteArray, requestedPids: List<Int>): Map<Int, ByteArray> {
-        val result = mutableMapOf<Int, ByteArray>()
-        var offset = 0
-        
-        while (offset < data.size) {
-            val pid = data[offset].toInt() and 0xFF
-            val pidLength = getPidDataLength(pid)
-            
-            if (offset + 1 + pidLength <= data.size) {
-                result[pid] = data.copyOfRange(offset + 1, offset + 1 + pidLength)
-            }
-            
-            offset += 1 + pidLength
-        }
-        
-        return result
-    }
-    
-    private fun getPidDataLength(pid: Int): Int = when (pid) {
-        in 0x00..0x20 -> 4 // Supported PIDs bitmask
-        0x01 -> 4 // Monitor status
-        0x02 -> 2 // DTC that caused freeze frame
-        0x03 -> 2 // Fuel system status
-        0x04, 0x05 -> 1 // Load, coolant temp
-        0x06..0x09 -> 1 // Short term fuel trims
-        0x0A, 0x0B -> 1 // Fuel pressure, intake manifold pressure
-        0x0C..0x0D -> 2 // RPM, speed
-        0x0E..0x12 -> 1 // Timing advance, air intake temp, etc.
-        0x13 -> 1 // O2 sensor present
-        0x14..0x1B -> 2 // O2 sensor voltages
-        0x1C -> 1 // OBD standard
-        0x1D -> 1 // O2 sensors present
-        0x1E -> 1 // Aux input status
-        0x1F -> 2 // Runtime since start
-        0x20 -> 4 // Supported PIDs (21-40)
-        0x21 -> 2 // Distance with MIL on
-        0x22 -> 2 // Fuel rail pressure (relative)
-        0x23 -> 2 // Fuel rail pressure (absolute)
-        0x24..0x2B -> 2 // O2 sensor data
-        0x2C -> 1 // Commanded EGR
-        0x2D -> 1 // EGR error
-        0x2E -> 1 // Fuel level
-        0x2F -> 1 // Fuel level
-        0x30 -> 1 // Number of warm-ups
-        0x31 -> 2 // Distance since codes cleared
-        0x32 -> 2 // Evap system vapor pressure
-        0x33 -> 1 // Barometric pressure
-        0x34..0x3B -> 2 // Wide range O2 sensor data
-        0x3C..0x3F -> 1 // Catalyst temperature
-        0x40 -> 4 // Supported PIDs (41-60)
-        else -> 1 // Default to 1 byte
-    }
-    
     /**
      * Creates a flow to continuously monitor specific PIDs.
      */
@@ -537,12 +469,103 @@ class ObdProtocol @Inject constructor() : ProtocolHandler() {
         }
     }
     
+    /**
+     * Reads the supported-PID bitmaps (PIDs 0x00, 0x20, ... 0xE0) as far as
+     * the vehicle chains them.
+     */
+    suspend fun readSupportedPids(): AppResult<SupportedPids> {
+        val supported = SupportedPids()
+        var basePid = 0x00
+        
+        while (basePid <= 0xE0) {
+            val result = readPid(basePid)
+            val bitmap = result.getOrNull()
+            if (bitmap == null || bitmap.size < SupportedPids.BITMAP_LENGTH) {
+                if (basePid == 0x00) {
+                    return Result.failure(result.errorOrNull() ?: SpaceTecError.ProtocolError.InvalidResponse(
+                        message = "Invalid supported PIDs response"
+                    ))
+                }
+                break
+            }
+            if (!supported.add(basePid, bitmap)) break
+            basePid += SupportedPids.RANGE_SIZE
+        }
+        
+        return Result.success(supported)
+    }
+    
+    // ========================================================================
+    // ON-BOARD MONITORING (SERVICE 06)
+    // ========================================================================
+    
+    /**
+     * Reads the readiness monitor status (PIDs 01 and 41), cached until DTCs
+     * are cleared or the protocol shuts down. See [OnBoardMonitorReader].
+     */
+    suspend fun readReadiness(refresh: Boolean = false): AppResult<ReadinessStatus> {
+        val status = monitorReader.readiness(refresh)
+            ?: return Result.failure(SpaceTecError.ProtocolError.InvalidResponse(
+                message = "No monitor status response"
+            ))
+        return Result.success(status)
+    }
+    
+    /**
+     * Reads the on-board monitoring test results of every supported MID,
+     * cached like [readReadiness].
+     */
+    suspend fun readMonitorTestResults(refresh: Boolean = false): AppResult<MonitorTestResults> {
+        val results = monitorReader.testResults(refresh)
+        Timber.d("${results.size} monitor test results, ${monitorReader.requests} requests so far")
+        return Result.success(results)
+    }
+    
+    /**
+     * Drops cached readiness and test results, e.g. when a new ignition
+     * cycle starts.
+     */
+    fun invalidateMonitorResults() {
+        monitorReader.invalidate()
+    }
+    
     // ========================================================================
     // VEHICLE INFORMATION (SERVICE 09)
     // ========================================================================
     
+    override fun attachVehicleInfoBroadcast(broadcast: (suspend (request: ByteArray) -> Map<Int, ByteArray>)?) {
+        vehicleInfoBroadcast = broadcast
+    }
+    
     /**
-     * Reads vehicle information using Service 09.
+     * Reads [infoTypes] of every emissions-related ECU with a
+     * [VehicleInfoCollector], one functional request per InfoType.
+     *
+     * Without a broadcast attached, only the answer [sendMessage] returns
+     * is heard; it is keyed [FUNCTIONAL_ECU].
+     */
+    suspend fun readVehicleInfoOfAllEcus(
+        infoTypes: Collection<Int> = VehicleInfoCollector.DEFAULT_INFO_TYPES
+    ): AppResult<List<EcuVehicleInfo>> {
+        val broadcast = vehicleInfoBroadcast ?: { request: ByteArray ->
+            val serviceId = request[0].toInt() and 0xFF
+            val message = ProtocolMessage.request(serviceId = serviceId, data = request.copyOfRange(1, request.size))
+            sendMessage(message).getOrNull()?.takeIf { it.isPositiveResponse() }
+                ?.let { mapOf(FUNCTIONAL_ECU to byteArrayOf((serviceId + 0x40).toByte()) + it.data) }
+                .orEmpty()
+        }
+        
+        return try {
+            Result.success(VehicleInfoCollector(broadcast).collect(infoTypes))
+        } catch (e: Exception) {
+            Timber.e(e, "Service 09 collection failed")
+            Result.failure(SpaceTecError.fromThrowable(e))
+        }
+    }
+    
+    /**
+     * Reads vehicle information using Service 09 from the ECU the protocol
+     * is attached to.
      */
     suspend fun readVehicleInfo(pid: Int): AppResult<String> {
         val message = ProtocolMessage.request(
@@ -555,29 +578,32 @@ class ObdProtocol @Inject constructor() : ProtocolHandler() {
         }
     }
     
+    /**
+     * Decodes [data] (InfoType first) with [VehicleInfoDecoder]. Several
+     * calibration IDs or CVNs are joined with commas, CVNs as 8 hex digits.
+     */
     private fun parseVehicleInfoResponse(data: ByteArray, pid: Int): String {
         return when (pid) {
-            ProtocolService.VehicleInfoPid.VIN -> {
-                // VIN is ASCII characters, skip first byte which is message count
-                data.drop(1).joinToString("") { byte ->
-                    if (byte.toInt() in 32..126) byte.toInt().toChar().toString() else ""
-                }.trim()
-            }
-            ProtocolService.VehicleInfoPid.CALIBRATION_ID -> {
-                // Calibration ID is ASCII characters
-                data.joinToString("") { byte ->
-                    if (byte.toInt() in 32..126) byte.toInt().toChar().toString() else ""
-                }.trim()
-            }
+            VehicleInfoDecoder.INFO_TYPE_VIN -> VehicleInfoDecoder.vin(data).orEmpty()
+            VehicleInfoDecoder.INFO_TYPE_CALIBRATION_ID -> VehicleInfoDecoder.calibrationIds(data).joinToString(",")
+            VehicleInfoDecoder.INFO_TYPE_CVN -> VehicleInfoDecoder.cvns(data).joinToString(",") { VehicleInfoDecoder.formatCvn(it) }
+            VehicleInfoDecoder.INFO_TYPE_ECU_NAME -> VehicleInfoDecoder.ecuName(data).orEmpty()
             else -> data.toHexString()
         }
     }
     
     /**
-     * Reads the vehicle's VIN.
+     * Reads the vehicle's VIN: the first ECU reporting one when a broadcast
+     * is attached, otherwise the ECU the protocol is attached to.
      */
     suspend fun readVin(): AppResult<String> {
-        return readVehicleInfo(ProtocolService.VehicleInfoPid.VIN)
+        if (vehicleInfoBroadcast == null) {
+            return readVehicleInfo(ProtocolService.VehicleInfoPid.VIN)
+        }
+        return readVehicleInfoOfAllEcus(listOf(VehicleInfoDecoder.INFO_TYPE_VIN)).flatMap { ecus ->
+            ecus.firstNotNullOfOrNull { it.vin }?.let { Result.success(it) }
+                ?: Result.failure(SpaceTecError.ProtocolError.NoResponse(message = "No ECU reported a VIN"))
+        }
     }
     
     /**
@@ -587,6 +613,24 @@ class ObdProtocol @Inject constructor() : ProtocolHandler() {
         return readVehicleInfo(ProtocolService.VehicleInfoPid.CALIBRATION_ID)
     }
     
+    /**
+     * Reads the calibration verification numbers, one per calibration ID,
+     * each the 4 CVN bytes packed into an int.
+     *
+     * This reads the ECU the protocol is attached to; to read every
+     * emissions-related ECU in one pass use [readVehicleInfoOfAllEcus].
+     */
+    suspend fun readCalibrationVerificationNumbers(): AppResult<IntArray> {
+        val message = ProtocolMessage.request(
+            serviceId = ProtocolService.OBD_SERVICE_09_VEHICLE_INFO,
+            data = byteArrayOf(VehicleInfoDecoder.INFO_TYPE_CVN.toByte())
+        )
+        
+        return sendMessage(message).map { response ->
+            VehicleInfoDecoder.cvns(response.data)
+        }
+    }
+    
     // ========================================================================
     // HELPER FUNCTIONS
     // ========================================================================
@@ -613,46 +657,8 @@ class ObdProtocol @Inject constructor() : ProtocolHandler() {
         return data[1].toInt() and 0xFF
     }
     
-    /**
-     * Parses PID value into a FreezeFrameParameter.
-     */
-    private fun parsePidValue(pid: Int, data: ByteArray): FreezeFrameParameter? {
-        return when (pid) {
-            0x04 -> FreezeFrameParameter(
-                pid = pid,
-                name = "Calculated Engine Load",
-                value = calculateEngineLoad(data),
-                unit = "%"
-            )
-            0x05 -> FreezeFrameParameter(
-                pid = pid,
-                name = "Engine Coolant Temperature",
-                value = data[0].toInt() - 40,
-                unit = "°C"
-            )
-            0x0C -> FreezeFrameParameter(
-                pid = pid,
-                name = "Engine RPM",
-                value = ((data[0].toInt() shl 8) or data[1].toInt()) / 4.0,
-                unit = "RPM"
-            )
-            0x0D -> FreezeFrameParameter(
-                pid = pid,
-                name = "Vehicle Speed",
-                value = data[0].toInt(),
-                unit = "km/h"
-            )
-            else -> FreezeFrameParameter(
-                pid = pid,
-                name = "PID $pid",
-                value = data.joinToString(" ") { String.format("%02X", it) },
-                unit = "raw"
-            )
-        }
-    }
-    
-    private fun calculateEngineLoad(data: ByteArray): Double {
-        if (data.isEmpty()) return 0.0
-        return (data[0].toInt() * 100.0) / 255.0
+    companion object {
+        /** ECU key for requests sent to the functional (broadcast) address. */
+        const val FUNCTIONAL_ECU = 0x7DF
     }
 }
\ No newline at end of file
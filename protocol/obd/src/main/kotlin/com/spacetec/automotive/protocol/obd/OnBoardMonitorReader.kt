@@ -0,0 +1,242 @@
+package com.spacetec.obd.protocol.obd
+
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Sends one OBD-II request.
+ */
+fun interface ObdRequestTransport {
+    /**
+     * Sends service [service] with [data].
+     *
+     * @return Response data after the service ID, or null if the ECU did not
+     *   answer or answered negatively
+     */
+    suspend fun request(service: Int, data: ByteArray): ByteArray?
+}
+
+/**
+ * Readiness monitors of service 01 PIDs 01 and 41.
+ *
+ * @property compressionIgnition Engine type the monitor belongs to; null for
+ *   the monitors common to both
+ * @property bit Bit in bytes C (supported) and D (incomplete); for common
+ *   monitors, in byte B (bits 0-2 supported, 4-6 incomplete)
+ */
+enum class ReadinessMonitor(val compressionIgnition: Boolean?, val bit: Int) {
+    MISFIRE(null, 0),
+    FUEL_SYSTEM(null, 1),
+    COMPONENTS(null, 2),
+
+    CATALYST(false, 0),
+    HEATED_CATALYST(false, 1),
+    EVAPORATIVE_SYSTEM(false, 2),
+    SECONDARY_AIR(false, 3),
+    OXYGEN_SENSOR(false, 5),
+    OXYGEN_SENSOR_HEATER(false, 6),
+    EGR_VVT(false, 7),
+
+    NMHC_CATALYST(true, 0),
+    NOX_SCR_MONITOR(true, 1),
+    BOOST_PRESSURE(true, 3),
+    EXHAUST_GAS_SENSOR(true, 5),
+    PM_FILTER(true, 6),
+    EGR_VVT_DIESEL(true, 7)
+}
+
+/**
+ * Monitor status since DTCs were cleared (PID 01) and for this drive cycle
+ * (PID 41), each as the 4 data bytes packed into an int, A highest.
+ *
+ * @property sinceClear PID 01
+ * @property thisCycle PID 41, or null if not supported
+ */
+class ReadinessStatus(val sinceClear: Int, val thisCycle: Int?) {
+
+    /** Malfunction indicator lamp commanded on. */
+    val milOn: Boolean
+        get() = sinceClear ushr 31 != 0
+
+    /** Number of confirmed emission-related DTCs. */
+    val dtcCount: Int
+        get() = sinceClear ushr 24 and 0x7F
+
+    /** Compression ignition (diesel) monitor set in bytes C and D. */
+    val compressionIgnition: Boolean
+        get() = sinceClear ushr 16 and 0x08 != 0
+
+    /** Monitors the vehicle has. */
+    val supported: List<ReadinessMonitor>
+        get() = monitors().filter { isSupported(it) }
+
+    /**
+     * Whether the vehicle has [monitor] (PID 01), or has it enabled for this
+     * drive cycle (PID 41, [thisCycle] true).
+     */
+    fun isSupported(monitor: ReadinessMonitor, thisCycle: Boolean = false): Boolean {
+        val status = (if (thisCycle) this.thisCycle else sinceClear) ?: return false
+        return monitor in monitors() && status and supportedMask(monitor) != 0
+    }
+
+    /**
+     * Whether [monitor] has completed since DTCs were cleared, or during this
+     * drive cycle ([thisCycle] true). False for monitors not supported.
+     */
+    fun isComplete(monitor: ReadinessMonitor, thisCycle: Boolean = false): Boolean {
+        val status = (if (thisCycle) this.thisCycle else sinceClear) ?: return false
+        // Completion bits are set while the monitor is incomplete
+        return isSupported(monitor, thisCycle) && status and incompleteMask(monitor) == 0
+    }
+
+    private fun monitors(): List<ReadinessMonitor> =
+        ReadinessMonitor.values().filter { it.compressionIgnition == null || it.compressionIgnition == compressionIgnition }
+
+    private fun supportedMask(monitor: ReadinessMonitor): Int =
+        if (monitor.compressionIgnition == null) 1 shl (16 + monitor.bit) else 1 shl (8 + monitor.bit)
+
+    private fun incompleteMask(monitor: ReadinessMonitor): Int =
+        if (monitor.compressionIgnition == null) 1 shl (20 + monitor.bit) else 1 shl monitor.bit
+
+    override fun toString(): String = "ReadinessStatus(%08X, %s)".format(sinceClear, thisCycle?.let { "%08X".format(it) })
+}
+
+/**
+ * Readiness (service 01 PIDs 01 and 41) and on-board monitoring test
+ * results (service 06), read with as few requests as SAE J1979 allows and
+ * cached for the ignition cycle.
+ *
+ * Readiness is one service 01 request for both PIDs. Supported MIDs come
+ * from the range MIDs 0x00, 0x20, ... 0xE0, which may share a request (up
+ * to 6 per request); the test results then need one request per supported
+ * MID, since a service 06 request on CAN carries a single test MID.
+ *
+ * Results stay cached until [invalidate]: the owner calls it when DTCs are
+ * cleared (service 04 resets every monitor) and when a new ignition cycle
+ * starts. Callers asking concurrently share one read.
+ *
+ * @param transport Sends one service 01 or 06 request
+ */
+class OnBoardMonitorReader(private val transport: ObdRequestTransport) {
+
+    private val mutex = Mutex()
+    private val sent = AtomicLong()
+
+    /** Bumped by [invalidate]; reads begun before keep their result to themselves. */
+    private val generation = AtomicInteger()
+
+    @Volatile
+    private var readiness: ReadinessStatus? = null
+
+    @Volatile
+    private var supportedMids: SupportedPids? = null
+
+    @Volatile
+    private var results: MonitorTestResults? = null
+
+    /** Requests sent so far. */
+    val requests: Long get() = sent.get()
+
+    /**
+     * Monitor status, from the cache unless [refresh].
+     *
+     * @return The status, or null if the ECU did not answer PID 01
+     */
+    suspend fun readiness(refresh: Boolean = false): ReadinessStatus? = mutex.withLock {
+        if (!refresh) readiness?.let { return it }
+        val started = generation.get()
+        val data = request(SERVICE_CURRENT_DATA, byteArrayOf(PID_MONITOR_STATUS.toByte(), PID_MONITOR_STATUS_THIS_CYCLE.toByte()))
+            ?: return null
+        val split = PidDecoder.splitCurrentData(data, listOf(PID_MONITOR_STATUS, PID_MONITOR_STATUS_THIS_CYCLE)) ?: return null
+        val sinceClear = split[PID_MONITOR_STATUS]?.let { int(it) } ?: return null
+        ReadinessStatus(sinceClear, split[PID_MONITOR_STATUS_THIS_CYCLE]?.let { int(it) }).also {
+            if (generation.get() == started) readiness = it
+        }
+    }
+
+    /**
+     * MIDs the ECU supports, from the cache unless [refresh].
+     */
+    suspend fun supportedMids(refresh: Boolean = false): SupportedPids = mutex.withLock {
+        loadSupportedMids(refresh)
+    }
+
+    /**
+     * Test results of every supported MID, from the cache unless [refresh].
+     */
+    suspend fun testResults(refresh: Boolean = false): MonitorTestResults = mutex.withLock {
+        if (!refresh) results?.let { return it }
+        val started = generation.get()
+        val mids = loadSupportedMids(refresh).toList().filterNot { SupportedPids.isRangePid(it) }
+        val responses = mids.mapNotNull { mid ->
+            request(SERVICE_MONITORING_TEST, byteArrayOf(mid.toByte()))?.takeIf { it.isNotEmpty() && it[0].toInt() and 0xFF == mid }
+        }
+        MonitorTestDecoder.decode(responses).also {
+            if (generation.get() == started) results = it
+        }
+    }
+
+    /**
+     * Drops the cached results; the next read goes to the ECU.
+     */
+    fun invalidate() {
+        generation.incrementAndGet()
+        readiness = null
+        supportedMids = null
+        results = null
+    }
+
+    // ========================================================================
+    // REQUESTS
+    // ========================================================================
+
+    private suspend fun loadSupportedMids(refresh: Boolean): SupportedPids {
+        if (!refresh) supportedMids?.let { return it }
+        val started = generation.get()
+        val supported = SupportedPids()
+        var ranges = (0x00..LAST_RANGE_MID step SupportedPids.RANGE_SIZE).take(MAX_RANGES_PER_REQUEST)
+        while (ranges.isNotEmpty()) {
+            val data = request(SERVICE_MONITORING_TEST, ranges.map { it.toByte() }.toByteArray()) ?: break
+            var position = 0
+            while (position + 1 + SupportedPids.BITMAP_LENGTH <= data.size) {
+                val range = data[position].toInt() and 0xFF
+                if (range in ranges) supported.add(range, data, position + 1)
+                position += 1 + SupportedPids.BITMAP_LENGTH
+            }
+            // Ranges beyond this request, if the last one asked flags them
+            val next = ranges.last() + SupportedPids.RANGE_SIZE
+            ranges = if (next <= LAST_RANGE_MID && supported.isSupported(next)) {
+                (next..LAST_RANGE_MID step SupportedPids.RANGE_SIZE).take(MAX_RANGES_PER_REQUEST)
+            } else {
+                emptyList()
+            }
+        }
+        return supported.also {
+            if (generation.get() == started) supportedMids = it
+        }
+    }
+
+    private suspend fun request(service: Int, data: ByteArray): ByteArray? {
+        sent.incrementAndGet()
+        return transport.request(service, data)
+    }
+
+    private fun int(data: ByteArray): Int? {
+        if (data.size < 4) return null
+        return ((data[0].toInt() and 0xFF) shl 24) or ((data[1].toInt() and 0xFF) shl 16) or
+            ((data[2].toInt() and 0xFF) shl 8) or (data[3].toInt() and 0xFF)
+    }
+
+    companion object {
+        /** SAE J1979 maximum of supported-ID requests in one message. */
+        const val MAX_RANGES_PER_REQUEST = 6
+
+        private const val SERVICE_CURRENT_DATA = 0x01
+        private const val SERVICE_MONITORING_TEST = 0x06
+        private const val PID_MONITOR_STATUS = 0x01
+        private const val PID_MONITOR_STATUS_THIS_CYCLE = 0x41
+        private const val LAST_RANGE_MID = 0xE0
+    }
+}
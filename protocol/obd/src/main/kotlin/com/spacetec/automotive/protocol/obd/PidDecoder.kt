@@ -0,0 +1,146 @@
+package com.spacetec.obd.protocol.obd
+
+/**
+ * A decoded service 01/02 PID value.
+ *
+ * @property pid PID the value was read for
+ * @property name Parameter name
+ * @property value Scaled value, or the raw bytes as hex for PIDs without a formula
+ * @property unit Unit of [value], `raw` for hex
+ */
+data class PidValue(
+    val pid: Int,
+    val name: String,
+    val value: Any,
+    val unit: String
+)
+
+/**
+ * Data lengths, response splitting and scaling for service 01 (current
+ * data) and service 02 (freeze frame) PIDs, shared by both services since
+ * SAE J1979 defines their PIDs identically.
+ *
+ * A multi-PID response carries the PIDs back to back without length
+ * fields, so it can only be split with the data length of every PID in it;
+ * [dataLength] holds the J1979 lengths.
+ */
+object PidDecoder {
+
+    /**
+     * Data length of [pid] in bytes (excluding the PID and frame number), or
+     * null if not known.
+     */
+    fun dataLength(pid: Int): Int? = when {
+        SupportedPids.isRangePid(pid) -> SupportedPids.BITMAP_LENGTH
+        pid in 0x01..0x5F -> LENGTHS[pid].toInt().takeIf { it > 0 }
+        else -> null
+    }
+
+    /**
+     * Splits a service 01 response (`PID data PID data ...`, service ID
+     * removed) into data per PID.
+     *
+     * @param requested PIDs of the request; the last of them may have an
+     *   unknown length and then takes the rest of the response
+     * @return Data per PID, or null if the response does not fit
+     */
+    fun splitCurrentData(data: ByteArray, requested: List<Int>): Map<Int, ByteArray>? {
+        val result = LinkedHashMap<Int, ByteArray>()
+        val ok = split(data, requested.size, headerLength = 1) { position ->
+            val pid = data[position].toInt() and 0xFF
+            if (pid !in requested || pid in result) return@split null
+            pid to { value: ByteArray -> result[pid] = value }
+        }
+        return if (ok) result else null
+    }
+
+    /**
+     * Splits a service 02 response (`PID frame data PID frame data ...`,
+     * service ID removed) into data per PID and frame number.
+     *
+     * @param requested PID and frame number pairs of the request; the last
+     *   may have a PID of unknown length and then takes the rest
+     * @return Data per (PID, frame) pair, or null if the response does not fit
+     */
+    fun splitFreezeFrame(data: ByteArray, requested: List<Pair<Int, Int>>): Map<Pair<Int, Int>, ByteArray>? {
+        val result = LinkedHashMap<Pair<Int, Int>, ByteArray>()
+        val ok = split(data, requested.size, headerLength = 2) { position ->
+            val key = (data[position].toInt() and 0xFF) to (data[position + 1].toInt() and 0xFF)
+            if (key !in requested || key in result) return@split null
+            key.first to { value: ByteArray -> result[key] = value }
+        }
+        return if (ok) result else null
+    }
+
+    /**
+     * Walks the entries of a multi-PID response; [entry] identifies the
+     * entry at a position and returns its PID and where to store its data,
+     * or null if the entry was not requested.
+     */
+    private inline fun split(
+        data: ByteArray,
+        requestedCount: Int,
+        headerLength: Int,
+        entry: (position: Int) -> Pair<Int, (ByteArray) -> Unit>?
+    ): Boolean {
+        var position = 0
+        var entries = 0
+        while (position < data.size) {
+            if (position + headerLength > data.size || entries == requestedCount) return false
+            val (pid, store) = entry(position) ?: return false
+            val start = position + headerLength
+            val end = dataLength(pid)?.let { start + it } ?: data.size
+            if (end > data.size) return false
+            store(data.copyOfRange(start, end))
+            position = end
+            entries++
+        }
+        return entries > 0
+    }
+
+    /**
+     * Scales [data] read for [pid] (SAE J1979 formulas); PIDs without a
+     * formula here are returned as hex.
+     */
+    fun decode(pid: Int, data: ByteArray): PidValue? {
+        if (data.isEmpty()) return null
+        val a = data[0].toInt() and 0xFF
+        val b = if (data.size > 1) data[1].toInt() and 0xFF else 0
+        return when (pid) {
+            0x04 -> PidValue(pid, "Calculated Engine Load", a * 100.0 / 255.0, "%")
+            0x05 -> PidValue(pid, "Engine Coolant Temperature", a - 40, "°C")
+            0x06 -> PidValue(pid, "Short Term Fuel Trim Bank 1", (a - 128) * 100.0 / 128.0, "%")
+            0x07 -> PidValue(pid, "Long Term Fuel Trim Bank 1", (a - 128) * 100.0 / 128.0, "%")
+            0x0B -> PidValue(pid, "Intake Manifold Pressure", a, "kPa")
+            0x0C -> PidValue(pid, "Engine RPM", ((a shl 8) or b) / 4.0, "RPM")
+            0x0D -> PidValue(pid, "Vehicle Speed", a, "km/h")
+            0x0E -> PidValue(pid, "Timing Advance", a / 2.0 - 64.0, "°")
+            0x0F -> PidValue(pid, "Intake Air Temperature", a - 40, "°C")
+            0x10 -> PidValue(pid, "MAF Air Flow Rate", ((a shl 8) or b) / 100.0, "g/s")
+            0x11 -> PidValue(pid, "Throttle Position", a * 100.0 / 255.0, "%")
+            0x1F -> PidValue(pid, "Run Time Since Engine Start", (a shl 8) or b, "s")
+            0x2F -> PidValue(pid, "Fuel Level", a * 100.0 / 255.0, "%")
+            0x33 -> PidValue(pid, "Barometric Pressure", a, "kPa")
+            0x42 -> PidValue(pid, "Control Module Voltage", ((a shl 8) or b) / 1000.0, "V")
+            0x46 -> PidValue(pid, "Ambient Air Temperature", a - 40, "°C")
+            0x5C -> PidValue(pid, "Engine Oil Temperature", a - 40, "°C")
+            else -> PidValue(pid, "PID %02X".format(pid), data.joinToString(" ") { "%02X".format(it) }, "raw")
+        }
+    }
+
+    /** J1979 data lengths of PIDs 0x00-0x5F; 0 where not defined. */
+    private val LENGTHS = byteArrayOf(
+        // 0x00
+        4, 4, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 2, 1, 1, 1,
+        // 0x10
+        2, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 2,
+        // 0x20
+        4, 2, 2, 2, 4, 4, 4, 4, 4, 4, 4, 4, 1, 1, 1, 1,
+        // 0x30
+        1, 2, 2, 1, 4, 4, 4, 4, 4, 4, 4, 4, 2, 2, 2, 2,
+        // 0x40
+        4, 4, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 2, 2, 4,
+        // 0x50
+        4, 1, 1, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 2, 2, 1
+    )
+}
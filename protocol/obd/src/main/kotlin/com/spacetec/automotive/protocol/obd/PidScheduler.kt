@@ -0,0 +1,232 @@
+package com.spacetec.obd.protocol.obd
+
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.isActive
+import kotlin.math.ceil
+
+/**
+ * A PID to poll and the rate it should be sampled at.
+ *
+ * @property pid Service 01 PID
+ * @property rateHz Target samples per second
+ */
+data class PidRate(val pid: Int, val rateHz: Double) {
+    init {
+        require(pid in 0x01..0xFF && !SupportedPids.isRangePid(pid)) { "Not a data PID: $pid" }
+        require(rateHz > 0.0) { "Rate must be positive: $rateHz" }
+    }
+
+    val periodMs: Double
+        get() = 1000.0 / rateHz
+}
+
+/**
+ * One PID value received from an ECU.
+ *
+ * @property ecu ECU the value came from (as passed to [PidScheduler.samples])
+ * @property pid Service 01 PID
+ * @property data PID data bytes, without the PID byte
+ * @property timestampMs Scheduler clock when the response arrived
+ */
+data class PidSample(
+    val ecu: Int,
+    val pid: Int,
+    val data: ByteArray,
+    val timestampMs: Long
+) {
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is PidSample) return false
+        return ecu == other.ecu && pid == other.pid &&
+            timestampMs == other.timestampMs && data.contentEquals(other.data)
+    }
+
+    override fun hashCode(): Int {
+        var result = ecu
+        result = 31 * result + pid
+        result = 31 * result + data.contentHashCode()
+        result = 31 * result + timestampMs.hashCode()
+        return result
+    }
+}
+
+/**
+ * Sends one service 01 request carrying several PIDs.
+ */
+fun interface PidTransport {
+    /**
+     * Requests [pids] from [ecu] in a single message.
+     *
+     * @return Data bytes per PID; PIDs missing from the response are absent
+     */
+    suspend fun readPids(ecu: Int, pids: IntArray): Map<Int, ByteArray>
+}
+
+/**
+ * Rate-aware service 01 polling scheduler.
+ *
+ * Each PID declares its own target rate. On every turn the scheduler picks
+ * the ECU owning the most overdue PID and packs up to [maxPidsPerRequest]
+ * of that ECU's PIDs into one request: first everything already due (most
+ * late relative to its period first), then PIDs that fall due within the
+ * measured round-trip time. Packing spends the adapter's per-request
+ * overhead once for several PIDs, which is what limits throughput on a slow
+ * ELM327 link, and fast PIDs never wait behind slow ones.
+ *
+ * A response is split using the data lengths [PidDecoder] knows, so a PID
+ * of unknown length can only be read correctly as the last PID of a
+ * request: at most one goes into a batch, and always at the end.
+ *
+ * PIDs are assigned to the first ECU (in ascending ID order) whose
+ * supported-PID bitmap contains them; PIDs no ECU supports are never sent.
+ * A PID missing from [MAX_CONSECUTIVE_MISSES] responses in a row is dropped.
+ *
+ * When the link cannot keep up with the requested rates, due times never
+ * fall behind the last request, so a stall is followed by one catch-up
+ * sample rather than a burst.
+ *
+ * @param transport Sends the packed requests
+ * @param maxPidsPerRequest PIDs per request (SAE J1979 allows 6)
+ * @param clock Millisecond time source
+ */
+class PidScheduler(
+    private val transport: PidTransport,
+    private val maxPidsPerRequest: Int = MAX_PIDS_PER_REQUEST,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+    init {
+        require(maxPidsPerRequest in 1..MAX_PIDS_PER_REQUEST) { "1..$MAX_PIDS_PER_REQUEST PIDs per request" }
+    }
+
+    private class Slot(val ecu: Int, val pid: Int, val periodMs: Double, var nextDue: Double) {
+        var misses = 0
+
+        fun lateness(now: Long): Double = (now - nextDue) / periodMs
+    }
+
+    /** Requests sent since creation. */
+    @Volatile
+    var requestCount: Long = 0
+        private set
+
+    /** Samples emitted since creation. */
+    @Volatile
+    var sampleCount: Long = 0
+        private set
+
+    /** Smoothed request round-trip time in milliseconds. */
+    @Volatile
+    var roundTripMs: Double = 0.0
+        private set
+
+    /**
+     * Polls [pids] from [ecus] and emits every value as its response arrives.
+     *
+     * The flow runs until it is cancelled or every PID has been dropped.
+     * Transport exceptions are propagated to the collector.
+     *
+     * @param pids PIDs and their target rates
+     * @param ecus Supported-PID bitmap per ECU
+     */
+    fun samples(pids: List<PidRate>, ecus: Map<Int, SupportedPids>): Flow<PidSample> = flow {
+        val start = clock().toDouble()
+        val slots = ArrayList<Slot>()
+        for ((ecu, rates) in assign(pids, ecus)) {
+            rates.mapTo(slots) { Slot(ecu, it.pid, it.periodMs, start) }
+        }
+
+        val batch = ArrayList<Slot>(maxPidsPerRequest)
+        while (slots.isNotEmpty() && currentCoroutineContext().isActive) {
+            val now = clock()
+            val earliest = slots.minOf { it.nextDue }
+            if (earliest > now) {
+                delay(ceil(earliest - now).toLong())
+                continue
+            }
+
+            selectBatch(slots, now, batch)
+            val requested = IntArray(batch.size) { batch[it].pid }
+
+            val sentAt = clock()
+            val response = transport.readPids(batch[0].ecu, requested)
+            val receivedAt = clock()
+            requestCount++
+            updateRoundTrip(receivedAt - sentAt)
+
+            for (slot in batch) {
+                val data = response[slot.pid]
+                if (data != null) {
+                    slot.misses = 0
+                    sampleCount++
+                    emit(PidSample(slot.ecu, slot.pid, data, receivedAt))
+                } else {
+                    slot.misses++
+                }
+                slot.nextDue = maxOf(slot.nextDue + slot.periodMs, sentAt.toDouble())
+            }
+            slots.removeAll { it.misses >= MAX_CONSECUTIVE_MISSES }
+        }
+    }
+
+    /**
+     * Fills [batch] with the PIDs of the ECU holding the most overdue PID:
+     * due PIDs first, then PIDs due within one round trip. One PID of
+     * unknown length may join, placed last.
+     */
+    private fun selectBatch(slots: List<Slot>, now: Long, batch: MutableList<Slot>) {
+        batch.clear()
+        val lead = slots.maxBy { it.lateness(now) }
+        val horizon = now + roundTripMs
+
+        var unknownLength: Slot? = null
+        for (slot in slots.filter { it.ecu == lead.ecu && it.nextDue <= horizon }.sortedByDescending { it.lateness(now) }) {
+            if (batch.size + (if (unknownLength != null) 1 else 0) == maxPidsPerRequest) break
+            if (PidDecoder.dataLength(slot.pid) != null) {
+                batch.add(slot)
+            } else if (unknownLength == null) {
+                unknownLength = slot
+            }
+        }
+        unknownLength?.let { batch.add(it) }
+    }
+
+    private fun updateRoundTrip(sample: Long) {
+        roundTripMs = if (requestCount == 1L) {
+            sample.toDouble()
+        } else {
+            roundTripMs + (sample - roundTripMs) * ROUND_TRIP_GAIN
+        }
+    }
+
+    companion object {
+        /** Maximum PIDs in one service 01 request (SAE J1979). */
+        const val MAX_PIDS_PER_REQUEST = 6
+
+        /** Consecutive unanswered requests after which a PID is dropped. */
+        const val MAX_CONSECUTIVE_MISSES = 3
+
+        private const val ROUND_TRIP_GAIN = 0.125
+
+        /**
+         * Assigns each PID to the first ECU, in ascending ID order, that
+         * supports it. PIDs no ECU supports are left out; a PID listed
+         * twice keeps its first rate.
+         */
+        fun assign(pids: List<PidRate>, ecus: Map<Int, SupportedPids>): Map<Int, List<PidRate>> {
+            val result = sortedMapOf<Int, MutableList<PidRate>>()
+            val seen = HashSet<Int>()
+            val ecuIds = ecus.keys.sorted()
+
+            for (rate in pids) {
+                if (!seen.add(rate.pid)) continue
+                val ecu = ecuIds.firstOrNull { ecus.getValue(it).isSupported(rate.pid) } ?: continue
+                result.getOrPut(ecu) { ArrayList() }.add(rate)
+            }
+            return result
+        }
+    }
+}
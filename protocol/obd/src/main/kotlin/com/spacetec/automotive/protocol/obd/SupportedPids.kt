@@ -0,0 +1,90 @@
+package com.spacetec.obd.protocol.obd
+
+/**
+ * Set of service 01/02 PIDs an ECU reports as supported, also used for
+ * service 06 MIDs, whose bitmaps have the same layout.
+ *
+ * Built from the 4-byte bitmaps returned for PIDs 0x00, 0x20, 0x40, ...
+ * 0xE0. Bit 7 of the first byte of the bitmap for base `B` stands for PID
+ * `B + 1`; the last bit of each bitmap says whether the next range (and its
+ * bitmap PID) is supported.
+ */
+class SupportedPids {
+
+    private val bits = LongArray(4)
+
+    /**
+     * Adds the bitmap read for [basePid].
+     *
+     * @param basePid Range PID the bitmap was read for (0x00, 0x20, ... 0xE0)
+     * @param bitmap Response data, at least 4 bytes starting at [offset]
+     * @param offset Start of the bitmap in [bitmap]
+     * @return True if the ECU supports the next range
+     */
+    fun add(basePid: Int, bitmap: ByteArray, offset: Int = 0): Boolean {
+        require(basePid in 0x00..0xE0 && basePid % RANGE_SIZE == 0) { "Not a range PID: $basePid" }
+        require(bitmap.size - offset >= BITMAP_LENGTH) { "Bitmap needs $BITMAP_LENGTH bytes" }
+
+        for (byteIndex in 0 until BITMAP_LENGTH) {
+            val byte = bitmap[offset + byteIndex].toInt() and 0xFF
+            for (bitIndex in 0..7) {
+                if ((byte shr (7 - bitIndex)) and 1 == 1) {
+                    set(basePid + byteIndex * 8 + bitIndex + 1)
+                }
+            }
+        }
+        return isSupported(basePid + RANGE_SIZE)
+    }
+
+    /**
+     * Marks [pid] as supported.
+     */
+    fun set(pid: Int) {
+        require(pid in 0x01..0xFF) { "PID out of range: $pid" }
+        bits[pid ushr 6] = bits[pid ushr 6] or (1L shl (pid and 0x3F))
+    }
+
+    /**
+     * Checks if [pid] was reported as supported.
+     */
+    fun isSupported(pid: Int): Boolean {
+        if (pid !in 0x01..0xFF) return false
+        return (bits[pid ushr 6] ushr (pid and 0x3F)) and 1L == 1L
+    }
+
+    operator fun contains(pid: Int): Boolean = isSupported(pid)
+
+    /**
+     * Supported PIDs in ascending order.
+     */
+    fun toList(): List<Int> = (0x01..0xFF).filter { isSupported(it) }
+
+    val isEmpty: Boolean
+        get() = bits.all { it == 0L }
+
+    override fun equals(other: Any?): Boolean =
+        other is SupportedPids && bits.contentEquals(other.bits)
+
+    override fun hashCode(): Int = bits.contentHashCode()
+
+    override fun toString(): String =
+        toList().joinToString(prefix = "SupportedPids[", postfix = "]") { "%02X".format(it) }
+
+    companion object {
+        /** PIDs covered by one bitmap. */
+        const val RANGE_SIZE = 0x20
+
+        /** Bytes in one supported-PID bitmap. */
+        const val BITMAP_LENGTH = 4
+
+        /**
+         * Range PIDs whose responses are supported-PID bitmaps.
+         */
+        fun isRangePid(pid: Int): Boolean = pid in 0x00..0xE0 && pid % RANGE_SIZE == 0
+
+        /**
+         * Creates a set holding [pids].
+         */
+        fun of(vararg pids: Int): SupportedPids = SupportedPids().apply { pids.forEach { set(it) } }
+    }
+}
@@ -0,0 +1,184 @@
+package com.spacetec.obd.protocol.obd
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [FreezeFrameReader] against a simulated ECU with per-request
+ * latency, compared with reading one PID per request, and for the
+ * [PidDecoder] it splits responses with.
+ */
+class FreezeFrameReaderTest {
+
+    @Test
+    fun testBulkReadAgainstPerPidReads() = runTest {
+        val perPid = SimulatedEcu(FRAME_PIDS, frames = 2)
+        val start = testScheduler.currentTime
+        val expected = (0 until 2).map { perPidRead(perPid, it) }
+        val perPidMs = testScheduler.currentTime - start
+
+        val ecu = SimulatedEcu(FRAME_PIDS, frames = 2)
+        val reader = FreezeFrameReader(ecu)
+        val begin = testScheduler.currentTime
+        val frames = reader.readAll(listOf(0, 1))
+        val bulkMs = testScheduler.currentTime - begin
+
+        println(
+            "Freeze frames, 2 x ${FRAME_PIDS.size} PIDs: per PID ${perPid.requests.size} requests ${perPidMs}ms, " +
+                "packed ${reader.requests} requests ${bulkMs}ms"
+        )
+        assertEquals(listOf(0, 1), frames.map { it.frameNumber })
+        for ((frame, data) in frames.zip(expected)) {
+            assertEquals(data.keys, frame.data.keys)
+            for ((pid, bytes) in data) assertArrayEquals(bytes, frame.data[pid])
+        }
+        assertEquals(34, perPid.requests.size)
+        assertEquals(12L, reader.requests)
+        assertTrue(ecu.requests.all { it.size <= FreezeFrameReader.MAX_PAIRS_PER_REQUEST })
+        // Bitmaps of both frames share one request
+        assertEquals(listOf(0x00 to 0, 0x00 to 1), ecu.requests[0])
+        assertTrue(bulkMs * 2 < perPidMs)
+    }
+
+    @Test
+    fun testRangeChainIsFollowed() = runTest {
+        val ecu = SimulatedEcu(setOf(0x04, 0x0C, 0x20, 0x21, 0x2F, 0x40, 0x42, 0x46), frames = 1)
+
+        val frame = FreezeFrameReader(ecu).read(0)
+
+        assertNotNull(frame)
+        assertEquals(listOf(0x04, 0x0C, 0x20, 0x21, 0x2F, 0x40, 0x42, 0x46), frame!!.supported.toList())
+        assertEquals(setOf(0x02, 0x04, 0x0C, 0x21, 0x2F, 0x42, 0x46), frame.data.keys)
+        assertArrayEquals(byteArrayOf(0x03, 0x01), frame.dtc)
+        // 0x00, then 0x20, then 0x40; the 0x40 bitmap ends the chain
+        assertEquals(listOf(listOf(0x00 to 0), listOf(0x20 to 0), listOf(0x40 to 0)), ecu.requests.take(3))
+    }
+
+    @Test
+    fun testFramesNotStoredAreOmitted() = runTest {
+        val ecu = SimulatedEcu(FRAME_PIDS, frames = 2)
+
+        val frames = FreezeFrameReader(ecu).readAll(listOf(0, 1, 2))
+
+        assertEquals(listOf(0, 1), frames.map { it.frameNumber })
+        assertArrayEquals(byteArrayOf(0x04, 0x20), frames[1].dtc)
+        assertNull(FreezeFrameReader(ecu).read(5))
+    }
+
+    @Test
+    fun testUnsplittableResponseIsRetriedPerPair() = runTest {
+        // PID 03 answered with 1 byte instead of 2
+        val ecu = SimulatedEcu(setOf(0x03, 0x04, 0x05, 0x0C), frames = 1, shortPid = 0x03)
+        val reader = FreezeFrameReader(ecu)
+
+        val frame = reader.read(0)!!
+
+        assertEquals(setOf(0x02, 0x04, 0x05, 0x0C), frame.data.keys)
+        // Bitmap, 2 packed requests, then the 3 pairs of the failed one singly
+        assertEquals(6L, reader.requests)
+    }
+
+    @Test
+    fun testDecodedValues() = runTest {
+        val frame = FreezeFrameReader(SimulatedEcu(setOf(0x05, 0x0C, 0x0D, 0x1F), frames = 1)).read(0)!!
+
+        val values = frame.decode().associate { it.pid to it.value }
+        assertEquals(0xC8 - 40, values[0x05])
+        assertEquals(0xC8C9 / 4.0, values[0x0C])
+        assertEquals(0xC8, values[0x0D])
+        assertEquals(0xC8C9, values[0x1F])
+    }
+
+    @Test
+    fun testPidDecoder() {
+        assertEquals(4, PidDecoder.dataLength(0x00))
+        assertEquals(1, PidDecoder.dataLength(0x0D))
+        assertEquals(2, PidDecoder.dataLength(0x10))
+        assertEquals(4, PidDecoder.dataLength(0x24))
+        assertEquals(2, PidDecoder.dataLength(0x3C))
+        assertEquals(4, PidDecoder.dataLength(0xA0))
+        assertNull(PidDecoder.dataLength(0xA6))
+
+        // 41 removed: 0C 1A F8 0D 32 05 7B
+        val current = byteArrayOf(0x0C, 0x1A, 0xF8.toByte(), 0x0D, 0x32, 0x05, 0x7B)
+        val split = PidDecoder.splitCurrentData(current, listOf(0x0C, 0x0D, 0x05))!!
+        assertEquals(listOf(0x0C, 0x0D, 0x05), split.keys.toList())
+        assertEquals(1726.0, PidDecoder.decode(0x0C, split.getValue(0x0C))!!.value)
+        assertEquals(0x7B - 40, PidDecoder.decode(0x05, split.getValue(0x05))!!.value)
+        // Truncated or unrequested PIDs do not split
+        assertNull(PidDecoder.splitCurrentData(current.copyOf(6), listOf(0x0C, 0x0D, 0x05)))
+        assertNull(PidDecoder.splitCurrentData(current, listOf(0x0C, 0x0D)))
+        assertEquals("PID 03", PidDecoder.decode(0x03, byteArrayOf(0x02, 0x00))!!.name)
+    }
+
+    // ========================================================================
+    // HELPERS
+    // ========================================================================
+
+    /**
+     * What `ObdProtocol.readFreezeFrame` did: the 0x00 bitmap, each PID of
+     * it in its own request, then PID 0x02 for the DTC.
+     */
+    private suspend fun perPidRead(ecu: SimulatedEcu, frame: Int): Map<Int, ByteArray> {
+        val data = LinkedHashMap<Int, ByteArray>()
+        val bitmap = ecu.readFreezeFrame(listOf(0x00 to frame))!!.copyOfRange(2, 6)
+        val supported = SupportedPids().apply { add(0x00, bitmap) }
+        for (pid in supported.toList() + 0x02) {
+            val response = ecu.readFreezeFrame(listOf(pid to frame)) ?: continue
+            data[pid] = response.copyOfRange(2, response.size)
+        }
+        return data
+    }
+
+    /**
+     * ECU with [frames] stored freeze frames, each holding [pids]; every
+     * request costs [LATENCY_MS]. Answers any number of pairs per request.
+     */
+    private class SimulatedEcu(
+        private val pids: Set<Int>,
+        private val frames: Int,
+        private val shortPid: Int? = null
+    ) : FreezeFrameTransport {
+
+        val requests = ArrayList<List<Pair<Int, Int>>>()
+
+        override suspend fun readFreezeFrame(pairs: List<Pair<Int, Int>>): ByteArray? {
+            requests.add(pairs)
+            delay(LATENCY_MS)
+            val out = ArrayList<Byte>()
+            for ((pid, frame) in pairs) {
+                if (frame >= frames) continue
+                val data = when {
+                    pid == FreezeFrameData.PID_DTC -> byteArrayOf((0x03 + frame).toByte(), (0x01 + frame * 0x1F).toByte())
+                    SupportedPids.isRangePid(pid) -> bitmap(pid) ?: continue
+                    pid !in pids -> continue
+                    pid == shortPid -> byteArrayOf(0x01)
+                    else -> ByteArray(PidDecoder.dataLength(pid)!!) { (0xC8 + frame + it).toByte() }
+                }
+                out += pid.toByte()
+                out += frame.toByte()
+                out += data.toList()
+            }
+            return out.takeIf { it.isNotEmpty() }?.toByteArray()
+        }
+
+        private fun bitmap(basePid: Int): ByteArray? {
+            if (basePid != 0x00 && basePid !in pids) return null
+            val bitmap = ByteArray(SupportedPids.BITMAP_LENGTH)
+            for (pid in pids.filter { it in basePid + 1..basePid + SupportedPids.RANGE_SIZE }) {
+                val bit = pid - basePid - 1
+                bitmap[bit / 8] = (bitmap[bit / 8].toInt() or (0x80 shr (bit % 8))).toByte()
+            }
+            return bitmap
+        }
+    }
+
+    companion object {
+        private const val LATENCY_MS = 60L
+
+        /** 15 PIDs in the 0x00 range, none beyond it. */
+        private val FRAME_PIDS = setOf(0x03, 0x04, 0x05, 0x06, 0x07, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, 0x10, 0x11, 0x13, 0x15, 0x1F)
+    }
+}
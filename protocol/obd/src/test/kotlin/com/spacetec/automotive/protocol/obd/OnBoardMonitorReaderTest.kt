@@ -0,0 +1,295 @@
+package com.spacetec.obd.protocol.obd
+
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [OnBoardMonitorReader] against a simulated ECU counting bus
+ * requests, compared with reading one PID/MID per request on every screen,
+ * and for [MonitorTestDecoder] over the full MID/TID table.
+ */
+class OnBoardMonitorReaderTest {
+
+    @Test
+    fun testCachedReadsAgainstPerIdReads() = runTest {
+        val perId = SimulatedEcu(MIDS)
+        val start = testScheduler.currentTime
+        // Readiness screen, then monitor screen, each reading what it shows
+        perIdReadiness(perId)
+        perIdReadiness(perId)
+        val expected = perIdTestResults(perId)
+        val perIdMs = testScheduler.currentTime - start
+
+        val ecu = SimulatedEcu(MIDS)
+        val reader = OnBoardMonitorReader(ecu)
+        val begin = testScheduler.currentTime
+        val readiness = reader.readiness()
+        reader.readiness()
+        val results = reader.testResults()
+        val cachedMs = testScheduler.currentTime - begin
+
+        println(
+            "Readiness + mode 06, ${MIDS.size} MIDs: per ID ${perId.requests} requests ${perIdMs}ms, " +
+                "packed and cached ${reader.requests} requests ${cachedMs}ms"
+        )
+        assertEquals(SimulatedEcu.READINESS, readiness!!.sinceClear)
+        assertEquals(expected.size, results.size)
+        for (i in 0 until results.size) {
+            assertEquals(expected[i].first, results.mid(i))
+            assertEquals(expected[i].second, results.tid(i))
+        }
+        // 1 readiness, 1 for ranges 00-A0, 1 per MID
+        assertEquals(2L + MIDS.size, reader.requests)
+        assertEquals(ecu.requests.toLong(), reader.requests)
+        // 2 x (PID 01 + PID 41), 6 range MIDs one by one, 1 per MID
+        assertEquals(4 + 6 + MIDS.size, perId.requests)
+        assertTrue(cachedMs < perIdMs)
+    }
+
+    @Test
+    fun testSecondScreenIsServedFromCache() = runTest {
+        val ecu = SimulatedEcu(MIDS)
+        val reader = OnBoardMonitorReader(ecu)
+        reader.readiness()
+        reader.testResults()
+        val afterFirst = ecu.requests
+
+        val readiness = reader.readiness()
+        val results = reader.testResults()
+        val mids = reader.supportedMids()
+
+        assertEquals(afterFirst, ecu.requests)
+        assertNotNull(readiness)
+        assertEquals(MIDS.size, results.mids().size)
+        assertEquals(MIDS, mids.toList().filterNot { SupportedPids.isRangePid(it) })
+    }
+
+    @Test
+    fun testConcurrentCallersShareOneRead() = runTest {
+        val ecu = SimulatedEcu(MIDS)
+        val reader = OnBoardMonitorReader(ecu)
+
+        val results = (0 until 3).map { async { reader.testResults() } }.awaitAll()
+
+        assertEquals(1L + MIDS.size, reader.requests)
+        assertTrue(results.all { it === results[0] })
+    }
+
+    @Test
+    fun testClearInvalidatesCache() = runTest {
+        val ecu = SimulatedEcu(MIDS)
+        val reader = OnBoardMonitorReader(ecu)
+        val before = reader.readiness()!!
+        reader.testResults()
+
+        ecu.clearDtcs()
+        reader.invalidate()
+        val after = reader.readiness()!!
+        val results = reader.testResults()
+
+        assertTrue(before.milOn)
+        assertFalse(after.milOn)
+        assertFalse(after.isComplete(ReadinessMonitor.CATALYST))
+        assertEquals(2 * (2L + MIDS.size), reader.requests)
+        assertEquals(0, results.size)
+    }
+
+    @Test
+    fun testRangesBeyondSixAreChained() = runTest {
+        val ecu = SimulatedEcu(listOf(0x01, 0xA1, 0xC2, 0xE1))
+        val reader = OnBoardMonitorReader(ecu)
+
+        val mids = reader.supportedMids()
+
+        assertEquals(listOf(0x01, 0xA1, 0xC2, 0xE1), mids.toList().filterNot { SupportedPids.isRangePid(it) })
+        // 00-A0 in one request, C0 and E0 in the next
+        assertEquals(2L, reader.requests)
+    }
+
+    @Test
+    fun testReadinessStatus() {
+        // MIL on, 2 DTCs; misfire and fuel system supported, components
+        // incomplete; catalyst, EVAP, O2 sensor, O2 heater supported, EVAP
+        // incomplete
+        val status = ReadinessStatus(0x82_47_65_04.toInt(), 0x00_07_65_21)
+
+        assertTrue(status.milOn)
+        assertEquals(2, status.dtcCount)
+        assertFalse(status.compressionIgnition)
+        assertEquals(
+            listOf(
+                ReadinessMonitor.MISFIRE, ReadinessMonitor.FUEL_SYSTEM, ReadinessMonitor.COMPONENTS,
+                ReadinessMonitor.CATALYST, ReadinessMonitor.EVAPORATIVE_SYSTEM,
+                ReadinessMonitor.OXYGEN_SENSOR, ReadinessMonitor.OXYGEN_SENSOR_HEATER
+            ),
+            status.supported
+        )
+        assertTrue(status.isComplete(ReadinessMonitor.MISFIRE))
+        assertFalse(status.isComplete(ReadinessMonitor.COMPONENTS))
+        assertTrue(status.isComplete(ReadinessMonitor.CATALYST))
+        assertFalse(status.isComplete(ReadinessMonitor.EVAPORATIVE_SYSTEM))
+        assertFalse(status.isComplete(ReadinessMonitor.EGR_VVT))
+        assertFalse(status.isSupported(ReadinessMonitor.PM_FILTER))
+        // This drive cycle: catalyst and O2 sensor still incomplete
+        assertFalse(status.isComplete(ReadinessMonitor.CATALYST, thisCycle = true))
+        assertTrue(status.isComplete(ReadinessMonitor.EVAPORATIVE_SYSTEM, thisCycle = true))
+    }
+
+    @Test
+    fun testScaling() {
+        val response = record(0x21, 0x80, 0x96, -125, -400, 0) + // Signed °C, 0.1 per bit
+            record(0x01, 0x01, 0x0A, 3686, 0, 4095) + // mV, 0.122 per bit
+            record(0x39, 0x85, 0x16, 1400, 0, 1300) // °C, 0.1 per bit, -40
+
+        val results = MonitorTestDecoder.decode(listOf(response))
+
+        assertEquals(3, results.size)
+        assertEquals(-12.5, results.value(0), 1e-9)
+        assertEquals(-40.0, results.min(0), 1e-9)
+        assertEquals("°C", results.unit(0))
+        assertTrue(results.passed(0))
+        assertEquals(449.692, results.value(1), 1e-9)
+        assertEquals("mV", results.unit(1))
+        assertEquals(100.0, results.value(2), 1e-9)
+        assertFalse(results.passed(2))
+        assertArrayEquals(intArrayOf(2), results.indicesOf(0x39))
+    }
+
+    @Test
+    fun testDecodeFullMidTidTable() {
+        // Every test MID with standard TIDs 01-0A and 6 manufacturer TIDs,
+        // cycling through every UASID
+        val tids = (0x01..0x0A) + (0x80..0x85)
+        var unitId = 0
+        val responses = (0x01..0xFF).filterNot { SupportedPids.isRangePid(it) }.map { mid ->
+            tids.map { tid -> record(mid, tid, unitId++ % 0xFF + 1, tid * 37, 0, 0xFFFF) }.reduce(ByteArray::plus)
+        }
+        val tests = responses.sumOf { it.size } / MonitorTestDecoder.RECORD_LENGTH
+
+        var checksum = 0.0
+        repeat(WARMUP) { checksum += MonitorTestDecoder.decode(responses).values().sum() }
+        val start = System.nanoTime()
+        repeat(ROUNDS) {
+            val results = MonitorTestDecoder.decode(responses)
+            checksum += results.values().sum()
+        }
+        val nanosPerTable = (System.nanoTime() - start) / ROUNDS
+
+        println("Mode 06 decode, $tests tests: %.1f µs per table, %.1f ns per test".format(nanosPerTable / 1000.0, nanosPerTable.toDouble() / tests))
+        val results = MonitorTestDecoder.decode(responses)
+        assertEquals(248 * tids.size, results.size)
+        assertEquals(248, results.mids().size)
+        assertTrue(checksum != 0.0)
+        assertTrue(nanosPerTable < 20_000_000)
+    }
+
+    // ========================================================================
+    // HELPERS
+    // ========================================================================
+
+    private suspend fun perIdReadiness(ecu: SimulatedEcu) {
+        assertNotNull(ecu.request(0x01, byteArrayOf(0x01)))
+        assertNotNull(ecu.request(0x01, byteArrayOf(0x41)))
+    }
+
+    /**
+     * One request per range MID as far as the chain goes, then one per MID.
+     */
+    private suspend fun perIdTestResults(ecu: SimulatedEcu): List<Pair<Int, Int>> {
+        val supported = SupportedPids()
+        var range = 0x00
+        while (range <= 0xE0) {
+            val bitmap = ecu.request(0x06, byteArrayOf(range.toByte())) ?: break
+            if (!supported.add(range, bitmap, 1)) break
+            range += 0x20
+        }
+        return supported.toList().filterNot { SupportedPids.isRangePid(it) }.flatMap { mid ->
+            val response = ecu.request(0x06, byteArrayOf(mid.toByte()))!!
+            (response.indices step MonitorTestDecoder.RECORD_LENGTH).map { mid to (response[it + 1].toInt() and 0xFF) }
+        }
+    }
+
+    private fun record(mid: Int, tid: Int, unitId: Int, value: Int, min: Int, max: Int): ByteArray = byteArrayOf(
+        mid.toByte(), tid.toByte(), unitId.toByte(),
+        (value shr 8).toByte(), value.toByte(), (min shr 8).toByte(), min.toByte(), (max shr 8).toByte(), max.toByte()
+    )
+
+    /**
+     * ECU supporting [mids], each with 1 to 4 tests; every request costs
+     * [LATENCY_MS]. Until [clearDtcs] it has the MIL on and its monitors
+     * complete; afterwards no test has run.
+     */
+    private class SimulatedEcu(private val mids: List<Int>) : ObdRequestTransport {
+        var requests = 0
+        private var cleared = false
+
+        fun clearDtcs() {
+            cleared = true
+        }
+
+        override suspend fun request(service: Int, data: ByteArray): ByteArray? {
+            requests++
+            delay(LATENCY_MS)
+            val out = ArrayList<Byte>()
+            when (service) {
+                0x01 -> for (pid in data.map { it.toInt() and 0xFF }) {
+                    val value = when (pid) {
+                        0x01 -> if (cleared) READINESS_CLEARED else READINESS
+                        0x41 -> if (cleared) READINESS_CLEARED and 0xFFFFFF else READINESS and 0xFFFFFF
+                        else -> continue
+                    }
+                    out += pid.toByte()
+                    for (shift in 24 downTo 0 step 8) out += (value shr shift).toByte()
+                }
+                0x06 -> for (mid in data.map { it.toInt() and 0xFF }) {
+                    if (SupportedPids.isRangePid(mid)) {
+                        val bitmap = bitmap(mid) ?: continue
+                        out += mid.toByte()
+                        out += bitmap.toList()
+                    } else if (mid in mids && !cleared) {
+                        repeat(1 + mid % 4) { tid ->
+                            out += byteArrayOf(mid.toByte(), (tid + 1).toByte(), 0x0A, 0x0E, (mid + tid).toByte(), 0, 0, 0x0F, 0xFF.toByte()).toList()
+                        }
+                    }
+                }
+                else -> return null
+            }
+            return out.takeIf { it.isNotEmpty() }?.toByteArray()
+        }
+
+        /** Bitmap of [range], flagging the next range if any MID lies beyond it. */
+        private fun bitmap(range: Int): ByteArray? {
+            if (range != 0x00 && mids.none { it > range }) return null
+            val supported = mids.filter { it in range + 1 until range + 0x20 } +
+                listOfNotNull((range + 0x20).takeIf { next -> mids.any { it > next } })
+            val bitmap = ByteArray(4)
+            for (mid in supported) {
+                val bit = mid - range - 1
+                bitmap[bit / 8] = (bitmap[bit / 8].toInt() or (0x80 shr (bit % 8))).toByte()
+            }
+            return bitmap
+        }
+
+        companion object {
+            /** MIL on, 1 DTC, spark ignition, all monitors complete. */
+            const val READINESS = 0x81_07_E5_00.toInt()
+            const val READINESS_CLEARED = 0x00_77_E5_E5
+        }
+    }
+
+    companion object {
+        private const val LATENCY_MS = 60L
+        private const val WARMUP = 200
+        private const val ROUNDS = 500
+
+        /** MIDs of a typical spark ignition engine: O2, catalyst, EGR/VVT, EVAP, heaters, misfire. */
+        private val MIDS = listOf(
+            0x01, 0x02, 0x05, 0x06, 0x21, 0x22, 0x31, 0x35, 0x39, 0x3A, 0x3B, 0x3C,
+            0x41, 0x42, 0x45, 0x46, 0x61, 0x71, 0x81, 0x85, 0xA1, 0xA2, 0xA3, 0xA4
+        )
+    }
+}
@@ -0,0 +1,221 @@
+package com.spacetec.obd.protocol.obd
+
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.flow.takeWhile
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [PidScheduler] against a simulated ELM327 with per-request
+ * latency, and for the [SupportedPids] bitmap it filters on.
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class PidSchedulerTest {
+
+    @Test
+    fun testSupportedPidsBitmap() {
+        val supported = SupportedPids()
+
+        // 0x00 range: 01, 03, 04, 05, 0C, 0D, 20
+        val hasNext = supported.add(0x00, byteArrayOf(0xB8.toByte(), 0x18, 0x00, 0x01))
+        assertTrue(hasNext)
+        // 0x20 range: 21, 2F; no further ranges
+        assertFalse(supported.add(0x20, byteArrayOf(0x80.toByte(), 0x02, 0x00, 0x00)))
+
+        assertEquals(listOf(0x01, 0x03, 0x04, 0x05, 0x0C, 0x0D, 0x20, 0x21, 0x2F), supported.toList())
+        assertTrue(0x2F in supported)
+        assertFalse(0x0B in supported)
+        assertFalse(supported.isSupported(0x00))
+        assertFalse(supported.isSupported(0x100))
+    }
+
+    @Test
+    fun testAssignPrefersFirstSupportingEcu() {
+        val ecus = mapOf(
+            0x7E9 to SupportedPids.of(0x0C, 0x0D, 0x5C),
+            0x7E8 to SupportedPids.of(0x04, 0x05, 0x0C)
+        )
+        val pids = listOf(PidRate(0x0C, 20.0), PidRate(0x05, 1.0), PidRate(0x5C, 1.0), PidRate(0x42, 1.0))
+
+        val assignment = PidScheduler.assign(pids, ecus)
+
+        assertEquals(listOf(0x0C, 0x05), assignment.getValue(0x7E8).map { it.pid })
+        assertEquals(listOf(0x5C), assignment.getValue(0x7E9).map { it.pid })
+        // 0x42 is supported nowhere
+        assertEquals(3, assignment.values.sumOf { it.size })
+    }
+
+    @Test
+    fun testRequestsArePackedPerEcuAndFiltered() = runTest {
+        val adapter = SimulatedAdapter(
+            this,
+            mapOf(
+                0x7E8 to SupportedPids.of(0x04, 0x05, 0x0C, 0x0D, 0x0F, 0x11),
+                0x7E9 to SupportedPids.of(0x0D, 0x5C, 0xA6)
+            )
+        )
+        val pids = listOf(0x04, 0x05, 0x0C, 0x0D, 0x0F, 0x11, 0x5C, 0xA6, 0x42).map { PidRate(it, 1.0) }
+        val scheduler = PidScheduler(adapter, clock = { testScheduler.currentTime })
+
+        val samples = scheduler.samples(pids, adapter.bitmaps).take(8).toList()
+
+        assertEquals(8, samples.size)
+        // 6 PIDs from 0x7E8 in one request, the rest from 0x7E9 in another
+        assertEquals(2, adapter.requests.size)
+        assertEquals(6, adapter.requests[0].second.size)
+        for ((ecu, requested) in adapter.requests) {
+            assertTrue(requested.all { adapter.bitmaps.getValue(ecu).isSupported(it) })
+        }
+        assertTrue(samples.none { it.pid == 0x42 })
+        assertEquals(setOf(0x5C, 0xA6), samples.filter { it.ecu == 0x7E9 }.map { it.pid }.toSet())
+    }
+
+    @Test
+    fun testSlowPidsAreNotPolledFasterThanRequested() = runTest {
+        val adapter = SimulatedAdapter(this, mapOf(0x7E8 to SupportedPids.of(*DASHBOARD.map { it.pid }.toIntArray())))
+        val scheduler = PidScheduler(adapter, clock = { testScheduler.currentTime })
+
+        val samples = scheduler.samples(DASHBOARD, adapter.bitmaps)
+            .takeWhile { it.timestampMs < RUN_MS }
+            .toList()
+
+        val counts = samples.groupingBy { it.pid }.eachCount()
+        // Coolant at 0.5 Hz and fuel level at 0.2 Hz over 10 s
+        assertTrue("coolant ${counts[0x05]}", counts.getValue(0x05) in 5..6)
+        assertTrue("fuel ${counts[0x2F]}", counts.getValue(0x2F) in 2..3)
+        // RPM is the fastest PID and rides along with every request
+        assertTrue("rpm ${counts[0x0C]}", counts.getValue(0x0C) >= counts.values.max())
+    }
+
+    @Test
+    fun testUnansweredPidIsDropped() = runTest {
+        val adapter = SimulatedAdapter(this, mapOf(0x7E8 to SupportedPids.of(0x0C, 0x0D)), silent = setOf(0x0D))
+        val scheduler = PidScheduler(adapter, clock = { testScheduler.currentTime })
+
+        val samples = scheduler.samples(listOf(PidRate(0x0C, 10.0), PidRate(0x0D, 10.0)), adapter.bitmaps)
+            .take(10)
+            .toList()
+
+        assertTrue(samples.all { it.pid == 0x0C })
+        val withSpeed = adapter.requests.count { 0x0D in it.second }
+        assertEquals(PidScheduler.MAX_CONSECUTIVE_MISSES, withSpeed)
+    }
+
+    @Test
+    fun testUnknownLengthPidsAreSentLastAndOnePerRequest() = runTest {
+        // 0xA5 and 0xA6 have no length in PidDecoder
+        val adapter = SimulatedAdapter(this, mapOf(0x7E8 to SupportedPids.of(0x0C, 0x0D, 0xA5, 0xA6)))
+        val scheduler = PidScheduler(adapter, clock = { testScheduler.currentTime })
+        val pids = listOf(PidRate(0xA5, 5.0), PidRate(0xA6, 5.0), PidRate(0x0C, 5.0), PidRate(0x0D, 5.0))
+
+        scheduler.samples(pids, adapter.bitmaps).take(20).toList()
+
+        for ((_, requested) in adapter.requests) {
+            val unknown = requested.filter { PidDecoder.dataLength(it) == null }
+            assertTrue(requested.contentToString(), unknown.size <= 1)
+            if (unknown.isNotEmpty()) assertEquals(unknown[0], requested.last())
+        }
+        assertTrue(adapter.requests.any { 0xA6 in it.second })
+        assertTrue(adapter.requests.any { 0xA5 in it.second })
+    }
+
+    @Test
+    fun testEffectiveRateAgainstSequentialPolling() = runTest {
+        val bitmaps = mapOf(0x7E8 to SupportedPids.of(*DASHBOARD.map { it.pid }.toIntArray()))
+
+        // One PID per request, back to back, as ObdService.startLiveData polls
+        val sequential = SimulatedAdapter(this, bitmaps)
+        val sequentialCounts = HashMap<Int, Int>()
+        val sequentialStart = testScheduler.currentTime
+        while (testScheduler.currentTime - sequentialStart < RUN_MS) {
+            for (rate in DASHBOARD) {
+                if (sequential.readPids(0x7E8, intArrayOf(rate.pid)).containsKey(rate.pid)) {
+                    sequentialCounts.merge(rate.pid, 1, Int::plus)
+                }
+            }
+        }
+
+        val scheduled = SimulatedAdapter(this, bitmaps)
+        val scheduler = PidScheduler(scheduled, clock = { testScheduler.currentTime })
+        val scheduledStart = testScheduler.currentTime
+        val scheduledCounts = scheduler.samples(DASHBOARD, bitmaps)
+            .takeWhile { it.timestampMs - scheduledStart < RUN_MS }
+            .toList()
+            .groupingBy { it.pid }
+            .eachCount()
+
+        val sequentialRate = effectiveRate(sequentialCounts)
+        val scheduledRate = effectiveRate(scheduledCounts)
+        println(
+            "Effective samples/s at ${SimulatedAdapter.BASE_LATENCY_MS} ms latency: " +
+                "sequential %.1f (%d requests), scheduled %.1f (%d requests), target %.1f".format(
+                    sequentialRate, sequential.requests.size,
+                    scheduledRate, scheduled.requests.size,
+                    DASHBOARD.sumOf { it.rateHz }
+                )
+        )
+
+        assertTrue("scheduled $scheduledRate vs sequential $sequentialRate", scheduledRate > sequentialRate * 2)
+        // RPM should get close to its 20 Hz target despite the slow link
+        assertTrue("rpm ${scheduledCounts[0x0C]}", scheduledCounts.getValue(0x0C) * 1000.0 / RUN_MS >= 12.0)
+    }
+
+    // ========================================================================
+    // HELPERS
+    // ========================================================================
+
+    /**
+     * Samples per second, each PID capped at its target rate: values beyond
+     * the target are not useful to the display.
+     */
+    private fun effectiveRate(counts: Map<Int, Int>): Double = DASHBOARD.sumOf { rate ->
+        minOf((counts[rate.pid] ?: 0) * 1000.0 / RUN_MS, rate.rateHz)
+    }
+
+    /**
+     * ELM327-like adapter: every request costs [BASE_LATENCY_MS] plus
+     * [PER_PID_LATENCY_MS] per PID in the response.
+     */
+    private class SimulatedAdapter(
+        private val scope: TestScope,
+        val bitmaps: Map<Int, SupportedPids>,
+        private val silent: Set<Int> = emptySet()
+    ) : PidTransport {
+
+        val requests = ArrayList<Pair<Int, IntArray>>()
+
+        override suspend fun readPids(ecu: Int, pids: IntArray): Map<Int, ByteArray> {
+            requests.add(ecu to pids.copyOf())
+            val answered = pids.filter { bitmaps.getValue(ecu).isSupported(it) && it !in silent }
+            delay(BASE_LATENCY_MS + PER_PID_LATENCY_MS * answered.size)
+            return answered.associateWith { byteArrayOf(it.toByte(), (scope.testScheduler.currentTime and 0xFF).toByte()) }
+        }
+
+        companion object {
+            const val BASE_LATENCY_MS = 60L
+            const val PER_PID_LATENCY_MS = 4L
+        }
+    }
+
+    companion object {
+        private const val RUN_MS = 10_000L
+
+        private val DASHBOARD = listOf(
+            PidRate(0x0C, 20.0), // RPM
+            PidRate(0x0D, 10.0), // Speed
+            PidRate(0x04, 5.0),  // Load
+            PidRate(0x11, 5.0),  // Throttle
+            PidRate(0x0B, 5.0),  // MAP
+            PidRate(0x0E, 5.0),  // Timing advance
+            PidRate(0x10, 2.0),  // MAF
+            PidRate(0x0F, 1.0),  // Intake air temperature
+            PidRate(0x05, 0.5),  // Coolant
+            PidRate(0x2F, 0.2)   // Fuel level
+        )
+    }
+}
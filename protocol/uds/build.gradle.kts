@@ -47,5 +47,6 @@ dependencies {
     implementation(libs.javax.inject)
 
     testImplementation(libs.junit)
+    testImplementation(libs.kotlinx.coroutines.test)
     androidTestImplementation(libs.androidx.test.ext.junit)
 }
@@ -5,18 +5,31 @@ import com.spacetec.protocol.core.base.ProtocolCapabilities
 import com.spacetec.protocol.core.base.ProtocolConfig
 import com.spacetec.protocol.core.base.SessionType
 import com.spacetec.protocol.core.message.DiagnosticMessage
+import com.spacetec.protocol.core.timing.TimingManager
 import com.spacetec.protocol.core.base.ProtocolState
 import com.spacetec.protocol.core.base.ProtocolType
 import com.spacetec.protocol.core.base.NegativeResponseCodes
 import com.spacetec.protocol.core.base.ProtocolError
 import com.spacetec.protocol.core.base.ProtocolFeature
 import com.spacetec.protocol.safety.SafetyManager
+import com.spacetec.protocol.uds.programming.FlashCheckpointStore
+import com.spacetec.protocol.uds.programming.FlashConfig
+import com.spacetec.protocol.uds.programming.InMemoryFlashCheckpointStore
+import com.spacetec.protocol.uds.programming.UDSFlashEngine
+import com.spacetec.protocol.uds.programming.UDSRequestChannel
+import com.spacetec.protocol.uds.services.DidBatchReader
+import com.spacetec.protocol.uds.services.DidBatchResult
+import com.spacetec.protocol.uds.services.DidLengthCatalog
+import com.spacetec.protocol.uds.services.PeriodicDidStreamer
+import com.spacetec.protocol.uds.services.UDSPeriodicChannel
 import com.spacetec.protocol.safety.SafetyCriticalOperation
 import com.spacetec.protocol.safety.VehicleStatus
 import com.spacetec.transport.contract.ScannerConnection
 import com.spacetec.core.common.exceptions.ProtocolException
 import com.spacetec.core.common.exceptions.CommunicationException
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlinx.coroutines.flow.Flow
 import java.util.concurrent.atomic.AtomicBoolean
 
 /**
@@ -36,6 +49,21 @@ class UDSProtocol : BaseProtocol() {
     private val safetyManager = SafetyManager()
     private var currentSessionType: SessionType = SessionType.DEFAULT
     private var securityAccessLevel: Int = 0
+    private val didReader = DidBatchReader({ _, request -> exchangeFinal(request) }, DidLengthCatalog.standard())
+
+    // ATST value last sent to the adapter; -1 after a reset
+    private var appliedElmTimeout = -1
+
+    // Tester presents never need an answer
+    override val suppressKeepAliveResponse: Boolean
+        get() = true
+
+    // Only an ELM327 can switch to the functional header between requests
+    override val supportsFunctionalKeepAlive: Boolean
+        get() = isElm327
+
+    private val isElm327: Boolean
+        get() = connection?.isElm327 == true
 
     override suspend fun initialize(
         connection: ScannerConnection,
@@ -47,6 +75,7 @@ class UDSProtocol : BaseProtocol() {
             // Reset and configure ELM327 adapter for UDS
             sendRaw("ATZ\r".toByteArray()) // Reset
             delay(1000) // Wait for reset
+            appliedElmTimeout = -1
             
             sendRaw("ATE0\r".toByteArray()) // Echo off
             sendRaw("ATL0\r".toByteArray()) // Linefeeds off
@@ -69,8 +98,9 @@ class UDSProtocol : BaseProtocol() {
     }
 
     override suspend fun sendMessage(request: DiagnosticMessage): DiagnosticMessage {
-        return baseSendMessage(request, _config.responseTimeoutMs) { data ->
-            val response = sendRaw(data)
+        return baseSendMessage(request, responseTimeoutFor(request.serviceId)) { data ->
+            // Already in baseSendMessage's slot, with ATST ahead of the request
+            val response = transmitRaw(data, _config.responseTimeoutMs) { conn -> applyElmTimeout(conn, request.serviceId) }
             response
         }
     }
@@ -80,7 +110,8 @@ class UDSProtocol : BaseProtocol() {
         timeoutMs: Long
     ): DiagnosticMessage {
         return baseSendMessage(request, timeoutMs) { data ->
-            val response = sendRaw(data)
+            // Already in baseSendMessage's slot, with ATST ahead of the request
+            val response = transmitRaw(data, _config.responseTimeoutMs) { conn -> applyElmTimeout(conn, request.serviceId) }
             response
         }
     }
@@ -105,6 +136,10 @@ class UDSProtocol : BaseProtocol() {
         }
 
         try {
+            if ((ecuAddress ?: TimingManager.ANY_ECU) != targetEcuAddress) {
+                selectEcu(ecuAddress)
+            }
+
             // Build diagnostic session control request (0x10)
             val sessionData = byteArrayOf(sessionType.id.toByte())
             val request = buildRequest(0x10, sessionData)
@@ -121,12 +156,60 @@ class UDSProtocol : BaseProtocol() {
         }
     }
 
+    /**
+     * Addresses the following requests physically to [ecuAddress] (11-bit
+     * request ID) with `ATSH`, or functionally if null, without changing the
+     * session. Response timeouts, `ATST` and DID request limits are then
+     * learned and applied for that ECU alone.
+     */
+    suspend fun selectEcu(ecuAddress: Int?) {
+        if (isElm327) {
+            sendRaw(setHeader(ecuAddress ?: FUNCTIONAL_REQUEST_ID))
+        }
+        targetEcuAddress = ecuAddress ?: TimingManager.ANY_ECU
+    }
+
+    /**
+     * Sends one `3E 80` to the functional request ID, keeping every UDS
+     * session on the adapter alive, then restores the selected ECU's header.
+     * All three go out in one scheduler slot, so no request can be sent with
+     * the functional header.
+     */
+    override suspend fun performFunctionalKeepAlive() {
+        val timeoutMs = _config.responseTimeoutMs
+        val testerPresent = buildRequest(0x3E, byteArrayOf(0x80.toByte())).toByteArray()
+        exclusive(0x3E) { conn ->
+            val physical = isElm327 && targetEcuAddress != TimingManager.ANY_ECU
+            if (physical) {
+                conn.write(setHeader(FUNCTIONAL_REQUEST_ID))
+                conn.read(timeoutMs)
+            }
+            try {
+                conn.write(testerPresent)
+                // The adapter reports NO DATA once no ECU answered
+                withTimeoutOrNull(timeoutMs) { conn.read(timeoutMs) }
+            } finally {
+                if (physical) {
+                    conn.write(setHeader(targetEcuAddress))
+                    conn.read(timeoutMs)
+                }
+            }
+        }
+    }
+
+    private fun setHeader(requestId: Int): ByteArray = "ATSH%03X\r".format(requestId).toByteArray()
+
     override suspend fun sendKeepAlive() {
         if (isSessionActive) {
             try {
                 // Send Tester Present (0x3E) to maintain session
-                val request = buildRequest(0x3E, byteArrayOf(0x00)) // Zero sub-function
-                sendMessage(request, _config.responseTimeoutMs)
+                if (suppressKeepAliveResponse) {
+                    val request = buildRequest(0x3E, byteArrayOf(0x80.toByte())) // Suppress positive response
+                    sendWithoutResponse(request.toByteArray())
+                } else {
+                    val request = buildRequest(0x3E, byteArrayOf(0x00)) // Zero sub-function
+                    sendMessage(request, _config.responseTimeoutMs)
+                }
             } catch (e: Exception) {
                 // Keep-alive is best effort, don't throw
             }
@@ -286,6 +369,19 @@ class UDSProtocol : BaseProtocol() {
         }
     }
 
+    /**
+     * Reads several DIDs from the current ECU in as few 0x22 requests as it
+     * accepts; see [DidBatchReader]. Learned request limits are kept per
+     * session target, so one ECU's limits don't apply to another.
+     */
+    suspend fun readDataByIds(dids: List<Int>): Result<DidBatchResult> {
+        return try {
+            Result.success(didReader.read(targetEcuAddress, dids))
+        } catch (e: Exception) {
+            Result.failure(e)
+        }
+    }
+
     suspend fun writeDataById(did: Int, data: ByteArray): Result<Boolean> {
         return try {
             val requestData = byteArrayOf(
@@ -400,7 +496,83 @@ class UDSProtocol : BaseProtocol() {
         }
     }
 
+    /**
+     * Creates a download engine on this protocol's connection.
+     *
+     * Requests go through [sendRawAwaitingFinal] so negative responses reach
+     * the engine unchanged, and NRC 0x78 is waited out for the P2* the ECU
+     * reported without holding the scheduler; the caller must hold
+     * the programming session and security access for the whole download.
+     */
+    fun createFlashEngine(
+        checkpointStore: FlashCheckpointStore = InMemoryFlashCheckpointStore(),
+        config: FlashConfig = FlashConfig()
+    ): UDSFlashEngine {
+        val channel = object : UDSRequestChannel {
+            override suspend fun request(data: ByteArray, length: Int, timeoutMs: Long): ByteArray =
+                sendRawAwaitingFinal(
+                    if (length == data.size) data else data.copyOf(length),
+                    timeoutMs,
+                    timingManager.timeouts.responsePendingTimeoutMs(targetEcuAddress)
+                )
+
+            override suspend fun awaitResponse(timeoutMs: Long): ByteArray =
+                // request never returns a response-pending reply
+                throw CommunicationException("No response pending")
+        }
+        return UDSFlashEngine(channel, checkpointStore, config)
+    }
+
+    /**
+     * Creates a periodic DID streamer on this protocol's connection.
+     *
+     * Periodic messages arrive on a response ID reserved by the manufacturer,
+     * not in answer to a request, so the caller supplies them from an adapter
+     * filtering that ID (e.g. a CAN monitor); the 0x2C/0x2A requests go
+     * through this protocol. The session the ECU requires for 0x2A must be
+     * active while the stream runs.
+     */
+    fun createPeriodicStreamer(periodicMessages: Flow<ByteArray>): PeriodicDidStreamer {
+        val channel = object : UDSPeriodicChannel {
+            override suspend fun request(data: ByteArray): ByteArray = exchangeFinal(data)
+
+            override fun periodicMessages(): Flow<ByteArray> = periodicMessages
+        }
+        return PeriodicDidStreamer(channel)
+    }
+
     // Private helper methods
+
+    /**
+     * Sends [request] and waits out any NRC 0x78 for the final response,
+     * releasing the scheduler between reads; see [sendRawAwaitingFinal].
+     * Both waits are the ones learned for the target ECU.
+     */
+    private suspend fun exchangeFinal(request: ByteArray): ByteArray {
+        val serviceId = if (request.isEmpty()) -1 else request[0].toInt() and 0xFF
+        return sendRawAwaitingFinal(
+            request,
+            responseTimeoutFor(serviceId),
+            timingManager.timeouts.responsePendingTimeoutMs(targetEcuAddress)
+        ) { conn -> applyElmTimeout(conn, serviceId) }
+    }
+
+    /**
+     * Sets the adapter's own response timeout (`ATST`) to the one learned for
+     * the target ECU and [serviceId], so the adapter stops listening as soon
+     * as the host would; only sent to an ELM327, and only when the value
+     * changes. Runs as the prologue of the request it applies to, in the
+     * same scheduler slot, so no other request can change it in between.
+     */
+    private suspend fun applyElmTimeout(conn: ScannerConnection, serviceId: Int) {
+        if (!isElm327) return
+        val value = timingManager.timeouts.elmTimeout(targetEcuAddress, serviceId)
+        if (value == appliedElmTimeout) return
+        conn.write("ATST%02X\r".format(value).toByteArray())
+        conn.read(_config.responseTimeoutMs)
+        appliedElmTimeout = value
+    }
+
     private fun calculateKey(seed: ByteArray, level: Int): ByteArray {
         // This is a placeholder for manufacturer-specific security algorithms
         // Real implementations would use different algorithms based on:
@@ -478,6 +650,11 @@ class UDSProtocol : BaseProtocol() {
         }
         isInitialized.set(false)
     }
+
+    private companion object {
+        // OBD functional request ID on 11-bit CAN
+        const val FUNCTIONAL_REQUEST_ID = 0x7DF
+    }
 }
 
 // Supporting data classes (same as in OBD)
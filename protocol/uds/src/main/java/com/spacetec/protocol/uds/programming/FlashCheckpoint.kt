@@ -0,0 +1,114 @@
+package com.spacetec.protocol.uds.programming
+
+import java.io.File
+import java.io.IOException
+import java.util.Properties
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Progress of an interrupted download, as acknowledged by the ECU.
+ *
+ * @property imageKey Identifies the image and target (see [FlashImage.key])
+ * @property downloadAddress Start address of the RequestDownload the counter belongs to
+ * @property bytesAcknowledged Image bytes the ECU confirmed with a positive 0x76
+ * @property nextBlockCounter blockSequenceCounter to use for the next 0x36
+ * @property maxBlockLength maxNumberOfBlockLength negotiated in the 0x74 response
+ */
+data class FlashCheckpoint(
+    val imageKey: String,
+    val downloadAddress: Long,
+    val bytesAcknowledged: Long,
+    val nextBlockCounter: Int,
+    val maxBlockLength: Int
+)
+
+/**
+ * Persists [FlashCheckpoint]s so an interrupted flash can resume.
+ */
+interface FlashCheckpointStore {
+    fun load(imageKey: String): FlashCheckpoint?
+    fun save(checkpoint: FlashCheckpoint)
+    fun clear(imageKey: String)
+}
+
+/**
+ * Process-local checkpoint store; survives dropped connections but not restarts.
+ */
+class InMemoryFlashCheckpointStore : FlashCheckpointStore {
+
+    private val checkpoints = ConcurrentHashMap<String, FlashCheckpoint>()
+
+    override fun load(imageKey: String): FlashCheckpoint? = checkpoints[imageKey]
+
+    override fun save(checkpoint: FlashCheckpoint) {
+        checkpoints[checkpoint.imageKey] = checkpoint
+    }
+
+    override fun clear(imageKey: String) {
+        checkpoints.remove(imageKey)
+    }
+}
+
+/**
+ * Checkpoint store writing one properties file per image into [directory],
+ * so a flash can resume after the app is restarted.
+ */
+class FileFlashCheckpointStore(private val directory: File) : FlashCheckpointStore {
+
+    override fun load(imageKey: String): FlashCheckpoint? {
+        val file = fileFor(imageKey)
+        if (!file.exists()) return null
+
+        return try {
+            val properties = Properties().apply { file.inputStream().use { load(it) } }
+            FlashCheckpoint(
+                imageKey = properties.getProperty(KEY_IMAGE) ?: return null,
+                downloadAddress = properties.getProperty(KEY_ADDRESS)?.toLong() ?: return null,
+                bytesAcknowledged = properties.getProperty(KEY_ACKNOWLEDGED)?.toLong() ?: return null,
+                nextBlockCounter = properties.getProperty(KEY_COUNTER)?.toInt() ?: return null,
+                maxBlockLength = properties.getProperty(KEY_BLOCK_LENGTH)?.toInt() ?: return null
+            ).takeIf { it.imageKey == imageKey }
+        } catch (e: IOException) {
+            null
+        } catch (e: NumberFormatException) {
+            null
+        }
+    }
+
+    override fun save(checkpoint: FlashCheckpoint) {
+        directory.mkdirs()
+        val properties = Properties().apply {
+            setProperty(KEY_IMAGE, checkpoint.imageKey)
+            setProperty(KEY_ADDRESS, checkpoint.downloadAddress.toString())
+            setProperty(KEY_ACKNOWLEDGED, checkpoint.bytesAcknowledged.toString())
+            setProperty(KEY_COUNTER, checkpoint.nextBlockCounter.toString())
+            setProperty(KEY_BLOCK_LENGTH, checkpoint.maxBlockLength.toString())
+        }
+
+        // Write-then-rename so a crash never leaves a half-written checkpoint
+        val target = fileFor(checkpoint.imageKey)
+        val temp = File(directory, target.name + ".tmp")
+        temp.outputStream().use { properties.store(it, null) }
+        if (!temp.renameTo(target)) {
+            target.delete()
+            temp.renameTo(target)
+        }
+    }
+
+    override fun clear(imageKey: String) {
+        fileFor(imageKey).delete()
+    }
+
+    private fun fileFor(imageKey: String): File {
+        val safeName = imageKey.replace(Regex("[^A-Za-z0-9._-]"), "_")
+        return File(directory, "$safeName.flash")
+    }
+
+    private companion object {
+        const val KEY_IMAGE = "image"
+        const val KEY_ADDRESS = "address"
+        const val KEY_ACKNOWLEDGED = "acknowledged"
+        const val KEY_COUNTER = "counter"
+        const val KEY_BLOCK_LENGTH = "blockLength"
+    }
+}
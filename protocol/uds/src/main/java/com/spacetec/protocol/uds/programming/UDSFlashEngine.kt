@@ -0,0 +1,511 @@
+package com.spacetec.protocol.uds.programming
+
+import com.spacetec.core.common.exceptions.ProtocolException
+import com.spacetec.protocol.core.base.NegativeResponseCodes
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.zip.CRC32
+
+/**
+ * Request/response channel the flash engine talks to the ECU through.
+ *
+ * Implementations handle addressing and ISO-TP segmentation; responses are
+ * returned raw, negative responses included.
+ */
+interface UDSRequestChannel {
+
+    /**
+     * Sends the first [length] bytes of [data] as one request and returns the
+     * first response.
+     */
+    suspend fun request(data: ByteArray, length: Int, timeoutMs: Long): ByteArray
+
+    /**
+     * Waits for a further response to the last request, after the ECU
+     * answered with NRC 0x78 (response pending). Not called if [request]
+     * already waits out response-pending replies itself.
+     */
+    suspend fun awaitResponse(timeoutMs: Long): ByteArray
+}
+
+/**
+ * Random-access source of image bytes.
+ */
+fun interface FlashDataSource {
+    /**
+     * Copies [length] bytes starting at image offset [position] into [dest].
+     */
+    fun read(position: Long, dest: ByteArray, offset: Int, length: Int)
+}
+
+/**
+ * An image to download to one memory region of the ECU.
+ *
+ * @property address Start address in ECU memory
+ * @property size Number of bytes to download
+ * @property key Identifies the image and target for checkpointing; a resume
+ *   only happens when the key matches
+ * @property source Image bytes
+ */
+class FlashImage(
+    val address: Long,
+    val size: Long,
+    val key: String,
+    val source: FlashDataSource
+) {
+    companion object {
+        fun fromBytes(address: Long, data: ByteArray, key: String): FlashImage =
+            FlashImage(address, data.size.toLong(), key) { position, dest, offset, length ->
+                System.arraycopy(data, position.toInt(), dest, offset, length)
+            }
+
+        /**
+         * Image backed by [file]; blocks are read on demand so large images
+         * are never held in memory.
+         */
+        fun fromFile(address: Long, file: File, key: String): FlashImage {
+            val size = file.length()
+            return FlashImage(address, size, key) { position, dest, offset, length ->
+                RandomAccessFile(file, "r").use {
+                    it.seek(position)
+                    it.readFully(dest, offset, length)
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Parameters for [UDSFlashEngine].
+ *
+ * @property dataFormatIdentifier 0x34 dataFormatIdentifier (compression/encryption)
+ * @property addressLength Bytes used for memoryAddress in 0x34
+ * @property sizeLength Bytes used for memorySize in 0x34
+ * @property maxTransportBlockLength Largest request the transport can carry;
+ *   caps the ECU's maxNumberOfBlockLength (4095 for classic ISO-TP)
+ * @property responseTimeoutMs P2 timeout for the first response
+ * @property pendingTimeoutMs P2* timeout after each NRC 0x78
+ * @property maxBlockRetries Resends of one block after a lost request or response
+ * @property checkMemoryRoutineId RoutineControl ID verifying the CRC32 after
+ *   the download, or null to skip verification
+ */
+data class FlashConfig(
+    val dataFormatIdentifier: Int = 0x00,
+    val addressLength: Int = 4,
+    val sizeLength: Int = 4,
+    val maxTransportBlockLength: Int = 4095,
+    val responseTimeoutMs: Long = 1000L,
+    val pendingTimeoutMs: Long = 5000L,
+    val maxBlockRetries: Int = 3,
+    val checkMemoryRoutineId: Int? = 0x0202
+)
+
+enum class FlashPhase {
+    IDLE,
+    REQUESTING_DOWNLOAD,
+    TRANSFERRING,
+    EXITING,
+    VERIFYING,
+    COMPLETE,
+    FAILED
+}
+
+data class FlashProgress(
+    val phase: FlashPhase = FlashPhase.IDLE,
+    val bytesAcknowledged: Long = 0,
+    val totalBytes: Long = 0,
+    val blocksSent: Int = 0
+)
+
+/**
+ * Outcome of a successful flash.
+ *
+ * @property bytesTransferred Image bytes sent in this run
+ * @property blocksSent TransferData requests acknowledged in this run
+ * @property maxBlockLength Negotiated maxNumberOfBlockLength in effect at the end
+ * @property crc32 CRC32 over the whole image
+ * @property resumedFrom Image offset the run resumed at, 0 for a fresh download
+ * @property verified Whether the ECU confirmed the CRC
+ */
+data class FlashReport(
+    val bytesTransferred: Long,
+    val blocksSent: Int,
+    val maxBlockLength: Int,
+    val crc32: Long,
+    val resumedFrom: Long,
+    val verified: Boolean
+)
+
+/**
+ * UDS download engine (RequestDownload 0x34, TransferData 0x36,
+ * RequestTransferExit 0x37).
+ *
+ * Block size comes from the maxNumberOfBlockLength in the 0x74 response,
+ * capped by [FlashConfig.maxTransportBlockLength], instead of a fixed size.
+ * While one block is in flight the next is read from the source and framed
+ * into the second of two reusable request buffers.
+ *
+ * Each acknowledged block is recorded in the [FlashCheckpointStore]. After a
+ * dropped connection, [flash] with the same image continues at the
+ * checkpointed blockSequenceCounter; if the ECU no longer has the download
+ * open it requests a new download for the remaining range only.
+ *
+ * Lost requests or responses are retried with the same counter: the ECU
+ * acknowledges a repeated block without writing it again (ISO 14229-1).
+ */
+class UDSFlashEngine(
+    private val channel: UDSRequestChannel,
+    private val checkpointStore: FlashCheckpointStore = InMemoryFlashCheckpointStore(),
+    private val config: FlashConfig = FlashConfig(),
+    private val prepareDispatcher: CoroutineDispatcher = Dispatchers.IO
+) {
+
+    private val _progress = MutableStateFlow(FlashProgress())
+    val progress: StateFlow<FlashProgress> = _progress.asStateFlow()
+
+    /**
+     * Negative response, kept apart from other failures so the engine can
+     * decide whether to fall back to a new RequestDownload.
+     */
+    private class NegativeResponse(val serviceId: Int, val nrc: Int) : Exception(
+        "Service 0x%02X rejected: %s (0x%02X)".format(
+            serviceId, NegativeResponseCodes.getDescription(nrc), nrc
+        )
+    )
+
+    /**
+     * State of the download currently open on the ECU.
+     */
+    private class Download(
+        var address: Long,
+        var maxBlockLength: Int,
+        var counter: Int
+    ) {
+        val payloadLength: Int
+            get() = maxBlockLength - BLOCK_HEADER_LENGTH
+    }
+
+    /**
+     * Downloads [image], resuming from a stored checkpoint when one exists.
+     */
+    suspend fun flash(image: FlashImage): Result<FlashReport> {
+        return try {
+            val report = runFlash(image)
+            _progress.value = _progress.value.copy(phase = FlashPhase.COMPLETE)
+            Result.success(report)
+        } catch (e: TimeoutCancellationException) {
+            _progress.value = _progress.value.copy(phase = FlashPhase.FAILED)
+            Result.failure(ProtocolException("Flash of ${image.key} timed out: ${e.message}", e))
+        } catch (e: CancellationException) {
+            _progress.value = _progress.value.copy(phase = FlashPhase.FAILED)
+            throw e
+        } catch (e: ProtocolException) {
+            _progress.value = _progress.value.copy(phase = FlashPhase.FAILED)
+            Result.failure(e)
+        } catch (e: Exception) {
+            _progress.value = _progress.value.copy(phase = FlashPhase.FAILED)
+            Result.failure(ProtocolException("Flash of ${image.key} failed: ${e.message}", e))
+        }
+    }
+
+    private suspend fun runFlash(image: FlashImage): FlashReport {
+        require(image.size > 0) { "Image ${image.key} is empty" }
+
+        val crc = CRC32()
+        val checkpoint = checkpointStore.load(image.key)?.takeIf {
+            it.bytesAcknowledged in 1 until image.size && it.maxBlockLength > BLOCK_HEADER_LENGTH
+        }
+
+        val download: Download
+        val resumedFrom: Long
+        if (checkpoint != null) {
+            // The verification CRC covers the whole image, including the part already sent
+            updateCrc(crc, image, 0, checkpoint.bytesAcknowledged)
+            download = Download(checkpoint.downloadAddress, checkpoint.maxBlockLength, checkpoint.nextBlockCounter)
+            resumedFrom = checkpoint.bytesAcknowledged
+        } else {
+            checkpointStore.clear(image.key)
+            download = requestDownload(image.address, image.size)
+            resumedFrom = 0
+        }
+
+        val blocksSent = transfer(image, download, resumedFrom, checkpoint != null, crc)
+
+        _progress.value = _progress.value.copy(phase = FlashPhase.EXITING)
+        exchange(SID_REQUEST_TRANSFER_EXIT, byteArrayOf(SID_REQUEST_TRANSFER_EXIT.toByte()))
+        checkpointStore.clear(image.key)
+
+        val verified = config.checkMemoryRoutineId?.let { verify(it, crc.value) } ?: false
+
+        return FlashReport(
+            bytesTransferred = image.size - resumedFrom,
+            blocksSent = blocksSent,
+            maxBlockLength = download.maxBlockLength,
+            crc32 = crc.value,
+            resumedFrom = resumedFrom,
+            verified = verified
+        )
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // TRANSFER
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private suspend fun transfer(
+        image: FlashImage,
+        download: Download,
+        startAt: Long,
+        resuming: Boolean,
+        crc: CRC32
+    ): Int = coroutineScope {
+        var buffers = allocateBuffers(download)
+        var current = 0
+        var position = startAt
+        var length = prepareBlock(image, buffers[current], position, download.payloadLength)
+        var mayNeedNewDownload = resuming
+        var blocks = 0
+
+        _progress.value = FlashProgress(FlashPhase.TRANSFERRING, position, image.size, 0)
+
+        while (position < image.size) {
+            // Read and frame the following block while this one is in flight
+            val nextPosition = position + length
+            val next: Deferred<Int>? = if (nextPosition < image.size) {
+                val buffer = buffers[current xor 1]
+                val payloadLength = download.payloadLength
+                async(prepareDispatcher) { prepareBlock(image, buffer, nextPosition, payloadLength) }
+            } else {
+                null
+            }
+
+            try {
+                sendBlock(buffers[current], length, download)
+            } catch (e: NegativeResponse) {
+                if (!mayNeedNewDownload || e.nrc !in RESUME_FALLBACK_NRCS) throw e
+
+                // The ECU lost the open download (reset or session timeout): download the rest only
+                next?.cancel()
+                val renegotiated = requestDownload(image.address + position, image.size - position)
+                download.address = renegotiated.address
+                download.maxBlockLength = renegotiated.maxBlockLength
+                download.counter = renegotiated.counter
+                mayNeedNewDownload = false
+
+                buffers = allocateBuffers(download)
+                length = prepareBlock(image, buffers[current], position, download.payloadLength)
+                continue
+            }
+            mayNeedNewDownload = false
+
+            crc.update(buffers[current], BLOCK_HEADER_LENGTH, length)
+            position += length
+            blocks++
+            download.counter = (download.counter + 1) and 0xFF
+
+            checkpointStore.save(
+                FlashCheckpoint(image.key, download.address, position, download.counter, download.maxBlockLength)
+            )
+            _progress.value = FlashProgress(FlashPhase.TRANSFERRING, position, image.size, blocks)
+
+            length = next?.await() ?: 0
+            current = current xor 1
+        }
+        blocks
+    }
+
+    /**
+     * Sends one TransferData request, resending it with the same counter when
+     * the request or its response is lost.
+     */
+    private suspend fun sendBlock(buffer: ByteArray, payloadLength: Int, download: Download) {
+        buffer[0] = SID_TRANSFER_DATA.toByte()
+        buffer[1] = download.counter.toByte()
+        val requestLength = BLOCK_HEADER_LENGTH + payloadLength
+
+        var attempt = 0
+        while (true) {
+            try {
+                val response = exchange(SID_TRANSFER_DATA, buffer, requestLength)
+                val echoed = if (response.size > 1) response[1].toInt() and 0xFF else -1
+                if (echoed != download.counter) {
+                    throw ProtocolException(
+                        "TransferData response for block $echoed while sending block ${download.counter}"
+                    )
+                }
+                return
+            } catch (e: NegativeResponse) {
+                if (e.nrc != NegativeResponseCodes.BUSY_REPEAT_REQUEST || attempt >= config.maxBlockRetries) throw e
+            } catch (e: ProtocolException) {
+                throw e
+            } catch (e: TimeoutCancellationException) {
+                if (attempt >= config.maxBlockRetries) throw e
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                if (attempt >= config.maxBlockRetries) throw e
+            }
+            attempt++
+        }
+    }
+
+    /**
+     * Reads [payloadLength] bytes (fewer for the last block) at [position]
+     * into [buffer] after the two header bytes.
+     *
+     * @return Payload bytes prepared
+     */
+    private fun prepareBlock(image: FlashImage, buffer: ByteArray, position: Long, payloadLength: Int): Int {
+        val length = minOf(payloadLength.toLong(), image.size - position).toInt()
+        image.source.read(position, buffer, BLOCK_HEADER_LENGTH, length)
+        return length
+    }
+
+    private fun allocateBuffers(download: Download): Array<ByteArray> =
+        Array(2) { ByteArray(download.maxBlockLength) }
+
+    private fun updateCrc(crc: CRC32, image: FlashImage, from: Long, to: Long) {
+        val chunk = ByteArray(CRC_CHUNK_LENGTH)
+        var position = from
+        while (position < to) {
+            val length = minOf(chunk.size.toLong(), to - position).toInt()
+            image.source.read(position, chunk, 0, length)
+            crc.update(chunk, 0, length)
+            position += length
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // REQUESTS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Sends RequestDownload for [size] bytes at [address] and negotiates the
+     * block length from the 0x74 response.
+     */
+    private suspend fun requestDownload(address: Long, size: Long): Download {
+        _progress.value = _progress.value.copy(phase = FlashPhase.REQUESTING_DOWNLOAD)
+
+        val request = ByteArray(3 + config.addressLength + config.sizeLength)
+        request[0] = SID_REQUEST_DOWNLOAD.toByte()
+        request[1] = config.dataFormatIdentifier.toByte()
+        request[2] = ((config.sizeLength shl 4) or config.addressLength).toByte()
+        writeBigEndian(address, request, 3, config.addressLength)
+        writeBigEndian(size, request, 3 + config.addressLength, config.sizeLength)
+
+        val response = exchange(SID_REQUEST_DOWNLOAD, request)
+        val maxBlockLength = parseMaxBlockLength(response)
+        val blockLength = minOf(maxBlockLength, config.maxTransportBlockLength)
+        if (blockLength <= BLOCK_HEADER_LENGTH) {
+            throw ProtocolException("ECU maxNumberOfBlockLength $maxBlockLength leaves no room for data")
+        }
+        return Download(address, blockLength, 1)
+    }
+
+    /**
+     * Runs the CRC check routine; the ECU answers routineStatus 0x00 when the
+     * written memory matches.
+     */
+    private suspend fun verify(routineId: Int, crc: Long): Boolean {
+        _progress.value = _progress.value.copy(phase = FlashPhase.VERIFYING)
+
+        val request = ByteArray(8)
+        request[0] = SID_ROUTINE_CONTROL.toByte()
+        request[1] = ROUTINE_START.toByte()
+        request[2] = (routineId shr 8).toByte()
+        request[3] = routineId.toByte()
+        writeBigEndian(crc, request, 4, 4)
+
+        val response = exchange(SID_ROUTINE_CONTROL, request)
+        val status = if (response.size > 4) response[4].toInt() and 0xFF else -1
+        if (status != ROUTINE_STATUS_CORRECT) {
+            throw ProtocolException(
+                "Memory check failed: routine 0x%04X returned status 0x%02X".format(routineId, status)
+            )
+        }
+        return true
+    }
+
+    /**
+     * Sends a request and returns the positive response, waiting through any
+     * number of response-pending replies.
+     */
+    private suspend fun exchange(serviceId: Int, data: ByteArray, length: Int = data.size): ByteArray {
+        var response = channel.request(data, length, config.responseTimeoutMs)
+        while (isNegative(response, serviceId) &&
+            (response[2].toInt() and 0xFF) == NegativeResponseCodes.REQUEST_CORRECTLY_RECEIVED_PENDING
+        ) {
+            response = channel.awaitResponse(config.pendingTimeoutMs)
+        }
+
+        if (isNegative(response, serviceId)) {
+            throw NegativeResponse(serviceId, response[2].toInt() and 0xFF)
+        }
+        if (response.isEmpty() || (response[0].toInt() and 0xFF) != serviceId + POSITIVE_RESPONSE_OFFSET) {
+            throw ProtocolException("Unexpected response to service 0x%02X".format(serviceId))
+        }
+        return response
+    }
+
+    private fun isNegative(response: ByteArray, serviceId: Int): Boolean =
+        response.size >= 3 &&
+            (response[0].toInt() and 0xFF) == NEGATIVE_RESPONSE &&
+            (response[1].toInt() and 0xFF) == serviceId
+
+    companion object {
+        private const val SID_REQUEST_DOWNLOAD = 0x34
+        private const val SID_TRANSFER_DATA = 0x36
+        private const val SID_REQUEST_TRANSFER_EXIT = 0x37
+        private const val SID_ROUTINE_CONTROL = 0x31
+        private const val POSITIVE_RESPONSE_OFFSET = 0x40
+        private const val NEGATIVE_RESPONSE = 0x7F
+        private const val ROUTINE_START = 0x01
+        private const val ROUTINE_STATUS_CORRECT = 0x00
+
+        /** Service ID and blockSequenceCounter, both counted in maxNumberOfBlockLength. */
+        private const val BLOCK_HEADER_LENGTH = 2
+
+        private const val CRC_CHUNK_LENGTH = 8192
+
+        /** Replies to a resumed block meaning the ECU no longer has the download open. */
+        private val RESUME_FALLBACK_NRCS = setOf(
+            NegativeResponseCodes.REQUEST_SEQUENCE_ERROR,
+            NegativeResponseCodes.CONDITIONS_NOT_CORRECT,
+            NegativeResponseCodes.WRONG_BLOCK_SEQUENCE,
+            NegativeResponseCodes.UPLOAD_DOWNLOAD_NOT_ACCEPTED,
+            NegativeResponseCodes.TRANSFER_DATA_SUSPENDED
+        )
+
+        /**
+         * Parses maxNumberOfBlockLength from a 0x74 response: the high nibble
+         * of the lengthFormatIdentifier gives its size in bytes.
+         */
+        internal fun parseMaxBlockLength(response: ByteArray): Int {
+            if (response.size < 2) throw ProtocolException("RequestDownload response too short")
+            val fieldLength = (response[1].toInt() shr 4) and 0x0F
+            if (fieldLength == 0 || response.size < 2 + fieldLength) {
+                throw ProtocolException("Invalid lengthFormatIdentifier in RequestDownload response")
+            }
+            var value = 0L
+            for (i in 0 until fieldLength) {
+                value = (value shl 8) or (response[2 + i].toLong() and 0xFF)
+            }
+            return value.coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+        }
+
+        private fun writeBigEndian(value: Long, dest: ByteArray, offset: Int, length: Int) {
+            for (i in 0 until length) {
+                dest[offset + i] = (value shr (8 * (length - 1 - i))).toByte()
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.spacetec.protocol.uds.services
+
+import com.spacetec.protocol.core.base.NegativeResponseCodes
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Data lengths of DIDs, needed to split a multi-DID 0x62 response.
+ *
+ * A multi-DID response is the DIDs and their data back to back with no
+ * length fields, so it can only be split when the length of every DID in it
+ * is known (the last one may run to the end). Lengths are registered up
+ * front from an ODX/manufacturer table, or learned from single-DID reads.
+ */
+class DidLengthCatalog(lengths: Map<Int, Int> = emptyMap()) {
+
+    private val lengths = ConcurrentHashMap(lengths)
+
+    /**
+     * Data length of [did] (excluding the DID itself), or null if unknown.
+     */
+    fun lengthOf(did: Int): Int? = lengths[did]
+
+    /**
+     * Records the data length of [did], replacing any earlier value.
+     */
+    fun register(did: Int, length: Int) {
+        require(length >= 0) { "Negative length for DID 0x%04X".format(did) }
+        lengths[did] = length
+    }
+
+    /**
+     * Drops the length of [did] so it is learned again.
+     */
+    fun forget(did: Int) {
+        lengths.remove(did)
+    }
+
+    companion object {
+        /** DIDs whose length ISO 14229-1 fixes: VINDataIdentifier. */
+        fun standard(): DidLengthCatalog = DidLengthCatalog(mapOf(0xF190 to 17))
+    }
+}
+
+/**
+ * Request limits learned for one ECU.
+ *
+ * @property maxDidsPerRequest Most DIDs the ECU accepted in one request
+ * @property maxResponseLength Longest 0x62 response the ECU can send,
+ *   including the SID
+ * @property batchingSupported False once the ECU has shown it cannot
+ *   answer multi-DID requests at all
+ */
+data class DidBatchLimits(
+    val maxDidsPerRequest: Int = DidBatchReader.DEFAULT_MAX_DIDS,
+    val maxResponseLength: Int = DidBatchReader.DEFAULT_MAX_RESPONSE_LENGTH,
+    val batchingSupported: Boolean = true
+)
+
+/**
+ * Outcome of [DidBatchReader.read].
+ *
+ * @property values Data of each DID read, in request order
+ * @property negativeResponses NRC of each DID the ECU refused
+ * @property unsupported DIDs the ECU left out of a multi-DID response, which
+ *   ISO 14229-1 uses for DIDs it does not support
+ * @property requests 0x22 requests sent
+ */
+data class DidBatchResult(
+    val values: Map<Int, ByteArray>,
+    val negativeResponses: Map<Int, Int>,
+    val unsupported: Set<Int>,
+    val requests: Int
+)
+
+/**
+ * Reads many DIDs with as few ReadDataByIdentifier (0x22) requests as the
+ * ECU allows.
+ *
+ * DIDs whose length is in the [catalog] are packed into multi-DID requests,
+ * up to the per-ECU DID count and response length limits; each request may
+ * also carry one DID of unknown length as its last DID, whose data is then
+ * the rest of the response. The response is split back into per-DID values
+ * and lengths seen this way are added to the catalog.
+ *
+ * Limits start generous and are learned from the ECU:
+ * - NRC 0x13 (incorrectMessageLength) to a multi-DID request halves the
+ *   DID count limit;
+ * - NRC 0x14 (responseTooLong) halves the response length limit from the
+ *   expected length, or the DID count when that is unknown.
+ * The batch is then retried under the new limits. Any other NRC, or a
+ * response that cannot be split, falls back to single-DID requests for that
+ * batch so one secured or unsupported DID does not fail the others; an ECU
+ * whose multi-DID answers cannot be split at all is read one DID at a time.
+ *
+ * @param exchange Sends a request to the ECU at the given address and
+ *   returns its final response, negative responses included
+ * @param catalog DID data lengths, shared across ECUs
+ */
+class DidBatchReader(
+    private val exchange: suspend (ecu: Int, request: ByteArray) -> ByteArray,
+    private val catalog: DidLengthCatalog = DidLengthCatalog.standard()
+) {
+
+    private val limits = ConcurrentHashMap<Int, DidBatchLimits>()
+
+    private class Collector {
+        val values = HashMap<Int, ByteArray>()
+        val negative = HashMap<Int, Int>()
+        val unsupported = HashSet<Int>()
+        var requests = 0
+    }
+
+    /**
+     * Limits currently in effect for [ecu].
+     */
+    fun limits(ecu: Int): DidBatchLimits = limits[ecu] ?: DidBatchLimits()
+
+    /**
+     * Reads [dids] from the ECU at [ecu].
+     *
+     * Duplicates are read once. Failures of individual DIDs are reported in
+     * the result; exceptions from [exchange] (timeouts, lost connection)
+     * propagate.
+     */
+    suspend fun read(ecu: Int, dids: List<Int>): DidBatchResult {
+        val wanted = dids.distinct()
+        wanted.forEach { require(it in 0x0000..0xFFFF) { "Invalid DID 0x%X".format(it) } }
+
+        val collector = Collector()
+        for (batch in plan(wanted, limits(ecu))) {
+            readBatch(ecu, batch, collector)
+        }
+
+        val values = LinkedHashMap<Int, ByteArray>()
+        for (did in wanted) collector.values[did]?.let { values[did] = it }
+        return DidBatchResult(values, collector.negative, collector.unsupported, collector.requests)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // PLANNING
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Packs [dids] into requests within [limit]: known-length DIDs first,
+     * then at most one unknown-length DID appended to each request.
+     */
+    private fun plan(dids: List<Int>, limit: DidBatchLimits): List<List<Int>> {
+        if (!limit.batchingSupported || limit.maxDidsPerRequest <= 1) return dids.map { listOf(it) }
+
+        val batches = mutableListOf<MutableList<Int>>()
+        val responseLengths = mutableListOf<Int>()
+        val unknown = mutableListOf<Int>()
+
+        for (did in dids) {
+            val length = catalog.lengthOf(did)
+            if (length == null) {
+                unknown += did
+                continue
+            }
+            val entry = DID_LENGTH + length
+            val last = batches.lastIndex
+            if (last >= 0 && batches[last].size < limit.maxDidsPerRequest &&
+                responseLengths[last] + entry <= limit.maxResponseLength
+            ) {
+                batches[last] += did
+                responseLengths[last] += entry
+            } else {
+                batches += mutableListOf(did)
+                responseLengths += 1 + entry
+            }
+        }
+
+        var open = 0
+        for (did in unknown) {
+            while (open < batches.size && batches[open].size >= limit.maxDidsPerRequest) open++
+            if (open < batches.size) {
+                batches[open++] += did
+            } else {
+                batches += mutableListOf(did)
+                open = batches.size
+            }
+        }
+        return batches
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // REQUESTS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private suspend fun readBatch(ecu: Int, batch: List<Int>, collector: Collector) {
+        if (batch.size > 1) {
+            // Limits may have shrunk since this batch was planned
+            val replanned = plan(batch, limits(ecu))
+            if (replanned.size > 1) {
+                for (next in replanned) readBatch(ecu, next, collector)
+                return
+            }
+        }
+
+        val request = ByteArray(1 + DID_LENGTH * batch.size)
+        request[0] = SID_READ_DATA_BY_IDENTIFIER.toByte()
+        for ((i, did) in batch.withIndex()) {
+            request[1 + i * DID_LENGTH] = (did shr 8).toByte()
+            request[2 + i * DID_LENGTH] = did.toByte()
+        }
+
+        val response = exchange(ecu, request)
+        collector.requests++
+
+        if (response.size >= 3 && (response[0].toInt() and 0xFF) == NEGATIVE_RESPONSE) {
+            val nrc = response[2].toInt() and 0xFF
+            if (batch.size == 1) {
+                collector.negative[batch[0]] = nrc
+            } else {
+                onBatchRejected(ecu, batch, nrc, collector)
+            }
+            return
+        }
+
+        if (response.isEmpty() || (response[0].toInt() and 0xFF) != SID_READ_DATA_BY_IDENTIFIER + POSITIVE_OFFSET ||
+            !split(response, batch, collector)
+        ) {
+            if (batch.size == 1) {
+                collector.negative[batch[0]] = NegativeResponseCodes.GENERAL_REJECT
+            } else {
+                relearnLengths(ecu, batch, collector)
+            }
+        }
+    }
+
+    private suspend fun onBatchRejected(ecu: Int, batch: List<Int>, nrc: Int, collector: Collector) {
+        when (nrc) {
+            NegativeResponseCodes.INCORRECT_MESSAGE_LENGTH -> {
+                learn(ecu) { it.copy(maxDidsPerRequest = minOf(it.maxDidsPerRequest, batch.size / 2)) }
+            }
+            NegativeResponseCodes.RESPONSE_TOO_LONG -> {
+                val expected = expectedResponseLength(batch)
+                learn(ecu) {
+                    if (expected != null) {
+                        it.copy(maxResponseLength = minOf(it.maxResponseLength, expected / 2))
+                    } else {
+                        it.copy(maxDidsPerRequest = minOf(it.maxDidsPerRequest, batch.size / 2))
+                    }
+                }
+            }
+            else -> {
+                // One DID may be secured or unsupported: isolate it
+                readSingly(ecu, batch, collector)
+                return
+            }
+        }
+
+        if (plan(batch, limits(ecu)).size == 1) {
+            // Limits no longer shrink: the ECU cannot take this batch at all
+            readSingly(ecu, batch, collector)
+        } else {
+            readBatch(ecu, batch, collector)
+        }
+    }
+
+    /**
+     * Reads [batch] one DID at a time after its response could not be split,
+     * relearning the lengths. If they come back unchanged the catalog was
+     * right and the ECU's multi-DID responses are unusable, so batching is
+     * turned off for it.
+     */
+    private suspend fun relearnLengths(ecu: Int, batch: List<Int>, collector: Collector) {
+        val previous = batch.map { catalog.lengthOf(it) }
+        batch.forEach { catalog.forget(it) }
+        readSingly(ecu, batch, collector)
+
+        if (batch.map { catalog.lengthOf(it) } == previous) {
+            limits.compute(ecu) { _, current -> (current ?: DidBatchLimits()).copy(batchingSupported = false) }
+        }
+    }
+
+    private suspend fun readSingly(ecu: Int, dids: List<Int>, collector: Collector) {
+        for (did in dids) readBatch(ecu, listOf(did), collector)
+    }
+
+    private fun learn(ecu: Int, update: (DidBatchLimits) -> DidBatchLimits) {
+        limits.compute(ecu) { _, current ->
+            val learned = update(current ?: DidBatchLimits())
+            learned.copy(maxDidsPerRequest = learned.maxDidsPerRequest.coerceAtLeast(1))
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // RESPONSE SPLITTING
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Splits a positive response to [batch] into per-DID values.
+     *
+     * DIDs appear in request order; missing ones are unsupported. The last
+     * requested DID takes the rest of the response, which also learns or
+     * corrects its length; any other DID needs a known length.
+     *
+     * @return false if the response does not fit the expected layout
+     */
+    private fun split(response: ByteArray, batch: List<Int>, collector: Collector): Boolean {
+        val values = HashMap<Int, ByteArray>()
+        var position = 1
+        var next = 0
+
+        while (position < response.size) {
+            if (position + DID_LENGTH > response.size) return false
+            val did = ((response[position].toInt() and 0xFF) shl 8) or (response[position + 1].toInt() and 0xFF)
+            position += DID_LENGTH
+
+            // Skip requested DIDs the ECU left out
+            while (next < batch.size && batch[next] != did) next++
+            if (next == batch.size) return false
+            next++
+
+            val length = catalog.lengthOf(did)
+            val end = when {
+                next == batch.size -> response.size
+                length != null -> position + length
+                else -> return false
+            }
+            if (end > response.size) return false
+            if (length != end - position) catalog.register(did, end - position)
+
+            values[did] = response.copyOfRange(position, end)
+            position = end
+        }
+
+        if (values.isEmpty()) return false
+        collector.values.putAll(values)
+        for (did in batch) if (did !in values) collector.unsupported += did
+        return true
+    }
+
+    private fun expectedResponseLength(batch: List<Int>): Int? {
+        var total = 1
+        for (did in batch) total += DID_LENGTH + (catalog.lengthOf(did) ?: return null)
+        return total
+    }
+
+    companion object {
+        /** DID count tried before an ECU has rejected any batch. */
+        const val DEFAULT_MAX_DIDS = 32
+
+        /** Largest response an ISO-TP transfer can carry. */
+        const val DEFAULT_MAX_RESPONSE_LENGTH = 4095
+
+        private const val SID_READ_DATA_BY_IDENTIFIER = 0x22
+        private const val POSITIVE_OFFSET = 0x40
+        private const val NEGATIVE_RESPONSE = 0x7F
+        private const val DID_LENGTH = 2
+    }
+}
@@ -0,0 +1,240 @@
+package com.spacetec.protocol.uds.services
+
+import com.spacetec.core.common.exceptions.ProtocolException
+import com.spacetec.protocol.core.base.NegativeResponseCodes
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A DTC reported by ReadDTCInformation (0x19).
+ *
+ * @property ecu Address of the reporting ECU
+ * @property dtc 3-byte DTC: 2-byte SAE J2012 code and failure type byte
+ * @property status DTC status byte (ISO 14229-1 D.2)
+ */
+data class SweptDtc(val ecu: Int, val dtc: Int, val status: Int) {
+
+    /** SAE J2012 code, e.g. `P0301`. */
+    val code: String
+        get() {
+            val high = dtc shr 16 and 0xFF
+            val system = "PCBU"[high shr 6]
+            return "%c%X%03X".format(system, high shr 4 and 0x03, dtc shr 8 and 0xFFF)
+        }
+
+    /** Failure type byte appended by UDS, e.g. 0x1C for "circuit voltage out of range". */
+    val failureType: Int
+        get() = dtc and 0xFF
+
+    /** Confirmed (stored) DTC. */
+    val isConfirmed: Boolean
+        get() = status and DtcSweep.STATUS_CONFIRMED != 0
+
+    /** Pending DTC. */
+    val isPending: Boolean
+        get() = status and DtcSweep.STATUS_PENDING != 0
+}
+
+/**
+ * Progress of a [DtcSweep], emitted as each response arrives.
+ */
+sealed class DtcSweepEvent {
+    abstract val ecu: Int
+
+    /**
+     * The DTCs of [ecu] matching the status mask; details follow for each.
+     */
+    data class DtcsRead(override val ecu: Int, val dtcs: List<SweptDtc>) : DtcSweepEvent()
+
+    /**
+     * Snapshot and extended data records of one DTC, as sent by the ECU
+     * after the DTC and its status; null where the ECU has none or refused.
+     */
+    class DetailsRead(
+        val dtc: SweptDtc,
+        val snapshot: ByteArray?,
+        val extendedData: ByteArray?
+    ) : DtcSweepEvent() {
+        override val ecu: Int get() = dtc.ecu
+    }
+
+    /**
+     * [ecu] could not be read; DTCs already reported stay valid.
+     */
+    data class EcuFailed(override val ecu: Int, val cause: Throwable) : DtcSweepEvent()
+}
+
+/**
+ * Reads the DTCs of many ECUs at once, with their snapshot and extended
+ * data, and streams them as they arrive.
+ *
+ * Each ECU is read in its own coroutine: reportDTCByStatusMask (19 02),
+ * then reportDTCSnapshotRecordByDTCNumber (19 04) and
+ * reportDTCExtDataRecordByDTCNumber (19 06) for every DTC, all records
+ * (FF) at once. ISO 14229 allows one outstanding request per ECU, so each
+ * ECU's requests follow one another, but requests to different ECUs are in
+ * flight together, at most [maxInFlight] at a time. Waiting requests are
+ * served in arrival order; since every ECU queues its DTC list request
+ * first, all lists come in before most details.
+ *
+ * An ECU answering 19 04 or 19 06 with NRC 0x11 or 0x12 (not supported) is
+ * not asked for that sub-function again. Any other negative response leaves
+ * that record null. A failed 19 02, or an exception from [exchange] (a
+ * timeout, a lost connection), ends that ECU with [DtcSweepEvent.EcuFailed]
+ * and leaves the others running.
+ *
+ * [exchange] must support concurrent calls for different ECUs, e.g.
+ * [com.spacetec.protocol.core.base.RequestCorrelator.request].
+ *
+ * @param exchange Sends a request to the ECU at the given address and
+ *   returns its final response, negative responses included
+ * @param maxInFlight Requests outstanding at once across all ECUs
+ * @param statusMask DTC status mask for 19 02
+ */
+class DtcSweep(
+    private val exchange: suspend (ecu: Int, request: ByteArray) -> ByteArray,
+    private val maxInFlight: Int = DEFAULT_MAX_IN_FLIGHT,
+    private val statusMask: Int = DEFAULT_STATUS_MASK
+) {
+
+    init {
+        require(maxInFlight >= 1) { "At least one request must be allowed in flight: $maxInFlight" }
+    }
+
+    private val window = Semaphore(maxInFlight)
+    private val sent = AtomicLong()
+
+    /** Requests sent so far. */
+    val requests: Long get() = sent.get()
+
+    /**
+     * Reads the DTCs of [ecus]; the flow completes once every ECU is done.
+     *
+     * @param details Whether to read snapshot and extended data per DTC
+     */
+    fun sweep(ecus: Collection<Int>, details: Boolean = true): Flow<DtcSweepEvent> = channelFlow {
+        for (ecu in ecus.distinct()) {
+            launch {
+                try {
+                    val dtcs = readDtcs(ecu)
+                    send(DtcSweepEvent.DtcsRead(ecu, dtcs))
+                    if (details) readDetails(dtcs) { send(it) }
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    send(DtcSweepEvent.EcuFailed(ecu, e))
+                }
+            }
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // REQUESTS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private suspend fun readDtcs(ecu: Int): List<SweptDtc> {
+        val response = request(ecu, byteArrayOf(SID_READ_DTC_INFORMATION.toByte(), REPORT_BY_STATUS_MASK.toByte(), statusMask.toByte()))
+        if (!isPositive(response, REPORT_BY_STATUS_MASK)) {
+            throw ProtocolException("ECU 0x%X refused DTC read: %s".format(ecu, describe(response)))
+        }
+
+        // 59 02 availabilityMask, then DTC (3 bytes) and status per record
+        val dtcs = ArrayList<SweptDtc>((response.size - 3) / RECORD_LENGTH)
+        var position = 3
+        while (position + RECORD_LENGTH <= response.size) {
+            val dtc = (response[position].toInt() and 0xFF shl 16) or
+                (response[position + 1].toInt() and 0xFF shl 8) or
+                (response[position + 2].toInt() and 0xFF)
+            dtcs += SweptDtc(ecu, dtc, response[position + 3].toInt() and 0xFF)
+            position += RECORD_LENGTH
+        }
+        return dtcs
+    }
+
+    private suspend fun readDetails(dtcs: List<SweptDtc>, emit: suspend (DtcSweepEvent) -> Unit) {
+        var snapshots = true
+        var extendedData = true
+        for (dtc in dtcs) {
+            var snapshot: ByteArray? = null
+            var extended: ByteArray? = null
+            if (snapshots) {
+                val response = request(dtc.ecu, recordRequest(REPORT_SNAPSHOT_BY_DTC, dtc.dtc))
+                snapshot = records(response, REPORT_SNAPSHOT_BY_DTC)
+                snapshots = !isUnsupported(response)
+            }
+            if (extendedData) {
+                val response = request(dtc.ecu, recordRequest(REPORT_EXTENDED_DATA_BY_DTC, dtc.dtc))
+                extended = records(response, REPORT_EXTENDED_DATA_BY_DTC)
+                extendedData = !isUnsupported(response)
+            }
+            emit(DtcSweepEvent.DetailsRead(dtc, snapshot, extended))
+        }
+    }
+
+    private suspend fun request(ecu: Int, request: ByteArray): ByteArray = window.withPermit {
+        sent.incrementAndGet()
+        exchange(ecu, request)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // ENCODING
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun recordRequest(subFunction: Int, dtc: Int): ByteArray = byteArrayOf(
+        SID_READ_DTC_INFORMATION.toByte(),
+        subFunction.toByte(),
+        (dtc shr 16).toByte(),
+        (dtc shr 8).toByte(),
+        dtc.toByte(),
+        ALL_RECORDS.toByte()
+    )
+
+    /** Record bytes after `59 sf DTC status`, or null if there are none. */
+    private fun records(response: ByteArray, subFunction: Int): ByteArray? {
+        if (!isPositive(response, subFunction) || response.size <= RECORD_HEADER_LENGTH) return null
+        return response.copyOfRange(RECORD_HEADER_LENGTH, response.size)
+    }
+
+    private fun isPositive(response: ByteArray, subFunction: Int): Boolean =
+        response.size >= 2 &&
+            (response[0].toInt() and 0xFF) == SID_READ_DTC_INFORMATION + POSITIVE_OFFSET &&
+            (response[1].toInt() and 0xFF) == subFunction
+
+    private fun isUnsupported(response: ByteArray): Boolean {
+        if (response.size < 3 || (response[0].toInt() and 0xFF) != NEGATIVE_RESPONSE) return false
+        val nrc = response[2].toInt() and 0xFF
+        return nrc == NegativeResponseCodes.SERVICE_NOT_SUPPORTED || nrc == NegativeResponseCodes.SUB_FUNCTION_NOT_SUPPORTED
+    }
+
+    private fun describe(response: ByteArray): String =
+        if (response.size >= 3 && (response[0].toInt() and 0xFF) == NEGATIVE_RESPONSE) {
+            NegativeResponseCodes.getDescription(response[2].toInt() and 0xFF)
+        } else {
+            "unexpected response"
+        }
+
+    companion object {
+        const val DEFAULT_MAX_IN_FLIGHT = 8
+
+        /** Every status bit: all DTCs the ECU reports. */
+        const val DEFAULT_STATUS_MASK = 0xFF
+
+        const val STATUS_PENDING = 0x04
+        const val STATUS_CONFIRMED = 0x08
+
+        private const val SID_READ_DTC_INFORMATION = 0x19
+        private const val REPORT_BY_STATUS_MASK = 0x02
+        private const val REPORT_SNAPSHOT_BY_DTC = 0x04
+        private const val REPORT_EXTENDED_DATA_BY_DTC = 0x06
+        private const val ALL_RECORDS = 0xFF
+        private const val RECORD_LENGTH = 4
+        private const val RECORD_HEADER_LENGTH = 6
+        private const val POSITIVE_OFFSET = 0x40
+        private const val NEGATIVE_RESPONSE = 0x7F
+    }
+}
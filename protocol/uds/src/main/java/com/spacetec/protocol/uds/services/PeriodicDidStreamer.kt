@@ -0,0 +1,317 @@
+package com.spacetec.protocol.uds.services
+
+import com.spacetec.core.common.exceptions.ProtocolException
+import com.spacetec.protocol.core.base.NegativeResponseCodes
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+/**
+ * Transmission rate of a periodic DID (0x2A transmissionMode).
+ *
+ * The actual periods are defined by the vehicle manufacturer;
+ * [nominalPeriodMs] is a typical value, used only for planning.
+ */
+enum class PeriodicRate(val transmissionMode: Int, val nominalPeriodMs: Long) {
+    SLOW(0x01, 1000L),
+    MEDIUM(0x02, 200L),
+    FAST(0x03, 25L)
+}
+
+/**
+ * A signal taken from a source DID into a dynamically defined DID.
+ *
+ * @property name Identifies the signal in emitted samples
+ * @property sourceDid DID the signal is read from
+ * @property position 1-based byte position in the source DID's data record
+ * @property size Length in bytes
+ */
+data class PeriodicSignal(
+    val name: String,
+    val sourceDid: Int,
+    val position: Int,
+    val size: Int
+) {
+    init {
+        require(sourceDid in 0x0000..0xFFFF) { "Invalid source DID: $sourceDid" }
+        require(position in 1..0xFF) { "Position must be 1..255: $position" }
+        require(size in 1..0xFF) { "Size must be 1..255: $size" }
+    }
+}
+
+/**
+ * Signals to stream at one rate.
+ */
+data class PeriodicGroup(val rate: PeriodicRate, val signals: List<PeriodicSignal>)
+
+/**
+ * One signal value pushed by the ECU.
+ *
+ * @property signal Signal the value belongs to
+ * @property data Signal bytes as read from the source DID
+ * @property timestampMs Streamer clock when the periodic message arrived
+ */
+data class SignalSample(
+    val signal: PeriodicSignal,
+    val data: ByteArray,
+    val timestampMs: Long
+) {
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is SignalSample) return false
+        return signal == other.signal && timestampMs == other.timestampMs && data.contentEquals(other.data)
+    }
+
+    override fun hashCode(): Int {
+        var result = signal.hashCode()
+        result = 31 * result + data.contentHashCode()
+        result = 31 * result + timestampMs.hashCode()
+        return result
+    }
+}
+
+/**
+ * Channel the streamer talks to the ECU through.
+ */
+interface UDSPeriodicChannel {
+
+    /**
+     * Sends [data] to the ECU and returns its final response, negative
+     * responses included.
+     */
+    suspend fun request(data: ByteArray): ByteArray
+
+    /**
+     * Messages arriving on the periodic response ID, in arrival order, with
+     * any transport framing removed. Collection must start listening before
+     * it first suspends so no message sent right after 0x2A is lost.
+     */
+    fun periodicMessages(): Flow<ByteArray>
+}
+
+/**
+ * Live data pushed by the ECU instead of polled.
+ *
+ * For each [PeriodicGroup] the streamer defines dynamic DIDs in the
+ * periodic range 0xF200–0xF2FF (DynamicallyDefineDataIdentifier 0x2C,
+ * defineByIdentifier) that concatenate the group's signals, then asks the
+ * ECU to transmit them at the group's rate (ReadDataByPeriodicIdentifier
+ * 0x2A). Signals that do not fit in one periodic message
+ * ([maxPeriodicDataLength], 7 bytes for a classic CAN frame) are spread
+ * over several dynamic DIDs.
+ *
+ * Periodic messages are `periodicDataIdentifier` followed by the data
+ * record, on the response ID the manufacturer reserves for them; the legacy
+ * layout with a leading 0x6A is accepted too. Each message is split into one
+ * [SignalSample] per signal.
+ *
+ * With polling every sample costs a request/response round trip on a half
+ * duplex link; here the ECU sends one message per period and the tester
+ * sends nothing, so the rate is bounded by the ECU schedule instead.
+ *
+ * When collection stops, transmission is stopped (0x2A stopSending) and the
+ * dynamic DIDs are cleared (0x2C clearDynamicallyDefinedDataIdentifier),
+ * also on cancellation or failure.
+ *
+ * @param channel Request and periodic message channel to the ECU
+ * @param maxPeriodicDataLength Largest data record per periodic message
+ * @param firstPeriodicDid First dynamic DID to use, in 0xF200–0xF2FF
+ * @param clock Millisecond time source
+ */
+class PeriodicDidStreamer(
+    private val channel: UDSPeriodicChannel,
+    private val maxPeriodicDataLength: Int = CLASSIC_CAN_DATA_LENGTH,
+    private val firstPeriodicDid: Int = PERIODIC_DID_RANGE.first,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+    init {
+        require(maxPeriodicDataLength >= 1) { "Periodic data length must be positive" }
+        require(firstPeriodicDid in PERIODIC_DID_RANGE) { "Dynamic DID must be in 0xF200..0xF2FF" }
+    }
+
+    /**
+     * A dynamic DID and the signals it carries, in data record order.
+     */
+    private class Definition(val did: Int, val rate: PeriodicRate, val signals: List<PeriodicSignal>) {
+        val periodicId: Int get() = did and 0xFF
+        val dataLength: Int = signals.sumOf { it.size }
+    }
+
+    /** Periodic messages received since creation. */
+    @Volatile
+    var messageCount: Long = 0
+        private set
+
+    /** Periodic messages dropped as unknown or too short. */
+    @Volatile
+    var malformedCount: Long = 0
+        private set
+
+    /**
+     * Streams [groups] until the flow is cancelled or the channel's periodic
+     * messages end.
+     *
+     * @throws ProtocolException If the ECU rejects a definition or the start
+     *   of transmission
+     */
+    fun samples(groups: List<PeriodicGroup>): Flow<SignalSample> = channelFlow {
+        val definitions = layout(groups)
+        val byPeriodicId = definitions.associateBy { it.periodicId }
+
+        try {
+            for (definition in definitions) define(definition)
+
+            val receiver = launch(start = CoroutineStart.UNDISPATCHED) {
+                this@PeriodicDidStreamer.channel.periodicMessages().collect { message ->
+                    val now = clock()
+                    val legacy = message.isNotEmpty() && (message[0].toInt() and 0xFF) == LEGACY_RESPONSE_SID &&
+                        LEGACY_RESPONSE_SID !in byPeriodicId
+                    val offset = if (legacy) 1 else 0
+                    val definition = if (message.size > offset) byPeriodicId[message[offset].toInt() and 0xFF] else null
+                    if (definition == null || message.size - offset - 1 < definition.dataLength) {
+                        malformedCount++
+                        return@collect
+                    }
+                    messageCount++
+
+                    var position = offset + 1
+                    for (signal in definition.signals) {
+                        send(SignalSample(signal, message.copyOfRange(position, position + signal.size), now))
+                        position += signal.size
+                    }
+                }
+            }
+
+            for ((rate, started) in definitions.groupBy { it.rate }) {
+                val request = ByteArray(2 + started.size)
+                request[0] = SID_READ_DATA_BY_PERIODIC_IDENTIFIER.toByte()
+                request[1] = rate.transmissionMode.toByte()
+                started.forEachIndexed { i, definition -> request[2 + i] = definition.periodicId.toByte() }
+                exchange(request, SID_READ_DATA_BY_PERIODIC_IDENTIFIER)
+            }
+
+            receiver.join()
+        } finally {
+            withContext(NonCancellable) { teardown(definitions) }
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // DEFINITIONS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Assigns each group's signals to dynamic DIDs of at most
+     * [maxPeriodicDataLength] bytes.
+     */
+    private fun layout(groups: List<PeriodicGroup>): List<Definition> {
+        val definitions = mutableListOf<Definition>()
+        var did = firstPeriodicDid
+        for (group in groups) {
+            var current = mutableListOf<PeriodicSignal>()
+            var length = 0
+            for (signal in group.signals) {
+                require(signal.size <= maxPeriodicDataLength) {
+                    "Signal ${signal.name} is longer than a periodic message ($maxPeriodicDataLength bytes)"
+                }
+                if (length + signal.size > maxPeriodicDataLength) {
+                    definitions += Definition(did++, group.rate, current)
+                    current = mutableListOf()
+                    length = 0
+                }
+                current += signal
+                length += signal.size
+            }
+            if (current.isNotEmpty()) definitions += Definition(did++, group.rate, current)
+        }
+        require(definitions.isNotEmpty()) { "No signals to stream" }
+        require(did - 1 <= PERIODIC_DID_RANGE.last) { "Too many dynamic DIDs for the periodic range" }
+        return definitions
+    }
+
+    private suspend fun define(definition: Definition) {
+        val request = ByteArray(4 + 4 * definition.signals.size)
+        request[0] = SID_DYNAMICALLY_DEFINE_DATA_IDENTIFIER.toByte()
+        request[1] = DEFINE_BY_IDENTIFIER.toByte()
+        request[2] = (definition.did shr 8).toByte()
+        request[3] = definition.did.toByte()
+        definition.signals.forEachIndexed { i, signal ->
+            val base = 4 + 4 * i
+            request[base] = (signal.sourceDid shr 8).toByte()
+            request[base + 1] = signal.sourceDid.toByte()
+            request[base + 2] = signal.position.toByte()
+            request[base + 3] = signal.size.toByte()
+        }
+        exchange(request, SID_DYNAMICALLY_DEFINE_DATA_IDENTIFIER)
+    }
+
+    /**
+     * Stops transmission and clears the definitions, best effort: the ECU
+     * also drops them when the session ends.
+     */
+    private suspend fun teardown(definitions: List<Definition>) {
+        val stop = ByteArray(2 + definitions.size)
+        stop[0] = SID_READ_DATA_BY_PERIODIC_IDENTIFIER.toByte()
+        stop[1] = STOP_SENDING.toByte()
+        definitions.forEachIndexed { i, definition -> stop[2 + i] = definition.periodicId.toByte() }
+        bestEffort(stop)
+
+        for (definition in definitions) {
+            bestEffort(
+                byteArrayOf(
+                    SID_DYNAMICALLY_DEFINE_DATA_IDENTIFIER.toByte(),
+                    CLEAR_DYNAMICALLY_DEFINED_DATA_IDENTIFIER.toByte(),
+                    (definition.did shr 8).toByte(),
+                    definition.did.toByte()
+                )
+            )
+        }
+    }
+
+    private suspend fun bestEffort(request: ByteArray) {
+        try {
+            channel.request(request)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            // The session may already be gone
+        }
+    }
+
+    private suspend fun exchange(request: ByteArray, serviceId: Int) {
+        val response = channel.request(request)
+        if (response.isEmpty()) throw ProtocolException("Empty response to service 0x%02X".format(serviceId))
+        val sid = response[0].toInt() and 0xFF
+        if (sid == NEGATIVE_RESPONSE && response.size >= 3) {
+            val nrc = response[2].toInt() and 0xFF
+            throw ProtocolException(
+                "Service 0x%02X rejected: %s (0x%02X)".format(serviceId, NegativeResponseCodes.getDescription(nrc), nrc)
+            )
+        }
+        if (sid != serviceId + POSITIVE_OFFSET) {
+            throw ProtocolException("Unexpected response 0x%02X to service 0x%02X".format(sid, serviceId))
+        }
+    }
+
+    companion object {
+        /** Dynamic DIDs that can be sent periodically (ISO 14229-1 Annex C). */
+        val PERIODIC_DID_RANGE = 0xF200..0xF2FF
+
+        /** Data bytes in a periodic message on classic CAN (8 bytes minus the periodic ID). */
+        const val CLASSIC_CAN_DATA_LENGTH = 7
+
+        private const val SID_DYNAMICALLY_DEFINE_DATA_IDENTIFIER = 0x2C
+        private const val SID_READ_DATA_BY_PERIODIC_IDENTIFIER = 0x2A
+        private const val DEFINE_BY_IDENTIFIER = 0x01
+        private const val CLEAR_DYNAMICALLY_DEFINED_DATA_IDENTIFIER = 0x03
+        private const val STOP_SENDING = 0x04
+        private const val LEGACY_RESPONSE_SID = 0x6A
+        private const val POSITIVE_OFFSET = 0x40
+        private const val NEGATIVE_RESPONSE = 0x7F
+    }
+}
@@ -0,0 +1,349 @@
+package com.spacetec.protocol.uds.programming
+
+import com.spacetec.core.common.exceptions.CommunicationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.File
+import java.util.zip.CRC32
+
+/**
+ * End-to-end tests for [UDSFlashEngine] against [SimulatedFlashEcu].
+ */
+class UDSFlashEngineTest {
+
+    @Test
+    fun testFullFlashWritesImageAndVerifies() = runBlocking {
+        val image = image(10_000)
+        val ecu = SimulatedFlashEcu(maxBlockLength = 0x402)
+        val engine = UDSFlashEngine(ecu, config = CONFIG, prepareDispatcher = Dispatchers.Default)
+
+        val report = engine.flash(image.flashImage).getOrThrow()
+
+        assertArrayEquals(image.data, ecu.memory(ADDRESS, image.data.size))
+        assertEquals(image.crc, report.crc32)
+        assertTrue(report.verified)
+        assertEquals(0L, report.resumedFrom)
+        assertEquals(10_000L, report.bytesTransferred)
+        assertEquals(FlashPhase.COMPLETE, engine.progress.value.phase)
+    }
+
+    @Test
+    fun testBlocksUseNegotiatedLength() = runBlocking {
+        val image = image(10_000)
+        val ecu = SimulatedFlashEcu(maxBlockLength = 0x402)
+        val engine = UDSFlashEngine(ecu, config = CONFIG)
+
+        val report = engine.flash(image.flashImage).getOrThrow()
+
+        // 0x402 includes SID and counter: 1024 data bytes per block
+        assertEquals(0x402, report.maxBlockLength)
+        assertEquals(10, report.blocksSent)
+        assertEquals(0x402, ecu.largestRequest)
+        assertEquals(1, ecu.requestDownloadCount)
+    }
+
+    @Test
+    fun testBlockLengthCappedByTransport() = runBlocking {
+        val image = image(20_000)
+        val ecu = SimulatedFlashEcu(maxBlockLength = 0xFFFF)
+        val engine = UDSFlashEngine(ecu, config = CONFIG.copy(maxTransportBlockLength = 4095))
+
+        val report = engine.flash(image.flashImage).getOrThrow()
+
+        assertEquals(4095, report.maxBlockLength)
+        assertEquals(4095, ecu.largestRequest)
+        assertArrayEquals(image.data, ecu.memory(ADDRESS, image.data.size))
+    }
+
+    @Test
+    fun testCounterWrapsAfter255Blocks() = runBlocking {
+        // 300 blocks of 14 bytes: counter runs 1..255, 0..44
+        val image = image(300 * 14)
+        val ecu = SimulatedFlashEcu(maxBlockLength = 16)
+        val engine = UDSFlashEngine(ecu, config = CONFIG)
+
+        val report = engine.flash(image.flashImage).getOrThrow()
+
+        assertEquals(300, report.blocksSent)
+        assertArrayEquals(image.data, ecu.memory(ADDRESS, image.data.size))
+    }
+
+    @Test
+    fun testResumeContinuesOpenDownloadAfterDrop() = runBlocking {
+        val image = image(10_000)
+        val store = InMemoryFlashCheckpointStore()
+        val ecu = SimulatedFlashEcu(maxBlockLength = 0x402)
+
+        // The link drops after the ECU wrote block 4 but before its response arrived
+        ecu.dropAfterBlocks = 4
+        val first = UDSFlashEngine(ecu, store, CONFIG).flash(image.flashImage)
+        assertTrue(first.isFailure)
+        assertEquals(3072L, store.load(image.flashImage.key)?.bytesAcknowledged)
+
+        ecu.reconnect()
+        val report = UDSFlashEngine(ecu, store, CONFIG).flash(image.flashImage).getOrThrow()
+
+        assertEquals(3072L, report.resumedFrom)
+        assertEquals(10_000L - 3072, report.bytesTransferred)
+        assertEquals(7, report.blocksSent)
+        // The open download was continued, not restarted, and block 4 not rewritten
+        assertEquals(1, ecu.requestDownloadCount)
+        assertEquals(1, ecu.repeatedBlocks)
+        assertEquals(image.crc, report.crc32)
+        assertArrayEquals(image.data, ecu.memory(ADDRESS, image.data.size))
+        assertNull(store.load(image.flashImage.key))
+    }
+
+    @Test
+    fun testResumeFallsBackToPartialDownloadWhenEcuLostState() = runBlocking {
+        val image = image(10_000)
+        val store = InMemoryFlashCheckpointStore()
+        val ecu = SimulatedFlashEcu(maxBlockLength = 0x402)
+
+        ecu.dropAfterBlocks = 3
+        assertTrue(UDSFlashEngine(ecu, store, CONFIG).flash(image.flashImage).isFailure)
+
+        // ECU reset in between: the download is gone and the block size changes
+        ecu.reconnect()
+        ecu.resetDownload()
+        ecu.maxBlockLength = 0x202
+        val report = UDSFlashEngine(ecu, store, CONFIG).flash(image.flashImage).getOrThrow()
+
+        assertEquals(2048L, report.resumedFrom)
+        assertEquals(2, ecu.requestDownloadCount)
+        // Only the remaining range was requested
+        assertEquals(ADDRESS + 2048, ecu.lastDownloadAddress)
+        assertEquals(10_000L - 2048, ecu.lastDownloadSize)
+        assertEquals(0x202, report.maxBlockLength)
+        assertTrue(report.verified)
+        assertArrayEquals(image.data, ecu.memory(ADDRESS, image.data.size))
+    }
+
+    @Test
+    fun testLostResponseIsRetriedWithSameCounter() = runBlocking {
+        val image = image(5_000)
+        val ecu = SimulatedFlashEcu(maxBlockLength = 0x402)
+        ecu.loseResponseToBlock = 2
+
+        val report = UDSFlashEngine(ecu, config = CONFIG).flash(image.flashImage).getOrThrow()
+
+        assertEquals(5, report.blocksSent)
+        assertEquals(1, ecu.repeatedBlocks)
+        assertEquals(5, ecu.blocksWritten)
+        assertArrayEquals(image.data, ecu.memory(ADDRESS, image.data.size))
+    }
+
+    @Test
+    fun testResponsePendingIsAwaited() = runBlocking {
+        val image = image(3_000)
+        val ecu = SimulatedFlashEcu(maxBlockLength = 0x402)
+        ecu.pendingResponses = 2
+
+        val report = UDSFlashEngine(ecu, config = CONFIG).flash(image.flashImage).getOrThrow()
+
+        assertTrue(report.verified)
+        assertTrue(ecu.pendingSent > 0)
+    }
+
+    @Test
+    fun testVerifyFailureIsReported() = runBlocking {
+        val image = image(3_000)
+        val ecu = SimulatedFlashEcu(maxBlockLength = 0x402)
+        ecu.corruptByteAt = 1_500
+
+        val result = UDSFlashEngine(ecu, config = CONFIG).flash(image.flashImage)
+
+        assertTrue(result.isFailure)
+        assertTrue(result.exceptionOrNull()!!.message!!.contains("Memory check failed"))
+    }
+
+    @Test
+    fun testFileCheckpointStoreRoundTrip() {
+        val directory = File(System.getProperty("java.io.tmpdir"), "flash-checkpoints-${System.nanoTime()}")
+        try {
+            val store = FileFlashCheckpointStore(directory)
+            val checkpoint = FlashCheckpoint("ecu7E0/app v1", 0x8000, 4096, 5, 0x402)
+
+            store.save(checkpoint)
+            assertEquals(checkpoint, FileFlashCheckpointStore(directory).load(checkpoint.imageKey))
+
+            store.clear(checkpoint.imageKey)
+            assertNull(store.load(checkpoint.imageKey))
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun testParseMaxBlockLength() {
+        assertEquals(0x402, UDSFlashEngine.parseMaxBlockLength(byteArrayOf(0x74, 0x20, 0x04, 0x02)))
+        assertEquals(0xFA, UDSFlashEngine.parseMaxBlockLength(byteArrayOf(0x74, 0x10, 0xFA.toByte())))
+        assertEquals(
+            0x10002,
+            UDSFlashEngine.parseMaxBlockLength(byteArrayOf(0x74, 0x40, 0x00, 0x01, 0x00, 0x02))
+        )
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private class TestImage(val data: ByteArray, val flashImage: FlashImage, val crc: Long)
+
+    private fun image(size: Int): TestImage {
+        val data = ByteArray(size) { ((it * 37 + 11) and 0xFF).toByte() }
+        val crc = CRC32().apply { update(data) }.value
+        return TestImage(data, FlashImage.fromBytes(ADDRESS, data, "ecu7E0/app-$size"), crc)
+    }
+
+    /**
+     * ECU side of a download: validates 0x34/0x36/0x37 sequencing, writes
+     * blocks into a memory map and checks the CRC routine.
+     */
+    private class SimulatedFlashEcu(var maxBlockLength: Int) : UDSRequestChannel {
+
+        private val flash = HashMap<Long, Byte>()
+        private var downloadOpen = false
+        private var nextAddress = 0L
+        private var expectedCounter = 1
+        private var lastCounter = -1
+        private var pending: ByteArray? = null
+        private var pendingLeft = 0
+        private var connected = true
+
+        var dropAfterBlocks = -1
+        var loseResponseToBlock = -1
+        var pendingResponses = 0
+        var corruptByteAt = -1
+
+        var requestDownloadCount = 0
+        var lastDownloadAddress = 0L
+        var lastDownloadSize = 0L
+        var largestRequest = 0
+        var blocksWritten = 0
+        var repeatedBlocks = 0
+        var pendingSent = 0
+
+        fun memory(address: Long, length: Int): ByteArray =
+            ByteArray(length) { flash[address + it] ?: 0xFF.toByte() }
+
+        fun reconnect() {
+            connected = true
+            dropAfterBlocks = -1
+        }
+
+        fun resetDownload() {
+            downloadOpen = false
+            lastCounter = -1
+        }
+
+        override suspend fun request(data: ByteArray, length: Int, timeoutMs: Long): ByteArray {
+            if (!connected) throw CommunicationException("Not connected")
+            val request = data.copyOf(length)
+            largestRequest = maxOf(largestRequest, length)
+
+            val response = when (request[0].toInt() and 0xFF) {
+                0x34 -> requestDownload(request)
+                0x36 -> transferData(request)
+                0x37 -> transferExit()
+                0x31 -> checkMemory(request)
+                else -> negative(request[0].toInt(), 0x11)
+            }
+
+            if (pendingResponses > 0) {
+                pending = response
+                pendingLeft = pendingResponses
+                pendingSent++
+                return negative(request[0].toInt(), 0x78)
+            }
+            return response
+        }
+
+        override suspend fun awaitResponse(timeoutMs: Long): ByteArray {
+            val response = pending ?: throw CommunicationException("No response pending")
+            if (--pendingLeft > 0) return byteArrayOf(0x7F, response[0].minusPositive(), 0x78)
+            pending = null
+            return response
+        }
+
+        private fun requestDownload(request: ByteArray): ByteArray {
+            val alfid = request[2].toInt()
+            val addressLength = alfid and 0x0F
+            val sizeLength = (alfid shr 4) and 0x0F
+            lastDownloadAddress = readBigEndian(request, 3, addressLength)
+            lastDownloadSize = readBigEndian(request, 3 + addressLength, sizeLength)
+
+            requestDownloadCount++
+            downloadOpen = true
+            nextAddress = lastDownloadAddress
+            expectedCounter = 1
+            lastCounter = -1
+            return byteArrayOf(0x74, 0x20, (maxBlockLength shr 8).toByte(), maxBlockLength.toByte())
+        }
+
+        private fun transferData(request: ByteArray): ByteArray {
+            if (!downloadOpen) return negative(0x36, 0x24)
+            if (request.size > maxBlockLength) return negative(0x36, 0x13)
+
+            val counter = request[1].toInt() and 0xFF
+            if (counter == lastCounter) {
+                // Repeated block after a lost response: acknowledge, don't write
+                repeatedBlocks++
+                return byteArrayOf(0x76, counter.toByte())
+            }
+            if (counter != expectedCounter) return negative(0x36, 0x73)
+
+            for (i in 2 until request.size) {
+                val offset = nextAddress - ADDRESS
+                flash[nextAddress++] = if (offset == corruptByteAt.toLong()) 0 else request[i]
+            }
+            blocksWritten++
+            lastCounter = counter
+            expectedCounter = (counter + 1) and 0xFF
+
+            if (blocksWritten == dropAfterBlocks) {
+                connected = false
+                throw CommunicationException("Connection lost")
+            }
+            if (blocksWritten == loseResponseToBlock) {
+                loseResponseToBlock = -1
+                throw CommunicationException("Response lost")
+            }
+            return byteArrayOf(0x76, counter.toByte())
+        }
+
+        private fun transferExit(): ByteArray {
+            if (!downloadOpen) return negative(0x37, 0x24)
+            downloadOpen = false
+            return byteArrayOf(0x77)
+        }
+
+        private fun checkMemory(request: ByteArray): ByteArray {
+            val expected = readBigEndian(request, 4, 4)
+            val crc = CRC32()
+            val start = flash.keys.minOrNull() ?: ADDRESS
+            val end = flash.keys.maxOrNull() ?: (ADDRESS - 1)
+            for (address in start..end) crc.update(flash[address]?.toInt() ?: 0xFF)
+            val status: Byte = if (crc.value == expected) 0x00 else 0x01
+            return byteArrayOf(0x71, 0x01, request[2], request[3], status)
+        }
+
+        private fun negative(serviceId: Int, nrc: Int): ByteArray =
+            byteArrayOf(0x7F, serviceId.toByte(), nrc.toByte())
+
+        private fun Byte.minusPositive(): Byte = if (this.toInt() == 0x7F) this else (this - 0x40).toByte()
+
+        private fun readBigEndian(data: ByteArray, offset: Int, length: Int): Long {
+            var value = 0L
+            for (i in 0 until length) value = (value shl 8) or (data[offset + i].toLong() and 0xFF)
+            return value
+        }
+    }
+
+    companion object {
+        private const val ADDRESS = 0x0008_0000L
+        private val CONFIG = FlashConfig(responseTimeoutMs = 100, pendingTimeoutMs = 100)
+    }
+}
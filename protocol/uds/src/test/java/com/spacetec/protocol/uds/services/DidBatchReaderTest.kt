@@ -0,0 +1,213 @@
+package com.spacetec.protocol.uds.services
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [DidBatchReader] against [SimulatedDidEcu].
+ */
+class DidBatchReaderTest {
+
+    @Test
+    fun testKnownLengthsAreReadInOneRequest() = runTest {
+        val ecu = SimulatedDidEcu(identificationBlock(10))
+        val reader = DidBatchReader(ecu::exchange, ecu.catalog())
+
+        val result = reader.read(ECU, ecu.dids)
+
+        assertEquals(1, result.requests)
+        assertEquals(ecu.dids, result.values.keys.toList())
+        for (did in ecu.dids) assertArrayEquals(ecu.data.getValue(did), result.values.getValue(did))
+    }
+
+    @Test
+    fun testUnknownLengthsAreLearnedThenBatched() = runTest {
+        val ecu = SimulatedDidEcu(identificationBlock(12))
+        val catalog = DidLengthCatalog()
+        val reader = DidBatchReader(ecu::exchange, catalog)
+
+        // Only one DID of unknown length fits in each request
+        val first = reader.read(ECU, ecu.dids)
+        assertEquals(12, first.requests)
+        for (did in ecu.dids) assertEquals(ecu.data.getValue(did).size, catalog.lengthOf(did))
+
+        val second = reader.read(ECU, ecu.dids)
+        assertEquals(1, second.requests)
+        for (did in ecu.dids) assertArrayEquals(ecu.data.getValue(did), second.values.getValue(did))
+    }
+
+    @Test
+    fun testDidCountLimitIsLearnedFromNrc13() = runTest {
+        val ecu = SimulatedDidEcu(identificationBlock(40), maxDids = 8)
+        val reader = DidBatchReader(ecu::exchange, ecu.catalog())
+
+        val first = reader.read(ECU, ecu.dids)
+
+        // 32 and 16 rejected, then five batches of 8
+        assertEquals(7, first.requests)
+        assertEquals(40, first.values.size)
+        assertEquals(8, reader.limits(ECU).maxDidsPerRequest)
+
+        assertEquals(5, reader.read(ECU, ecu.dids).requests)
+    }
+
+    @Test
+    fun testResponseLengthLimitIsLearnedFromNrc14() = runTest {
+        val ecu = SimulatedDidEcu(identificationBlock(20, length = 20), maxResponseLength = 128)
+        val reader = DidBatchReader(ecu::exchange, ecu.catalog())
+
+        val first = reader.read(ECU, ecu.dids)
+
+        assertEquals(20, first.values.size)
+        assertTrue(reader.limits(ECU).maxResponseLength <= 128)
+        for (did in ecu.dids) assertArrayEquals(ecu.data.getValue(did), first.values.getValue(did))
+
+        // Learned: the next read is never rejected
+        val rejected = ecu.rejected
+        reader.read(ECU, ecu.dids)
+        assertEquals(rejected, ecu.rejected)
+        assertTrue(ecu.largestResponse <= 128)
+    }
+
+    @Test
+    fun testSecuredDidIsIsolatedWithoutFailingTheOthers() = runTest {
+        val ecu = SimulatedDidEcu(identificationBlock(6), secured = setOf(0xF1A2))
+        val reader = DidBatchReader(ecu::exchange, ecu.catalog())
+
+        val result = reader.read(ECU, ecu.dids)
+
+        assertEquals(5, result.values.size)
+        assertEquals(mapOf(0xF1A2 to 0x33), result.negativeResponses)
+        // The rejected batch, then one request per DID
+        assertEquals(7, result.requests)
+    }
+
+    @Test
+    fun testOmittedDidsAreReportedUnsupported() = runTest {
+        val ecu = SimulatedDidEcu(identificationBlock(4))
+        val reader = DidBatchReader(ecu::exchange, ecu.catalog())
+
+        val result = reader.read(ECU, listOf(0xF1A0, 0x1234, 0xF1A1, 0xF1A3))
+
+        assertEquals(1, result.requests)
+        assertEquals(setOf(0x1234), result.unsupported)
+        assertEquals(listOf(0xF1A0, 0xF1A1, 0xF1A3), result.values.keys.toList())
+    }
+
+    @Test
+    fun testWrongCatalogLengthIsRelearned() = runTest {
+        val ecu = SimulatedDidEcu(identificationBlock(4))
+        val catalog = ecu.catalog()
+        catalog.register(0xF1A0, 3)
+        val reader = DidBatchReader(ecu::exchange, catalog)
+
+        val result = reader.read(ECU, ecu.dids)
+
+        for (did in ecu.dids) assertArrayEquals(ecu.data.getValue(did), result.values.getValue(did))
+        assertEquals(ecu.data.getValue(0xF1A0).size, catalog.lengthOf(0xF1A0))
+        assertTrue(reader.limits(ECU).batchingSupported)
+        assertEquals(1, reader.read(ECU, ecu.dids).requests)
+    }
+
+    @Test
+    fun testBatchingBeatsOneDidPerRequest() = runTest {
+        // 40-DID identification block; the ECU takes 16 DIDs and 255 bytes per response
+        val ecu = SimulatedDidEcu(identificationBlock(40), maxDids = 16, maxResponseLength = 255)
+        val reader = DidBatchReader(ecu::exchange, ecu.catalog())
+        reader.read(ECU, ecu.dids) // learn the limits
+
+        val singleStart = testScheduler.currentTime
+        for (did in ecu.dids) ecu.exchange(ECU, byteArrayOf(0x22, (did shr 8).toByte(), did.toByte()))
+        val singleMs = testScheduler.currentTime - singleStart
+
+        val batchedStart = testScheduler.currentTime
+        val batched = reader.read(ECU, ecu.dids)
+        val batchedMs = testScheduler.currentTime - batchedStart
+
+        println(
+            "multi-DID read: ${ecu.dids.size} DIDs, one per request ${ecu.dids.size} round trips in ${singleMs}ms, " +
+                "batched ${batched.requests} round trips in ${batchedMs}ms"
+        )
+        assertEquals(40, batched.values.size)
+        assertTrue(batched.requests <= 5)
+        assertTrue(batchedMs * 3 < singleMs)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * [count] DIDs from 0xF1A0 with lengths cycling 4..23, or all [length].
+     */
+    private fun identificationBlock(count: Int, length: Int? = null): Map<Int, ByteArray> =
+        (0 until count).associate { i ->
+            val did = 0xF1A0 + i
+            did to ByteArray(length ?: (4 + i % 20)) { (did + it).toByte() }
+        }
+
+    /**
+     * ECU answering 0x22 over a simulated ISO-TP link: 25 ms P2 plus 1 ms per
+     * CAN frame each way.
+     */
+    private class SimulatedDidEcu(
+        val data: Map<Int, ByteArray>,
+        private val maxDids: Int = Int.MAX_VALUE,
+        private val maxResponseLength: Int = 4095,
+        private val secured: Set<Int> = emptySet()
+    ) {
+        val dids: List<Int> = data.keys.sorted()
+        var rejected = 0
+        var largestResponse = 0
+
+        fun catalog() = DidLengthCatalog(data.mapValues { it.value.size })
+
+        suspend fun exchange(ecu: Int, request: ByteArray): ByteArray {
+            val response = respond(request)
+            if (response[0] == 0x7F.toByte()) {
+                rejected++
+            } else {
+                largestResponse = maxOf(largestResponse, response.size)
+            }
+            delay(P2_MS + frames(request.size) + frames(response.size))
+            return response
+        }
+
+        private fun respond(request: ByteArray): ByteArray {
+            val requested = (1 until request.size step 2).map {
+                ((request[it].toInt() and 0xFF) shl 8) or (request[it + 1].toInt() and 0xFF)
+            }
+            if (requested.size > maxDids) return negative(0x13)
+            if (requested.any { it in secured }) return negative(0x33)
+
+            val supported = requested.filter { it in data }
+            if (supported.isEmpty()) return negative(0x31)
+            val length = 1 + supported.sumOf { 2 + data.getValue(it).size }
+            if (length > maxResponseLength) return negative(0x14)
+
+            val response = ByteArray(length)
+            response[0] = 0x62
+            var position = 1
+            for (did in supported) {
+                response[position++] = (did shr 8).toByte()
+                response[position++] = did.toByte()
+                val value = data.getValue(did)
+                value.copyInto(response, position)
+                position += value.size
+            }
+            return response
+        }
+
+        private fun negative(nrc: Int) = byteArrayOf(0x7F, 0x22, nrc.toByte())
+
+        // Single frame, or first frame + flow control + consecutive frames of 7 bytes
+        private fun frames(length: Int): Long = if (length <= 7) 1 else 2 + length / 7L
+    }
+
+    private companion object {
+        const val ECU = 0x7E0
+        const val P2_MS = 25L
+    }
+}
@@ -0,0 +1,226 @@
+package com.spacetec.protocol.uds.services
+
+import com.spacetec.core.common.exceptions.TimeoutException
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [DtcSweep] in virtual time against [SimulatedDtcVehicle], compared
+ * with reading one ECU after the other and returning everything at the end.
+ */
+class DtcSweepTest {
+
+    @Test
+    fun testSweepAgainstSequentialReads() = runTest {
+        val start = testScheduler.currentTime
+        val sequential = sequentialSweep(SimulatedDtcVehicle())
+        val sequentialMs = testScheduler.currentTime - start
+
+        val vehicle = SimulatedDtcVehicle()
+        val sweep = DtcSweep(vehicle::exchange)
+        val begin = testScheduler.currentTime
+        var firstListMs = -1L
+        val events = ArrayList<DtcSweepEvent>()
+        sweep.sweep(vehicle.addresses).collect {
+            if (it is DtcSweepEvent.DtcsRead && firstListMs < 0) firstListMs = testScheduler.currentTime - begin
+            events += it
+        }
+        val sweepMs = testScheduler.currentTime - begin
+
+        val details = events.filterIsInstance<DtcSweepEvent.DetailsRead>()
+        println(
+            "DTC sweep, ${vehicle.addresses.size} ECUs, ${details.size} DTCs: sequential ${sequentialMs}ms, " +
+                "concurrent ${sweepMs}ms (first list after ${firstListMs}ms), ${sweep.requests} requests"
+        )
+        assertEquals(sequential.keys, details.map { it.dtc }.toSet())
+        for (event in details) {
+            assertArrayEquals(sequential.getValue(event.dtc).first, event.snapshot)
+            assertArrayEquals(sequential.getValue(event.dtc).second, event.extendedData)
+        }
+        assertTrue(details.size >= 300)
+        assertTrue(sweepMs * 4 < sequentialMs)
+        assertTrue(firstListMs < 100)
+        assertTrue(vehicle.peakOutstanding <= DtcSweep.DEFAULT_MAX_IN_FLIGHT)
+        assertEquals(1, vehicle.peakPerEcu)
+    }
+
+    @Test
+    fun testListsArriveBeforeDetails() = runTest {
+        val vehicle = SimulatedDtcVehicle()
+        val events = DtcSweep(vehicle::exchange).sweep(vehicle.addresses).toList()
+
+        val lastList = events.indexOfLast { it is DtcSweepEvent.DtcsRead }
+        val details = events.count { it is DtcSweepEvent.DetailsRead }
+        // Lists are queued first, so few details can overtake them
+        assertTrue(events.take(lastList).count { it is DtcSweepEvent.DetailsRead } < details / 10)
+    }
+
+    @Test
+    fun testUnsupportedSubFunctionIsAskedOnce() = runTest {
+        val vehicle = SimulatedDtcVehicle()
+        val ecu = vehicle.ecus.first { !it.extendedDataSupported }
+
+        val events = DtcSweep(vehicle::exchange).sweep(listOf(ecu.address)).toList()
+
+        val details = events.filterIsInstance<DtcSweepEvent.DetailsRead>()
+        assertEquals(ecu.dtcs.size, details.size)
+        assertTrue(details.all { it.snapshot != null && it.extendedData == null })
+        assertEquals(1, ecu.requests.count { it == 0x06 })
+    }
+
+    @Test
+    fun testFailedEcuDoesNotStopOthers() = runTest {
+        val vehicle = SimulatedDtcVehicle(silent = setOf(0x720))
+        val events = DtcSweep(vehicle::exchange).sweep(vehicle.addresses).toList()
+
+        val failed = events.filterIsInstance<DtcSweepEvent.EcuFailed>()
+        assertEquals(listOf(0x720), failed.map { it.ecu })
+        assertTrue(failed[0].cause is TimeoutException)
+        assertEquals(vehicle.addresses.size - 1, events.count { it is DtcSweepEvent.DtcsRead })
+    }
+
+    @Test
+    fun testListOnlySweepSkipsDetails() = runTest {
+        val vehicle = SimulatedDtcVehicle()
+        val sweep = DtcSweep(vehicle::exchange)
+
+        val lists = sweep.sweep(vehicle.addresses, details = false).toList().filterIsInstance<DtcSweepEvent.DtcsRead>()
+
+        assertEquals(vehicle.addresses.size.toLong(), sweep.requests)
+        val expected = vehicle.ecus.associate { ecu -> ecu.address to ecu.dtcs.keys.toList() }
+        assertEquals(expected, lists.associate { list -> list.ecu to list.dtcs.map { it.dtc } })
+        val first = lists.first { it.ecu == 0x7E0 }.dtcs.first()
+        assertEquals("P0301", first.code)
+        assertTrue(first.isConfirmed)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * What `readAllDTCs` does per ECU, in turn: the DTC list, then snapshot
+     * and extended data of each DTC, everything returned at the end.
+     */
+    private suspend fun sequentialSweep(vehicle: SimulatedDtcVehicle): Map<SweptDtc, Pair<ByteArray?, ByteArray?>> {
+        val result = LinkedHashMap<SweptDtc, Pair<ByteArray?, ByteArray?>>()
+        for (ecu in vehicle.ecus) {
+            val list = vehicle.exchange(ecu.address, byteArrayOf(0x19, 0x02, 0xFF.toByte()))
+            for (position in 3 until list.size step 4) {
+                val dtc = (list[position].toInt() and 0xFF shl 16) or
+                    (list[position + 1].toInt() and 0xFF shl 8) or (list[position + 2].toInt() and 0xFF)
+                val snapshot = vehicle.exchange(ecu.address, recordRequest(0x04, dtc))
+                val extended = vehicle.exchange(ecu.address, recordRequest(0x06, dtc))
+                result[SweptDtc(ecu.address, dtc, list[position + 3].toInt() and 0xFF)] =
+                    records(snapshot) to records(extended)
+            }
+        }
+        return result
+    }
+
+    private fun recordRequest(subFunction: Int, dtc: Int) =
+        byteArrayOf(0x19, subFunction.toByte(), (dtc shr 16).toByte(), (dtc shr 8).toByte(), dtc.toByte(), 0xFF.toByte())
+
+    private fun records(response: ByteArray): ByteArray? =
+        if (response[0] == 0x59.toByte() && response.size > 6) response.copyOfRange(6, response.size) else null
+
+    /**
+     * ECU holding [dtcs] (DTC to status), answering after [p2Ms].
+     */
+    private class SimulatedDtcEcu(
+        val address: Int,
+        val dtcs: Map<Int, Int>,
+        val p2Ms: Long,
+        val extendedDataSupported: Boolean
+    ) {
+        val requests = ArrayList<Int>()
+        var outstanding = 0
+
+        fun respond(request: ByteArray): ByteArray {
+            val subFunction = request[1].toInt() and 0xFF
+            requests += subFunction
+            if (subFunction == 0x02) {
+                val response = ByteArray(3 + dtcs.size * 4)
+                response[0] = 0x59
+                response[1] = 0x02
+                response[2] = 0xFF.toByte()
+                for ((i, entry) in dtcs.entries.withIndex()) {
+                    response[3 + i * 4] = (entry.key shr 16).toByte()
+                    response[4 + i * 4] = (entry.key shr 8).toByte()
+                    response[5 + i * 4] = entry.key.toByte()
+                    response[6 + i * 4] = entry.value.toByte()
+                }
+                return response
+            }
+            if (subFunction == 0x06 && !extendedDataSupported) return byteArrayOf(0x7F, 0x19, 0x12)
+
+            val dtc = (request[2].toInt() and 0xFF shl 16) or (request[3].toInt() and 0xFF shl 8) or (request[4].toInt() and 0xFF)
+            val status = dtcs[dtc] ?: return byteArrayOf(0x7F, 0x19, 0x31)
+            val header = byteArrayOf(0x59, subFunction.toByte(), request[2], request[3], request[4], status.toByte())
+            // Snapshot: record 01 with 3 DIDs; extended data: records 01 and 02
+            val records = if (subFunction == 0x04) ByteArray(16) { (dtc + it).toByte() } else ByteArray(4) { (dtc - it).toByte() }
+            return header + records
+        }
+    }
+
+    /**
+     * 30 ECUs with 300 DTCs on a simulated CAN bus: each CAN frame occupies
+     * the bus for [FRAME_MS], ECUs answer after 10 to 58 ms, ECUs in
+     * [silent] never answer.
+     */
+    private class SimulatedDtcVehicle(private val silent: Set<Int> = emptySet()) {
+        private val bus = Mutex()
+        private var outstanding = 0
+        var peakOutstanding = 0
+        var peakPerEcu = 0
+
+        val ecus: List<SimulatedDtcEcu> = (0 until ECU_COUNT).map { index ->
+            val address = if (index < 8) 0x7E0 + index else 0x700 + index * 4
+            val dtcs = LinkedHashMap<Int, Int>()
+            repeat(DTCS_PER_ECU) { dtcs[(0x0301 + index * 0x40 + it shl 8) or (it and 0xFF)] = if (it % 3 == 1) 0x24 else 0x2F }
+            SimulatedDtcEcu(address, dtcs, p2Ms = 10L + index * 7 % 49, extendedDataSupported = index % 5 != 4)
+        }
+
+        val addresses: List<Int> = ecus.map { it.address }
+
+        suspend fun exchange(ecu: Int, request: ByteArray): ByteArray {
+            val target = ecus.first { it.address == ecu }
+            outstanding++
+            target.outstanding++
+            peakOutstanding = maxOf(peakOutstanding, outstanding)
+            peakPerEcu = maxOf(peakPerEcu, target.outstanding)
+            try {
+                transmit(request.size)
+                if (ecu in silent) {
+                    delay(TIMEOUT_MS)
+                    throw TimeoutException("No response from ECU 0x%X".format(ecu))
+                }
+                delay(target.p2Ms)
+                val response = target.respond(request)
+                transmit(response.size)
+                return response
+            } finally {
+                outstanding--
+                target.outstanding--
+            }
+        }
+
+        // Single frame, or first frame + flow control + consecutive frames of 7 bytes
+        private suspend fun transmit(length: Int) {
+            val frames = if (length <= 7) 1 else 2 + length / 7
+            repeat(frames) { bus.withLock { delay(FRAME_MS) } }
+        }
+    }
+
+    private companion object {
+        const val ECU_COUNT = 30
+        const val DTCS_PER_ECU = 10
+        const val FRAME_MS = 1L
+        const val TIMEOUT_MS = 150L
+    }
+}
@@ -0,0 +1,298 @@
+package com.spacetec.protocol.uds.services
+
+import com.spacetec.core.common.exceptions.ProtocolException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [PeriodicDidStreamer] against [SimulatedPeriodicEcu].
+ */
+class PeriodicDidStreamerTest {
+
+    @Test
+    fun testDefinesCompositeDidAndDecodesSignals() = runTest {
+        val ecu = SimulatedPeriodicEcu(backgroundScope)
+        val signals = listOf(RPM, SPEED, COOLANT)
+        val samples = collectFor(ecu, listOf(PeriodicGroup(PeriodicRate.FAST, signals)), 100)
+
+        assertArrayEquals(
+            bytes(0x2C, 0x01, 0xF2, 0x00, 0x10, 0x00, 0x01, 0x02, 0x10, 0x00, 0x05, 0x02, 0x10, 0x01, 0x03, 0x03),
+            ecu.requests[0]
+        )
+        assertArrayEquals(bytes(0x2A, 0x03, 0x00), ecu.requests[1])
+
+        // One message every 10 ms, three signals each
+        assertEquals(30, samples.size)
+        assertArrayEquals(ecu.sourceBytes(0x1000, 1, 2), samples.first { it.signal == RPM }.data)
+        assertArrayEquals(ecu.sourceBytes(0x1000, 5, 2), samples.first { it.signal == SPEED }.data)
+        assertArrayEquals(ecu.sourceBytes(0x1001, 3, 3), samples.first { it.signal == COOLANT }.data)
+    }
+
+    @Test
+    fun testSignalsAreSpreadOverSeveralDynamicDids() = runTest {
+        val ecu = SimulatedPeriodicEcu(backgroundScope)
+        val signals = twelveSignals()
+        val samples = collectFor(ecu, listOf(PeriodicGroup(PeriodicRate.FAST, signals)), 100)
+
+        // 2-byte signals, three per 7-byte periodic message
+        val defined = ecu.requests.filter { it[0] == 0x2C.toByte() && it[1] == 0x01.toByte() }
+        assertEquals(listOf(0x00, 0x01, 0x02, 0x03), defined.map { it[3].toInt() })
+        assertTrue(defined.all { it.size == 4 + 3 * 4 })
+        assertArrayEquals(bytes(0x2A, 0x03, 0x00, 0x01, 0x02, 0x03), ecu.requests[4])
+        for (signal in signals) assertEquals(10, samples.count { it.signal == signal })
+    }
+
+    @Test
+    fun testGroupsStreamAtTheirOwnRates() = runTest {
+        val ecu = SimulatedPeriodicEcu(backgroundScope)
+        val samples = collectFor(
+            ecu,
+            listOf(PeriodicGroup(PeriodicRate.SLOW, listOf(COOLANT)), PeriodicGroup(PeriodicRate.FAST, listOf(RPM))),
+            2_000,
+            schedules = 2
+        )
+
+        assertEquals(2, samples.count { it.signal == COOLANT })
+        assertEquals(200, samples.count { it.signal == RPM })
+    }
+
+    @Test
+    fun testCancellationStopsTransmissionAndClearsDefinitions() = runTest {
+        val ecu = SimulatedPeriodicEcu(backgroundScope)
+        collectFor(ecu, listOf(PeriodicGroup(PeriodicRate.FAST, twelveSignals())), 50)
+
+        val teardown = ecu.requests.takeLast(5)
+        assertArrayEquals(bytes(0x2A, 0x04, 0x00, 0x01, 0x02, 0x03), teardown[0])
+        assertArrayEquals(bytes(0x2C, 0x03, 0xF2, 0x00), teardown[1])
+        assertArrayEquals(bytes(0x2C, 0x03, 0xF2, 0x03), teardown[4])
+        assertEquals(0, ecu.activeSchedules)
+        assertTrue(ecu.definedDids.isEmpty())
+    }
+
+    @Test
+    fun testRejectedDefinitionFailsAndCleansUp() = runTest {
+        val ecu = SimulatedPeriodicEcu(backgroundScope)
+        val unknown = PeriodicSignal("unknown", 0x7777, 1, 2)
+        val streamer = PeriodicDidStreamer(ecu.channel, clock = { testScheduler.currentTime })
+
+        val failure = runCatching { streamer.samples(listOf(PeriodicGroup(PeriodicRate.FAST, listOf(unknown)))).toList() }
+
+        assertTrue(failure.exceptionOrNull() is ProtocolException)
+        assertArrayEquals(bytes(0x2C, 0x03, 0xF2, 0x00), ecu.requests.last())
+        assertEquals(0, ecu.activeSchedules)
+    }
+
+    @Test
+    fun testLegacyLayoutAndMalformedMessages() = runTest {
+        val ecu = SimulatedPeriodicEcu(backgroundScope, legacyLayout = true)
+        val streamer = PeriodicDidStreamer(ecu.channel, clock = { testScheduler.currentTime })
+        val samples = mutableListOf<SignalSample>()
+        val job = launch { streamer.samples(listOf(PeriodicGroup(PeriodicRate.FAST, listOf(RPM)))).collect { samples += it } }
+        awaitSchedules(ecu, 1)
+
+        advanceTimeBy(55)
+        ecu.inject(bytes(0x00))
+        ecu.inject(bytes(0x42, 0x01, 0x02, 0x03))
+        advanceTimeBy(50)
+        job.cancel()
+        advanceUntilIdle()
+
+        assertEquals(10, samples.size)
+        assertArrayEquals(ecu.sourceBytes(0x1000, 1, 2), samples.last().data)
+        assertEquals(2, streamer.malformedCount)
+        assertEquals(10, streamer.messageCount)
+    }
+
+    @Test
+    fun testThroughputAgainstPolling() = runTest {
+        val signals = twelveSignals()
+        val durationMs = 2_000L
+
+        // Polling: one multi-DID read per cycle covering all three source DIDs
+        val polled = SimulatedPeriodicEcu(backgroundScope)
+        var polledSamples = 0
+        val pollStart = testScheduler.currentTime
+        while (testScheduler.currentTime - pollStart < durationMs) {
+            val response = polled.channel.request(bytes(0x22, 0x10, 0x00, 0x10, 0x01, 0x10, 0x02))
+            assertEquals(0x62, response[0].toInt())
+            polledSamples += signals.size
+        }
+        val pollingRate = polledSamples * 1_000.0 / (testScheduler.currentTime - pollStart)
+
+        val pushed = SimulatedPeriodicEcu(backgroundScope)
+        val streamed = collectFor(pushed, listOf(PeriodicGroup(PeriodicRate.FAST, signals)), durationMs)
+        val streamingRate = streamed.size * 1_000.0 / durationMs
+
+        println(
+            "periodic DIDs: %d signals, polling %.0f samples/s, streaming %.0f samples/s"
+                .format(signals.size, pollingRate, streamingRate)
+        )
+        assertTrue(streamingRate > 3 * pollingRate)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+    private fun twelveSignals(): List<PeriodicSignal> = (0 until 12).map {
+        PeriodicSignal("signal$it", 0x1000 + it / 4, 1 + 2 * (it % 4), 2)
+    }
+
+    /**
+     * Streams [groups] from [ecu] for [durationMs] once [schedules] periodic
+     * DIDs are transmitting, then cancels and waits for the teardown.
+     */
+    private fun TestScope.collectFor(
+        ecu: SimulatedPeriodicEcu,
+        groups: List<PeriodicGroup>,
+        durationMs: Long,
+        schedules: Int = 1
+    ): List<SignalSample> {
+        val streamer = PeriodicDidStreamer(ecu.channel, clock = { testScheduler.currentTime })
+        val samples = mutableListOf<SignalSample>()
+        val job = launch { streamer.samples(groups).collect { samples += it } }
+        awaitSchedules(ecu, schedules)
+        advanceTimeBy(durationMs)
+        runCurrent()
+        job.cancel()
+        advanceUntilIdle()
+        return samples
+    }
+
+    private fun TestScope.awaitSchedules(ecu: SimulatedPeriodicEcu, schedules: Int) {
+        while (ecu.activeSchedules < schedules) {
+            advanceTimeBy(1)
+            runCurrent()
+        }
+    }
+
+    /**
+     * ECU with source DIDs 0x1000..0x1002 (8 bytes each) supporting 0x22,
+     * 0x2C defineByIdentifier/clear and 0x2A. Requests take 25 ms P2 plus
+     * 1 ms per CAN frame each way; periodic messages go out every 1000, 200
+     * and 10 ms for slow, medium and fast.
+     */
+    private class SimulatedPeriodicEcu(
+        private val scope: CoroutineScope,
+        private val legacyLayout: Boolean = false
+    ) {
+        private class Slice(val did: Int, val position: Int, val size: Int)
+
+        val requests = mutableListOf<ByteArray>()
+        private val definitions = LinkedHashMap<Int, List<Slice>>()
+        private val schedules = HashMap<Int, Job>()
+        private val messages = MutableSharedFlow<ByteArray>(extraBufferCapacity = 1024)
+
+        val definedDids: List<Int> get() = definitions.keys.toList()
+        val activeSchedules: Int get() = schedules.size
+
+        val channel = object : UDSPeriodicChannel {
+            override suspend fun request(data: ByteArray): ByteArray {
+                requests += data
+                val response = respond(data)
+                delay(P2_MS + frames(data.size) + frames(response.size))
+                return response
+            }
+
+            override fun periodicMessages(): Flow<ByteArray> = messages
+        }
+
+        fun sourceBytes(did: Int, position: Int, size: Int) =
+            ByteArray(size) { (did + position - 1 + it).toByte() }
+
+        fun inject(message: ByteArray) {
+            messages.tryEmit(message)
+        }
+
+        private fun respond(request: ByteArray): ByteArray {
+            val sid = request[0].toInt() and 0xFF
+            return when {
+                sid == 0x22 -> readDids(request)
+                sid == 0x2C && request[1].toInt() == 0x01 -> define(request)
+                sid == 0x2C && request[1].toInt() == 0x03 -> {
+                    definitions.remove(did(request, 2))
+                    bytes(0x6C, 0x03)
+                }
+                sid == 0x2A && request[1].toInt() == 0x04 -> {
+                    for (i in 2 until request.size) schedules.remove(request[i].toInt() and 0xFF)?.cancel()
+                    bytes(0x6A)
+                }
+                sid == 0x2A -> start(request)
+                else -> bytes(0x7F, sid, 0x11)
+            }
+        }
+
+        private fun readDids(request: ByteArray): ByteArray {
+            var response = bytes(0x62)
+            for (i in 1 until request.size step 2) {
+                val did = did(request, i)
+                response += bytes(did shr 8, did and 0xFF) + sourceBytes(did, 1, SOURCE_LENGTH)
+            }
+            return response
+        }
+
+        private fun define(request: ByteArray): ByteArray {
+            val slices = (4 until request.size step 4).map {
+                Slice(did(request, it), request[it + 2].toInt() and 0xFF, request[it + 3].toInt() and 0xFF)
+            }
+            if (slices.any { it.did !in SOURCES }) return bytes(0x7F, 0x2C, 0x31)
+            definitions[did(request, 2)] = slices
+            return bytes(0x6C, 0x01, request[2].toInt() and 0xFF, request[3].toInt() and 0xFF)
+        }
+
+        private fun start(request: ByteArray): ByteArray {
+            val periodMs = when (request[1].toInt()) {
+                0x01 -> 1_000L
+                0x02 -> 200L
+                0x03 -> 10L
+                else -> return bytes(0x7F, 0x2A, 0x31)
+            }
+            for (i in 2 until request.size) {
+                val periodicId = request[i].toInt() and 0xFF
+                val slices = definitions[0xF200 or periodicId] ?: return bytes(0x7F, 0x2A, 0x31)
+                schedules[periodicId] = scope.launch {
+                    while (isActive) {
+                        delay(periodMs)
+                        var message = if (legacyLayout) bytes(0x6A, periodicId) else bytes(periodicId)
+                        for (slice in slices) message += sourceBytes(slice.did, slice.position, slice.size)
+                        messages.emit(message)
+                    }
+                }
+            }
+            return bytes(0x6A)
+        }
+
+        private fun did(data: ByteArray, index: Int) =
+            ((data[index].toInt() and 0xFF) shl 8) or (data[index + 1].toInt() and 0xFF)
+
+        private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+        // Single frame, or first frame + flow control + consecutive frames of 7 bytes
+        private fun frames(length: Int): Long = if (length <= 7) 1 else 2 + length / 7L
+    }
+
+    private companion object {
+        const val P2_MS = 25L
+        const val SOURCE_LENGTH = 8
+        val SOURCES = 0x1000..0x1002
+
+        val RPM = PeriodicSignal("rpm", 0x1000, 1, 2)
+        val SPEED = PeriodicSignal("speed", 0x1000, 5, 2)
+        val COOLANT = PeriodicSignal("coolant", 0x1001, 3, 3)
+    }
+}
@@ -32,7 +32,6 @@ import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Mutex
@@ -109,9 +108,11 @@ class BluetoothLEConnection @Inject constructor(
     private val mtuNegotiatedDeferred = AtomicReference<CompletableDeferred<Int>?>(null)
     private val writeDeferred = AtomicReference<CompletableDeferred<Boolean>?>(null)
 
-    private val dataChannel = Channel<ByteArray>(Channel.BUFFERED)
-
     private var currentMtu = BluetoothLEConstants.DEFAULT_MTU
+
+    // Reused for full-MTU chunks; safe because each chunk write is confirmed
+    // before the next one starts (guarded by writeLock)
+    private var chunkBuffer = ByteArray(0)
     private val isNotificationsEnabled = AtomicBoolean(false)
     private val connectionAttempt = AtomicInteger(0)
 
@@ -204,10 +205,8 @@ class BluetoothLEConnection @Inject constructor(
             if (characteristic.uuid == notifyCharacteristic?.uuid) {
                 val data = characteristic.value
                 if (data != null && data.isNotEmpty()) {
-                    scope.launch {
-                        dataChannel.send(data)
-                        processIncomingData(data)
-                    }
+                    // Copied into the receive buffer synchronously so chunk order is preserved
+                    processIncomingData(data)
                 }
             }
         }
@@ -219,10 +218,7 @@ class BluetoothLEConnection @Inject constructor(
         ) {
             if (characteristic.uuid == notifyCharacteristic?.uuid) {
                 if (value.isNotEmpty()) {
-                    scope.launch {
-                        dataChannel.send(value)
-                        processIncomingData(value)
-                    }
+                    processIncomingData(value)
                 }
             }
         }
@@ -388,8 +384,10 @@ class BluetoothLEConnection @Inject constructor(
     // DATA TRANSFER
     // ═══════════════════════════════════════════════════════════════════════
 
+    override suspend fun doWrite(data: ByteArray): Int = doWrite(data, 0, data.size)
+
     @SuppressLint("MissingPermission")
-    override suspend fun doWrite(data: ByteArray): Int = writeLock.withLock {
+    override suspend fun doWrite(data: ByteArray, offset: Int, length: Int): Int = writeLock.withLock {
         val characteristic = writeCharacteristic
             ?: throw CommunicationException("Write characteristic not available")
 
@@ -398,11 +396,27 @@ class BluetoothLEConnection @Inject constructor(
 
         // Fragment data if larger than MTU
         val maxPayload = currentMtu - BluetoothLEConstants.ATT_HEADER_SIZE
-        val chunks = data.toList().chunked(maxPayload).map { it.toByteArray() }
+        val chunkCount = (length + maxPayload - 1) / maxPayload
+        if (chunkBuffer.size != maxPayload) {
+            chunkBuffer = ByteArray(maxPayload)
+        }
 
         var totalWritten = 0
 
-        for ((index, chunk) in chunks.withIndex()) {
+        for (index in 0 until chunkCount) {
+            // GATT writes take whole arrays, so only a short tail chunk needs
+            // its own exact-size array
+            val chunkOffset = offset + index * maxPayload
+            val chunkSize = minOf(maxPayload, offset + length - chunkOffset)
+            val chunk = when {
+                chunkOffset == 0 && chunkSize == data.size -> data
+                chunkSize == maxPayload -> chunkBuffer
+                else -> ByteArray(chunkSize)
+            }
+            if (chunk !== data) {
+                System.arraycopy(data, chunkOffset, chunk, 0, chunkSize)
+            }
+
             // Create fresh deferred for this write
             val currentWriteDeferred = CompletableDeferred<Boolean>()
             writeDeferred.set(currentWriteDeferred)
@@ -435,13 +449,13 @@ class BluetoothLEConnection @Inject constructor(
             } ?: throw CommunicationException("Write confirmation timeout")
 
             if (!success) {
-                throw CommunicationException("Write failed for chunk ${index + 1}/${chunks.size}")
+                throw CommunicationException("Write failed for chunk ${index + 1}/$chunkCount")
             }
 
-            totalWritten += chunk.size
+            totalWritten += chunkSize
 
             // Flow control delay between chunks
-            if (index < chunks.size - 1) {
+            if (index < chunkCount - 1) {
                 delay(BluetoothLEConstants.CHUNK_WRITE_DELAY)
             }
         }
@@ -450,30 +464,22 @@ class BluetoothLEConnection @Inject constructor(
     }
 
     override suspend fun doRead(buffer: ByteArray, timeout: Long): Int {
-        val data = withTimeoutOrNull(timeout) {
-            dataChannel.receive()
-        } ?: return 0
-
-        val bytesToCopy = minOf(data.size, buffer.size)
-        System.arraycopy(data, 0, buffer, 0, bytesToCopy)
-        return bytesToCopy
+        // Notifications land in the receive buffer; wait for one if it is empty
+        if (receiveBuffer.isEmpty && !receiveBuffer.awaitData(timeout)) {
+            return 0
+        }
+        return receiveBuffer.read(buffer)
     }
 
-    override suspend fun doAvailable(): Int {
-        return if (dataChannel.isEmpty) 0 else 1
-    }
+    override suspend fun doAvailable(): Int = receiveBuffer.size
 
     override suspend fun doClearBuffers() {
-        // Drain the data channel
-        while (!dataChannel.isEmpty) {
-            dataChannel.tryReceive()
-        }
-
-        responseLock.withLock {
-            responseBuffer.clear()
-        }
+        receiveBuffer.clear()
     }
 
+    override val feedsReceiveBuffer: Boolean
+        get() = isNotificationsEnabled.get()
+
     // ═══════════════════════════════════════════════════════════════════════
     // SERVICE AND CHARACTERISTIC DISCOVERY
     // ═══════════════════════════════════════════════════════════════════════
@@ -339,16 +339,18 @@ class BluetoothClassicConnection @Inject constructor(
     // DATA TRANSFER
     // ═══════════════════════════════════════════════════════════════════════
 
-    override suspend fun doWrite(data: ByteArray): Int = streamLock.withLock {
+    override suspend fun doWrite(data: ByteArray): Int = doWrite(data, 0, data.size)
+
+    override suspend fun doWrite(data: ByteArray, offset: Int, length: Int): Int = streamLock.withLock {
         val stream = outputStream
             ?: throw CommunicationException("Output stream not available")
 
         try {
-            stream.write(data)
+            stream.write(data, offset, length)
             if (config.flushAfterWrite) {
                 stream.flush()
             }
-            return data.size
+            return length
         } catch (e: IOException) {
             handleIOException(e)
             throw CommunicationException("Write failed: ${e.message}", e)
@@ -400,9 +402,7 @@ class BluetoothClassicConnection @Inject constructor(
         }
 
         // Clear response buffer
-        responseLock.withLock {
-            responseBuffer.clear()
-        }
+        receiveBuffer.clear()
     }
 
     // ═══════════════════════════════════════════════════════════════════════
@@ -418,8 +418,12 @@ class BluetoothClassicConnection @Inject constructor(
         }
 
         backgroundReaderJob = scope.launch {
+            // Borrowed for the reader's lifetime; chunks are copied into the
+            // receive buffer straight from it
+            val buffer = bufferPool.acquire()
+            val bytes = buffer.array
+
             try {
-                val buffer = ByteArray(BluetoothClassicConstants.READ_BUFFER_SIZE)
 
                 while (isActive && isConnected) {
                     try {
@@ -429,19 +433,15 @@ class BluetoothClassicConnection @Inject constructor(
                             continue
                         }
 
-                        val available = stream.available()
-                        if (available > 0) {
-                            val bytesRead = stream.read(buffer, 0, minOf(available, buffer.size))
-                            if (bytesRead > 0) {
-                                val data = buffer.copyOf(bytesRead)
-                                processIncomingData(data)
-                            } else if (bytesRead == -1) {
-                                // Stream closed
-                                handleStreamClosed()
-                                break
-                            }
-                        } else {
-                            delay(BluetoothClassicConstants.BACKGROUND_READ_INTERVAL)
+                        // Blocking read on the IO dispatcher: wakes as soon as the
+                        // RFCOMM socket delivers bytes and throws once it is closed
+                        val bytesRead = stream.read(bytes, 0, bytes.size)
+                        if (bytesRead > 0) {
+                            processIncomingData(bytes, 0, bytesRead)
+                        } else if (bytesRead == -1) {
+                            // Stream closed
+                            handleStreamClosed()
+                            break
                         }
                     } catch (e: IOException) {
                         if (isActive && isConnected) {
@@ -451,6 +451,7 @@ class BluetoothClassicConnection @Inject constructor(
                     }
                 }
             } finally {
+                buffer.close()
                 isReading.set(false)
             }
         }
@@ -471,6 +472,9 @@ class BluetoothClassicConnection @Inject constructor(
         }
     }
 
+    override val feedsReceiveBuffer: Boolean
+        get() = isReading.get()
+
     // ═══════════════════════════════════════════════════════════════════════
     // ERROR HANDLING
     // ═══════════════════════════════════════════════════════════════════════
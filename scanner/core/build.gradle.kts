@@ -31,6 +31,15 @@ android {
     buildFeatures {
         buildConfig = true
     }
+
+    testOptions {
+        unitTests.all { test ->
+            // Soak duration for SimulatorSoakTest, e.g. -Psimulator.soak.seconds=600
+            project.findProperty("simulator.soak.seconds")?.let { seconds ->
+                test.systemProperty("simulator.soak.seconds", seconds)
+            }
+        }
+    }
 }
 
 // Circular dependency resolved - workaround no longer needed
@@ -39,6 +48,7 @@ dependencies {
     api(project(":core:common"))
     api(project(":core:domain"))
     api(project(":transport:contract"))
+    implementation(project(":protocol:core"))
 
     implementation(libs.kotlin.stdlib)
     implementation(libs.kotlinx.coroutines.core)
@@ -49,5 +59,6 @@ dependencies {
     implementation(libs.timber)
     
     testImplementation(libs.junit)
+    testImplementation(libs.kotlinx.coroutines.test)
     androidTestImplementation(libs.androidx.test.ext.junit)
 }
\ No newline at end of file
@@ -5,24 +5,33 @@ import com.spacetec.obd.core.common.extension.toHexString
 import com.spacetec.obd.core.common.result.AppResult
 import com.spacetec.obd.core.common.result.Result
 import com.spacetec.obd.core.common.result.SpaceTecError
+import com.spacetec.core.common.exceptions.CommunicationException
+import com.spacetec.core.common.exceptions.TimeoutException
+import com.spacetec.core.common.transport.CommandPriority
+import com.spacetec.core.common.transport.CommandScheduler
 import com.spacetec.core.common.transport.DiagnosticTransport
+import com.spacetec.core.common.transport.Elm327ResponseParser
+import com.spacetec.core.common.transport.SchedulerStatistics
 import com.spacetec.transport.contract.Protocol
 import com.spacetec.transport.contract.ProtocolConfig
 import com.spacetec.transport.contract.ProtocolType
+import com.spacetec.obd.scanner.core.Elm327CanChannel
+import com.spacetec.obd.scanner.core.Elm327CommandLink
 import com.spacetec.obd.scanner.core.Scanner
 import com.spacetec.obd.scanner.core.ScannerCapabilities
 import com.spacetec.obd.scanner.core.ScannerConnectionConfig
 import com.spacetec.obd.scanner.core.ScannerConnectionState
 import com.spacetec.obd.scanner.core.ScannerDeviceInfo
 import com.spacetec.obd.scanner.core.ScannerType
+import com.spacetec.protocol.core.EcuVehicleInfo
+import com.spacetec.protocol.core.VehicleInfoBroadcastTarget
+import com.spacetec.protocol.core.VehicleInfoCollector
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.asStateFlow
 import kotlinx.coroutines.flow.flow
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
 import timber.log.Timber
 
 /**
@@ -32,7 +41,7 @@ import timber.log.Timber
  * a common implementation for Bluetooth, WiFi, and USB ELM327 devices.
  * Subclasses implement the transport-specific connection logic.
  */
-abstract class Elm327Adapter : Scanner, DiagnosticTransport {
+abstract class Elm327Adapter : Scanner, DiagnosticTransport, Elm327CommandLink {
     
     // ========================================================================
     // ABSTRACT PROPERTIES - To be implemented by subclasses
@@ -88,8 +97,36 @@ abstract class Elm327Adapter : Scanner, DiagnosticTransport {
     private var currentProtocol: Protocol? = null
     private var connectionConfig: ScannerConnectionConfig = ScannerConnectionConfig()
     
-    private val commandMutex = Mutex()
-    private val responseBuffer = StringBuilder()
+    /**
+     * Hands the adapter to one command at a time, most urgent first, so a
+     * user request never queues behind a backlog of live-data polls.
+     */
+    protected val commandScheduler = CommandScheduler()
+    
+    // Raw bytes of the response being read, reused across commands
+    private var receiveBuffer = ByteArray(RECEIVE_BUFFER_SIZE)
+    private var received = 0
+    private val responseParser = Elm327ResponseParser()
+    
+    /**
+     * Learned response counts appended to OBD requests so the adapter
+     * returns without waiting out its timeout.
+     */
+    protected val responseCounts = Elm327ResponseCounts()
+    
+    // CAN ID of the last ATSH sent through sendCommand; the default after a reset
+    @Volatile
+    private var requestHeader = Elm327CanChannel.FUNCTIONAL_ID
+    
+    // Vehicle is on 11-bit CAN, where canChannel can address it
+    @Volatile
+    private var elevenBitCan = false
+    
+    /**
+     * Byte-level 11-bit CAN requests that queue with the adapter's other
+     * commands, e.g. service 09 to every ECU at once.
+     */
+    val canChannel: Elm327CanChannel by lazy { Elm327CanChannel(this) }
     
     // ========================================================================
     // CONNECTION MANAGEMENT
@@ -244,8 +281,11 @@ abstract class Elm327Adapter : Scanner, DiagnosticTransport {
             return Result.failure(setProtocolResult.errorOrNull()!!)
         }
         
+        // Learn from scratch until the vehicle is known
+        responseCounts.selectVehicle(null)
+        
         // Try a test command to verify vehicle connection
-        val testResult = sendObdCommand("0100") // Supported PIDs request
+        val testResult = sendObdCommand("0100", priority = CommandPriority.INTERACTIVE) // Supported PIDs request
         if (testResult.isFailure) {
             return Result.failure(SpaceTecError.ConnectionError.ConnectionFailed(
                 reason = "Cannot communicate with vehicle"
@@ -263,9 +303,17 @@ abstract class Elm327Adapter : Scanner, DiagnosticTransport {
         val protocolDescResult = sendAtCommand(Elm327Commands.DESCRIBE_PROTOCOL_NUMBER)
         val detectedProtocol = parseProtocolNumber(protocolDescResult.getOrNull() ?: "")
         
+        responseCounts.canHeaders = detectedProtocol.protocolFamily == "CAN"
+        elevenBitCan = detectedProtocol == ProtocolType.ISO_15765_4_CAN_11BIT_500K ||
+            detectedProtocol == ProtocolType.ISO_15765_4_CAN_11BIT_250K
+        responseCounts.selectVehicle(vehicleFingerprint(detectedProtocol, testResponse))
+        
         // Create and configure protocol
         val protocol = createProtocol(detectedProtocol)
         protocol.setTransport(this)
+        (protocol as? VehicleInfoBroadcastTarget)?.attachVehicleInfoBroadcast(
+            if (elevenBitCan) canChannel::broadcast else null
+        )
         
         val initResult = protocol.initialize(protocolConfig)
         if (initResult.isSuccess) {
@@ -298,34 +346,95 @@ abstract class Elm327Adapter : Scanner, DiagnosticTransport {
     
     protected abstract fun createProtocol(protocolType: ProtocolType): Protocol
     
+    /**
+     * Identifies a vehicle by its protocol and the 0100 responses (header
+     * and supported-PID bitmap of every ECU), which is enough to keep
+     * learned response counts apart until the VIN is known.
+     */
+    private fun vehicleFingerprint(protocol: ProtocolType, response: String): String =
+        protocol.name + ":" + response.lines().map { it.trim() }.filter { it.isNotEmpty() }.sorted().joinToString(",")
+    
+    /**
+     * Switches learned response counts to the vehicle identified by
+     * [vehicleKey], e.g. its VIN.
+     */
+    suspend fun selectVehicle(vehicleKey: String) {
+        commandScheduler.execute(CommandPriority.INTERACTIVE) { responseCounts.selectVehicle(vehicleKey) }
+    }
+    
+    /**
+     * Reads service 09 vehicle information (VIN, calibration IDs, CVNs, ECU
+     * name) of every emissions-related ECU with functional requests, so all
+     * ECUs answer each InfoType at once, and switches learned response
+     * counts to the reported VIN.
+     */
+    suspend fun readVehicleInfo(): AppResult<List<EcuVehicleInfo>> {
+        if (!elevenBitCan) {
+            return Result.failure(SpaceTecError.ProtocolError.ProtocolNotSupported(
+                message = "Vehicle information of every ECU needs 11-bit CAN"
+            ))
+        }
+        
+        return try {
+            val ecus = VehicleInfoCollector(canChannel::broadcast).collect()
+            ecus.firstNotNullOfOrNull { it.vin }?.let { selectVehicle(it) }
+            Result.success(ecus)
+        } catch (e: Exception) {
+            Timber.e(e, "Vehicle information error")
+            Result.failure(SpaceTecError.fromThrowable(e))
+        }
+    }
+    
     // ========================================================================
     // COMMAND INTERFACE
     // ========================================================================
     
-    override suspend fun sendCommand(command: String, timeout: Long): AppResult<String> {
+    override suspend fun sendCommand(command: String, timeout: Long): AppResult<String> =
+        sendCommand(command, timeout, CommandPriority.of(command))
+    
+    /**
+     * Sends a command at an explicit [priority].
+     *
+     * @param deadlineMs Longest time the command may wait for the adapter
+     *   before it is dropped unsent; 0 waits as long as it takes
+     */
+    suspend fun sendCommand(
+        command: String,
+        timeout: Long,
+        priority: CommandPriority,
+        deadlineMs: Long = 0L
+    ): AppResult<String> {
         return if (command.startsWith("AT", ignoreCase = true)) {
-            sendAtCommand(command, timeout)
+            sendAtCommand(command, timeout, priority, deadlineMs)
         } else {
-            sendObdCommand(command, timeout)
+            sendObdCommand(command, timeout, priority, deadlineMs)
         }
     }
     
+    /**
+     * Queue-wait and adapter-time figures per command priority.
+     */
+    fun schedulerStatistics(): SchedulerStatistics = commandScheduler.statistics()
+    
     private suspend fun sendAtCommand(
         command: String,
-        timeout: Long = DEFAULT_AT_TIMEOUT
-    ): AppResult<String> = commandMutex.withLock {
+        timeout: Long = DEFAULT_AT_TIMEOUT,
+        priority: CommandPriority = CommandPriority.INTERACTIVE,
+        deadlineMs: Long = 0L
+    ): AppResult<String> = scheduled(command, priority, deadlineMs) {
         try {
             val fullCommand = "$command\r"
             Timber.d("AT TX: $command")
             
             val writeResult = writeBytes(fullCommand.toByteArray(Charsets.US_ASCII))
             if (writeResult.isFailure) {
-                return@withLock writeResult.mapError { it }
+                return@scheduled writeResult.mapError { it }
             }
             
             val response = readResponse(timeout)
             Timber.d("AT RX: $response")
             
+            trackRequestHeader(command)
             Result.success(response)
         } catch (e: Exception) {
             Timber.e(e, "AT command error: $command")
@@ -335,40 +444,121 @@ abstract class Elm327Adapter : Scanner, DiagnosticTransport {
     
     private suspend fun sendObdCommand(
         command: String,
-        timeout: Long = DEFAULT_OBD_TIMEOUT
-    ): AppResult<String> = commandMutex.withLock {
+        timeout: Long = DEFAULT_OBD_TIMEOUT,
+        priority: CommandPriority = CommandPriority.of(command),
+        deadlineMs: Long = 0L
+    ): AppResult<String> = scheduled(command, priority, deadlineMs) {
         try {
-            val fullCommand = "$command\r"
-            Timber.d("OBD TX: $command")
+            val header = requestHeader
+            var expected = responseCounts.expectedCount(command, header)
+            var result = exchangeObd(responseCounts.withExpectedCount(command, expected), timeout)
             
-            val writeResult = writeBytes(fullCommand.toByteArray(Charsets.US_ASCII))
-            if (writeResult.isFailure) {
-                return@withLock writeResult.mapError { it }
+            if (expected > 0 && result.getOrNull() == "?") {
+                // Adapter does not understand the count digit
+                Timber.w("Response count suffix not supported, disabling")
+                responseCounts.markUnsupported()
+                expected = 0
+                result = exchangeObd(command, timeout)
             }
             
-            val response = readResponse(timeout)
-            Timber.d("OBD RX: $response")
-            
-            Result.success(response)
+            if (result.isSuccess) {
+                responseParser.parse(receiveBuffer, 0, received, responseCounts.headerDigits)
+                responseCounts.record(command, expected, responseParser, header)
+            }
+            result
         } catch (e: Exception) {
             Timber.e(e, "OBD command error: $command")
             Result.failure(SpaceTecError.fromThrowable(e))
         }
     }
     
+    /**
+     * Runs [exchange] once [commandScheduler] grants the adapter, turning a
+     * missed queue deadline into a failed result.
+     */
+    private suspend inline fun scheduled(
+        command: String,
+        priority: CommandPriority,
+        deadlineMs: Long,
+        crossinline exchange: suspend () -> AppResult<String>
+    ): AppResult<String> = try {
+        commandScheduler.execute(priority, deadlineMs) { exchange() }
+    } catch (e: TimeoutException) {
+        Timber.w("Command expired in queue: $command")
+        Result.failure(SpaceTecError.fromThrowable(e))
+    }
+    
+    // ========================================================================
+    // EXCLUSIVE COMMAND SEQUENCES
+    // ========================================================================
+    
+    /**
+     * Runs [block] as one [CommandPriority.INTERACTIVE] request of
+     * [commandScheduler]; its commands go out unscheduled and unmodified.
+     */
+    override suspend fun <T> exclusive(block: suspend Elm327CommandLink.Session.() -> T): T =
+        commandScheduler.execute(CommandPriority.INTERACTIVE) { session.block() }
+    
+    private val session = object : Elm327CommandLink.Session {
+        override val requestHeader: Int
+            get() = this@Elm327Adapter.requestHeader
+        
+        override suspend fun command(text: String, timeoutMs: Long): String {
+            val result = exchangeObd(text, timeoutMs)
+            return result.getOrNull()
+                ?: throw CommunicationException("$text failed: ${result.errorOrNull()?.message}")
+        }
+    }
+    
+    /**
+     * Remembers the request header other users set, so exclusive sequences
+     * that change it can put it back.
+     */
+    private fun trackRequestHeader(command: String) {
+        val upper = command.uppercase()
+        when {
+            upper.startsWith("ATSH") -> upper.substring(4).trim().toIntOrNull(16)?.let { requestHeader = it }
+            upper == Elm327Commands.RESET || upper == Elm327Commands.WARM_START ||
+                upper == Elm327Commands.SET_DEFAULTS -> {
+                requestHeader = Elm327CanChannel.FUNCTIONAL_ID
+                canChannel.reset()
+            }
+        }
+    }
+    
+    /**
+     * Writes one OBD request as sent on the wire and reads its response.
+     */
+    private suspend fun exchangeObd(command: String, timeout: Long): AppResult<String> {
+        Timber.d("OBD TX: $command")
+        
+        val writeResult = writeBytes("$command\r".toByteArray(Charsets.US_ASCII))
+        if (writeResult.isFailure) {
+            return Result.failure(writeResult.errorOrNull()!!)
+        }
+        
+        val response = readResponse(timeout)
+        Timber.d("OBD RX: $response")
+        
+        return Result.success(response)
+    }
+    
     private suspend fun readResponse(timeout: Long): String {
-        responseBuffer.clear()
+        received = 0
         val startTime = System.currentTimeMillis()
         
         while (System.currentTimeMillis() - startTime < timeout) {
             val readResult = readBytes(100)
-            if (readResult.isSuccess) {
-                val bytes = readResult.getOrNull()
-                val text = String(bytes, Charsets.US_ASCII)
-                responseBuffer.append(text)
+            val bytes = readResult.getOrNull()
+            if (bytes != null) {
+                if (received + bytes.size > receiveBuffer.size) {
+                    receiveBuffer = receiveBuffer.copyOf(maxOf(receiveBuffer.size * 2, received + bytes.size))
+                }
+                System.arraycopy(bytes, 0, receiveBuffer, received, bytes.size)
+                received += bytes.size
                 
                 // Check for prompt (response complete)
-                if (responseBuffer.contains(">")) {
+                if (bytes.contains(PROMPT)) {
                     break
                 }
             } else {
@@ -376,13 +566,7 @@ abstract class Elm327Adapter : Scanner, DiagnosticTransport {
             }
         }
         
-        return responseBuffer.toString()
-            .replace("\r", "\n")
-            .replace(">", "")
-            .trim()
-            .lines()
-            .filter { it.isNotBlank() }
-            .joinToString("\n")
+        return Elm327ResponseParser.responseText(receiveBuffer, 0, received)
     }
     
     // ========================================================================
@@ -459,5 +643,7 @@ abstract class Elm327Adapter : Scanner, DiagnosticTransport {
     companion object {
         private const val DEFAULT_AT_TIMEOUT = 2000L
         private const val DEFAULT_OBD_TIMEOUT = 5000L
+        private const val RECEIVE_BUFFER_SIZE = 512
+        private const val PROMPT = '>'.code.toByte()
     }
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+// scanner/core/src/main/kotlin/com/spacetec/automotive/scanner/core/elm327/Elm327ResponseCounts.kt
+package com.spacetec.obd.scanner.core.elm327
+
+import com.spacetec.core.common.transport.Elm327ResponseParser
+import com.spacetec.obd.scanner.core.Elm327CanChannel
+
+/**
+ * Learns how many responses each OBD request gets on a vehicle, so the
+ * expected count can be appended to the request (`010C` becomes `010C1`).
+ *
+ * Without the count the ELM327 cannot know whether another ECU is still
+ * going to answer and waits for its full adaptive timeout before printing
+ * the prompt. With it, the adapter returns as soon as that many responses
+ * have arrived.
+ *
+ * A request is only suffixed after its response count was identical
+ * [confirmations] times in a row. A suffixed request that comes back short
+ * (NO DATA, a missing ECU) drops the learned count and the request is sent
+ * plain again until it is re-learned. Every [reverifyInterval]th suffixed
+ * request is sent plain anyway, so a slow ECU that was missed while
+ * learning is picked up. Multi-frame responses are never suffixed: on CAN
+ * the adapter would count frames rather than messages.
+ *
+ * Counts are kept per vehicle (see [selectVehicle]) and per request header:
+ * the same request sent functionally (`7DF`) and physically to one ECU
+ * (`ATSH 7E0`) gets a different number of answers.
+ *
+ * Not thread-safe; the adapter calls it under its command lock.
+ *
+ * @param confirmations Identical plain observations needed before suffixing
+ * @param reverifyInterval Suffixed requests between two plain verifications
+ * @param maxVehicles Vehicles whose counts are remembered
+ */
+class Elm327ResponseCounts(
+    private val confirmations: Int = DEFAULT_CONFIRMATIONS,
+    private val reverifyInterval: Int = DEFAULT_REVERIFY_INTERVAL,
+    private val maxVehicles: Int = DEFAULT_MAX_VEHICLES
+) {
+
+    private class Entry {
+        var lastCount = 0
+        var streak = 0
+        var learned = 0
+        var sinceVerify = 0
+        var multiFrame = false
+    }
+
+    private val vehicles = object : LinkedHashMap<String, HashMap<String, Entry>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, HashMap<String, Entry>>?): Boolean =
+            size > maxVehicles
+    }
+    private var entries = HashMap<String, Entry>()
+    private val scratchParser = Elm327ResponseParser()
+
+    /**
+     * False once the adapter rejected a suffixed request; old clones
+     * answer `?` to the count digit.
+     */
+    var isSupported: Boolean = true
+        private set
+
+    /**
+     * Whether responses are CAN frames with headers (ATH1), which lets
+     * first and consecutive frames be told apart from single frames.
+     */
+    var canHeaders: Boolean = false
+
+    /** Header layout to parse responses with, following [canHeaders]. */
+    val headerDigits: Int
+        get() = if (canHeaders) Elm327ResponseParser.HEADER_CAN_AUTO else Elm327ResponseParser.NO_HEADER
+
+    /** Requests sent with a count suffix. */
+    var suffixedRequests: Long = 0
+        private set
+
+    /** Suffixed requests that came back short and were un-learned. */
+    var fallbacks: Long = 0
+        private set
+
+    /**
+     * Switches to the counts learned for [vehicleKey], or to an empty,
+     * unremembered table when it is null.
+     */
+    fun selectVehicle(vehicleKey: String?) {
+        entries = if (vehicleKey == null) HashMap() else vehicles.getOrPut(vehicleKey) { HashMap() }
+    }
+
+    /**
+     * Forgets everything learned, including suffix support.
+     */
+    fun reset() {
+        vehicles.clear()
+        entries = HashMap()
+        isSupported = true
+        suffixedRequests = 0
+        fallbacks = 0
+    }
+
+    /**
+     * Returns the response count to append to [command], sent with request
+     * header [header], or 0 to send it unchanged.
+     */
+    fun expectedCount(command: String, header: Int = Elm327CanChannel.FUNCTIONAL_ID): Int {
+        if (!isSupported) return 0
+        val key = requestKey(command, header) ?: return 0
+        val entry = entries[key] ?: return 0
+        if (entry.multiFrame || entry.learned == 0) return 0
+
+        if (++entry.sinceVerify > reverifyInterval) {
+            entry.sinceVerify = 0
+            return 0
+        }
+        suffixedRequests++
+        return entry.learned
+    }
+
+    /**
+     * Appends the count for [command], if one has been learned.
+     */
+    fun withExpectedCount(command: String, expected: Int): String =
+        if (expected > 0) command + HEX_DIGITS[expected] else command
+
+    /**
+     * Records the response to [command].
+     *
+     * @param expected Count that was appended, or 0 if sent plain
+     * @param response Response text, one line per frame
+     * @param header Request header the command was sent with
+     */
+    fun record(command: String, expected: Int, response: String, header: Int = Elm327CanChannel.FUNCTIONAL_ID) {
+        scratchParser.parse(response.toByteArray(Charsets.US_ASCII), headerDigits = headerDigits)
+        record(command, expected, scratchParser, header)
+    }
+
+    /**
+     * Records the response to [command] from an already parsed receive buffer.
+     *
+     * @param expected Count that was appended, or 0 if sent plain
+     * @param response Parser holding the response
+     * @param header Request header the command was sent with
+     */
+    fun record(
+        command: String,
+        expected: Int,
+        response: Elm327ResponseParser,
+        header: Int = Elm327CanChannel.FUNCTIONAL_ID
+    ) {
+        val key = requestKey(command, header) ?: return
+        val entry = entries.getOrPut(key) { Entry() }
+        val count = response.frameCount
+
+        if (isMultiFrame(response)) {
+            entry.multiFrame = true
+            entry.learned = 0
+            return
+        }
+
+        if (expected > 0) {
+            if (count < expected) {
+                // Someone did not answer in time; relearn from plain requests
+                fallbacks++
+                entry.learned = 0
+                entry.streak = 0
+                entry.lastCount = 0
+            }
+            return
+        }
+
+        if (count == 0) {
+            entry.streak = 0
+            entry.lastCount = 0
+            return
+        }
+
+        if (entry.learned > 0 && count > entry.learned) {
+            // Verification found a responder the count would cut off
+            entry.learned = 0
+        }
+
+        entry.streak = if (count == entry.lastCount) entry.streak + 1 else 1
+        entry.lastCount = count
+        if (entry.learned == 0 && entry.streak >= confirmations && count < HEX_DIGITS.length) {
+            entry.learned = count
+            entry.sinceVerify = 0
+        }
+    }
+
+    /**
+     * Marks the count suffix as unsupported by this adapter.
+     */
+    fun markUnsupported() {
+        isSupported = false
+    }
+
+    /**
+     * Learned count for [command] sent with request header [header], or 0.
+     */
+    fun learnedCount(command: String, header: Int = Elm327CanChannel.FUNCTIONAL_ID): Int {
+        val key = requestKey(command, header) ?: return 0
+        return entries[key]?.learned ?: 0
+    }
+
+    /**
+     * Multi-frame responses show as a length line and `n:` prefixes without
+     * headers, or as first/consecutive frame PCI bytes with CAN headers.
+     */
+    private fun isMultiFrame(response: Elm327ResponseParser): Boolean {
+        if (response.messageLength >= 0) return true
+        for (frame in 0 until response.frameCount) {
+            if (response.lineIndex(frame) >= 0) return true
+            if (canHeaders && response.header(frame) >= 0) {
+                val frameType = response.dataByte(frame, 0) shr 4
+                if (frameType == 1 || frameType == 2) return true
+            }
+        }
+        return false
+    }
+
+    companion object {
+        const val DEFAULT_CONFIRMATIONS = 2
+        const val DEFAULT_REVERIFY_INTERVAL = 50
+        const val DEFAULT_MAX_VEHICLES = 8
+
+        private const val HEX_DIGITS = "0123456789ABCDEF"
+
+        /** Services whose requests are functionally addressed to every ECU. */
+        private val COUNTED_SERVICES = setOf("01", "02", "09")
+
+        /**
+         * Key for requests eligible for a count suffix: a service 01, 02 or
+         * 09 request of whole bytes, at most a service byte plus six PIDs,
+         * prefixed with the request header it is sent with.
+         */
+        internal fun requestKey(command: String, header: Int = Elm327CanChannel.FUNCTIONAL_ID): String? {
+            val normalized = command.replace(" ", "").uppercase()
+            if (normalized.length < 4 || normalized.length > 14 || normalized.length % 2 != 0) return null
+            if (normalized.substring(0, 2) !in COUNTED_SERVICES) return null
+            if (!normalized.all { it in '0'..'9' || it in 'A'..'F' }) return null
+            return "%03X:%s".format(header, normalized)
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import java.io.Closeable
+
+// ═══════════════════════════════════════════════════════════════════════════
+// BYTE VIEWS
+// ═══════════════════════════════════════════════════════════════════════════
+
+/**
+ * Read-only view over a contiguous range of bytes.
+ *
+ * Views let transport and protocol code hand received data around without
+ * copying it into a right-sized array first. A view is only valid until the
+ * owner of the backing storage reuses it; call [toByteArray] to keep the bytes.
+ */
+interface ByteView {
+
+    /**
+     * Number of bytes in the view.
+     */
+    val size: Int
+
+    /**
+     * Returns the byte at [index] (0-based, relative to the view).
+     */
+    operator fun get(index: Int): Byte
+
+    /**
+     * Copies the view into [dest] starting at [destOffset].
+     *
+     * @return Number of bytes copied
+     */
+    fun copyInto(dest: ByteArray, destOffset: Int = 0): Int
+
+    /**
+     * Copies the view into a new array.
+     */
+    fun toByteArray(): ByteArray {
+        val result = ByteArray(size)
+        copyInto(result)
+        return result
+    }
+}
+
+/**
+ * Mutable window over a byte array.
+ *
+ * A slice does not own its storage: [array] is typically a pooled buffer or a
+ * transport's receive array. [offset] and [length] can be repositioned with
+ * [set] so that a single slice instance is reused for every chunk on a hot path.
+ *
+ * @property array Backing storage
+ * @property offset Start of the window within [array]
+ * @property length Number of valid bytes in the window
+ */
+open class ByteSlice(
+    array: ByteArray,
+    offset: Int = 0,
+    length: Int = array.size - offset
+) : ByteView {
+
+    var array: ByteArray = array
+        private set
+
+    var offset: Int = offset
+        private set
+
+    var length: Int = length
+        private set
+
+    init {
+        checkRange(array, offset, length)
+    }
+
+    override val size: Int
+        get() = length
+
+    /**
+     * Free space between the end of the window and the end of [array].
+     */
+    val remaining: Int
+        get() = array.size - offset - length
+
+    override fun get(index: Int): Byte {
+        if (index < 0 || index >= length) {
+            throw IndexOutOfBoundsException("Index $index out of bounds for length $length")
+        }
+        return array[offset + index]
+    }
+
+    override fun copyInto(dest: ByteArray, destOffset: Int): Int {
+        System.arraycopy(array, offset, dest, destOffset, length)
+        return length
+    }
+
+    /**
+     * Repositions the window over [array].
+     */
+    fun set(array: ByteArray, offset: Int = 0, length: Int = array.size - offset): ByteSlice {
+        checkRange(array, offset, length)
+        this.array = array
+        this.offset = offset
+        this.length = length
+        return this
+    }
+
+    /**
+     * Sets the number of valid bytes, keeping the current offset.
+     */
+    fun setLength(length: Int): ByteSlice {
+        checkRange(array, offset, length)
+        this.length = length
+        return this
+    }
+
+    /**
+     * Decodes the window as a string.
+     */
+    fun decodeToString(charset: java.nio.charset.Charset = ScannerConnection.DEFAULT_CHARSET): String =
+        String(array, offset, length, charset)
+
+    override fun toString(): String = "ByteSlice(offset=$offset, length=$length, capacity=${array.size})"
+
+    private fun checkRange(array: ByteArray, offset: Int, length: Int) {
+        if (offset < 0 || length < 0 || offset + length > array.size) {
+            throw IndexOutOfBoundsException("Range [$offset, ${offset + length}) out of bounds for size ${array.size}")
+        }
+    }
+}
+
+// ═══════════════════════════════════════════════════════════════════════════
+// BUFFER POOL
+// ═══════════════════════════════════════════════════════════════════════════
+
+/**
+ * A [ByteSlice] whose storage is borrowed from a [BufferPool].
+ *
+ * Return it with [close] (or `use { }`) once the bytes are no longer needed.
+ * Using a buffer after closing it is a programming error; the pool will hand
+ * the same storage to the next caller.
+ */
+class PooledBuffer internal constructor(
+    private val pool: BufferPool,
+    storage: ByteArray
+) : ByteSlice(storage, 0, 0), Closeable {
+
+    internal var inPool = false
+
+    /**
+     * Total capacity of the backing storage.
+     */
+    val capacity: Int
+        get() = array.size
+
+    /**
+     * Resets the window to an empty range at the start of the storage.
+     */
+    fun reset(): PooledBuffer {
+        set(array, 0, 0)
+        return this
+    }
+
+    override fun close() {
+        pool.release(this)
+    }
+}
+
+/**
+ * Fixed-segment pool of byte buffers shared by scanner transports.
+ *
+ * Every buffer has the same [segmentSize], which keeps acquire/release to a
+ * push/pop on an array-backed stack: no allocation once the pool is warm. When
+ * the pool is empty a new segment is allocated; at most [maxPooled] segments
+ * are retained when released, the rest are left to the garbage collector.
+ *
+ * ## Usage Example
+ *
+ * ```kotlin
+ * BufferPool.SHARED.acquire().use { buffer ->
+ *     val count = stream.read(buffer.array, 0, buffer.capacity)
+ *     buffer.setLength(count)
+ *     consume(buffer)
+ * }
+ * ```
+ *
+ * @param segmentSize Size of each pooled buffer in bytes
+ * @param maxPooled Maximum number of idle buffers kept for reuse
+ *
+ * @author SpaceTec Development Team
+ * @since 1.1.0
+ */
+class BufferPool(
+    val segmentSize: Int = ConnectionConfig.DEFAULT_BUFFER_SIZE,
+    val maxPooled: Int = DEFAULT_MAX_POOLED
+) {
+
+    init {
+        require(segmentSize > 0) { "Segment size must be positive: $segmentSize" }
+        require(maxPooled > 0) { "Max pooled must be positive: $maxPooled" }
+    }
+
+    private val lock = Any()
+    private val idle = arrayOfNulls<PooledBuffer>(maxPooled)
+    private var idleCount = 0
+    private var allocations = 0L
+
+    /**
+     * Number of segments allocated over the pool's lifetime.
+     * Stops growing once the pool is warm; useful for leak and churn checks.
+     */
+    val allocatedCount: Long
+        get() = synchronized(lock) { allocations }
+
+    /**
+     * Number of idle buffers currently held by the pool.
+     */
+    val idleBuffers: Int
+        get() = synchronized(lock) { idleCount }
+
+    /**
+     * Borrows an empty buffer of [segmentSize] bytes.
+     */
+    fun acquire(): PooledBuffer {
+        synchronized(lock) {
+            if (idleCount > 0) {
+                idleCount--
+                val buffer = idle[idleCount]!!
+                idle[idleCount] = null
+                buffer.inPool = false
+                return buffer.reset()
+            }
+            allocations++
+        }
+        return PooledBuffer(this, ByteArray(segmentSize))
+    }
+
+    /**
+     * Returns a buffer to the pool. Releasing the same buffer twice is ignored.
+     */
+    fun release(buffer: PooledBuffer) {
+        synchronized(lock) {
+            if (buffer.inPool) return
+            if (idleCount < maxPooled) {
+                buffer.inPool = true
+                idle[idleCount++] = buffer
+            }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_POOLED = 16
+
+        /**
+         * Pool shared by all scanner transports in the process.
+         */
+        val SHARED = BufferPool()
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import com.spacetec.core.common.exceptions.CommunicationException
+import com.spacetec.core.common.transport.Elm327ResponseParser
+
+/**
+ * Byte-level diagnostic requests on an ISO 15765-4 (CAN) vehicle through an
+ * ELM327-compatible adapter, with the answers of several ECUs told apart.
+ *
+ * Headers are switched on (`ATH1`) on first use, so every frame carries the
+ * CAN ID it came from. When a functional request is answered by several
+ * ECUs with multi-frame messages, the adapter prints their first and
+ * consecutive frames interleaved as they arrive; [broadcast] reassembles
+ * them per CAN ID from that single response, so all ECUs' transfers
+ * complete within one request instead of one ECU after another.
+ *
+ * Every request runs in one [Elm327CommandLink.exclusive] sequence, so it
+ * queues with the adapter's other commands. A request to another CAN ID
+ * than [Elm327CommandLink.Session.requestHeader] sets `ATSH` to its target
+ * and puts the previous header back before the adapter is released.
+ *
+ * @param link Connected adapter, on a CAN protocol
+ * @param commandTimeoutMs Timeout for one adapter command
+ *
+ * @author SpaceTec Development Team
+ * @since 1.1.0
+ */
+class Elm327CanChannel(
+    private val link: Elm327CommandLink,
+    private val commandTimeoutMs: Long = DEFAULT_COMMAND_TIMEOUT_MS
+) {
+
+    private val parser = Elm327ResponseParser()
+
+    @Volatile
+    private var configured = false
+
+    /** Adapter commands sent, setup and header changes included. */
+    @Volatile
+    var commands: Int = 0
+        private set
+
+    /**
+     * Sends [request] (service ID first) to the functional address.
+     *
+     * @return Every complete message heard, keyed by the CAN ID it came
+     *   from; the last one per ECU if an ECU sent several. Empty on
+     *   `NO DATA`.
+     * @throws CommunicationException if the adapter fails
+     */
+    suspend fun broadcast(request: ByteArray): Map<Int, ByteArray> = link.exclusive {
+        val answers = LinkedHashMap<Int, ByteArray>()
+        for ((id, message) in exchange(FUNCTIONAL_ID, request)) answers[id] = message
+        answers
+    }
+
+    /**
+     * Sends [request] (service ID first) to the ECU at physical request ID
+     * [target].
+     *
+     * @return Its last complete message, or null if it did not answer
+     * @throws CommunicationException if the adapter fails
+     */
+    suspend fun request(target: Int, request: ByteArray): ByteArray? = link.exclusive {
+        exchange(target, request).lastOrNull()?.second
+    }
+
+    /**
+     * Forgets the adapter state, e.g. after it was reset; the next request
+     * sets it up again.
+     */
+    fun reset() {
+        configured = false
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // ADAPTER I/O
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Sends [request] to [target] within an exclusive sequence, restoring
+     * the adapter's request header afterwards if it was changed.
+     */
+    private suspend fun Elm327CommandLink.Session.exchange(target: Int, request: ByteArray): List<Pair<Int, ByteArray>> {
+        require(request.isNotEmpty() && target in 0..0x7FF) { "Invalid request to %03X".format(target) }
+        if (!configured) {
+            for (setup in SETUP_COMMANDS) send(setup)
+            configured = true
+        }
+        val previous = requestHeader
+        val switched = target != previous
+        if (switched) send("ATSH%03X".format(target))
+
+        val text = StringBuilder(request.size * 2)
+        for (byte in request) text.append(HEX[byte.toInt() shr 4 and 0x0F]).append(HEX[byte.toInt() and 0x0F])
+        val response = try {
+            send(text.toString())
+        } finally {
+            if (switched) send("ATSH%03X".format(previous))
+        }
+
+        parser.parse(response.toByteArray(Charsets.US_ASCII), headerDigits = Elm327ResponseParser.HEADER_CAN_AUTO)
+        if (parser.status and Elm327ResponseParser.STATUS_FAILURE_MASK != 0 && parser.frameCount == 0) return emptyList()
+        return canMessages(parser)
+    }
+
+    private suspend fun Elm327CommandLink.Session.send(text: String): String {
+        commands++
+        return command(text, commandTimeoutMs)
+    }
+
+    companion object {
+        const val DEFAULT_COMMAND_TIMEOUT_MS = 2_000L
+
+        /** OBD functional request ID on 11-bit CAN. */
+        const val FUNCTIONAL_ID = 0x7DF
+
+        private val SETUP_COMMANDS = listOf("ATE0", "ATH1")
+        private val HEX = "0123456789ABCDEF".toCharArray()
+
+        /**
+         * Messages in a response parsed with CAN headers, as (CAN ID,
+         * message) pairs in order of completion: single frames as they are,
+         * first and consecutive frames joined per CAN ID. Frames of
+         * different IDs may interleave; a transfer cut short is dropped.
+         */
+        internal fun canMessages(parser: Elm327ResponseParser): List<Pair<Int, ByteArray>> {
+            val messages = ArrayList<Pair<Int, ByteArray>>()
+            val pending = HashMap<Int, Pair<ByteArray, Int>>()
+            for (frame in 0 until parser.frameCount) {
+                val id = parser.header(frame)
+                val data = parser.dataOf(frame)
+                if (data.isEmpty()) continue
+                val pci = data[0].toInt() and 0xFF
+                when (pci shr 4) {
+                    0x0 -> {
+                        val length = (pci and 0x0F).coerceAtMost(data.size - 1)
+                        messages += id to data.copyOfRange(1, 1 + length)
+                    }
+                    0x1 -> if (data.size >= 2) {
+                        val length = ((pci and 0x0F) shl 8) or (data[1].toInt() and 0xFF)
+                        val message = ByteArray(length)
+                        val received = minOf(length, data.size - 2)
+                        data.copyInto(message, 0, 2, 2 + received)
+                        pending[id] = message to received
+                    }
+                    0x2 -> {
+                        val (message, received) = pending[id] ?: continue
+                        val count = minOf(message.size - received, data.size - 1)
+                        data.copyInto(message, received, 1, 1 + count)
+                        if (received + count == message.size) {
+                            pending.remove(id)
+                            messages += id to message
+                        } else {
+                            pending[id] = message to received + count
+                        }
+                    }
+                }
+            }
+            return messages
+        }
+    }
+}
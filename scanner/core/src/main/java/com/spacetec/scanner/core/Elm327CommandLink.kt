@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import com.spacetec.core.common.exceptions.CommunicationException
+
+/**
+ * Exclusive use of an ELM327-compatible adapter for a sequence of commands.
+ *
+ * Commands sent inside [exclusive] go out back to back; nothing else reaches
+ * the adapter until the block returns, so a sequence that changes adapter
+ * state (e.g. `ATSH`) can put it back before any other user sees it.
+ *
+ * @author SpaceTec Development Team
+ * @since 1.1.0
+ */
+interface Elm327CommandLink {
+
+    /**
+     * Commands of one exclusive sequence.
+     */
+    interface Session {
+        /**
+         * CAN ID the adapter's other users have set with `ATSH`, which a
+         * sequence changing the header must put back.
+         */
+        val requestHeader: Int
+
+        /**
+         * Sends [text] and returns the adapter's response.
+         *
+         * @throws CommunicationException if the adapter fails
+         */
+        suspend fun command(text: String, timeoutMs: Long): String
+    }
+
+    /**
+     * Runs [block] holding the adapter.
+     *
+     * @return The result of [block]
+     */
+    suspend fun <T> exclusive(block: suspend Session.() -> T): T
+}
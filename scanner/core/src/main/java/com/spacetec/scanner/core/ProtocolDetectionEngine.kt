@@ -12,6 +12,7 @@ import com.spacetec.core.common.exceptions.ProtocolException
 import com.spacetec.core.common.exceptions.TimeoutException
 import com.spacetec.core.common.result.Result
 import com.spacetec.core.domain.models.scanner.ScannerConnectionType
+import com.spacetec.protocol.core.BusFingerprint
 import com.spacetec.protocol.core.ProtocolDetector
 import com.spacetec.protocol.core.ProtocolType
 import kotlinx.coroutines.CancellationException
@@ -272,11 +273,15 @@ class ProtocolDetectionEngine @Inject constructor(
     
     /**
      * Detects vehicle protocol with enhanced features.
+     *
+     * @param fingerprint Result of passive bus listening, if the adapter
+     *        supports it; orders the protocols by what was heard
      */
     suspend fun detectProtocol(
         connection: ScannerConnection,
         vehicleInfo: VehicleInfo? = null,
-        config: ProtocolDetectionConfig = ProtocolDetectionConfig.DEFAULT
+        config: ProtocolDetectionConfig = ProtocolDetectionConfig.DEFAULT,
+        fingerprint: BusFingerprint? = null
     ): Result<ProtocolDetectionResult> = detectionMutex.withLock {
         withContext(dispatcher) {
             isCancelled.set(false)
@@ -287,7 +292,7 @@ class ProtocolDetectionEngine @Inject constructor(
             try {
                 withTimeout(config.totalTimeout) {
                     // Try primary detection strategy
-                    val primaryResult = tryPrimaryDetection(connection, vehicleInfo, config)
+                    val primaryResult = tryPrimaryDetection(connection, vehicleInfo, config, fingerprint)
                     
                     if (primaryResult.success) {
                         val finalResult = primaryResult.copy(
@@ -335,11 +340,14 @@ class ProtocolDetectionEngine @Inject constructor(
     
     /**
      * Detects protocol with progress updates.
+     *
+     * @param fingerprint Result of passive bus listening, as for [detectProtocol]
      */
     fun detectProtocolWithProgress(
         connection: ScannerConnection,
         vehicleInfo: VehicleInfo? = null,
-        config: ProtocolDetectionConfig = ProtocolDetectionConfig.DEFAULT
+        config: ProtocolDetectionConfig = ProtocolDetectionConfig.DEFAULT,
+        fingerprint: BusFingerprint? = null
     ): Flow<ProtocolDetectionProgress> = flow {
         emit(ProtocolDetectionProgress.Started)
         
@@ -351,7 +359,8 @@ class ProtocolDetectionEngine @Inject constructor(
             val primaryResult = tryPrimaryDetectionWithProgress(
                 connection = connection,
                 vehicleInfo = vehicleInfo,
-                config = config
+                config = config,
+                fingerprint = fingerprint
             ) { progress ->
                 emit(progress)
             }
@@ -427,11 +436,14 @@ class ProtocolDetectionEngine @Inject constructor(
     }
     
     /**
-     * Gets optimized protocol order based on vehicle information.
+     * Gets optimized protocol order based on vehicle information and, when
+     * available, on a passive [BusFingerprint], which takes precedence over
+     * the vehicle hints.
      */
     fun getOptimizedProtocolOrder(
         vehicleInfo: VehicleInfo?,
-        config: ProtocolDetectionConfig
+        config: ProtocolDetectionConfig,
+        fingerprint: BusFingerprint? = null
     ): List<ProtocolType> {
         val order = mutableListOf<ProtocolType>()
         
@@ -453,7 +465,8 @@ class ProtocolDetectionEngine @Inject constructor(
                 skipProtocols = config.skipProtocols,
                 preferredProtocol = config.preferredProtocol,
                 stopOnFirstMatch = config.stopOnFirstMatch
-            )
+            ),
+            fingerprint = fingerprint
         )
         
         // Add protocols not already in the list
@@ -472,9 +485,10 @@ class ProtocolDetectionEngine @Inject constructor(
     private suspend fun tryPrimaryDetection(
         connection: ScannerConnection,
         vehicleInfo: VehicleInfo?,
-        config: ProtocolDetectionConfig
+        config: ProtocolDetectionConfig,
+        fingerprint: BusFingerprint?
     ): ProtocolDetectionResult {
-        val protocolOrder = getOptimizedProtocolOrder(vehicleInfo, config)
+        val protocolOrder = getOptimizedProtocolOrder(vehicleInfo, config, fingerprint)
         val testedProtocols = mutableListOf<ProtocolType>()
         
         for (protocol in protocolOrder) {
@@ -514,9 +528,10 @@ class ProtocolDetectionEngine @Inject constructor(
         connection: ScannerConnection,
         vehicleInfo: VehicleInfo?,
         config: ProtocolDetectionConfig,
+        fingerprint: BusFingerprint?,
         onProgress: suspend (ProtocolDetectionProgress) -> Unit
     ): ProtocolDetectionResult {
-        val protocolOrder = getOptimizedProtocolOrder(vehicleInfo, config)
+        val protocolOrder = getOptimizedProtocolOrder(vehicleInfo, config, fingerprint)
         val testedProtocols = mutableListOf<ProtocolType>()
         
         for ((index, protocol) in protocolOrder.withIndex()) {
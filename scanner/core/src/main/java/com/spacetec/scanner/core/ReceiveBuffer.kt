@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withTimeoutOrNull
+import java.nio.charset.Charset
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.coroutines.resume
+
+/**
+ * Fixed-capacity byte ring buffer that sits between a transport and its readers.
+ *
+ * Transports push received bytes with [write] from whatever thread or coroutine
+ * delivers them (background reader, GATT callback, pull-mode read). Readers park
+ * in [awaitData] until new bytes arrive instead of polling, and locate response
+ * terminators with [indexOf], which only examines bytes that arrived since the
+ * previous scan. Together this makes waiting for an ELM327 prompt cost a single
+ * wake-up and a linear scan over the response, regardless of how many chunks
+ * the response was split into.
+ *
+ * ## Threading
+ *
+ * Any number of producers may call [write] concurrently. Consumption ([indexOf],
+ * [read], [readString], [skip], [awaitData]) is expected to be serialized by the
+ * owner, as [BaseScannerConnection] does with its read mutex.
+ *
+ * ## Overflow
+ *
+ * When a write would exceed [capacity] the oldest bytes are discarded, mirroring
+ * the behaviour of the previous string-based response buffer. Discarded bytes are
+ * counted in [overflowCount].
+ *
+ * @param capacity Maximum number of bytes held before the oldest are discarded
+ *
+ * @author SpaceTec Development Team
+ * @since 1.1.0
+ */
+class ReceiveBuffer(
+    val capacity: Int = ScannerConnection.MAX_RESPONSE_SIZE
+) {
+
+    init {
+        require(capacity > 0) { "Capacity must be positive: $capacity" }
+    }
+
+    private val lock = Any()
+    private val storage = ByteArray(capacity)
+
+    private var head = 0
+    private var count = 0
+
+    // Incremental terminator scan state
+    private var scannedCount = 0
+    private var scannedTerminator: ByteArray? = null
+
+    private var discarded = 0L
+
+    // Wake-up state: null (idle), SIGNALED (write happened while no reader was
+    // parked) or the parked reader's continuation. Writes never allocate.
+    private val wakeState = AtomicReference<Any?>(null)
+
+    /**
+     * Number of unread bytes currently buffered.
+     */
+    val size: Int
+        get() = synchronized(lock) { count }
+
+    /**
+     * Returns true if no unread bytes are buffered.
+     */
+    val isEmpty: Boolean
+        get() = size == 0
+
+    /**
+     * Total number of bytes discarded because the buffer was full.
+     */
+    val overflowCount: Long
+        get() = synchronized(lock) { discarded }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // PRODUCER SIDE
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Appends bytes to the buffer and wakes any parked reader.
+     *
+     * The bytes are copied; the caller may reuse [data] immediately.
+     *
+     * @param data Source array
+     * @param offset Start offset in [data]
+     * @param length Number of bytes to append
+     */
+    fun write(data: ByteArray, offset: Int = 0, length: Int = data.size - offset) {
+        if (length <= 0) return
+        require(offset >= 0 && offset + length <= data.size) {
+            "Range [$offset, ${offset + length}) out of bounds for size ${data.size}"
+        }
+
+        synchronized(lock) {
+            var srcOffset = offset
+            var srcLength = length
+
+            // Only the newest `capacity` bytes of an oversized write can survive
+            if (srcLength > capacity) {
+                val skipped = srcLength - capacity
+                discardLocked(count)
+                discarded += skipped
+                srcOffset += skipped
+                srcLength = capacity
+            }
+
+            val overflow = count + srcLength - capacity
+            if (overflow > 0) {
+                discardLocked(overflow)
+            }
+
+            var tail = (head + count) % capacity
+            var remaining = srcLength
+            while (remaining > 0) {
+                val chunk = minOf(remaining, capacity - tail)
+                System.arraycopy(data, srcOffset, storage, tail, chunk)
+                srcOffset += chunk
+                remaining -= chunk
+                tail = (tail + chunk) % capacity
+            }
+            count += srcLength
+        }
+
+        signal()
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // CONSUMER SIDE
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Finds the first occurrence of [terminator] in the unread bytes.
+     *
+     * Repeated calls with the same terminator only scan bytes appended since
+     * the previous call (plus `terminator.size - 1` bytes of overlap so a
+     * terminator split across two writes is still found).
+     *
+     * @param terminator Byte sequence to look for
+     * @return Offset of the terminator relative to the first unread byte, or -1
+     */
+    fun indexOf(terminator: ByteArray): Int {
+        if (terminator.isEmpty()) return 0
+
+        synchronized(lock) {
+            if (scannedTerminator !== terminator && !terminator.contentEquals(scannedTerminator)) {
+                scannedTerminator = terminator
+                scannedCount = 0
+            }
+
+            val start = (scannedCount - terminator.size + 1).coerceAtLeast(0)
+            val last = count - terminator.size
+
+            var i = start
+            while (i <= last) {
+                if (storage[(head + i) % capacity] == terminator[0] && matchesAt(i, terminator)) {
+                    scannedCount = i
+                    return i
+                }
+                i++
+            }
+
+            scannedCount = count
+            return -1
+        }
+    }
+
+    /**
+     * Removes up to [length] bytes from the buffer into [dest].
+     *
+     * @return Number of bytes copied
+     */
+    fun read(dest: ByteArray, offset: Int = 0, length: Int = dest.size - offset): Int {
+        synchronized(lock) {
+            val toCopy = minOf(length, count)
+            var copied = 0
+            while (copied < toCopy) {
+                val chunk = minOf(toCopy - copied, capacity - head)
+                System.arraycopy(storage, head, dest, offset + copied, chunk)
+                copied += chunk
+                consumeLocked(chunk)
+            }
+            return toCopy
+        }
+    }
+
+    /**
+     * Removes bytes into [into], filling it from its offset to the end of its
+     * backing array, and updates the slice length to the number of bytes copied.
+     *
+     * @return Number of bytes copied
+     */
+    fun read(into: ByteSlice): Int {
+        val copied = read(into.array, into.offset, into.array.size - into.offset)
+        into.setLength(copied)
+        return copied
+    }
+
+    /**
+     * Removes [length] bytes from the buffer and decodes them as a string.
+     *
+     * @param length Number of bytes to consume (clamped to [size])
+     * @param charset Charset used for decoding
+     */
+    fun readString(length: Int, charset: Charset = ScannerConnection.DEFAULT_CHARSET): String {
+        synchronized(lock) {
+            val toRead = minOf(length, count)
+            if (toRead == 0) return ""
+
+            val result = if (head + toRead <= capacity) {
+                String(storage, head, toRead, charset)
+            } else {
+                val joined = ByteArray(toRead)
+                val first = capacity - head
+                System.arraycopy(storage, head, joined, 0, first)
+                System.arraycopy(storage, 0, joined, first, toRead - first)
+                String(joined, charset)
+            }
+            consumeLocked(toRead)
+            return result
+        }
+    }
+
+    /**
+     * Discards up to [length] unread bytes.
+     */
+    fun skip(length: Int) {
+        synchronized(lock) {
+            consumeLocked(minOf(length, count))
+        }
+    }
+
+    /**
+     * Discards all unread bytes and any pending wake-up.
+     */
+    fun clear() {
+        synchronized(lock) {
+            head = 0
+            count = 0
+            scannedCount = 0
+        }
+        wakeState.compareAndSet(SIGNALED, null)
+    }
+
+    /**
+     * Suspends until bytes are written or [timeoutMs] elapses.
+     *
+     * Returns immediately if a write happened since the last wake-up, so a
+     * check-then-await sequence never misses data.
+     *
+     * @return true if woken by a write, false on timeout
+     */
+    suspend fun awaitData(timeoutMs: Long): Boolean {
+        if (wakeState.compareAndSet(SIGNALED, null)) return true
+        if (timeoutMs <= 0) return false
+
+        return withTimeoutOrNull(timeoutMs) {
+            suspendCancellableCoroutine<Unit> { cont ->
+                cont.invokeOnCancellation { wakeState.compareAndSet(cont, null) }
+                if (!wakeState.compareAndSet(null, cont)) {
+                    // A write slipped in between the check above and parking
+                    wakeState.compareAndSet(SIGNALED, null)
+                    cont.resume(Unit)
+                }
+            }
+            true
+        } ?: false
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // INTERNAL
+    // ═══════════════════════════════════════════════════════════════════════
+
+    @Suppress("UNCHECKED_CAST")
+    private fun signal() {
+        while (true) {
+            val state = wakeState.get()
+            when {
+                state === SIGNALED -> return
+                state == null -> if (wakeState.compareAndSet(null, SIGNALED)) return
+                wakeState.compareAndSet(state, null) -> {
+                    (state as CancellableContinuation<Unit>).resume(Unit)
+                    return
+                }
+            }
+        }
+    }
+
+    private fun matchesAt(position: Int, terminator: ByteArray): Boolean {
+        for (j in 1 until terminator.size) {
+            if (storage[(head + position + j) % capacity] != terminator[j]) return false
+        }
+        return true
+    }
+
+    private fun consumeLocked(length: Int) {
+        head = (head + length) % capacity
+        count -= length
+        scannedCount = (scannedCount - length).coerceAtLeast(0)
+        if (count == 0) head = 0
+    }
+
+    private fun discardLocked(length: Int) {
+        consumeLocked(length)
+        discarded += length
+    }
+
+    private companion object {
+        val SIGNALED = Any()
+    }
+}
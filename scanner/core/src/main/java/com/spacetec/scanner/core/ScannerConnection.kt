@@ -39,6 +39,7 @@ import java.nio.charset.Charset
 import java.util.UUID
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
 
 // ═══════════════════════════════════════════════════════════════════════════
 // CONNECTION STATE
@@ -361,6 +362,8 @@ data class ConnectionConfig(
  * @property maxResponseTime Maximum response time in milliseconds
  * @property lastActivityTime Timestamp of last activity
  * @property connectionUptime Total connection uptime in milliseconds
+ * @property latency Response latency distribution over all command classes
+ * @property latencyByClass Response latency per [CommandClass], by class name
  */
 data class ConnectionStatistics(
     val bytesSent: Long = 0,
@@ -372,7 +375,9 @@ data class ConnectionStatistics(
     val minResponseTime: Long = Long.MAX_VALUE,
     val maxResponseTime: Long = 0,
     val lastActivityTime: Long = System.currentTimeMillis(),
-    val connectionUptime: Long = 0
+    val connectionUptime: Long = 0,
+    val latency: LatencySnapshot = LatencySnapshot.EMPTY,
+    val latencyByClass: Map<String, LatencySnapshot> = emptyMap()
 ) {
     
     /**
@@ -435,14 +440,34 @@ data class ConnectionStatistics(
             if (minResponseTime != Long.MAX_VALUE) {
                 appendLine("  Min/Max Response: ${minResponseTime}ms / ${maxResponseTime}ms")
             }
+            if (latency.count > 0) {
+                appendLine("  Latency: ${formatPercentiles(latency)}")
+                for ((name, snapshot) in latencyByClass) {
+                    appendLine("    $name: ${formatPercentiles(snapshot)}")
+                }
+            }
         }
     }
+    
+    private fun formatPercentiles(snapshot: LatencySnapshot): String =
+        "p50 %.1fms, p90 %.1fms, p99 %.1fms, p99.9 %.1fms (%d, %.1f/s)".format(
+            snapshot.p50Micros / 1000.0,
+            snapshot.p90Micros / 1000.0,
+            snapshot.p99Micros / 1000.0,
+            snapshot.p999Micros / 1000.0,
+            snapshot.count,
+            snapshot.throughputPerSecond
+        )
 }
 
 /**
  * Mutable implementation of connection statistics for tracking.
  *
- * Thread-safe implementation using atomic operations.
+ * Thread-safe implementation using atomic operations. Response latencies
+ * are also recorded into a [LatencyHistogram] per [CommandClass]; a
+ * response is attributed to the class of the command last passed to
+ * [markCommand]. Histograms are created on the first response of their
+ * class, so recording allocates nothing once a class has been seen.
  */
 class MutableConnectionStatistics {
     
@@ -457,6 +482,28 @@ class MutableConnectionStatistics {
     private val _maxResponseTime = AtomicLong(0)
     private val _lastActivityTime = AtomicLong(System.currentTimeMillis())
     private val _connectionStartTime = AtomicLong(System.currentTimeMillis())
+    private val latencyHistograms = AtomicReferenceArray<LatencyHistogram?>(CommandClass.COUNT)
+    
+    @Volatile
+    private var currentCommandClass = CommandClass.OTHER
+    
+    /**
+     * Number of commands sent so far. Cheaper than [toImmutable] for hot-path checks.
+     */
+    val commandsSent: Long
+        get() = _commandsSent.get()
+    
+    /**
+     * Number of errors so far. Cheaper than [toImmutable] for hot-path checks.
+     */
+    val errors: Long
+        get() = _errors.get()
+    
+    /**
+     * Time of the last send, response or error, in epoch milliseconds.
+     */
+    val lastActivityTime: Long
+        get() = _lastActivityTime.get()
     
     /**
      * Records bytes sent.
@@ -468,9 +515,35 @@ class MutableConnectionStatistics {
     }
     
     /**
-     * Records bytes received with response time.
+     * Sets the [CommandClass] that following responses are attributed to.
+     */
+    fun markCommand(commandClass: Int) {
+        currentCommandClass = commandClass
+    }
+    
+    /**
+     * Records bytes received with a response time in milliseconds.
      */
     fun recordReceived(bytes: Int, responseTime: Long = 0) {
+        if (responseTime > 0) {
+            histogram(currentCommandClass).record(responseTime * 1_000)
+        }
+        updateReceived(bytes, responseTime)
+    }
+    
+    /**
+     * Records bytes received with a response time measured with
+     * [System.nanoTime], keeping sub-millisecond resolution in the
+     * latency histograms.
+     */
+    fun recordReceivedNanos(bytes: Int, responseTimeNanos: Long) {
+        if (responseTimeNanos > 0) {
+            histogram(currentCommandClass).recordNanos(responseTimeNanos)
+        }
+        updateReceived(bytes, responseTimeNanos / 1_000_000)
+    }
+    
+    private fun updateReceived(bytes: Int, responseTime: Long) {
         _bytesReceived.addAndGet(bytes.toLong())
         _responsesReceived.incrementAndGet()
         _lastActivityTime.set(System.currentTimeMillis())
@@ -516,6 +589,42 @@ class MutableConnectionStatistics {
         _maxResponseTime.set(0)
         _lastActivityTime.set(System.currentTimeMillis())
         _connectionStartTime.set(System.currentTimeMillis())
+        for (i in 0 until CommandClass.COUNT) {
+            latencyHistograms.get(i)?.reset()
+        }
+    }
+    
+    /**
+     * Latency snapshot for one [CommandClass], or for all classes merged
+     * when [commandClass] is null.
+     */
+    fun latencySnapshot(commandClass: Int? = null): LatencySnapshot {
+        if (commandClass != null) {
+            return latencyHistograms.get(commandClass)?.snapshot() ?: LatencySnapshot.EMPTY
+        }
+        val histograms = ArrayList<LatencyHistogram>()
+        for (i in 0 until CommandClass.COUNT) {
+            latencyHistograms.get(i)?.let { histograms.add(it) }
+        }
+        return LatencySnapshot.of(histograms)
+    }
+    
+    /**
+     * Latency snapshots of every class that has responses, by class.
+     */
+    fun latencySnapshots(): Map<Int, LatencySnapshot> {
+        val snapshots = LinkedHashMap<Int, LatencySnapshot>()
+        for (i in 0 until CommandClass.COUNT) {
+            val snapshot = latencyHistograms.get(i)?.snapshot() ?: continue
+            if (snapshot.count > 0) snapshots[i] = snapshot
+        }
+        return snapshots
+    }
+    
+    private fun histogram(commandClass: Int): LatencyHistogram {
+        latencyHistograms.get(commandClass)?.let { return it }
+        latencyHistograms.compareAndSet(commandClass, null, LatencyHistogram())
+        return latencyHistograms.get(commandClass)!!
     }
     
     /**
@@ -545,7 +654,9 @@ class MutableConnectionStatistics {
             minResponseTime = _minResponseTime.get(),
             maxResponseTime = _maxResponseTime.get(),
             lastActivityTime = _lastActivityTime.get(),
-            connectionUptime = System.currentTimeMillis() - _connectionStartTime.get()
+            connectionUptime = System.currentTimeMillis() - _connectionStartTime.get(),
+            latency = latencySnapshot(),
+            latencyByClass = latencySnapshots().mapKeys { CommandClass.name(it.key) }
         )
     }
 }
@@ -689,6 +800,19 @@ interface ScannerConnection : Closeable {
      */
     suspend fun write(data: ByteArray): Result<Int>
     
+    /**
+     * Sends a range of bytes to the scanner without copying it into a
+     * right-sized array first.
+     *
+     * @param data Source array (typically a [PooledBuffer])
+     * @param offset Start offset in [data]
+     * @param length Number of bytes to send
+     * @return [Result.Success] with number of bytes written,
+     *         [Result.Error] if write failed
+     */
+    suspend fun write(data: ByteArray, offset: Int, length: Int): Result<Int> =
+        write(data.copyOfRange(offset, offset + length))
+    
     /**
      * Sends a command string to the scanner.
      *
@@ -710,6 +834,30 @@ interface ScannerConnection : Closeable {
      */
     suspend fun read(timeout: Long = 5000L): Result<ByteArray>
     
+    /**
+     * Reads available data into a caller-supplied slice with timeout.
+     *
+     * Bytes are copied into [into] starting at its offset, and its length is
+     * set to the number of bytes read. Pair with [BufferPool] to keep the
+     * receive path free of per-read buffer allocations.
+     *
+     * @param into Destination slice
+     * @param timeout Maximum time to wait for data in milliseconds
+     * @return [Result.Success] with number of bytes read,
+     *         [Result.Error] if read failed or timed out
+     */
+    suspend fun read(into: ByteSlice, timeout: Long = 5000L): Result<Int> =
+        when (val result = read(timeout)) {
+            is Result.Success -> {
+                val count = minOf(result.data.size, into.array.size - into.offset)
+                into.set(into.array, into.offset, count)
+                System.arraycopy(result.data, 0, into.array, into.offset, count)
+                Result.Success(count)
+            }
+            is Result.Error -> result
+            is Result.Loading -> Result.Loading
+        }
+    
     /**
      * Reads data until a terminator is encountered or timeout.
      *
@@ -901,8 +1049,19 @@ abstract class BaseScannerConnection(
     protected val writeMutex = Mutex()
     protected val readMutex = Mutex()
     
-    protected val responseBuffer = StringBuilder()
-    protected val responseLock = Mutex()
+    /**
+     * Ring buffer holding received bytes that have not been consumed yet.
+     * Transports with a background reader feed it via [processIncomingData];
+     * otherwise the read path fills it on demand through [doRead].
+     */
+    protected val receiveBuffer = ReceiveBuffer(ScannerConnection.MAX_RESPONSE_SIZE)
+    
+    /**
+     * Pool for transient transport buffers (read chunks, encoded commands).
+     * Subclasses should borrow from it rather than allocating per operation.
+     */
+    protected open val bufferPool: BufferPool
+        get() = BufferPool.SHARED
     
     protected var readJob: Job? = null
     protected var keepAliveJob: Job? = null
@@ -910,6 +1069,10 @@ abstract class BaseScannerConnection(
     
     private val released = AtomicBoolean(false)
     
+    // Time of the last checkPerformanceAndAlert run from the write path
+    @Volatile
+    private var lastPerformanceCheck = 0L
+    
     // ═══════════════════════════════════════════════════════════════════════
     // ABSTRACT METHODS
     // ═══════════════════════════════════════════════════════════════════════
@@ -943,6 +1106,26 @@ abstract class BaseScannerConnection(
      */
     protected abstract suspend fun doWrite(data: ByteArray): Int
     
+    /**
+     * Writes a range of bytes to the device.
+     *
+     * The default implementation copies the range; transports that can write
+     * directly from an offset should override it.
+     *
+     * @param data Source array
+     * @param offset Start offset in [data]
+     * @param length Number of bytes to write
+     * @return Number of bytes written
+     * @throws Exception on failure
+     */
+    protected open suspend fun doWrite(data: ByteArray, offset: Int, length: Int): Int {
+        return if (offset == 0 && length == data.size) {
+            doWrite(data)
+        } else {
+            doWrite(data.copyOfRange(offset, offset + length))
+        }
+    }
+    
     /**
      * Reads bytes from the device.
      *
@@ -965,6 +1148,16 @@ abstract class BaseScannerConnection(
      */
     protected abstract suspend fun doClearBuffers()
     
+    /**
+     * Whether received bytes are pushed into [receiveBuffer] by the transport
+     * (background reader or notification callback).
+     *
+     * When true, readers park on the buffer and never call [doRead] themselves;
+     * when false, the read path pulls bytes through [doRead] on demand.
+     */
+    protected open val feedsReceiveBuffer: Boolean
+        get() = false
+    
     // ═══════════════════════════════════════════════════════════════════════
     // CONNECTION MANAGEMENT
     // ═══════════════════════════════════════════════════════════════════════
@@ -992,6 +1185,11 @@ abstract class BaseScannerConnection(
                 
                 lastConnectedAddress = address
                 stats.markConnectionStart()
+                receiveBuffer.clear()
+                
+                // Publish the connected state first so readers started below
+                // observe isConnected == true
+                _connectionState.value = ConnectionState.Connected(info)
                 
                 // Start background reader if needed
                 startBackgroundReader()
@@ -1001,7 +1199,6 @@ abstract class BaseScannerConnection(
                     startKeepAlive(config.keepAliveInterval)
                 }
                 
-                _connectionState.value = ConnectionState.Connected(info)
                 Result.Success(info)
                 
             } catch (e: CancellationException) {
@@ -1030,9 +1227,7 @@ abstract class BaseScannerConnection(
                 stopBackgroundJobs()
                 
                 // Clear buffers
-                responseLock.withLock {
-                    responseBuffer.clear()
-                }
+                receiveBuffer.clear()
                 
                 // Disconnect
                 if (graceful) {
@@ -1109,7 +1304,9 @@ abstract class BaseScannerConnection(
     // DATA TRANSFER
     // ═══════════════════════════════════════════════════════════════════════
     
-    override suspend fun write(data: ByteArray): Result<Int> = writeMutex.withLock {
+    override suspend fun write(data: ByteArray): Result<Int> = write(data, 0, data.size)
+    
+    override suspend fun write(data: ByteArray, offset: Int, length: Int): Result<Int> = writeMutex.withLock {
         if (!isConnected) {
             return@withLock Result.Error(ConnectionException("Not connected"))
         }
@@ -1117,12 +1314,15 @@ abstract class BaseScannerConnection(
         return@withLock withContext(dispatcher) {
             try {
                 val written = withTimeout(config.writeTimeout) {
-                    doWrite(data)
+                    doWrite(data, offset, length)
                 }
                 stats.recordSent(written)
                 
-                // Check performance periodically
-                if (stats.toImmutable().commandsSent % 10 == 0) {
+                // Check performance periodically; the check reads the
+                // latency histograms, so it is throttled by time, not count
+                val now = System.currentTimeMillis()
+                if (now - lastPerformanceCheck >= PERFORMANCE_CHECK_INTERVAL_MS) {
+                    lastPerformanceCheck = now
                     checkPerformanceAndAlert()
                 }
                 
@@ -1140,8 +1340,17 @@ abstract class BaseScannerConnection(
     }
     
     override suspend fun sendCommand(command: String): Result<Unit> {
-        val data = "$command${ScannerConnection.COMMAND_TERMINATOR}".toByteArray(ScannerConnection.DEFAULT_CHARSET)
-        return write(data).map { }
+        stats.markCommand(CommandClass.of(command))
+        val length = command.length + ScannerConnection.COMMAND_TERMINATOR.length
+        if (length > bufferPool.segmentSize) {
+            val data = "$command${ScannerConnection.COMMAND_TERMINATOR}".toByteArray(ScannerConnection.DEFAULT_CHARSET)
+            return write(data).map { }
+        }
+        
+        return bufferPool.acquire().use { buffer ->
+            encodeCommand(command, buffer)
+            write(buffer.array, buffer.offset, buffer.length).map { }
+        }
     }
     
     override suspend fun read(timeout: Long): Result<ByteArray> = readMutex.withLock {
@@ -1151,22 +1360,26 @@ abstract class BaseScannerConnection(
         
         return@withLock withContext(dispatcher) {
             try {
-                val buffer = ByteArray(config.bufferSize)
-                val startTime = System.currentTimeMillis()
+                val startTime = System.nanoTime()
                 
                 val bytesRead = withTimeout(timeout) {
-                    doRead(buffer, timeout)
+                    if (receiveBuffer.isEmpty) {
+                        fillReceiveBuffer(timeout)
+                    }
+                    receiveBuffer.size
                 }
                 
                 if (bytesRead <= 0) {
                     return@withContext Result.Error(CommunicationException("No data received"))
                 }
                 
-                val data = buffer.copyOf(bytesRead)
-                val responseTime = System.currentTimeMillis() - startTime
-                stats.recordReceived(bytesRead, responseTime)
+                val data = ByteArray(bytesRead)
+                receiveBuffer.read(data)
+                val responseTimeNanos = System.nanoTime() - startTime
+                stats.recordReceivedNanos(bytesRead, responseTimeNanos)
                 
                 // Check for performance issues
+                val responseTime = responseTimeNanos / 1_000_000
                 if (responseTime > 5000) { // Alert if response takes more than 5 seconds
                     handlePerformanceDegradation("Slow read operation: ${responseTime}ms")
                 }
@@ -1189,6 +1402,41 @@ abstract class BaseScannerConnection(
         }
     }
     
+    override suspend fun read(into: ByteSlice, timeout: Long): Result<Int> = readMutex.withLock {
+        if (!isConnected) {
+            return@withLock Result.Error(ConnectionException("Not connected"))
+        }
+        
+        try {
+            val startTime = System.nanoTime()
+            
+            if (receiveBuffer.isEmpty) {
+                withTimeout(timeout) { fillReceiveBuffer(timeout) }
+            }
+            
+            val bytesRead = receiveBuffer.read(into)
+            if (bytesRead <= 0) {
+                return@withLock Result.Error(CommunicationException("No data received"))
+            }
+            
+            stats.recordReceivedNanos(bytesRead, System.nanoTime() - startTime)
+            Result.Success(bytesRead)
+            
+        } catch (e: kotlinx.coroutines.TimeoutCancellationException) {
+            stats.recordError()
+            val error = TimeoutException("Read timed out after ${timeout}ms")
+            handleCommunicationError(error)
+            Result.Error(error)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            stats.recordError()
+            val error = CommunicationException("Read failed: ${e.message}", e)
+            handleCommunicationError(error)
+            Result.Error(error)
+        }
+    }
+    
     override suspend fun readUntil(
         terminator: String,
         timeout: Long
@@ -1197,73 +1445,50 @@ abstract class BaseScannerConnection(
             return Result.Error(ConnectionException("Not connected"))
         }
         
-        return withContext(dispatcher) {
-            try {
-                val startTime = System.currentTimeMillis()
-                val deadline = startTime + timeout
-                val buffer = ByteArray(config.bufferSize)
-                val accumulated = StringBuilder()
-                
-                while (System.currentTimeMillis() < deadline) {
-                    val remaining = deadline - System.currentTimeMillis()
-                    if (remaining <= 0) break
+        return readMutex.withLock {
+            withContext(dispatcher) {
+                try {
+                    val startNanos = System.nanoTime()
+                    val deadline = System.currentTimeMillis() + timeout
+                    val terminatorBytes = terminator.toByteArray(ScannerConnection.DEFAULT_CHARSET)
                     
-                    // Check response buffer first
-                    responseLock.withLock {
-                        if (responseBuffer.isNotEmpty()) {
-                            accumulated.append(responseBuffer)
-                            responseBuffer.clear()
+                    while (true) {
+                        // Only bytes received since the last pass are scanned
+                        val index = receiveBuffer.indexOf(terminatorBytes)
+                        if (index >= 0) {
+                            val result = receiveBuffer.readString(index).trim()
+                            
+                            // Anything after the terminator stays buffered for the next read
+                            receiveBuffer.skip(terminatorBytes.size)
+                            
+                            stats.recordReceivedNanos(result.length, System.nanoTime() - startNanos)
+                            
+                            return@withContext Result.Success(result)
                         }
-                    }
-                    
-                    // Check for terminator
-                    val content = accumulated.toString()
-                    if (content.contains(terminator)) {
-                        val result = content.substringBefore(terminator).trim()
                         
-                        // Save anything after terminator for next read
-                        val afterTerminator = content.substringAfter(terminator)
-                        if (afterTerminator.isNotEmpty()) {
-                            responseLock.withLock {
-                                responseBuffer.insert(0, afterTerminator)
-                            }
-                        }
+                        val remaining = deadline - System.currentTimeMillis()
+                        if (remaining <= 0) break
                         
-                        val responseTime = System.currentTimeMillis() - startTime
-                        stats.recordReceived(result.length, responseTime)
-                        
-                        return@withContext Result.Success(result)
+                        // Park until more bytes arrive
+                        fillReceiveBuffer(remaining)
                     }
                     
-                    // Read more data
-                    val available = doAvailable()
-                    if (available > 0) {
-                        val bytesToRead = minOf(available, buffer.size)
-                        val bytesRead = doRead(buffer, minOf(remaining, 100))
-                        if (bytesRead > 0) {
-                            val text = String(buffer, 0, bytesRead, ScannerConnection.DEFAULT_CHARSET)
-                            accumulated.append(text)
-                        }
+                    // Timeout - return what we have or error
+                    val finalContent = receiveBuffer.readString(receiveBuffer.size).trim()
+                    if (finalContent.isNotEmpty()) {
+                        // Return partial response
+                        stats.recordReceived(finalContent.length, timeout)
+                        Result.Success(finalContent)
                     } else {
-                        delay(10)
+                        Result.Error(TimeoutException("Read timed out waiting for '$terminator'"))
                     }
+                    
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    stats.recordError()
+                    Result.Error(CommunicationException("Read failed: ${e.message}", e))
                 }
-                
-                // Timeout - return what we have or error
-                val finalContent = accumulated.toString().trim()
-                if (finalContent.isNotEmpty()) {
-                    // Return partial response
-                    stats.recordReceived(finalContent.length, timeout)
-                    Result.Success(finalContent)
-                } else {
-                    Result.Error(TimeoutException("Read timed out waiting for '$terminator'"))
-                }
-                
-            } catch (e: CancellationException) {
-                throw e
-            } catch (e: Exception) {
-                stats.recordError()
-                Result.Error(CommunicationException("Read failed: ${e.message}", e))
             }
         }
     }
@@ -1315,6 +1540,9 @@ abstract class BaseScannerConnection(
                 clearBuffers()
                 
                 // Send data
+                if (data.isNotEmpty()) {
+                    stats.markCommand(CommandClass.ofService(data[0].toInt()))
+                }
                 val writeResult = write(data)
                 if (writeResult is Result.Error) {
                     return@withContext writeResult
@@ -1339,35 +1567,51 @@ abstract class BaseScannerConnection(
     /**
      * Reads exactly the specified number of bytes.
      */
-    private suspend fun readExactBytes(length: Int, timeout: Long): Result<ByteArray> {
-        val result = ByteArray(length)
-        var totalRead = 0
+    private suspend fun readExactBytes(length: Int, timeout: Long): Result<ByteArray> = readMutex.withLock {
         val startTime = System.currentTimeMillis()
-        val buffer = ByteArray(config.bufferSize)
+        val startNanos = System.nanoTime()
         
-        while (totalRead < length) {
+        while (receiveBuffer.size < length) {
             val elapsed = System.currentTimeMillis() - startTime
             if (elapsed >= timeout) {
-                return Result.Error(TimeoutException("Read timed out after ${elapsed}ms"))
-            }
-            
-            val remaining = length - totalRead
-            val bytesRead = doRead(buffer, timeout - elapsed)
-            
-            if (bytesRead <= 0) {
-                delay(10)
-                continue
+                return@withLock Result.Error(TimeoutException("Read timed out after ${elapsed}ms"))
             }
             
-            val toCopy = minOf(bytesRead, remaining)
-            System.arraycopy(buffer, 0, result, totalRead, toCopy)
-            totalRead += toCopy
+            fillReceiveBuffer(timeout - elapsed)
         }
         
-        val responseTime = System.currentTimeMillis() - startTime
-        stats.recordReceived(length, responseTime)
+        val result = ByteArray(length)
+        receiveBuffer.read(result)
+        
+        stats.recordReceivedNanos(length, System.nanoTime() - startNanos)
+        
+        Result.Success(result)
+    }
+    
+    /**
+     * Waits up to [timeout] milliseconds for more bytes to land in [receiveBuffer].
+     *
+     * Push-mode transports are waited on without polling; pull-mode transports
+     * are read once through [doRead], which blocks for at most [timeout].
+     *
+     * @return true if new bytes were buffered
+     * @throws CommunicationException if the underlying stream was closed
+     */
+    protected suspend fun fillReceiveBuffer(timeout: Long): Boolean {
+        if (feedsReceiveBuffer) {
+            return receiveBuffer.awaitData(timeout)
+        }
         
-        return Result.Success(result)
+        return bufferPool.acquire().use { buffer ->
+            val bytesRead = doRead(buffer.array, timeout)
+            if (bytesRead < 0) {
+                throw CommunicationException("Connection lost: stream closed")
+            }
+            if (bytesRead > 0) {
+                receiveBuffer.write(buffer.array, 0, bytesRead)
+            }
+            bytesRead > 0
+        }
     }
     
     // ═══════════════════════════════════════════════════════════════════════
@@ -1375,9 +1619,7 @@ abstract class BaseScannerConnection(
     // ═══════════════════════════════════════════════════════════════════════
     
     override suspend fun clearBuffers() {
-        responseLock.withLock {
-            responseBuffer.clear()
-        }
+        receiveBuffer.clear()
         
         withContext(dispatcher) {
             try {
@@ -1530,35 +1772,44 @@ abstract class BaseScannerConnection(
     
     /**
      * Checks connection performance and triggers alerts if degraded.
+     *
+     * Reads the counters directly instead of taking a full
+     * [MutableConnectionStatistics.toImmutable] snapshot; per-class latency
+     * is only snapshotted once an alert is raised.
      */
     protected open fun checkPerformanceAndAlert() {
-        val currentStats = stats.toImmutable()
+        val commandsSent = stats.commandsSent
+        val errorRate = if (commandsSent > 0) stats.errors * 100f / commandsSent else 0f
         
         // Check error rate threshold
-        if (currentStats.commandsSent > 10 && currentStats.errorRate > 20.0f) {
+        if (commandsSent > 10 && errorRate > 20.0f) {
             // High error rate detected
             scope.launch {
                 handlePerformanceDegradation(
-                    "High error rate detected: ${String.format("%.1f", currentStats.errorRate)}%"
+                    "High error rate detected: ${String.format("%.1f", errorRate)}%"
                 )
             }
         }
         
-        // Check response time degradation
-        if (currentStats.responsesReceived > 5 && currentStats.averageResponseTime > 10000) {
-            // Slow response times detected
+        // Check tail latency; an average hides the stalls users notice
+        val latency = stats.latencySnapshot()
+        if (latency.count > 5 && latency.p99Micros > 5_000_000) {
+            val slowest = stats.latencySnapshots().maxByOrNull { it.value.p99Micros }
             scope.launch {
                 handlePerformanceDegradation(
-                    "Slow response times detected: ${currentStats.averageResponseTime}ms average"
+                    "Slow response times detected: p99 ${latency.p99Micros / 1000}ms, " +
+                        "p50 ${latency.p50Micros / 1000}ms" +
+                        (slowest?.let { ", slowest ${CommandClass.name(it.key)} p99 ${it.value.p99Micros / 1000}ms" } ?: "")
                 )
             }
         }
         
         // Check if connection appears idle
-        if (currentStats.isIdle && isConnected) {
+        val idleTime = System.currentTimeMillis() - stats.lastActivityTime
+        if (idleTime > IDLE_THRESHOLD_MS && isConnected) {
             scope.launch {
                 handlePerformanceDegradation(
-                    "Connection appears idle: ${currentStats.idleTime}ms since last activity"
+                    "Connection appears idle: ${idleTime}ms since last activity"
                 )
             }
         }
@@ -1580,29 +1831,50 @@ abstract class BaseScannerConnection(
     
     /**
      * Processes incoming data from background reader.
+     *
+     * Does not suspend, so it can be called directly from transport callbacks
+     * (e.g. GATT notifications) without launching a coroutine per chunk, which
+     * would not preserve chunk order.
+     */
+    protected fun processIncomingData(data: ByteArray) {
+        processIncomingData(data, 0, data.size)
+    }
+    
+    /**
+     * Processes a range of incoming bytes from a background reader.
+     *
+     * The range is copied into the receive buffer, so the caller may reuse
+     * [data] (typically a pooled read buffer) as soon as this returns. A
+     * right-sized copy is only made when [incomingData] has subscribers.
      */
-    protected suspend fun processIncomingData(data: ByteArray) {
-        if (data.isEmpty()) return
+    protected fun processIncomingData(data: ByteArray, offset: Int, length: Int) {
+        if (length <= 0) return
         
-        // Emit to incoming data flow
-        _incomingData.emit(data)
+        // Append to receive buffer, waking any parked reader. The buffer
+        // discards the oldest bytes once MAX_RESPONSE_SIZE is exceeded.
+        receiveBuffer.write(data, offset, length)
         
-        // Append to response buffer
-        val text = String(data, ScannerConnection.DEFAULT_CHARSET)
-        responseLock.withLock {
-            responseBuffer.append(text)
-            
-            // Prevent buffer from growing too large
-            if (responseBuffer.length > ScannerConnection.MAX_RESPONSE_SIZE) {
-                val excess = responseBuffer.length - ScannerConnection.MAX_RESPONSE_SIZE
-                responseBuffer.delete(0, excess)
-            }
+        // Emit to incoming data flow (DROP_OLDEST, so this never fails)
+        if (_incomingData.subscriptionCount.value > 0) {
+            _incomingData.tryEmit(data.copyOfRange(offset, offset + length))
         }
-        
-        // Check performance periodically
-        if (stats.toImmutable().commandsSent % 10 == 0) {
-            checkPerformanceAndAlert()
+    }
+    
+    /**
+     * Encodes an ASCII command plus [ScannerConnection.COMMAND_TERMINATOR]
+     * into [buffer] without intermediate strings or arrays.
+     */
+    protected fun encodeCommand(command: String, buffer: ByteSlice) {
+        val array = buffer.array
+        var position = buffer.offset
+        for (i in command.indices) {
+            array[position++] = command[i].code.toByte()
+        }
+        val terminator = ScannerConnection.COMMAND_TERMINATOR
+        for (i in terminator.indices) {
+            array[position++] = terminator[i].code.toByte()
         }
+        buffer.setLength(position - buffer.offset)
     }
     
     // ═══════════════════════════════════════════════════════════════════════
@@ -1637,6 +1909,14 @@ abstract class BaseScannerConnection(
             release()
         }
     }
+    
+    companion object {
+        /** Shortest time between two performance checks from the write path. */
+        const val PERFORMANCE_CHECK_INTERVAL_MS = 1_000L
+        
+        /** Inactivity after which a connection is reported idle, as [ConnectionStatistics.isIdle]. */
+        private const val IDLE_THRESHOLD_MS = 30_000L
+    }
 }
 
 // ═══════════════════════════════════════════════════════════════════════════
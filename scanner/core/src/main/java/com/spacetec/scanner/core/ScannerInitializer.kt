@@ -7,6 +7,8 @@
 
 package com.spacetec.obd.scanner.core
 
+import com.spacetec.core.common.capability.CapabilityStore
+import com.spacetec.core.common.capability.VehicleCapabilities
 import com.spacetec.core.common.exceptions.CommunicationException
 import com.spacetec.core.common.exceptions.ProtocolException
 import com.spacetec.core.common.result.Result
@@ -37,7 +39,8 @@ data class InitializationResult(
     val protocolType: ProtocolType? = null,
     val deviceInfo: Map<String, String> = emptyMap(),
     val errorMessage: String? = null,
-    val initializationTime: Long = 0
+    val initializationTime: Long = 0,
+    val vehicleCapabilities: VehicleCapabilities? = null
 )
 
 /**
@@ -54,6 +57,9 @@ data class InitializationResult(
  * @param connectionFactory Factory for creating scanner connections
  * @param protocolDetectionEngine Engine for protocol detection
  * @param dispatcher Coroutine dispatcher for initialization operations
+ * @param capabilityStore Capability cache; when set, the vehicle's
+ *   capabilities are discovered (or confirmed from the cache) once the
+ *   connection is validated
  *
  * @author SpaceTec Development Team
  * @since 1.0.0
@@ -61,7 +67,8 @@ data class InitializationResult(
 class ScannerInitializer(
     private val connectionFactory: ScannerConnectionFactory,
     private val protocolDetectionEngine: ProtocolDetectionEngine,
-    private val dispatcher: CoroutineDispatcher = Dispatchers.IO
+    private val dispatcher: CoroutineDispatcher = Dispatchers.IO,
+    private val capabilityStore: CapabilityStore? = null
 ) {
     private val _initializationProgress = MutableStateFlow<InitializationProgress?>(null)
     val initializationProgress: StateFlow<InitializationProgress?> = _initializationProgress.asStateFlow()
@@ -223,6 +230,16 @@ class ScannerInitializer(
                 return@withContext Result.Error(CommunicationException("Connection validation failed"))
             }
 
+            // Discover what the vehicle supports, from the cache when it can be confirmed
+            val vehicleCapabilities = capabilityStore?.let { store ->
+                _initializationProgress.value = InitializationProgress(
+                    step = "vehicle_discovery",
+                    progress = 0.97f,
+                    message = "Discovering vehicle capabilities..."
+                )
+                discoverVehicle(connection, store, config)
+            }
+
             // Update state to connected
             _initializationState.value = ScannerConnectionState.Connected(
                 "Device",
@@ -240,7 +257,8 @@ class ScannerInitializer(
                 success = true,
                 protocolType = detectedProtocol,
                 deviceInfo = deviceInfo,
-                initializationTime = System.currentTimeMillis() - startTime
+                initializationTime = System.currentTimeMillis() - startTime,
+                vehicleCapabilities = vehicleCapabilities
             )
 
             Result.Success(result)
@@ -292,10 +310,7 @@ class ScannerInitializer(
             val commands = mutableListOf<String>()
             
             // Common configuration commands
-            commands.add("ATE${if (config.enableEcho) "1" else "0"}") // Echo
-            commands.add("ATH${if (config.enableHeaders) "1" else "0"}") // Headers
-            commands.add("ATL${if (config.enableLineFeeds) "1" else "0"}") // Line feeds
-            commands.add("ATS${if (config.enableSpaces) "1" else "0"}") // Spaces
+            commands.addAll(formatCommands(config))
             commands.add("ATAT${config.adaptiveTiming}") // Adaptive timing
             
             // Protocol-specific configuration
@@ -336,6 +351,37 @@ class ScannerInitializer(
         }
     }
 
+    /**
+     * Runs [VehicleCapabilityDiscovery] on the connection. Discovery resets
+     * the adapter, so the configured echo, header, line feed and space
+     * settings are sent again afterwards.
+     *
+     * @return The capabilities, or null if discovery failed; the connection
+     *   stays usable either way
+     */
+    private suspend fun discoverVehicle(
+        connection: ScannerConnection,
+        store: CapabilityStore,
+        config: ScannerConfig
+    ): VehicleCapabilities? {
+        val result = VehicleCapabilityDiscovery(connection, store).connect()
+        try {
+            for (command in formatCommands(config)) {
+                connection.sendAndReceive(command, timeout = 1000L)
+            }
+        } catch (e: Exception) {
+            // Some devices may not support all commands
+        }
+        return (result as? Result.Success)?.data?.capabilities
+    }
+
+    private fun formatCommands(config: ScannerConfig): List<String> = listOf(
+        "ATE${if (config.enableEcho) "1" else "0"}", // Echo
+        "ATH${if (config.enableHeaders) "1" else "0"}", // Headers
+        "ATL${if (config.enableLineFeeds) "1" else "0"}", // Line feeds
+        "ATS${if (config.enableSpaces) "1" else "0"}" // Spaces
+    )
+
     /**
      * Validates the connection by sending a test command.
      */
@@ -372,13 +418,15 @@ class ScannerInitializer(
          *
          * @param connectionFactory Factory for creating scanner connections
          * @param protocolDetectionEngine Engine for protocol detection
+         * @param capabilityStore Capability cache, or null to skip vehicle discovery
          * @return Scanner initializer
          */
         fun create(
             connectionFactory: ScannerConnectionFactory,
-            protocolDetectionEngine: ProtocolDetectionEngine
+            protocolDetectionEngine: ProtocolDetectionEngine,
+            capabilityStore: CapabilityStore? = null
         ): ScannerInitializer {
-            return ScannerInitializer(connectionFactory, protocolDetectionEngine)
+            return ScannerInitializer(connectionFactory, protocolDetectionEngine, capabilityStore = capabilityStore)
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import com.spacetec.core.common.capability.CapabilityStore
+import com.spacetec.core.common.capability.EcuCapabilities
+import com.spacetec.core.common.capability.VehicleCapabilities
+import com.spacetec.core.common.exceptions.CommunicationException
+import com.spacetec.core.common.exceptions.ProtocolException
+import com.spacetec.core.common.result.Result
+import com.spacetec.core.common.transport.Elm327ResponseParser
+import kotlinx.coroutines.CancellationException
+
+/**
+ * Result of [VehicleCapabilityDiscovery.connect].
+ *
+ * @property capabilities What the vehicle supports; [VehicleCapabilities.vin]
+ *   is empty if the vehicle does not report one, and then nothing is cached
+ * @property fromCache Whether the cached entry was confirmed and used
+ * @property commands Adapter commands sent
+ * @property elapsedMs Time from the adapter reset to the end of discovery
+ */
+data class VehicleConnectResult(
+    val capabilities: VehicleCapabilities,
+    val fromCache: Boolean,
+    val commands: Int,
+    val elapsedMs: Long
+)
+
+/**
+ * Connection setup over an ELM327-compatible adapter that remembers what it
+ * learned about each vehicle.
+ *
+ * A cold connect runs the full discovery: protocol search (`ATSP0`), the
+ * supported-PID bitmaps of every ECU (0100, 0120, ... as far as the bitmaps
+ * chain), the VIN (0902) and, on 11-bit CAN, which standard identification
+ * DIDs each OBD ECU answers (0x22, physically addressed). The result is
+ * saved in the [CapabilityStore] under the VIN and the adapter
+ * identification.
+ *
+ * A warm connect selects the protocol of the most recently seen vehicles on
+ * this adapter directly (`ATSPn`, no search), reads the VIN and looks it up.
+ * A single 0100 then validates the entry: the set of responding ECUs and
+ * their 0100 bitmaps must match what was cached. If they do the cached
+ * capabilities are used as they are; otherwise the entry is dropped and the
+ * discovery runs again, skipping only the steps already done.
+ *
+ * Both paths finish by applying the learned response timeout (`ATST`).
+ *
+ * Only CAN protocols (6–C) carry ISO-TP framing; on the legacy protocols
+ * each response line is taken as one message.
+ *
+ * @param connection Connected adapter
+ * @param store Capability cache
+ * @param clock Millisecond time source
+ * @param commandTimeoutMs Timeout for a command, other than the reset and
+ *   the protocol search
+ *
+ * @author SpaceTec Development Team
+ * @since 1.1.0
+ */
+class VehicleCapabilityDiscovery(
+    private val connection: ScannerConnection,
+    private val store: CapabilityStore,
+    private val clock: () -> Long = System::currentTimeMillis,
+    private val commandTimeoutMs: Long = DEFAULT_COMMAND_TIMEOUT_MS
+) {
+
+    private val parser = Elm327ResponseParser()
+    private var commands = 0
+    private var slowestRoundTripMs = 0L
+
+    /**
+     * Resets the adapter and sets up the connection to the vehicle, from the
+     * cache when it can be confirmed.
+     *
+     * @return [Result.Error] with a [CommunicationException] if the adapter
+     *   fails or no vehicle answers
+     */
+    suspend fun connect(): Result<VehicleConnectResult> {
+        val start = clock()
+        commands = 0
+        slowestRoundTripMs = 0
+        return try {
+            val adapterType = initialize()
+            val (capabilities, fromCache) = warmConnect(adapterType)
+            applyTiming(capabilities.responseTimeoutMs)
+            Result.Success(VehicleConnectResult(capabilities, fromCache, commands, clock() - start))
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Result.Error(CommunicationException("Vehicle discovery failed: ${e.message}", e))
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // CONNECT PATHS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Resets the adapter and returns its identification.
+     */
+    private suspend fun initialize(): String {
+        val identification = command("ATZ", RESET_TIMEOUT_MS)
+            .lines()
+            .map { it.trim() }
+            .lastOrNull { it.isNotEmpty() && !it.equals("ATZ", ignoreCase = true) }
+            ?: throw ProtocolException("Adapter did not identify itself")
+        for (setup in SETUP_COMMANDS) command(setup)
+        return identification
+    }
+
+    private suspend fun warmConnect(adapterType: String): Pair<VehicleCapabilities, Boolean> {
+        val protocols = store.recent(adapterType, RECENT_VEHICLES).map { it.protocol }.distinct()
+        for (protocol in protocols) {
+            command("ATSP%X".format(protocol))
+            val vinResponse = request("0902", protocol)
+            if (vinResponse.isEmpty()) continue
+
+            val vin = parseVin(vinResponse)
+            val cached = vin?.let { store.find(it, adapterType) }
+            if (cached != null && cached.protocol == protocol) {
+                val bitmaps = request("0100", protocol)
+                if (matches(cached, bitmaps)) {
+                    val validated = cached.copy(validatedAt = clock())
+                    store.save(validated)
+                    return validated to true
+                }
+                store.invalidate(cached.vin, adapterType)
+            }
+            return discover(adapterType, protocol, vin, previous = cached) to false
+        }
+        command("ATSP0")
+        return discover(adapterType, protocol = null, vin = null, previous = null) to false
+    }
+
+    /**
+     * Full discovery. [protocol] and [vin] are passed when a warm attempt
+     * already established them.
+     */
+    private suspend fun discover(
+        adapterType: String,
+        protocol: Int?,
+        vin: String?,
+        previous: VehicleCapabilities?
+    ): VehicleCapabilities {
+        val detected: Int
+        val first: List<Pair<Int, ByteArray>>
+        if (protocol == null) {
+            val text = command("0100", SEARCH_TIMEOUT_MS)
+            detected = command("ATDPN").trim().removePrefix("A").toIntOrNull(16)
+                ?: throw ProtocolException("Protocol not reported after search")
+            first = messages(text, detected)
+            if (first.isEmpty()) throw CommunicationException("No ECU answered the protocol search")
+        } else {
+            detected = protocol
+            first = request("0100", protocol)
+        }
+
+        val pids = HashMap<Int, MutableSet<Int>>()
+        var bitmaps = first
+        var base = 0x00
+        while (true) {
+            var more = false
+            for ((id, payload) in bitmaps) {
+                if (payload.size < 6 || payload[0] != MODE_01_RESPONSE || payload[1].toInt() and 0xFF != base) continue
+                val supported = pids.getOrPut(id) { HashSet() }
+                for (bit in 0 until 32) {
+                    if (payload[2 + bit / 8].toInt() and (0x80 ushr (bit % 8)) != 0) supported += base + bit + 1
+                }
+                if (base + 0x20 in supported) more = true
+            }
+            base += 0x20
+            if (!more || base > LAST_BITMAP_PID) break
+            bitmaps = request("01%02X".format(base), detected)
+        }
+        if (pids.isEmpty()) throw CommunicationException("No ECU reported supported PIDs")
+
+        val resolvedVin = vin ?: parseVin(request("0902", detected)) ?: ""
+        val dids = discoverDids(pids.keys, detected)
+        val now = clock()
+        val ecus = pids.keys.sorted().map { id ->
+            EcuCapabilities(id, pids.getValue(id), dids[id].orEmpty())
+        } + previous?.ecus.orEmpty().filter { !it.isObdResponder && it.supportedDids.isNotEmpty() && it.responseId !in pids }
+
+        val capabilities = VehicleCapabilities(
+            vin = resolvedVin,
+            adapterType = adapterType,
+            protocol = detected,
+            ecus = ecus,
+            responseTimeoutMs = (slowestRoundTripMs * 2).coerceIn(MIN_RESPONSE_TIMEOUT_MS, MAX_RESPONSE_TIMEOUT_MS),
+            discoveredAt = now
+        )
+        if (resolvedVin.isNotEmpty()) store.save(capabilities)
+        return capabilities
+    }
+
+    /**
+     * Reads each of [IDENTIFICATION_DIDS] from every OBD ECU in [responders]
+     * and returns the DIDs each answered positively. Only on 11-bit CAN,
+     * where the physical request ID is the response ID minus 8; the
+     * functional header is restored afterwards.
+     */
+    private suspend fun discoverDids(responders: Set<Int>, protocol: Int): Map<Int, Set<Int>> {
+        if (protocol != CAN_11BIT_500K && protocol != CAN_11BIT_250K) return emptyMap()
+        val dids = HashMap<Int, Set<Int>>()
+        for (id in responders.sorted()) {
+            if (id !in OBD_RESPONSE_IDS) continue
+            command("ATSH%03X".format(id - 8))
+            dids[id] = IDENTIFICATION_DIDS.filterTo(HashSet()) { did ->
+                request("22%04X".format(did), protocol).any { (from, payload) ->
+                    from == id && payload.size > 2 && payload[0] == READ_DID_RESPONSE &&
+                        ((payload[1].toInt() and 0xFF) shl 8 or (payload[2].toInt() and 0xFF)) == did
+                }
+            }
+        }
+        if (dids.isNotEmpty()) command("ATSH%03X".format(FUNCTIONAL_ID))
+        return dids
+    }
+
+    /**
+     * Whether a 0100 response comes from exactly the cached OBD ECUs with
+     * unchanged bitmaps.
+     */
+    private fun matches(cached: VehicleCapabilities, bitmaps: List<Pair<Int, ByteArray>>): Boolean {
+        val responders = bitmaps.filter { it.second.size >= 6 && it.second[0] == MODE_01_RESPONSE && it.second[1].toInt() == 0 }
+        if (responders.map { it.first }.toSet() != cached.obdResponderIds) return false
+        return responders.all { (id, payload) ->
+            val supported = cached.ecu(id)?.supportedPids ?: return false
+            (0 until 32).all { bit ->
+                val set = payload[2 + bit / 8].toInt() and (0x80 ushr (bit % 8)) != 0
+                set == (bit + 1 in supported)
+            }
+        }
+    }
+
+    private suspend fun applyTiming(timeoutMs: Long) {
+        command("ATST%02X".format(((timeoutMs + 3) / 4).coerceIn(1, 0xFF)))
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // ADAPTER I/O
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private suspend fun command(text: String, timeoutMs: Long = commandTimeoutMs): String {
+        commands++
+        return when (val result = connection.sendAndReceive(text, timeoutMs)) {
+            is Result.Success -> result.data
+            is Result.Error -> throw CommunicationException("$text failed: ${result.exception.message}", result.exception)
+            else -> throw CommunicationException("$text failed")
+        }
+    }
+
+    /**
+     * Sends an OBD request and returns the messages of all ECUs that
+     * answered, empty on `NO DATA` or `UNABLE TO CONNECT`.
+     */
+    private suspend fun request(text: String, protocol: Int): List<Pair<Int, ByteArray>> {
+        val sent = clock()
+        val response = command(text)
+        val messages = messages(response, protocol)
+        if (messages.isNotEmpty()) slowestRoundTripMs = maxOf(slowestRoundTripMs, clock() - sent)
+        return messages
+    }
+
+    /**
+     * Splits a response with headers into (header, message) pairs, joining
+     * ISO-TP first and consecutive frames on CAN.
+     */
+    private fun messages(text: String, protocol: Int): List<Pair<Int, ByteArray>> {
+        val can = protocol >= FIRST_CAN_PROTOCOL
+        val buffer = text.toByteArray(Charsets.US_ASCII)
+        parser.parse(
+            buffer,
+            headerDigits = if (can) Elm327ResponseParser.HEADER_CAN_AUTO else Elm327ResponseParser.HEADER_LEGACY
+        )
+        if (parser.status and Elm327ResponseParser.STATUS_FAILURE_MASK != 0 && parser.frameCount == 0) return emptyList()
+
+        if (!can) {
+            return (0 until parser.frameCount).map { frame -> (parser.header(frame) and 0xFF) to parser.dataOf(frame) }
+        }
+
+        return Elm327CanChannel.canMessages(parser)
+    }
+
+    /**
+     * VIN from 0902 responses: the bytes after `49 02 nn` of each message,
+     * legacy padding dropped. Null unless exactly 17 characters result.
+     */
+    private fun parseVin(messages: List<Pair<Int, ByteArray>>): String? {
+        for ((_, group) in messages.groupBy { it.first }) {
+            val bytes = group
+                .filter { it.second.size > 3 && it.second[0] == MODE_09_RESPONSE && it.second[1] == VIN_PID }
+                .flatMap { it.second.drop(3) }
+                .filter { it != 0.toByte() }
+            if (bytes.size == VIN_LENGTH) {
+                val vin = String(bytes.toByteArray(), Charsets.US_ASCII)
+                if (vin.all { it.isLetterOrDigit() }) return vin
+            }
+        }
+        return null
+    }
+
+    companion object {
+        const val DEFAULT_COMMAND_TIMEOUT_MS = 2_000L
+
+        private const val RESET_TIMEOUT_MS = 5_000L
+        private const val SEARCH_TIMEOUT_MS = 15_000L
+
+        /** Cached vehicles whose protocols are tried before searching. */
+        private const val RECENT_VEHICLES = 3
+
+        /** `ATST` covers 4..1020 ms. */
+        private const val MIN_RESPONSE_TIMEOUT_MS = 40L
+        private const val MAX_RESPONSE_TIMEOUT_MS = 1_020L
+
+        private const val FIRST_CAN_PROTOCOL = 6
+        private const val CAN_11BIT_500K = 6
+        private const val CAN_11BIT_250K = 8
+        private const val FUNCTIONAL_ID = 0x7DF
+        private val OBD_RESPONSE_IDS = 0x7E8..0x7EF
+        private const val LAST_BITMAP_PID = 0xE0
+        private const val VIN_LENGTH = 17
+        private const val MODE_01_RESPONSE: Byte = 0x41
+        private const val MODE_09_RESPONSE: Byte = 0x49
+        private const val VIN_PID: Byte = 0x02
+        private const val READ_DID_RESPONSE: Byte = 0x62
+
+        /**
+         * ISO 14229-1 identification DIDs: spare part number, ECU serial
+         * number, VIN, ECU hardware number, system supplier software version.
+         */
+        private val IDENTIFICATION_DIDS = listOf(0xF187, 0xF18C, 0xF190, 0xF191, 0xF195)
+
+        private val SETUP_COMMANDS = listOf("ATE0", "ATL0", "ATS0", "ATH1")
+    }
+}
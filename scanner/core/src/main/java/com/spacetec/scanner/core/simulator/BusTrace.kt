@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core.simulator
+
+/**
+ * Recorded CAN traffic that an [Elm327Simulator] prints in monitor mode
+ * (`ATMA`, `STMA`), looped for as long as the host keeps listening.
+ *
+ * @property bitrate Bit rate the traffic was recorded at; monitoring at any
+ *           other rate reports `CAN ERROR`
+ * @property frames Frames in recording order, times relative to the first
+ * @property periodMicros Time after which the trace repeats
+ *
+ * @author SpaceTec Development Team
+ * @since 1.1.0
+ */
+class BusTrace(
+    val bitrate: Int,
+    val frames: List<Frame>,
+    val periodMicros: Long = defaultPeriod(frames)
+) {
+
+    /** One recorded frame. */
+    class Frame(val atMicros: Long, val id: Int, val extended: Boolean, val data: ByteArray)
+
+    init {
+        require(periodMicros > 0 || frames.isEmpty()) { "Trace period must be positive: $periodMicros" }
+    }
+
+    companion object {
+
+        /**
+         * Parses a Linux `candump -l` log: one frame per line as
+         * `(1436509052.249713) can0 7E8#0641000102030405`. IDs of more than
+         * three hex digits are 29-bit. Blank lines, comments (`#`) and
+         * remote or error frames are skipped.
+         */
+        fun parseCandump(log: String, bitrate: Int): BusTrace {
+            val frames = ArrayList<Frame>()
+            var firstMicros = -1L
+            for (raw in log.lineSequence()) {
+                val line = raw.trim()
+                if (line.isEmpty() || line.startsWith("#")) continue
+                val parts = line.split(Regex("\\s+"))
+                require(parts.size == 3 && parts[0].startsWith("(") && parts[0].endsWith(")")) {
+                    "Not a candump log line: $line"
+                }
+                val (seconds, fraction) = parts[0].removeSurrounding("(", ")").split('.')
+                val micros = seconds.toLong() * 1_000_000L + fraction.padEnd(6, '0').take(6).toLong()
+                if (firstMicros < 0) firstMicros = micros
+
+                val (idText, dataText) = parts[2].split('#', limit = 2)
+                if (dataText.startsWith("R")) continue
+                val id = idText.toLong(16)
+                if (id and CAN_ERR_FLAG != 0L) continue
+                frames.add(
+                    Frame(
+                        atMicros = micros - firstMicros,
+                        id = (id and 0x1FFFFFFF).toInt(),
+                        extended = idText.length > 3,
+                        data = ByteArray(dataText.length / 2) { dataText.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+                    )
+                )
+            }
+            return BusTrace(bitrate, frames)
+        }
+
+        /** Recording length plus one average frame gap. */
+        private fun defaultPeriod(frames: List<Frame>): Long {
+            if (frames.size < 2) return if (frames.isEmpty()) 0L else DEFAULT_SINGLE_FRAME_PERIOD_MICROS
+            val span = frames.last().atMicros - frames.first().atMicros
+            return span + maxOf(1L, span / (frames.size - 1))
+        }
+
+        private const val CAN_ERR_FLAG = 0x20000000L
+        private const val DEFAULT_SINGLE_FRAME_PERIOD_MICROS = 100_000L
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core.simulator
+
+import java.util.Random
+
+/**
+ * Deterministic ELM327/STN command interpreter in front of a [VirtualVehicle].
+ *
+ * Emulates what a host sees on the adapter's serial link: echo, linefeeds,
+ * spaces and CAN headers as configured by AT commands; ISO 15765-4 single
+ * and multi-frame responses from several ECUs (formatted with a length line
+ * and `n:` prefixes when headers are off); `SEARCHING...` on the first
+ * request after `ATSP0`; the response count suffix (`010C1`); the adaptive
+ * timeout the adapter waits after the last response when no count is
+ * given; the response timeout (`ATST`), after which frames from slower
+ * ECUs are no longer heard; NRC 0x78 response-pending sequences; and
+ * monitor mode (`ATMA`, `STMA`), which prints the vehicle's [BusTrace]
+ * until the host interrupts it, `CAN ERROR` at the wrong bit rate, and
+ * `BUFFER FULL` when the host link cannot keep up with the bus.
+ *
+ * [process] does not wait. It returns the adapter output as [Chunk]s, each
+ * stamped with the time after the command was written at which it reaches
+ * the host, including link latency, ECU response times, jitter and the
+ * serial rate limit. [SimulatorConnection] replays them in real or virtual
+ * time.
+ *
+ * Only ISO 15765-4 CAN 11-bit 500 kbit/s (protocol 6) is simulated; any
+ * other fixed protocol answers `UNABLE TO CONNECT`.
+ *
+ * Not thread-safe: like the real adapter it handles one command at a time.
+ *
+ * @param vehicle ECUs on the simulated bus
+ * @param config Timing and faults
+ *
+ * @author SpaceTec Development Team
+ * @since 1.1.0
+ */
+class Elm327Simulator(
+    val vehicle: VirtualVehicle = VirtualVehicle.typical(),
+    val config: SimulatorConfig = SimulatorConfig.INSTANT
+) {
+
+    /**
+     * Adapter output reaching the host [atMicros] after the command was
+     * written.
+     */
+    class Chunk(val atMicros: Long, val bytes: ByteArray) {
+        override fun toString(): String = "$atMicros µs: ${String(bytes, Charsets.US_ASCII)}"
+    }
+
+    /** One CAN frame on the simulated bus. */
+    private class Frame(val atMicros: Long, val ecuId: Int, val bytes: ByteArray, val messageLength: Int)
+
+    private val random = Random(config.seed)
+    private val faultCounts = LongArray(SimulatedFault.values().size)
+    private val faultRates = with(config.faults) {
+        doubleArrayOf(dropRate, noDataRate, canErrorRate, bufferFullRate, corruptRate)
+    }
+
+    // Adapter settings, as changed by AT commands
+    private var echo = true
+    private var linefeeds = false
+    private var spaces = true
+    private var headers = false
+    private var caf = true
+    private var protocol = 0
+    private var protocolFound = false
+    private var header = VirtualVehicle.FUNCTIONAL_ID
+    private var timeoutMicros = config.responseTimeoutMicros
+    private var adaptiveTiming = 1
+
+    /** Commands processed so far. */
+    var commands: Long = 0
+        private set
+
+    /** OBD/UDS requests processed so far. */
+    var requests: Long = 0
+        private set
+
+    private val eol: String
+        get() = if (linefeeds) "\r\n" else "\r"
+
+    /**
+     * Processes one command line (without the carriage return).
+     *
+     * @return Adapter output in arrival order; empty if the response was
+     *         dropped by fault injection
+     */
+    fun process(command: String): List<Chunk> {
+        commands++
+        val arrival = config.linkLatencyMicros + config.serialMicros(command.length + 1)
+        val reply = Reply(arrival)
+        if (echo) reply.emit(command + eol, arrival)
+
+        val normalized = command.replace(" ", "").uppercase()
+        if (normalized == "ATMA" || normalized == "STMA" && config.stn) {
+            return monitor(reply, arrival)
+        }
+        val end = when {
+            normalized.startsWith("AT") -> atCommand(normalized.substring(2), reply, arrival)
+            normalized.startsWith("ST") -> stCommand(normalized.substring(2), reply, arrival)
+            normalized.isEmpty() -> arrival
+            else -> request(normalized, reply, arrival) ?: return emptyList()
+        }
+        reply.emit(eol + PROMPT, end)
+        return reply.chunks
+    }
+
+    /**
+     * What the adapter prints when a new command interrupts a response.
+     */
+    fun interruptedOutput(): ByteArray = ("STOPPED" + eol + eol + PROMPT).toByteArray(Charsets.US_ASCII)
+
+    /**
+     * Times [fault] was injected.
+     */
+    fun faultCount(fault: SimulatedFault): Long = faultCounts[fault.ordinal]
+
+    /**
+     * Total faults injected.
+     */
+    val injectedFaults: Long
+        get() = faultCounts.sum()
+
+    internal fun recordFault(fault: SimulatedFault) {
+        faultCounts[fault.ordinal]++
+    }
+
+    /**
+     * Restores power-on settings, as `ATZ` does.
+     */
+    fun powerOn() {
+        echo = true
+        linefeeds = false
+        spaces = true
+        headers = false
+        caf = true
+        protocol = 0
+        protocolFound = false
+        header = VirtualVehicle.FUNCTIONAL_ID
+        timeoutMicros = config.responseTimeoutMicros
+        adaptiveTiming = 1
+        vehicle.ecus.forEach { it.reset() }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // ADAPTER COMMANDS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun atCommand(argument: String, reply: Reply, arrival: Long): Long {
+        var done = arrival + config.atCommandMicros
+        val lines: List<String> = when {
+            argument == "Z" -> {
+                powerOn()
+                done += config.resetMicros
+                listOf("", VERSION)
+            }
+            argument == "WS" -> {
+                powerOn()
+                listOf(VERSION)
+            }
+            argument == "D" -> {
+                val keepEcho = echo
+                powerOn()
+                echo = keepEcho
+                OK
+            }
+            argument == "I" -> listOf(VERSION)
+            argument == "@1" -> listOf(DESCRIPTION)
+            argument == "RV" -> listOf("%.1fV".format(12.4 + random.nextInt(5) / 10.0))
+            argument == "DPN" -> listOf(if (protocol == 0) "A" + (if (protocolFound) "6" else "0") else protocol.toString(16).uppercase())
+            argument == "DP" -> listOf(
+                when {
+                    protocol == 0 && protocolFound -> "AUTO, $PROTOCOL_NAME"
+                    protocol == 0 -> "AUTO"
+                    else -> PROTOCOL_NAME
+                }
+            )
+            argument.length == 2 && argument[1] in "01" && argument[0] in "ELSH" -> {
+                val on = argument[1] == '1'
+                when (argument[0]) {
+                    'E' -> echo = on
+                    'L' -> linefeeds = on
+                    'S' -> spaces = on
+                    else -> headers = on
+                }
+                OK
+            }
+            argument == "CAF0" || argument == "CAF1" -> {
+                caf = argument.last() == '1'
+                OK
+            }
+            argument.startsWith("SP") || argument.startsWith("TP") -> {
+                val value = argument.substring(2).removePrefix("A")
+                val number = value.toIntOrNull(16)
+                if (value.length != 1 || number == null) {
+                    listOf("?")
+                } else {
+                    protocol = if (argument.substring(2).startsWith("A")) 0 else number
+                    protocolFound = false
+                    OK
+                }
+            }
+            argument.startsWith("SH") -> {
+                val value = argument.substring(2)
+                if (value.length == 3 && value.all { it.isHexDigit() }) {
+                    header = value.toInt(16)
+                    OK
+                } else {
+                    listOf("?")
+                }
+            }
+            argument.startsWith("ST") && argument.length == 4 -> {
+                val value = argument.substring(2).toIntOrNull(16)
+                if (value == null) {
+                    listOf("?")
+                } else {
+                    timeoutMicros = if (value == 0) config.responseTimeoutMicros else value * 4_000L
+                    OK
+                }
+            }
+            argument.length == 3 && argument.startsWith("AT") && argument[2] in "012" -> {
+                adaptiveTiming = argument[2] - '0'
+                OK
+            }
+            KNOWN_AT_PREFIXES.any { argument.startsWith(it) } -> OK
+            else -> listOf("?")
+        }
+        for (line in lines) reply.emit(line + eol, done)
+        return done
+    }
+
+    private fun stCommand(argument: String, reply: Reply, arrival: Long): Long {
+        val done = arrival + config.atCommandMicros
+        val line = when {
+            !config.stn -> "?"
+            argument == "I" -> STN_VERSION
+            argument == "DI" -> STN_DEVICE
+            argument == "MFR" -> STN_MANUFACTURER
+            else -> "?"
+        }
+        reply.emit(line + eol, done)
+        return done
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // MONITOR MODE
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Prints the bus traffic until the host interrupts, up to
+     * [MONITOR_LIMIT_MICROS]. Without a prompt at the end, the next command
+     * written stops the output like it stops a response.
+     */
+    private fun monitor(reply: Reply, arrival: Long): List<Chunk> {
+        val trace = vehicle.busTrace
+        if (trace == null || trace.frames.isEmpty()) return reply.chunks
+
+        val bitrate = when (protocol) {
+            0, 6, 7 -> 500_000
+            8, 9 -> 250_000
+            else -> 0
+        }
+        if (trace.bitrate != bitrate) {
+            val end = arrival + CAN_ERROR_MICROS
+            reply.emit("CAN ERROR" + eol, end)
+            reply.emit(eol + PROMPT, end)
+            return reply.chunks
+        }
+
+        var periodStart = arrival
+        while (true) {
+            for (frame in trace.frames) {
+                val at = periodStart + frame.atMicros
+                if (at - arrival > MONITOR_LIMIT_MICROS) return reply.chunks
+                // Lines not yet sent to the host pile up in the adapter's buffer
+                if (config.baudRate > 0 && reply.queuedMicros(at) > config.serialMicros(MONITOR_BUFFER_BYTES)) {
+                    recordFault(SimulatedFault.BUFFER_FULL)
+                    reply.emit("BUFFER FULL" + eol, at)
+                    reply.emit(eol + PROMPT, at)
+                    return reply.chunks
+                }
+                reply.emit(monitorLine(frame) + eol, at)
+            }
+            periodStart += trace.periodMicros
+        }
+    }
+
+    private fun monitorLine(frame: BusTrace.Frame): String {
+        val text = StringBuilder()
+        if (headers) {
+            if (frame.extended) {
+                val id = byteArrayOf((frame.id shr 24).toByte(), (frame.id shr 16).toByte(), (frame.id shr 8).toByte(), frame.id.toByte())
+                appendHex(text, id, 0, 4)
+            } else {
+                text.append("%03X".format(frame.id))
+                if (spaces) text.append(' ')
+            }
+        }
+        appendHex(text, frame.data, 0, frame.data.size)
+        return text.toString().trimEnd()
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // VEHICLE REQUESTS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * @return Prompt time, or null if the response is dropped
+     */
+    private fun request(hex: String, reply: Reply, arrival: Long): Long? {
+        if (!hex.all { it.isHexDigit() } || hex.length < 2) {
+            reply.emit("?" + eol, arrival)
+            return arrival
+        }
+        requests++
+        val count = if (hex.length % 2 == 1) hex.last().digitToInt(16) else 0
+        val payload = ByteArray(hex.length / 2) { hex.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+
+        if (protocol != 0 && protocol != CAN_11BIT_500K) {
+            val end = arrival + timeoutMicros
+            reply.emit("UNABLE TO CONNECT" + eol, end)
+            return end
+        }
+
+        var start = arrival
+        val searching = protocol == 0 && !protocolFound
+        if (searching) {
+            reply.emit("SEARCHING..." + eol, arrival)
+            start += config.protocolSearchMicros
+        }
+
+        when (drawFault()) {
+            SimulatedFault.DROPPED_RESPONSE -> return null
+            SimulatedFault.NO_DATA -> return status("NO DATA", reply, start + timeoutMicros)
+            SimulatedFault.CAN_ERROR -> return status("CAN ERROR", reply, start + timeoutMicros / 4)
+            SimulatedFault.BUFFER_FULL -> return respond(payload, count, reply, start, searching, bufferFull = true, corrupt = false)
+            SimulatedFault.CORRUPTED -> return respond(payload, count, reply, start, searching, bufferFull = false, corrupt = true)
+            else -> return respond(payload, count, reply, start, searching, bufferFull = false, corrupt = false)
+        }
+    }
+
+    private fun status(text: String, reply: Reply, at: Long): Long {
+        reply.emit(text + eol, at)
+        return at
+    }
+
+    private fun respond(
+        payload: ByteArray,
+        count: Int,
+        reply: Reply,
+        start: Long,
+        searching: Boolean,
+        bufferFull: Boolean,
+        corrupt: Boolean
+    ): Long {
+        val functional = header == VirtualVehicle.FUNCTIONAL_ID
+        val targets = if (functional) vehicle.ecus else listOfNotNull(vehicle.ecu(header))
+
+        var frames = ArrayList<Frame>()
+        for (ecu in targets) {
+            var at = start + (if (config.ecuResponseTimes) ecu.responseTimeMicros else 0L) + jitter()
+            for (message in ecu.handle(payload, functional)) {
+                for ((index, frame) in isoTpFrames(message).withIndex()) {
+                    frames.add(Frame(at + index * config.consecutiveFrameMicros, ecu.responseId, frame, message.size))
+                }
+                at += config.responsePendingMicros
+            }
+        }
+        frames.sortBy { it.atMicros }
+
+        // The adapter stops listening once ATST passes without a frame
+        if (timeoutMicros > 0) {
+            var listenUntil = start + timeoutMicros
+            val heard = frames.indexOfFirst { frame ->
+                (frame.atMicros > listenUntil).also { if (!it) listenUntil = frame.atMicros + timeoutMicros }
+            }
+            if (heard >= 0) frames = ArrayList(frames.subList(0, heard))
+        }
+
+        if (frames.isEmpty()) {
+            val end = start + timeoutMicros
+            if (searching) {
+                reply.emit("UNABLE TO CONNECT" + eol, end)
+            } else {
+                reply.emit("NO DATA" + eol, end)
+                protocolFound = true
+            }
+            return end
+        }
+        protocolFound = true
+
+        if (count > 0 && frames.size > count) {
+            frames = ArrayList(frames.subList(0, count))
+        }
+        val end = when {
+            count > 0 && frames.size == count -> frames.last().atMicros
+            adaptiveTiming == 0 -> frames.last().atMicros + timeoutMicros
+            adaptiveTiming == 2 -> frames.last().atMicros + config.adaptiveTimeoutMicros / 2
+            else -> frames.last().atMicros + config.adaptiveTimeoutMicros
+        }
+
+        val lines = ArrayList<Pair<Long, String>>()
+        for (frame in frames) formatFrame(frame, lines)
+
+        val shown = if (bufferFull) lines.subList(0, (lines.size + 1) / 2) else lines
+        val garbled = if (corrupt) random.nextInt(shown.size) else -1
+        for ((index, line) in shown.withIndex()) {
+            val text = if (index == garbled) garble(line.second) else line.second
+            reply.emit(text + eol, line.first)
+        }
+        if (bufferFull) reply.emit("BUFFER FULL" + eol, end)
+        return end
+    }
+
+    private fun formatFrame(frame: Frame, lines: MutableList<Pair<Long, String>>) {
+        val bytes = frame.bytes
+        val frameType = (bytes[0].toInt() and 0xF0) shr 4
+        val text = StringBuilder()
+
+        if (headers || !caf) {
+            if (headers) {
+                text.append("%03X".format(frame.ecuId))
+                if (spaces) text.append(' ')
+            }
+            // Single frames are shown without padding, like the adapter does
+            val shown = if (frameType == 0 && caf) (bytes[0].toInt() and 0x0F) + 1 else bytes.size
+            appendHex(text, bytes, 0, shown)
+            lines.add(frame.atMicros to text.toString())
+            return
+        }
+
+        when (frameType) {
+            0 -> appendHex(text, bytes, 1, bytes[0].toInt() and 0x0F)
+            1 -> {
+                lines.add(frame.atMicros to "%03X".format(frame.messageLength))
+                text.append('0').append(':')
+                if (spaces) text.append(' ')
+                appendHex(text, bytes, 2, 6)
+            }
+            else -> {
+                text.append("%X".format(bytes[0].toInt() and 0x0F)).append(':')
+                if (spaces) text.append(' ')
+                appendHex(text, bytes, 1, 7)
+            }
+        }
+        lines.add(frame.atMicros to text.toString())
+    }
+
+    private fun appendHex(text: StringBuilder, bytes: ByteArray, offset: Int, length: Int) {
+        for (i in offset until offset + length) {
+            val value = bytes[i].toInt() and 0xFF
+            text.append(HEX[value shr 4]).append(HEX[value and 0x0F])
+            if (spaces) text.append(' ')
+        }
+    }
+
+    private fun garble(line: String): String {
+        val chars = line.toCharArray()
+        val candidates = chars.indices.filter { chars[it] != ' ' }
+        if (candidates.isEmpty()) return line
+        val index = candidates[random.nextInt(candidates.size)]
+        var replacement: Char
+        do {
+            replacement = GARBLE_CHARS[random.nextInt(GARBLE_CHARS.length)]
+        } while (replacement == chars[index])
+        chars[index] = replacement
+        return String(chars)
+    }
+
+    private fun drawFault(): SimulatedFault? {
+        if (config.faults == FaultInjection.NONE) return null
+        val roll = random.nextDouble()
+        var limit = 0.0
+        for (i in REQUEST_FAULTS.indices) {
+            limit += faultRates[i]
+            if (roll < limit) {
+                recordFault(REQUEST_FAULTS[i])
+                return REQUEST_FAULTS[i]
+            }
+        }
+        return null
+    }
+
+    private fun jitter(): Long =
+        if (config.jitterMicros == 0L) 0L else ((random.nextDouble() * 2 - 1) * config.jitterMicros).toLong()
+
+    /**
+     * Output of one command, serialized over the adapter's host link.
+     */
+    private inner class Reply(start: Long) {
+        val chunks = ArrayList<Chunk>()
+        private var linkFreeAt = start
+
+        fun emit(text: String, readyAt: Long) {
+            val begin = maxOf(readyAt, linkFreeAt)
+            linkFreeAt = begin + config.serialMicros(text.length)
+            chunks.add(Chunk(linkFreeAt + config.linkLatencyMicros, text.toByteArray(Charsets.US_ASCII)))
+        }
+
+        /** Output ready at [at] that is still waiting for the link. */
+        fun queuedMicros(at: Long): Long = linkFreeAt - at
+    }
+
+    companion object {
+        const val VERSION = "ELM327 v1.5"
+        const val DESCRIPTION = "OBDII to RS232 Interpreter"
+        const val STN_VERSION = "STN2120 v5.6.5"
+        const val STN_DEVICE = "OBDLink SX r4.2"
+        const val STN_MANUFACTURER = "ScanTool.net LLC"
+        const val PROMPT = ">"
+
+        private const val CAN_11BIT_500K = 6
+        private const val CAN_ERROR_MICROS = 20_000L
+        private const val MONITOR_BUFFER_BYTES = 256
+        private const val MONITOR_LIMIT_MICROS = 10_000_000L
+        private const val PROTOCOL_NAME = "ISO 15765-4 (CAN 11/500)"
+        private const val HEX = "0123456789ABCDEF"
+        private const val GARBLE_CHARS = "0123456789ABCDEF?GZ"
+        private val OK = listOf("OK")
+
+        /** Faults drawn per request, in the order of [FaultInjection]'s rates. */
+        private val REQUEST_FAULTS = arrayOf(
+            SimulatedFault.DROPPED_RESPONSE,
+            SimulatedFault.NO_DATA,
+            SimulatedFault.CAN_ERROR,
+            SimulatedFault.BUFFER_FULL,
+            SimulatedFault.CORRUPTED
+        )
+
+        /** AT commands that are accepted without changing the simulation. */
+        private val KNOWN_AT_PREFIXES = listOf(
+            "M0", "M1", "PC", "CRA", "CF", "CM", "FCSH", "FCSD", "FCSM", "AL", "NL", "R0", "R1",
+            "BI", "CSM", "CEA", "IB", "SI", "SW", "WM", "V0", "V1", "D0", "D1", "KW"
+        )
+
+        private fun Char.isHexDigit(): Boolean = this in '0'..'9' || this in 'A'..'F'
+
+        /**
+         * Splits [message] into padded ISO 15765-2 frames.
+         */
+        internal fun isoTpFrames(message: ByteArray): List<ByteArray> {
+            if (message.size <= 7) {
+                val frame = ByteArray(8)
+                frame[0] = message.size.toByte()
+                message.copyInto(frame, 1)
+                return listOf(frame)
+            }
+            val frames = ArrayList<ByteArray>()
+            val first = ByteArray(8)
+            first[0] = (0x10 or (message.size shr 8 and 0x0F)).toByte()
+            first[1] = message.size.toByte()
+            message.copyInto(first, 2, 0, 6)
+            frames.add(first)
+
+            var offset = 6
+            var sequence = 1
+            while (offset < message.size) {
+                val frame = ByteArray(8)
+                frame[0] = (0x20 or (sequence and 0x0F)).toByte()
+                val length = minOf(7, message.size - offset)
+                message.copyInto(frame, 1, offset, offset + length)
+                frames.add(frame)
+                offset += length
+                sequence++
+            }
+            return frames
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core.simulator
+
+/**
+ * Timing and fault behaviour of an [Elm327Simulator].
+ *
+ * All times are in microseconds. Every random decision (jitter, faults) is
+ * drawn from a generator seeded with [seed], so a run with the same
+ * configuration and the same command sequence produces the same output at
+ * the same simulated times.
+ *
+ * @property seed Seed for jitter and fault injection
+ * @property linkLatencyMicros One-way latency between host and adapter
+ *           (Bluetooth, WiFi or USB)
+ * @property ecuResponseTimes Whether ECUs take their
+ *           [VirtualEcu.responseTimeMicros] to answer; false answers at once
+ * @property jitterMicros Maximum random deviation added to each ECU response
+ * @property baudRate Adapter serial rate in bit/s (10 bits per byte); 0 for
+ *           no limit
+ * @property atCommandMicros Time the adapter takes to execute an AT command
+ * @property resetMicros Time `ATZ` takes
+ * @property adaptiveTimeoutMicros How long the adapter keeps listening after
+ *           the last response when no response count was given (`AT1`)
+ * @property responseTimeoutMicros Time the adapter waits for the first and
+ *           each further frame before giving up (`ATST` default); 0 for no
+ *           limit
+ * @property protocolSearchMicros Extra time of the first request after
+ *           `ATSP0`, while the adapter searches for the protocol
+ * @property responsePendingMicros Gap between an NRC 0x78 and the next
+ *           response of the same ECU
+ * @property consecutiveFrameMicros Gap between the ISO-TP frames of one
+ *           multi-frame response; 0 sends them all at once
+ * @property stn Whether STN (OBDLink) `ST` commands are understood
+ * @property faults Faults to inject
+ */
+data class SimulatorConfig(
+    val seed: Long = 1L,
+    val linkLatencyMicros: Long = 0L,
+    val ecuResponseTimes: Boolean = true,
+    val jitterMicros: Long = 0L,
+    val baudRate: Int = 0,
+    val atCommandMicros: Long = 0L,
+    val resetMicros: Long = 0L,
+    val adaptiveTimeoutMicros: Long = 0L,
+    val responseTimeoutMicros: Long = 0L,
+    val protocolSearchMicros: Long = 0L,
+    val responsePendingMicros: Long = 0L,
+    val consecutiveFrameMicros: Long = 0L,
+    val stn: Boolean = true,
+    val faults: FaultInjection = FaultInjection.NONE
+) {
+
+    init {
+        require(baudRate >= 0) { "Baud rate must not be negative: $baudRate" }
+    }
+
+    /**
+     * Time to move [bytes] over the adapter's serial link.
+     */
+    fun serialMicros(bytes: Int): Long =
+        if (baudRate == 0) 0L else bytes * 10L * 1_000_000L / baudRate
+
+    companion object {
+        /**
+         * No delays at all: measures the host stack rather than the link.
+         */
+        val INSTANT = SimulatorConfig(ecuResponseTimes = false)
+
+        /**
+         * A genuine ELM327 v1.5 behind Bluetooth SPP at 38400 baud.
+         */
+        val BLUETOOTH_ELM327 = SimulatorConfig(
+            linkLatencyMicros = 12_000L,
+            jitterMicros = 4_000L,
+            baudRate = 38_400,
+            atCommandMicros = 1_000L,
+            resetMicros = 800_000L,
+            adaptiveTimeoutMicros = 100_000L,
+            responseTimeoutMicros = 200_000L,
+            protocolSearchMicros = 1_500_000L,
+            responsePendingMicros = 50_000L,
+            stn = false
+        )
+
+        /**
+         * An STN2120-based adapter over USB at 2 Mbaud.
+         */
+        val USB_STN = SimulatorConfig(
+            linkLatencyMicros = 1_000L,
+            jitterMicros = 500L,
+            baudRate = 2_000_000,
+            atCommandMicros = 200L,
+            resetMicros = 300_000L,
+            adaptiveTimeoutMicros = 30_000L,
+            responseTimeoutMicros = 200_000L,
+            protocolSearchMicros = 600_000L,
+            responsePendingMicros = 50_000L
+        )
+    }
+}
+
+/**
+ * Faults injected into OBD/UDS requests.
+ *
+ * Each request draws at most one fault; the rates are per request and must
+ * add up to at most 1.
+ *
+ * @property dropRate The adapter never answers, not even with a prompt
+ * @property noDataRate No ECU answers (`NO DATA`)
+ * @property canErrorRate The adapter reports a bus fault (`CAN ERROR`)
+ * @property bufferFullRate The response is cut off by `BUFFER FULL`
+ * @property corruptRate One character of the response is garbled in transit
+ * @property disconnectEvery The link drops after every so many commands;
+ *           0 never
+ */
+data class FaultInjection(
+    val dropRate: Double = 0.0,
+    val noDataRate: Double = 0.0,
+    val canErrorRate: Double = 0.0,
+    val bufferFullRate: Double = 0.0,
+    val corruptRate: Double = 0.0,
+    val disconnectEvery: Long = 0L
+) {
+
+    init {
+        val rates = listOf(dropRate, noDataRate, canErrorRate, bufferFullRate, corruptRate)
+        require(rates.all { it in 0.0..1.0 }) { "Fault rates must be within 0..1: $rates" }
+        require(rates.sum() <= 1.0) { "Fault rates add up to more than 1: ${rates.sum()}" }
+        require(disconnectEvery >= 0) { "disconnectEvery must not be negative: $disconnectEvery" }
+    }
+
+    companion object {
+        val NONE = FaultInjection()
+    }
+}
+
+/**
+ * Kinds of fault an [Elm327Simulator] can inject.
+ */
+enum class SimulatedFault {
+    DROPPED_RESPONSE,
+    NO_DATA,
+    CAN_ERROR,
+    BUFFER_FULL,
+    CORRUPTED,
+    DISCONNECT
+}
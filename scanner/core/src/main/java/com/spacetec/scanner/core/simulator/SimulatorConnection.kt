@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core.simulator
+
+import com.spacetec.core.common.exceptions.CommunicationException
+import com.spacetec.core.domain.models.scanner.ScannerConnectionType
+import com.spacetec.obd.scanner.core.BaseScannerConnection
+import com.spacetec.obd.scanner.core.ConnectionConfig
+import com.spacetec.obd.scanner.core.ConnectionInfo
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+
+/**
+ * [BaseScannerConnection] backed by an [Elm327Simulator] instead of a radio
+ * or a cable, for load and soak testing the stack above the transport
+ * without a vehicle.
+ *
+ * Command bytes written to the connection are collected up to the carriage
+ * return and handed to the simulator; its output is pushed into the receive
+ * buffer at the simulated times, by a coroutine on [dispatcher]. With a
+ * test dispatcher the whole exchange runs in virtual time. Output that is
+ * due immediately (as with [SimulatorConfig.INSTANT]) is delivered from the
+ * write itself, so the simulator adds no scheduling overhead to throughput
+ * measurements.
+ *
+ * Like a real ELM327, a command written while a response is still in
+ * progress aborts it with `STOPPED` and is itself discarded.
+ *
+ * [FaultInjection.disconnectEvery] drops the link after that many commands:
+ * the next write fails with "Connection lost" and the base class's error
+ * handling (and reconnection, if configured) takes over.
+ *
+ * @param simulator Adapter and vehicle to talk to
+ * @param connectionType Connection type to report
+ * @param dispatcher Dispatcher for I/O and for replaying simulated delays
+ *
+ * @author SpaceTec Development Team
+ * @since 1.1.0
+ */
+class SimulatorConnection(
+    val simulator: Elm327Simulator = Elm327Simulator(),
+    override val connectionType: ScannerConnectionType = ScannerConnectionType.BLUETOOTH_CLASSIC,
+    dispatcher: CoroutineDispatcher = Dispatchers.IO
+) : BaseScannerConnection(dispatcher) {
+
+    private val lock = Any()
+    private val commandLine = StringBuilder(64)
+    private var responseJob: Job? = null
+    private var commandsSinceConnect = 0L
+
+    @Volatile
+    private var linkUp = false
+
+    override val feedsReceiveBuffer: Boolean
+        get() = true
+
+    override suspend fun doConnect(address: String, config: ConnectionConfig): ConnectionInfo {
+        synchronized(lock) {
+            commandLine.setLength(0)
+            commandsSinceConnect = 0
+            linkUp = true
+        }
+        return ConnectionInfo(
+            remoteAddress = address,
+            connectionType = connectionType
+        )
+    }
+
+    override suspend fun doDisconnect(graceful: Boolean) {
+        synchronized(lock) {
+            linkUp = false
+            responseJob?.cancel()
+            responseJob = null
+        }
+    }
+
+    override suspend fun doWrite(data: ByteArray): Int = doWrite(data, 0, data.size)
+
+    override suspend fun doWrite(data: ByteArray, offset: Int, length: Int): Int {
+        if (!linkUp) {
+            throw CommunicationException("Connection lost: simulated link is down")
+        }
+        for (i in offset until offset + length) {
+            when (val char = (data[i].toInt() and 0xFF).toChar()) {
+                '\r' -> {
+                    val command = commandLine.toString()
+                    commandLine.setLength(0)
+                    dispatch(command)
+                }
+                '\n' -> Unit
+                else -> commandLine.append(char)
+            }
+        }
+        return length
+    }
+
+    override suspend fun doRead(buffer: ByteArray, timeout: Long): Int = 0
+
+    override suspend fun doAvailable(): Int = receiveBuffer.size
+
+    override suspend fun doClearBuffers() {
+        // The receive buffer is cleared by the base class
+    }
+
+    private fun dispatch(command: String) {
+        val chunks: List<Elm327Simulator.Chunk>
+        synchronized(lock) {
+            val running = responseJob
+            if (running != null && running.isActive) {
+                running.cancel()
+                responseJob = null
+                processIncomingData(simulator.interruptedOutput())
+                return
+            }
+
+            val disconnectEvery = simulator.config.faults.disconnectEvery
+            if (disconnectEvery > 0 && ++commandsSinceConnect > disconnectEvery) {
+                simulator.recordFault(SimulatedFault.DISCONNECT)
+                linkUp = false
+                throw CommunicationException("Connection lost: simulated link drop")
+            }
+
+            chunks = simulator.process(command)
+            if (chunks.isEmpty()) return
+
+            if (chunks.last().atMicros < 1_000) {
+                for (chunk in chunks) processIncomingData(chunk.bytes)
+                return
+            }
+            responseJob = scope.launch { replay(chunks) }
+        }
+    }
+
+    private suspend fun replay(chunks: List<Elm327Simulator.Chunk>) {
+        var elapsedMs = 0L
+        for (chunk in chunks) {
+            val dueMs = chunk.atMicros / 1_000
+            if (dueMs > elapsedMs) {
+                delay(dueMs - elapsedMs)
+                elapsedMs = dueMs
+            }
+            processIncomingData(chunk.bytes)
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core.simulator
+
+/**
+ * One ECU on the simulated CAN bus of an [Elm327Simulator].
+ *
+ * Answers OBD-II services 01, 02, 03, 04, 07, 09 and 0A when it has
+ * [supportedPids] (emissions-relevant ECUs), and the common UDS services
+ * 10, 11, 14, 19, 22, 27, 28, 2E, 31, 3E and 85. Live data follows a simple
+ * deterministic engine model driven by the number of service 01 requests
+ * the ECU has answered, so values change between polls but are
+ * reproducible.
+ *
+ * Functionally addressed requests for services the ECU does not support go
+ * unanswered; physically addressed ones get NRC 0x11.
+ *
+ * Not thread-safe; the simulator serializes requests.
+ *
+ * @param requestId Physical CAN request identifier, e.g. 0x7E0
+ * @param responseId CAN identifier the ECU answers from
+ * @param name ECU name reported for service 09 PID 0A
+ * @param responseTimeMicros Time from request to response on the bus
+ * @param supportedPids Service 01 PIDs; empty for ECUs outside OBD-II
+ * @param vin Vehicle identification number; only one ECU should report it
+ * @param storedDtcs Confirmed DTCs as 16-bit codes, e.g. 0x0301 for P0301
+ * @param pendingDtcs Pending DTCs
+ * @param permanentDtcs Permanent DTCs
+ * @param dids UDS data identifiers readable with service 22
+ * @param routinePendingResponses NRC 0x78 responses sent before a routine
+ *        control (service 31) completes
+ * @param calibrationIds Calibration IDs reported for service 09 PID 04, up
+ *        to 16 characters each
+ * @param cvns Calibration verification numbers reported for service 09
+ *        PID 06, one per calibration ID
+ */
+class VirtualEcu(
+    val requestId: Int,
+    val responseId: Int = requestId + 8,
+    val name: String = "ECU-%03X".format(requestId),
+    val responseTimeMicros: Long = 10_000L,
+    val supportedPids: Set<Int> = emptySet(),
+    val vin: String? = null,
+    storedDtcs: List<Int> = emptyList(),
+    pendingDtcs: List<Int> = emptyList(),
+    val permanentDtcs: List<Int> = emptyList(),
+    dids: Map<Int, ByteArray> = emptyMap(),
+    val routinePendingResponses: Int = 0,
+    val calibrationIds: List<String> = listOf("CAL$requestId"),
+    val cvns: List<Int> = calibrationIds.map { it.hashCode() }
+) {
+
+    init {
+        require(cvns.size == calibrationIds.size) { "One CVN per calibration ID" }
+    }
+
+    private val storedDtcs = storedDtcs.toMutableList()
+    private val pendingDtcs = pendingDtcs.toMutableList()
+    private val dids = HashMap(dids)
+
+    private var liveTick = 0
+    private var session = SESSION_DEFAULT
+    private var seed = 0
+    private var unlocked = false
+
+    /** When true the ECU ignores every request, as if it were off the bus. */
+    var silent: Boolean = false
+
+    /** Requests answered so far. */
+    var requestsAnswered: Long = 0
+        private set
+
+    /** Whether the ECU takes part in OBD-II. */
+    val isObdCompliant: Boolean
+        get() = supportedPids.isNotEmpty()
+
+    /**
+     * Handles [request] (service byte first).
+     *
+     * @param functional Whether the request was functionally addressed
+     * @return Response messages in the order they are sent, empty if the
+     *         ECU stays silent
+     */
+    fun handle(request: ByteArray, functional: Boolean): List<ByteArray> {
+        if (silent || request.isEmpty()) return emptyList()
+        val service = request[0].toInt() and 0xFF
+
+        val obd = service in 0x01..0x0A
+        if (obd && !isObdCompliant) return emptyList()
+
+        val response = if (obd) handleObd(service, request) else handleUds(service, request, functional)
+        if (response.isNotEmpty()) requestsAnswered++
+        return response
+    }
+
+    /**
+     * Restores the default session, stored DTCs excepted.
+     */
+    fun reset() {
+        session = SESSION_DEFAULT
+        unlocked = false
+        seed = 0
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // OBD-II
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun handleObd(service: Int, request: ByteArray): List<ByteArray> {
+        val reply = when (service) {
+            0x01 -> currentData(request)
+            0x02 -> freezeFrame(request)
+            0x03 -> dtcReport(0x43, storedDtcs)
+            0x04 -> {
+                storedDtcs.clear()
+                pendingDtcs.clear()
+                byteArrayOf(0x44)
+            }
+            0x07 -> dtcReport(0x47, pendingDtcs)
+            0x09 -> vehicleInfo(request)
+            0x0A -> dtcReport(0x4A, permanentDtcs)
+            else -> null
+        }
+        return if (reply == null) emptyList() else listOf(reply)
+    }
+
+    private fun currentData(request: ByteArray): ByteArray? {
+        if (request.size < 2) return null
+        val out = Output(0x41)
+        for (i in 1 until request.size) {
+            val pid = request[i].toInt() and 0xFF
+            val data = pidData(pid, liveTick) ?: continue
+            out.add(pid)
+            out.add(data)
+        }
+        liveTick++
+        return out.takeIf { it.size > 1 }?.toByteArray()
+    }
+
+    /**
+     * Service 02: one frame per stored DTC, frame n captured for DTC n, with
+     * any number of PID/frame pairs per request.
+     */
+    private fun freezeFrame(request: ByteArray): ByteArray? {
+        if (request.size < 3) return null
+        val out = Output(0x42)
+        for (i in 1 until request.size - 1 step 2) {
+            val pid = request[i].toInt() and 0xFF
+            val frame = request[i + 1].toInt() and 0xFF
+            val dtc = storedDtcs.getOrNull(frame) ?: continue
+            val data = when (pid) {
+                0x02 -> word(dtc)
+                else -> pidData(pid, FREEZE_FRAME_TICK + frame) ?: continue
+            }
+            out.add(pid)
+            out.add(frame)
+            out.add(data)
+        }
+        return out.takeIf { it.size > 1 }?.toByteArray()
+    }
+
+    private fun dtcReport(positive: Int, dtcs: List<Int>): ByteArray {
+        val out = Output(positive)
+        out.add(dtcs.size)
+        for (dtc in dtcs) {
+            out.add(dtc shr 8)
+            out.add(dtc)
+        }
+        return out.toByteArray()
+    }
+
+    private fun vehicleInfo(request: ByteArray): ByteArray? {
+        if (request.size < 2) return null
+        val pid = request[1].toInt() and 0xFF
+        val vin = vin
+        val data = when (pid) {
+            0x00 -> bitmap(if (vin != null) setOf(0x02, 0x04, 0x06, 0x0A) else setOf(0x04, 0x06, 0x0A), 0x00)
+            0x02 -> vin?.let { byteArrayOf(1) + it.toByteArray(Charsets.US_ASCII) } ?: return null
+            0x04 -> Output(calibrationIds.size).apply {
+                // Padded with 0x00, as SAE J1979 has it
+                for (id in calibrationIds) add(id.take(16).toByteArray(Charsets.US_ASCII).copyOf(16))
+            }.toByteArray()
+            0x06 -> Output(cvns.size).apply { for (cvn in cvns) add(int(cvn)) }.toByteArray()
+            0x0A -> byteArrayOf(1) + "%-20s".format(name).take(20).toByteArray(Charsets.US_ASCII)
+            else -> return null
+        }
+        return Output(0x49).apply { add(pid); add(data) }.toByteArray()
+    }
+
+    /**
+     * Value of [pid] at engine model step [tick], or null if unsupported.
+     */
+    private fun pidData(pid: Int, tick: Int): ByteArray? {
+        if (pid % 0x20 == 0) {
+            return if (supportedPids.any { it in pid + 1..pid + 0x20 } || pid == 0) bitmap(supportedPids, pid) else null
+        }
+        if (pid !in supportedPids) return null
+
+        val rpm = 800 + (tick * 53) % 3_000
+        val speed = (tick * 7) % 130
+        return when (pid) {
+            0x01 -> byteArrayOf(
+                ((if (storedDtcs.isNotEmpty()) 0x80 else 0) or storedDtcs.size).toByte(), 0x07, 0x65, 0x00
+            )
+            0x04 -> byte(20 + tick % 60 * 255 / 100)
+            0x05 -> byte(90 + 40)
+            0x0B -> byte(30 + tick % 70)
+            0x0C -> word(rpm * 4)
+            0x0D -> byte(speed)
+            0x0F -> byte(25 + 40)
+            0x10 -> word(rpm / 2 + 300)
+            0x11 -> byte(15 + tick % 40)
+            0x1C -> byte(0x06)
+            0x1F -> word(tick / 2)
+            0x21, 0x31 -> word(tick / 10)
+            0x2F -> byte(180 - tick % 100)
+            0x33 -> byte(101)
+            0x42 -> word(14_100 - tick % 300)
+            0x46 -> byte(18 + 40)
+            0x5C -> byte(95 + 40)
+            else -> ByteArray(PID_LENGTHS[pid] ?: 1) { (tick + it).toByte() }
+        }
+    }
+
+    private fun bitmap(pids: Set<Int>, base: Int): ByteArray {
+        val bits = ByteArray(4)
+        for (pid in pids) {
+            val offset = pid - base - 1
+            if (offset in 0 until 0x20) {
+                bits[offset / 8] = (bits[offset / 8].toInt() or (0x80 ushr (offset % 8))).toByte()
+            }
+        }
+        if (pids.any { it > base + 0x20 }) {
+            bits[3] = (bits[3].toInt() or 0x01).toByte()
+        }
+        return bits
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // UDS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun handleUds(service: Int, request: ByteArray, functional: Boolean): List<ByteArray> {
+        val suppressPositive = request.size > 1 && service in SUPPRESSIBLE && request[1].toInt() and 0x80 != 0
+        val subFunction = if (request.size > 1) request[1].toInt() and 0x7F else -1
+
+        val reply: ByteArray = when (service) {
+            0x10 -> {
+                if (subFunction !in 1..3) return negative(service, NRC_SUB_FUNCTION_NOT_SUPPORTED, functional)
+                session = subFunction
+                unlocked = false
+                byteArrayOf(0x50, subFunction.toByte(), 0x00, 0x32, 0x01, 0xF4.toByte())
+            }
+            0x11 -> {
+                reset()
+                byteArrayOf(0x51, subFunction.toByte())
+            }
+            0x14 -> {
+                storedDtcs.clear()
+                pendingDtcs.clear()
+                byteArrayOf(0x54)
+            }
+            0x19 -> readDtcInformation(subFunction) ?: return negative(service, NRC_SUB_FUNCTION_NOT_SUPPORTED, functional)
+            0x22 -> readDataByIdentifier(request) ?: return negative(service, NRC_REQUEST_OUT_OF_RANGE, functional)
+            0x27 -> return securityAccess(request, subFunction, functional)
+            0x28 -> byteArrayOf(0x68, subFunction.toByte())
+            0x2E -> {
+                if (request.size < 4) return negative(service, NRC_INCORRECT_LENGTH, functional)
+                if (session == SESSION_DEFAULT) return negative(service, NRC_NOT_IN_SESSION, functional)
+                if (!unlocked) return negative(service, NRC_SECURITY_ACCESS_DENIED, functional)
+                dids[word(request, 1)] = request.copyOfRange(3, request.size)
+                byteArrayOf(0x6E, request[1], request[2])
+            }
+            0x31 -> {
+                if (request.size < 4) return negative(service, NRC_INCORRECT_LENGTH, functional)
+                val final = byteArrayOf(0x71, subFunction.toByte(), request[2], request[3], 0x00)
+                return List(routinePendingResponses) { pending(service) } + listOf(final)
+            }
+            0x3E -> byteArrayOf(0x7E, 0x00)
+            0x85 -> byteArrayOf(0xC5.toByte(), subFunction.toByte())
+            else -> return negative(service, NRC_SERVICE_NOT_SUPPORTED, functional)
+        }
+        return if (suppressPositive) emptyList() else listOf(reply)
+    }
+
+    private fun readDtcInformation(subFunction: Int): ByteArray? {
+        val dtcs = storedDtcs + pendingDtcs.filter { it !in storedDtcs }
+        return when (subFunction) {
+            0x01 -> byteArrayOf(0x59, 0x01, DTC_STATUS_MASK.toByte(), 0x01, (dtcs.size shr 8).toByte(), dtcs.size.toByte())
+            0x02 -> {
+                val out = Output(0x59)
+                out.add(0x02)
+                out.add(DTC_STATUS_MASK)
+                for (dtc in dtcs) {
+                    out.add(dtc shr 8)
+                    out.add(dtc)
+                    out.add(0x00)
+                    out.add(if (dtc in storedDtcs) STATUS_CONFIRMED else STATUS_PENDING)
+                }
+                out.toByteArray()
+            }
+            else -> null
+        }
+    }
+
+    private fun readDataByIdentifier(request: ByteArray): ByteArray? {
+        if (request.size < 3 || request.size % 2 == 0) return null
+        val out = Output(0x62)
+        var found = 0
+        for (i in 1 until request.size step 2) {
+            val did = word(request, i)
+            val data = dids[did] ?: standardDid(did) ?: continue
+            out.add(did shr 8)
+            out.add(did)
+            out.add(data)
+            found++
+        }
+        return if (found > 0) out.toByteArray() else null
+    }
+
+    private fun standardDid(did: Int): ByteArray? = when (did) {
+        0xF190 -> vin?.toByteArray(Charsets.US_ASCII)
+        0xF18C -> "SN%08X".format(requestId * 7919).toByteArray(Charsets.US_ASCII)
+        0xF187 -> "PN-%03X-0001".format(requestId).toByteArray(Charsets.US_ASCII)
+        0xF195 -> byteArrayOf(0x01, 0x04, 0x02)
+        else -> null
+    }
+
+    private fun securityAccess(request: ByteArray, subFunction: Int, functional: Boolean): List<ByteArray> {
+        if (session == SESSION_DEFAULT) return negative(0x27, NRC_NOT_IN_SESSION, functional)
+        return when {
+            subFunction % 2 == 1 -> {
+                seed = if (unlocked) 0 else 0x1234_0000 or ((requestId * 31 + requestsAnswered.toInt()) and 0xFFFF)
+                listOf(byteArrayOf(0x67, subFunction.toByte()) + int(seed))
+            }
+            request.size == 6 && seed != 0 && ((word(request, 2) shl 16) or word(request, 4)) == keyFor(seed) -> {
+                unlocked = true
+                seed = 0
+                listOf(byteArrayOf(0x67, subFunction.toByte()))
+            }
+            seed == 0 -> negative(0x27, NRC_REQUEST_SEQUENCE_ERROR, functional)
+            else -> negative(0x27, NRC_INVALID_KEY, functional)
+        }
+    }
+
+    private fun negative(service: Int, nrc: Int, functional: Boolean): List<ByteArray> =
+        if (functional && (nrc == NRC_SERVICE_NOT_SUPPORTED || nrc == NRC_SUB_FUNCTION_NOT_SUPPORTED || nrc == NRC_REQUEST_OUT_OF_RANGE)) {
+            emptyList()
+        } else {
+            listOf(byteArrayOf(0x7F, service.toByte(), nrc.toByte()))
+        }
+
+    private fun pending(service: Int): ByteArray =
+        byteArrayOf(0x7F, service.toByte(), NRC_RESPONSE_PENDING.toByte())
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /** Growable response buffer starting with the positive response byte. */
+    private class Output(first: Int) {
+        private var bytes = ByteArray(16)
+        var size = 0
+            private set
+
+        init {
+            add(first)
+        }
+
+        fun add(value: Int) {
+            if (size == bytes.size) bytes = bytes.copyOf(size * 2)
+            bytes[size++] = value.toByte()
+        }
+
+        fun add(data: ByteArray) {
+            for (b in data) add(b.toInt())
+        }
+
+        fun toByteArray(): ByteArray = bytes.copyOf(size)
+    }
+
+    override fun toString(): String = "VirtualEcu(%03X -> %03X, %s)".format(requestId, responseId, name)
+
+    companion object {
+        const val SESSION_DEFAULT = 0x01
+
+        const val NRC_SERVICE_NOT_SUPPORTED = 0x11
+        const val NRC_SUB_FUNCTION_NOT_SUPPORTED = 0x12
+        const val NRC_INCORRECT_LENGTH = 0x13
+        const val NRC_REQUEST_SEQUENCE_ERROR = 0x24
+        const val NRC_REQUEST_OUT_OF_RANGE = 0x31
+        const val NRC_SECURITY_ACCESS_DENIED = 0x33
+        const val NRC_INVALID_KEY = 0x35
+        const val NRC_RESPONSE_PENDING = 0x78
+        const val NRC_NOT_IN_SESSION = 0x7F
+
+        private const val DTC_STATUS_MASK = 0xFF
+        private const val STATUS_CONFIRMED = 0x2F
+        private const val STATUS_PENDING = 0x24
+        private const val FREEZE_FRAME_TICK = 17
+
+        /** Services whose sub-function bit 7 suppresses the positive response. */
+        private val SUPPRESSIBLE = setOf(0x10, 0x11, 0x28, 0x3E, 0x85)
+
+        /** Data lengths of PIDs the engine model has no formula for. */
+        private val PID_LENGTHS = mapOf(
+            0x03 to 2, 0x14 to 2, 0x15 to 2, 0x24 to 4, 0x3C to 2, 0x41 to 4, 0x43 to 2, 0x44 to 2, 0x4D to 2, 0x4E to 2
+        )
+
+        /**
+         * Key the simulated ECUs expect for [seed] (service 27).
+         */
+        fun keyFor(seed: Int): Int = (seed xor 0x5A5A_A5A5.toInt()) + 0x1F
+
+        private fun byte(value: Int) = byteArrayOf(value.toByte())
+
+        private fun word(value: Int) = byteArrayOf((value shr 8).toByte(), value.toByte())
+
+        private fun int(value: Int) =
+            byteArrayOf((value shr 24).toByte(), (value shr 16).toByte(), (value shr 8).toByte(), value.toByte())
+
+        private fun word(bytes: ByteArray, index: Int) =
+            ((bytes[index].toInt() and 0xFF) shl 8) or (bytes[index + 1].toInt() and 0xFF)
+    }
+}
+
+/**
+ * The ECUs on a simulated vehicle's diagnostic CAN bus.
+ *
+ * @property ecus ECUs answering diagnostic requests
+ * @property busTrace Background traffic printed in monitor mode; null for a
+ *           bus that is silent until the tester talks
+ */
+class VirtualVehicle(val ecus: List<VirtualEcu>, val busTrace: BusTrace? = null) {
+
+    init {
+        require(ecus.map { it.requestId }.toSet().size == ecus.size) { "Duplicate ECU request IDs" }
+    }
+
+    /** ECU addressed by physical [requestId], or null. */
+    fun ecu(requestId: Int): VirtualEcu? = ecus.firstOrNull { it.requestId == requestId }
+
+    companion object {
+        const val FUNCTIONAL_ID = 0x7DF
+
+        /**
+         * Engine and transmission on OBD-II, plus an ABS module that only
+         * speaks UDS. The engine has a misfire stored and a catalyst DTC
+         * pending.
+         */
+        fun typical(vin: String = "WVWZZZ1KZAW000001"): VirtualVehicle = VirtualVehicle(
+            listOf(
+                VirtualEcu(
+                    requestId = 0x7E0,
+                    name = "ECM-EngineControl",
+                    responseTimeMicros = 8_000L,
+                    supportedPids = setOf(
+                        0x01, 0x04, 0x05, 0x0B, 0x0C, 0x0D, 0x0F, 0x10, 0x11, 0x1C, 0x1F,
+                        0x21, 0x2F, 0x31, 0x33, 0x42, 0x46, 0x5C
+                    ),
+                    vin = vin,
+                    storedDtcs = listOf(0x0301),
+                    pendingDtcs = listOf(0x0420),
+                    permanentDtcs = listOf(0x0301),
+                    dids = mapOf(0xF40C to byteArrayOf(0x0C, 0x80.toByte())),
+                    routinePendingResponses = 2
+                ),
+                VirtualEcu(
+                    requestId = 0x7E1,
+                    name = "TCM-TransmissionCtrl",
+                    responseTimeMicros = 22_000L,
+                    supportedPids = setOf(0x01, 0x0D, 0x1C, 0x5C),
+                    storedDtcs = emptyList()
+                ),
+                VirtualEcu(
+                    requestId = 0x760,
+                    name = "ABS-BrakeControl",
+                    responseTimeMicros = 15_000L,
+                    storedDtcs = listOf(0x4123)
+                )
+            )
+        )
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import com.spacetec.obd.scanner.core.simulator.Elm327Simulator
+import com.spacetec.obd.scanner.core.simulator.SimulatorConfig
+import com.spacetec.obd.scanner.core.simulator.VirtualEcu
+import com.spacetec.obd.scanner.core.simulator.VirtualVehicle
+import com.spacetec.protocol.core.timing.TimeoutHandler
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * DTC scans through the ELM327 simulator with adaptive timing off in the
+ * adapter (`ATAT0`), so every request costs its `ATST` after the last frame:
+ * once with the worst-case `ATSTFF`, once with per-ECU values from
+ * [TimeoutHandler].
+ */
+class AdaptiveTimingTest {
+
+    @Test
+    fun `per-ECU timeouts cut DTC scan time without losing responses`() {
+        val fixed = Scan(Elm327Simulator(vehicle(), SimulatorConfig.USB_STN), timing = null).run()
+        val adaptive = Scan(Elm327Simulator(vehicle(), SimulatorConfig.USB_STN), TimeoutHandler()).run()
+
+        println(
+            "DTC scan, ${ECUS.size} ECUs x $ROUNDS rounds: ATSTFF ${fixed.wallMicros / 1000}ms, " +
+                "adaptive ${adaptive.wallMicros / 1000}ms (${adaptive.timeouts} timeouts)"
+        )
+        assertEquals(fixed.dtcResponses, adaptive.dtcResponses)
+        assertEquals(ECUS.size, adaptive.dtcResponses.size)
+        assertEquals(0, adaptive.timeouts)
+        assertTrue(adaptive.wallMicros * 3 < fixed.wallMicros)
+    }
+
+    @Test
+    fun `ECU slower than its reported P2 is still heard`() {
+        val timing = TimeoutHandler()
+        val scan = Scan(Elm327Simulator(vehicle(), SimulatorConfig.USB_STN), timing).run()
+
+        // The body controller reports P2 = 50 ms but takes 85 ms
+        assertEquals(50L, timing.p2ServerMaxMs(BODY))
+        assertTrue(timing.ecuTimeoutMs(BODY, READ_DTC) > 85)
+        assertTrue(scan.dtcResponses.getValue(BODY).startsWith("59 02"))
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Enters the extended session with each ECU, then reads its DTCs
+     * [ROUNDS] times; [timing] null uses `ATSTFF` throughout.
+     */
+    private class Scan(private val elm: Elm327Simulator, private val timing: TimeoutHandler?) {
+        var wallMicros = 0L
+        var timeouts = 0
+        val dtcResponses = HashMap<Int, String>()
+        private var atst = -1
+
+        fun run(): Scan {
+            command("ATE0")
+            command("ATSP6")
+            command("ATAT0")
+            if (timing == null) command("ATSTFF")
+
+            for (ecu in ECUS) {
+                command("ATSH%03X".format(ecu))
+                val response = request(ecu, "1003") ?: continue
+                timing?.onSessionResponse(ecu, bytes(response))
+            }
+            repeat(ROUNDS) {
+                for (ecu in ECUS) {
+                    command("ATSH%03X".format(ecu))
+                    val response = request(ecu, "1902FF") ?: request(ecu, "1902FF") ?: continue
+                    dtcResponses[ecu] = response
+                }
+            }
+            return this
+        }
+
+        private fun request(ecu: Int, hex: String): String? {
+            val serviceId = hex.substring(0, 2).toInt(16)
+            if (timing != null) {
+                val value = timing.elmTimeout(ecu, serviceId)
+                if (value != atst) command("ATST%02X".format(value))
+                atst = value
+            }
+            val chunks = elm.process(hex)
+            wallMicros += chunks.last().atMicros
+            val text = text(chunks).removeSuffix(">").trim()
+            if (text == "NO DATA") {
+                timeouts++
+                timing?.recordTimeout(ecu, serviceId)
+                return null
+            }
+            timing?.recordResponse(ecu, serviceId, chunks.first().atMicros / 1000)
+            return text
+        }
+
+        private fun command(text: String) {
+            wallMicros += elm.process(text).last().atMicros
+        }
+
+        private fun text(chunks: List<Elm327Simulator.Chunk>): String =
+            chunks.joinToString("") { String(it.bytes, Charsets.US_ASCII) }
+
+        private fun bytes(response: String): ByteArray =
+            response.split(Regex("\\s+")).map { it.toInt(16).toByte() }.toByteArray()
+    }
+
+    companion object {
+        private const val ROUNDS = 10
+        private const val READ_DTC = 0x19
+        private const val BODY = 0x760
+        private val ECUS = listOf(0x7E0, 0x7E1, 0x7E2, BODY)
+
+        /** Four ECUs answering between 6 and 85 ms. */
+        private fun vehicle() = VirtualVehicle(
+            listOf(
+                VirtualEcu(0x7E0, responseTimeMicros = 6_000L, storedDtcs = listOf(0x0301, 0x0420)),
+                VirtualEcu(0x7E1, responseTimeMicros = 18_000L, storedDtcs = listOf(0x0700)),
+                VirtualEcu(0x7E2, responseTimeMicros = 35_000L),
+                VirtualEcu(BODY, responseTimeMicros = 85_000L, storedDtcs = listOf(0x4123))
+            )
+        )
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import com.spacetec.core.common.result.Result
+import com.spacetec.obd.core.common.result.AppResult
+import com.spacetec.obd.core.common.result.SpaceTecError
+import com.spacetec.obd.scanner.core.simulator.BusTrace
+import com.spacetec.obd.scanner.core.simulator.Elm327Simulator
+import com.spacetec.obd.scanner.core.simulator.SimulatorConfig
+import com.spacetec.obd.scanner.core.simulator.SimulatorConnection
+import com.spacetec.obd.scanner.core.simulator.VirtualVehicle
+import com.spacetec.protocol.core.BusFingerprint
+import com.spacetec.protocol.core.BusFingerprinter
+import com.spacetec.transport.contract.ProtocolType
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.emptyFlow
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.Assert.*
+import org.junit.Test
+import com.spacetec.obd.core.common.result.Result as AppResultType
+import com.spacetec.transport.contract.ConnectionState as TransportConnectionState
+import com.spacetec.transport.contract.ScannerConnection as TransportConnection
+
+/**
+ * Tests for [BusFingerprinter], replaying recorded bus traces through the
+ * ELM327 simulator in monitor mode, in virtual time.
+ */
+class BusFingerprinterTest {
+
+    @Test
+    fun `11-bit 500k bus is fingerprinted without transmitting`() = runTest {
+        val vehicle = vehicle(BusTrace.parseCandump(PASSENGER_CAR_TRACE, 500_000))
+
+        val (fingerprint, simulator) = fingerprint(vehicle, SimulatorConfig.USB_STN)
+
+        assertEquals(500_000, fingerprint.bitrate)
+        assertEquals(false, fingerprint.is29Bit)
+        assertEquals(setOf(0x0C9, 0x0F1, 0x1E5, 0x3C1, 0x4C1), fingerprint.nodeIds)
+        assertEquals(listOf(500_000), fingerprint.listenedBitrates)
+        assertEquals(0L, simulator.requests)
+        assertTrue(fingerprint.listenTimeMs < BusFingerprinter.DEFAULT_WINDOW_MS)
+    }
+
+    @Test
+    fun `29-bit 250k bus is found after a CAN error at 500k`() = runTest {
+        val vehicle = vehicle(BusTrace.parseCandump(HEAVY_DUTY_TRACE, 250_000))
+
+        val (fingerprint, simulator) = fingerprint(vehicle, SimulatorConfig.USB_STN)
+
+        assertEquals(250_000, fingerprint.bitrate)
+        assertEquals(true, fingerprint.is29Bit)
+        assertEquals(setOf(500_000), fingerprint.errorBitrates)
+        assertTrue(0x0CF00400 in fingerprint.nodeIds)
+        assertEquals(0L, simulator.requests)
+    }
+
+    @Test
+    fun `observed protocol is probed first`() = runTest {
+        val vehicle = vehicle(BusTrace.parseCandump(HEAVY_DUTY_TRACE.replace("0CF00400", "18DAF100"), 500_000))
+
+        val (fingerprint, _) = fingerprint(vehicle, SimulatorConfig.USB_STN)
+        val order = fingerprint.prioritize(DETECTION_ORDER)
+
+        assertEquals(ProtocolType.ISO_15765_4_CAN_29BIT_500K, order[0])
+        assertEquals(ProtocolType.ISO_15765_4_CAN_11BIT_500K, order[1])
+        assertEquals(DETECTION_ORDER.toSet(), order.toSet())
+    }
+
+    @Test
+    fun `silent bus moves CAN behind the other protocols`() = runTest {
+        val (fingerprint, simulator) = fingerprint(VirtualVehicle.typical(), SimulatorConfig.USB_STN)
+
+        assertTrue(fingerprint.isSilent)
+        assertEquals(BusFingerprinter.CAN_BITRATES, fingerprint.listenedBitrates)
+        assertTrue(fingerprint.listenTimeMs <= BusFingerprinter.DEFAULT_MAX_LISTEN_MS)
+        assertEquals(0L, simulator.requests)
+
+        val order = fingerprint.prioritize(DETECTION_ORDER)
+        assertEquals(ProtocolType.ISO_14230_4_KWP_FAST, order[0])
+        assertEquals(ProtocolType.ISO_15765_4_CAN_11BIT_500K, order[4])
+    }
+
+    @Test
+    fun `buffer overflow keeps the frames and monitoring restarts`() = runTest {
+        // A busy bus behind a Bluetooth ELM327 at 38400 baud: ATMA overflows
+        val vehicle = vehicle(BusTrace.parseCandump(busyBusTrace(), 500_000))
+
+        val (fingerprint, simulator) = fingerprint(vehicle, SimulatorConfig.BLUETOOTH_ELM327)
+
+        // About ten lines fit before each overflow; reaching the target took restarts
+        assertEquals(500_000, fingerprint.bitrate)
+        assertTrue("${fingerprint.overflows}", fingerprint.overflows >= 1)
+        assertTrue("${fingerprint.frames11Bit}", fingerprint.frames11Bit >= BusFingerprinter.DEFAULT_TARGET_FRAMES)
+        assertTrue(fingerprint.listenTimeMs <= BusFingerprinter.DEFAULT_WINDOW_MS + 500)
+        assertEquals(0L, simulator.requests)
+    }
+
+    @Test
+    fun `adapter without monitor support leaves the order unchanged`() {
+        val fingerprint = BusFingerprint.UNKNOWN
+
+        assertFalse(fingerprint.isSilent)
+        assertEquals(DETECTION_ORDER, fingerprint.prioritize(DETECTION_ORDER))
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private suspend fun TestScope.fingerprint(
+        vehicle: VirtualVehicle,
+        config: SimulatorConfig
+    ): Pair<BusFingerprint, Elm327Simulator> {
+        val simulator = Elm327Simulator(vehicle, config.copy(jitterMicros = 0))
+        val connection = SimulatorConnection(simulator, dispatcher = StandardTestDispatcher(testScheduler))
+        check(connection.connect("SIM", ConnectionConfig(autoReconnect = false)) is Result.Success)
+        try {
+            val fingerprinter = BusFingerprinter(TransportAdapter(connection), clock = { testScheduler.currentTime })
+            return fingerprinter.fingerprint() to simulator
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    private fun vehicle(trace: BusTrace) = VirtualVehicle(VirtualVehicle.typical().ecus, trace)
+
+    /** Powertrain frames every 0.4 ms, far more than 38400 baud can print. */
+    private fun busyBusTrace(): String = buildString {
+        for (i in 0 until 250) {
+            val micros = 400L * i
+            val id = listOf("0C9", "0F1", "1E5", "3C1", "4C1")[i % 5]
+            append("(1700000000.%06d) can0 %s#%02X0D1A0000000000\n".format(micros, id, i and 0xFF))
+        }
+    }
+
+    /** The protocol detection interface over a scanner connection. */
+    private class TransportAdapter(private val connection: SimulatorConnection) : TransportConnection {
+        override val isConnected: Boolean
+            get() = connection.isConnected
+        override val connectionState: Flow<TransportConnectionState> = emptyFlow()
+
+        override suspend fun openConnection(): AppResult<Unit> = AppResultType.Success(Unit)
+        override suspend fun closeConnection(): AppResult<Unit> = AppResultType.Success(Unit)
+
+        override suspend fun writeBytes(data: ByteArray): AppResult<Unit> =
+            when (connection.write(data)) {
+                is Result.Success -> AppResultType.Success(Unit)
+                else -> AppResultType.Failure(SpaceTecError.ConnectionError.ConnectionLost())
+            }
+
+        // Waits for data itself: read() treats running into its timeout as a link error
+        override suspend fun readBytes(timeout: Long): AppResult<ByteArray> {
+            val result = withTimeoutOrNull(timeout) {
+                while (connection.available() == 0) delay(1)
+                connection.read(timeout)
+            }
+            return when (result) {
+                is Result.Success -> AppResultType.Success(result.data)
+                else -> AppResultType.Failure(SpaceTecError.ConnectionError.Timeout(timeoutMs = timeout))
+            }
+        }
+
+        override fun observeBytes(): Flow<ByteArray> = emptyFlow()
+    }
+
+    companion object {
+        private val DETECTION_ORDER = listOf(
+            ProtocolType.ISO_15765_4_CAN_11BIT_500K,
+            ProtocolType.ISO_15765_4_CAN_29BIT_500K,
+            ProtocolType.ISO_15765_4_CAN_11BIT_250K,
+            ProtocolType.ISO_15765_4_CAN_29BIT_250K,
+            ProtocolType.ISO_14230_4_KWP_FAST,
+            ProtocolType.ISO_9141_2,
+            ProtocolType.SAE_J1850_VPW,
+            ProtocolType.SAE_J1850_PWM
+        )
+
+        /** Passenger car powertrain bus, ignition on, engine idling. */
+        private val PASSENGER_CAR_TRACE = """
+            (1700000000.000000) can0 0C9#840D1A0000000000
+            (1700000000.001210) can0 0F1#0000400000000000
+            (1700000000.002380) can0 1E5#00A2000000000000
+            (1700000000.005020) can0 0C9#840D1C0000000000
+            (1700000000.006170) can0 3C1#0100000000000000
+            (1700000000.010040) can0 0C9#840D1B0000000000
+            (1700000000.011260) can0 0F1#0000400000000000
+            (1700000000.012410) can0 1E5#00A2000000000000
+            (1700000000.015010) can0 0C9#840D1A0000000000
+            (1700000000.018300) can0 4C1#3C00000000000000
+        """.trimIndent()
+
+        /** Heavy-duty J1939 backbone: EEC1, ET1 and CCVS broadcasts. */
+        private val HEAVY_DUTY_TRACE = """
+            (1700000100.000000) can0 0CF00400#F87D7D3C1AFF0F7D
+            (1700000100.001020) can0 18FEEE00#6B5C2A20FFFF5CFF
+            (1700000100.003100) can0 18FEF100#F3C31400C0FF00FF
+            (1700000100.010010) can0 0CF00400#F87D7D3D1AFF0F7D
+            (1700000100.020000) can0 0CF00400#F87D7D3C1AFF0F7D
+            (1700000100.030040) can0 0CF00400#F87D7D3B1AFF0F7D
+        """.trimIndent()
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for the per-class latency tracking in [MutableConnectionStatistics].
+ *
+ * **Feature: scanner-connection-system, Latency Histograms**
+ */
+class ConnectionLatencyTest {
+
+    @Test
+    fun `statistics track latency per command class`() {
+        val stats = MutableConnectionStatistics()
+
+        stats.markCommand(CommandClass.of("ATRV"))
+        repeat(20) { stats.recordReceivedNanos(5, 2_000_000) }
+        stats.markCommand(CommandClass.of("010C"))
+        repeat(99) { stats.recordReceivedNanos(8, 40_000_000) }
+        stats.recordReceivedNanos(8, 900_000_000)
+
+        val immutable = stats.toImmutable()
+        assertEquals(120L, immutable.latency.count)
+        assertEquals(setOf("AT", "OBD 01"), immutable.latencyByClass.keys)
+        assertTrue(immutable.latencyByClass.getValue("AT").p99Micros < 2_500)
+        assertTrue(immutable.latencyByClass.getValue("OBD 01").p999Micros >= 900_000)
+        assertTrue(stats.latencySnapshot(CommandClass.of("010C")).p50Micros in 40_000..45_000)
+
+        stats.reset()
+        assertEquals(0L, stats.latencySnapshot().count)
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Unit tests for [ReceiveBuffer].
+ */
+class ReceiveBufferTest {
+
+    private val prompt = ">".toByteArray(Charsets.US_ASCII)
+
+    @Test
+    fun testTerminatorFoundInSingleWrite() {
+        val buffer = ReceiveBuffer(64)
+        buffer.write("41 0C 1A F8\r\r>".toByteArray())
+
+        val index = buffer.indexOf(prompt)
+        assertEquals(13, index)
+        assertEquals("41 0C 1A F8", buffer.readString(index).trim())
+        buffer.skip(prompt.size)
+        assertTrue(buffer.isEmpty)
+    }
+
+    @Test
+    fun testTerminatorSplitAcrossWrites() {
+        val buffer = ReceiveBuffer(64)
+        val terminator = "\r\r>".toByteArray()
+
+        buffer.write("OK\r".toByteArray())
+        assertEquals(-1, buffer.indexOf(terminator))
+        buffer.write("\r".toByteArray())
+        assertEquals(-1, buffer.indexOf(terminator))
+        buffer.write(">".toByteArray())
+
+        assertEquals(2, buffer.indexOf(terminator))
+    }
+
+    @Test
+    fun testDataAfterTerminatorIsRetained() {
+        val buffer = ReceiveBuffer(64)
+        buffer.write("OK>ELM327 v1.5>".toByteArray())
+
+        val first = buffer.indexOf(prompt)
+        assertEquals("OK", buffer.readString(first))
+        buffer.skip(1)
+
+        val second = buffer.indexOf(prompt)
+        assertEquals("ELM327 v1.5", buffer.readString(second))
+    }
+
+    @Test
+    fun testWrapAround() {
+        val buffer = ReceiveBuffer(16)
+        buffer.write("0123456789".toByteArray())
+        buffer.skip(8)
+        buffer.write("ABCDEFGH>".toByteArray())
+
+        val index = buffer.indexOf(prompt)
+        assertEquals(10, index)
+        assertEquals("89ABCDEFGH", buffer.readString(index))
+    }
+
+    @Test
+    fun testOverflowDiscardsOldestBytes() {
+        val buffer = ReceiveBuffer(8)
+        buffer.write("12345678".toByteArray())
+        buffer.write("9A".toByteArray())
+
+        assertEquals(8, buffer.size)
+        assertEquals(2L, buffer.overflowCount)
+        assertEquals("3456789A", buffer.readString(buffer.size))
+    }
+
+    @Test
+    fun testOversizedWriteKeepsNewestBytes() {
+        val buffer = ReceiveBuffer(4)
+        buffer.write("ABCDEFGH".toByteArray())
+
+        assertEquals("EFGH", buffer.readString(buffer.size))
+        assertEquals(4L, buffer.overflowCount)
+    }
+
+    @Test
+    fun testReadIntoArray() {
+        val buffer = ReceiveBuffer(8)
+        buffer.write(byteArrayOf(1, 2, 3, 4, 5, 6))
+        buffer.skip(4)
+        buffer.write(byteArrayOf(7, 8, 9, 10))
+
+        val dest = ByteArray(6)
+        assertEquals(6, buffer.read(dest))
+        assertArrayEquals(byteArrayOf(5, 6, 7, 8, 9, 10), dest)
+    }
+
+    @Test
+    fun testAwaitDataWakesOnWrite() = runBlocking {
+        val buffer = ReceiveBuffer(64)
+
+        val waiter = async { buffer.awaitData(5_000) }
+        delay(20)
+        buffer.write(">".toByteArray())
+
+        assertTrue("Waiter should be woken by write", waiter.await())
+    }
+
+    @Test
+    fun testAwaitDataTimesOut() = runBlocking {
+        val buffer = ReceiveBuffer(64)
+        assertFalse(buffer.awaitData(20))
+    }
+
+    @Test
+    fun testWriteBeforeAwaitIsNotLost() = runBlocking {
+        val buffer = ReceiveBuffer(64)
+        buffer.write("OK".toByteArray())
+
+        assertTrue(buffer.awaitData(20))
+    }
+
+    @Test
+    fun testClearDropsPendingSignal() = runBlocking {
+        val buffer = ReceiveBuffer(64)
+        buffer.write("STOPPED".toByteArray())
+        buffer.clear()
+
+        assertTrue(buffer.isEmpty)
+        assertFalse(buffer.awaitData(20))
+    }
+}
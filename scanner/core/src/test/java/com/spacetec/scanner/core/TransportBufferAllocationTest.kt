@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import com.spacetec.core.domain.models.scanner.ScannerConnectionType
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.*
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+
+/**
+ * Allocation-counting tests for the pooled transport buffer layer.
+ *
+ * Uses the HotSpot per-thread allocation counter to verify that the steady
+ * state of the receive path (pooled read chunk -> [ReceiveBuffer] -> terminator
+ * scan -> read into a caller slice) allocates nothing per chunk. Each scenario
+ * is warmed up first so JIT compilation and pool growth are excluded, and the
+ * cost of reading the counter itself is subtracted.
+ *
+ * Coroutine frames and [com.spacetec.core.common.result.Result] wrappers on the
+ * suspending API still allocate small objects; those are outside the scope of
+ * these tests, which cover the buffer-sized allocations that used to happen on
+ * every chunk.
+ *
+ * **Feature: scanner-connection-system, Pooled Transport Buffers**
+ */
+class TransportBufferAllocationTest {
+
+    private val threadBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+
+    @Test
+    fun `buffer pool acquire and release do not allocate once warm`() {
+        val pool = BufferPool(segmentSize = 256, maxPooled = 4)
+
+        val allocated = measureAllocations {
+            pool.acquire().use { buffer ->
+                buffer.array[0] = 1
+                buffer.setLength(1)
+            }
+        }
+
+        assertEquals("Pool should not grow in steady state", 1L, pool.allocatedCount)
+        assertNoAllocations("BufferPool.acquire/release", allocated)
+    }
+
+    @Test
+    fun `receive path does not allocate per chunk`() {
+        val connection = ExposedConnection()
+        val prompt = ">".toByteArray(Charsets.US_ASCII)
+        val chunk = "41 0C 1A F8\r\r>".toByteArray(Charsets.US_ASCII)
+        val pool = BufferPool(segmentSize = 64, maxPooled = 2)
+        val response = pool.acquire()
+
+        val allocated = measureAllocations {
+            pool.acquire().use { readChunk ->
+                System.arraycopy(chunk, 0, readChunk.array, 0, chunk.size)
+                connection.deliver(readChunk.array, 0, chunk.size)
+            }
+            val end = connection.buffer.indexOf(prompt)
+            check(end == chunk.size - 1)
+            check(connection.buffer.read(response) == chunk.size)
+        }
+
+        assertEquals('4'.code.toByte(), response[0])
+        assertNoAllocations("processIncomingData/indexOf/read(into)", allocated)
+    }
+
+    @Test
+    fun `byte slice operations do not allocate`() {
+        val slice = ByteSlice(ByteArray(32), 0, 0)
+        val dest = ByteArray(32)
+        var sum = 0
+
+        val allocated = measureAllocations {
+            slice.set(slice.array, 4, 8)
+            slice.setLength(6)
+            for (i in 0 until slice.size) sum += slice[i]
+            slice.copyInto(dest, 2)
+        }
+
+        assertEquals(0, sum)
+        assertNoAllocations("ByteSlice", allocated)
+    }
+
+    @Test
+    fun `command encoding into pooled buffer does not allocate`() {
+        val connection = ExposedConnection()
+        val pool = BufferPool(segmentSize = 64, maxPooled = 2)
+
+        val allocated = measureAllocations {
+            pool.acquire().use { buffer ->
+                connection.encode("010C", buffer)
+                check(buffer.length == 5)
+            }
+        }
+
+        assertNoAllocations("encodeCommand", allocated)
+    }
+
+    @Test
+    fun `encoded command matches string encoding`() {
+        val connection = ExposedConnection()
+        BufferPool(segmentSize = 64).acquire().use { buffer ->
+            connection.encode("ATZ", buffer)
+            assertArrayEquals("ATZ\r".toByteArray(Charsets.US_ASCII), buffer.toByteArray())
+        }
+    }
+
+    @Test
+    fun `performance check is throttled on the write path`() = runBlocking {
+        val connection = ExposedConnection()
+        connection.connect("loopback")
+        val command = "010C\r".toByteArray(Charsets.US_ASCII)
+
+        val start = System.currentTimeMillis()
+        repeat(1_000) { connection.write(command) }
+        val elapsed = System.currentTimeMillis() - start
+        connection.release()
+
+        // Used to snapshot every histogram on every tenth write
+        val allowed = 1 + elapsed / BaseScannerConnection.PERFORMANCE_CHECK_INTERVAL_MS
+        assertTrue("${connection.performanceChecks} checks in ${elapsed}ms", connection.performanceChecks in 1..allowed)
+    }
+
+    @Test
+    fun `released buffer is not handed out twice`() {
+        val pool = BufferPool(segmentSize = 16, maxPooled = 4)
+        val buffer = pool.acquire()
+        buffer.close()
+        buffer.close()
+
+        val first = pool.acquire()
+        val second = pool.acquire()
+        assertNotSame(first, second)
+        assertEquals(2L, pool.allocatedCount)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private inline fun measureAllocations(block: () -> Unit): Long {
+        val bean = threadBean
+        assumeTrue("Per-thread allocation counting not supported", bean != null)
+        bean!!
+        assumeTrue(bean.isThreadAllocatedMemorySupported)
+        bean.isThreadAllocatedMemoryEnabled = true
+
+        val threadId = Thread.currentThread().id
+        repeat(WARMUP_ITERATIONS) { block() }
+
+        // Cost of reading the counter itself
+        val probeStart = bean.getThreadAllocatedBytes(threadId)
+        val baseline = bean.getThreadAllocatedBytes(threadId) - probeStart
+
+        val start = bean.getThreadAllocatedBytes(threadId)
+        repeat(MEASURED_ITERATIONS) { block() }
+        val end = bean.getThreadAllocatedBytes(threadId)
+
+        return (end - start - baseline).coerceAtLeast(0)
+    }
+
+    private fun assertNoAllocations(label: String, allocated: Long) {
+        println("$label: $allocated bytes over $MEASURED_ITERATIONS iterations")
+        assertTrue(
+            "$label allocated $allocated bytes over $MEASURED_ITERATIONS iterations",
+            allocated < ALLOCATION_TOLERANCE_BYTES
+        )
+    }
+
+    /**
+     * Minimal connection exposing the protected receive-path hooks.
+     */
+    private class ExposedConnection : BaseScannerConnection() {
+
+        override val connectionType = ScannerConnectionType.WIFI
+
+        val buffer: ReceiveBuffer
+            get() = receiveBuffer
+
+        fun deliver(data: ByteArray, offset: Int, length: Int) = processIncomingData(data, offset, length)
+
+        fun encode(command: String, into: ByteSlice) = encodeCommand(command, into)
+
+        var performanceChecks = 0
+            private set
+
+        override fun checkPerformanceAndAlert() {
+            performanceChecks++
+            super.checkPerformanceAndAlert()
+        }
+
+        override suspend fun doConnect(address: String, config: ConnectionConfig) =
+            ConnectionInfo(remoteAddress = address, connectionType = connectionType)
+
+        override suspend fun doDisconnect(graceful: Boolean) {}
+
+        override suspend fun doWrite(data: ByteArray): Int = data.size
+
+        override suspend fun doRead(buffer: ByteArray, timeout: Long): Int = 0
+
+        override suspend fun doAvailable(): Int = 0
+
+        override suspend fun doClearBuffers() {}
+    }
+
+    companion object {
+        private const val WARMUP_ITERATIONS = 20_000
+        private const val MEASURED_ITERATIONS = 10_000
+
+        // One stray object (e.g. a JIT deopt) is tolerated; a per-iteration
+        // allocation would be at least 16 bytes x 10,000 iterations
+        private const val ALLOCATION_TOLERANCE_BYTES = 1_024L
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import com.spacetec.core.common.capability.InMemoryCapabilityStore
+import com.spacetec.core.common.result.Result
+import com.spacetec.obd.scanner.core.simulator.Elm327Simulator
+import com.spacetec.obd.scanner.core.simulator.SimulatorConfig
+import com.spacetec.obd.scanner.core.simulator.SimulatorConnection
+import com.spacetec.obd.scanner.core.simulator.VirtualVehicle
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [VehicleCapabilityDiscovery] against the ELM327 simulator, in
+ * virtual time with Bluetooth adapter timing.
+ */
+class VehicleCapabilityDiscoveryTest {
+
+    @Test
+    fun `cold connect discovers and caches the vehicle`() = runTest {
+        val store = InMemoryCapabilityStore()
+
+        val result = connect(VirtualVehicle.typical(VIN), store)
+
+        assertFalse(result.fromCache)
+        val capabilities = result.capabilities
+        assertEquals(VIN, capabilities.vin)
+        assertEquals(6, capabilities.protocol)
+        assertEquals(setOf(0x7E8, 0x7E9), capabilities.obdResponderIds)
+        assertTrue(0x5C in capabilities.ecu(0x7E8)!!.supportedPids)
+        assertTrue(capabilities.ecu(0x7E9)!!.supportedPids.containsAll(setOf(0x01, 0x0D, 0x1C, 0x5C)))
+        assertEquals(setOf(0xF187, 0xF18C, 0xF190, 0xF195), capabilities.ecu(0x7E8)!!.supportedDids)
+        assertEquals(setOf(0xF187, 0xF18C, 0xF195), capabilities.ecu(0x7E9)!!.supportedDids)
+        assertEquals(capabilities, store.find(VIN, capabilities.adapterType))
+    }
+
+    @Test
+    fun `warm connect is confirmed from the cache`() = runTest {
+        val store = InMemoryCapabilityStore()
+        val cold = connect(VirtualVehicle.typical(VIN), store)
+
+        val warm = connect(VirtualVehicle.typical(VIN), store)
+
+        assertTrue(warm.fromCache)
+        assertEquals(cold.capabilities.ecus, warm.capabilities.ecus)
+        assertTrue(warm.capabilities.validatedAt >= cold.capabilities.discoveredAt)
+        assertTrue(warm.commands < cold.commands)
+    }
+
+    @Test
+    fun `changed ECU set invalidates the entry`() = runTest {
+        val store = InMemoryCapabilityStore()
+        connect(VirtualVehicle.typical(VIN), store)
+
+        // The transmission ECU no longer answers
+        val vehicle = VirtualVehicle.typical(VIN)
+        vehicle.ecu(0x7E1)!!.silent = true
+        val result = connect(vehicle, store)
+
+        assertFalse(result.fromCache)
+        assertEquals(setOf(0x7E8), result.capabilities.obdResponderIds)
+        assertEquals(setOf(0x7E8), store.find(VIN, result.capabilities.adapterType)!!.obdResponderIds)
+    }
+
+    @Test
+    fun `other vehicle on the same adapter skips only the protocol search`() = runTest {
+        val store = InMemoryCapabilityStore()
+        connect(VirtualVehicle.typical(VIN), store)
+
+        val other = connect(VirtualVehicle.typical(OTHER_VIN), store)
+
+        assertFalse(other.fromCache)
+        assertEquals(OTHER_VIN, other.capabilities.vin)
+        assertNotNull(store.find(VIN, other.capabilities.adapterType))
+        assertNotNull(store.find(OTHER_VIN, other.capabilities.adapterType))
+    }
+
+    @Test
+    fun `warm connect is faster than cold connect`() = runTest {
+        val store = InMemoryCapabilityStore()
+
+        val cold = connect(VirtualVehicle.typical(VIN), store)
+        val warm = connect(VirtualVehicle.typical(VIN), store)
+
+        println(
+            "capability cache: cold connect ${cold.elapsedMs}ms (${cold.commands} commands), " +
+                "warm connect ${warm.elapsedMs}ms (${warm.commands} commands)"
+        )
+        assertTrue(warm.fromCache)
+        assertTrue(warm.elapsedMs * 2 < cold.elapsedMs)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private suspend fun TestScope.connect(
+        vehicle: VirtualVehicle,
+        store: InMemoryCapabilityStore
+    ): VehicleConnectResult {
+        val connection = SimulatorConnection(
+            Elm327Simulator(vehicle, SimulatorConfig.BLUETOOTH_ELM327.copy(jitterMicros = 0)),
+            dispatcher = StandardTestDispatcher(testScheduler)
+        )
+        check(connection.connect("SIM", ConnectionConfig(autoReconnect = false)) is Result.Success)
+        try {
+            val discovery = VehicleCapabilityDiscovery(connection, store, clock = { testScheduler.currentTime })
+            val result = discovery.connect()
+            check(result is Result.Success) { "$result" }
+            return result.data
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    companion object {
+        private const val VIN = "WVWZZZ1KZAW000001"
+        private const val OTHER_VIN = "1FTFW1ET5DFC10312"
+    }
+}
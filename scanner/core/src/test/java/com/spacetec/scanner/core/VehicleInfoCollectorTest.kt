@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core
+
+import com.spacetec.core.common.exceptions.CommunicationException
+import com.spacetec.core.common.result.Result
+import com.spacetec.obd.scanner.core.simulator.Elm327Simulator
+import com.spacetec.obd.scanner.core.simulator.SimulatorConfig
+import com.spacetec.obd.scanner.core.simulator.SimulatorConnection
+import com.spacetec.obd.scanner.core.simulator.VirtualEcu
+import com.spacetec.obd.scanner.core.simulator.VirtualVehicle
+import com.spacetec.protocol.core.EcuVehicleInfo
+import com.spacetec.protocol.core.VehicleInfoCollector
+import com.spacetec.protocol.core.VehicleInfoDecoder
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [VehicleInfoCollector] over [Elm327CanChannel] against the ELM327
+ * simulator with six emissions-related ECUs, in virtual time with Bluetooth
+ * adapter timing, compared with reading one ECU after the other.
+ */
+class VehicleInfoCollectorTest {
+
+    @Test
+    fun `six ECUs report their vehicle information to functional requests`() = runTest {
+        val vehicle = sixEcuVehicle()
+
+        val (ecus, channel) = withChannel(vehicle) { channel ->
+            val collector = VehicleInfoCollector(channel::broadcast)
+            collector.collect().also { assertEquals(5L, collector.requests) }
+        }
+
+        assertEquals((0x7E8..0x7ED).toList(), ecus.map { it.ecuId })
+        assertEquals(listOf(VIN), ecus.mapNotNull { it.vin })
+        for ((info, ecu) in ecus.zip(vehicle.ecus.filter { it.isObdCompliant })) {
+            assertEquals(ecu.name, info.ecuName)
+            assertEquals(ecu.calibrationIds, info.calibrationIds)
+            assertArrayEquals(ecu.cvns.toIntArray(), info.cvns)
+            assertEquals(setOf(0x04, 0x06, 0x0A), info.supportedInfoTypes - 0x02)
+        }
+        assertEquals("1791BC82", ecus[0].cvnHex(0))
+        assertEquals(2, ecus[0].calibrationIds.size)
+        // Setup, 5 requests, no header change
+        assertEquals(7, channel.commands)
+    }
+
+    @Test
+    fun `functional collection is faster than reading each ECU in turn`() = runTest {
+        var perEcuMs = 0L
+        val (perEcu, perEcuChannel) = withChannel(sixEcuVehicle()) { channel ->
+            val start = testScheduler.currentTime
+            readEachEcu(channel).also { perEcuMs = testScheduler.currentTime - start }
+        }
+
+        var collectedMs = 0L
+        val (collected, channel) = withChannel(sixEcuVehicle()) { channel ->
+            val start = testScheduler.currentTime
+            VehicleInfoCollector(channel::broadcast).collect().also { collectedMs = testScheduler.currentTime - start }
+        }
+
+        println(
+            "mode 09, 6 ECUs: per ECU ${perEcuChannel.commands} commands ${perEcuMs}ms, " +
+                "functional ${channel.commands} commands ${collectedMs}ms"
+        )
+        assertEquals(perEcu.map { it.toString() }, collected.map { it.toString() })
+        assertTrue(channel.commands * 4 < perEcuChannel.commands)
+        assertTrue(collectedMs * 3 < perEcuMs)
+    }
+
+    @Test
+    fun `interleaved multi-frame answers are reassembled per ECU`() = runTest {
+        // Same response time: the adapter prints the first frames of all six
+        // ECUs, then their consecutive frames, interleaved
+        val vehicle = sixEcuVehicle(responseTimeMicros = 10_000L)
+
+        val (answers, _) = withChannel(vehicle) { it.broadcast(byteArrayOf(0x09, 0x04)) }
+
+        assertEquals((0x7E8..0x7ED).toSet(), answers.keys)
+        for (ecu in vehicle.ecus.filter { it.isObdCompliant }) {
+            val response = answers.getValue(ecu.responseId)
+            assertEquals(ecu.calibrationIds, VehicleInfoDecoder.calibrationIds(response.copyOfRange(1, response.size)))
+        }
+    }
+
+    @Test
+    fun `silent ECU is left out`() = runTest {
+        val vehicle = sixEcuVehicle()
+        vehicle.ecu(0x7E3)!!.silent = true
+
+        val (ecus, _) = withChannel(vehicle) { VehicleInfoCollector(it::broadcast).collect() }
+
+        assertEquals(listOf(0x7E8, 0x7E9, 0x7EA, 0x7EC, 0x7ED), ecus.map { it.ecuId })
+        assertEquals(VIN, ecus[0].vin)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * What reading one ECU at a time costs: InfoType 0x00 of each ECU, then
+     * each InfoType it supports, physically addressed.
+     */
+    private suspend fun readEachEcu(channel: Elm327CanChannel): List<EcuVehicleInfo> =
+        (0x7E0..0x7E5).mapNotNull { target ->
+            fun answer(response: ByteArray?, infoType: Int): ByteArray? =
+                response?.takeIf { it.size > 1 && it[0] == 0x49.toByte() && it[1] == infoType.toByte() }
+                    ?.copyOfRange(1, response.size)
+
+            val supported = answer(channel.request(target, byteArrayOf(0x09, 0x00)), 0x00)
+                ?.let { VehicleInfoDecoder.supportedInfoTypes(it) } ?: return@mapNotNull null
+            val data = VehicleInfoCollector.DEFAULT_INFO_TYPES.filter { it in supported }.associateWith { infoType ->
+                answer(channel.request(target, byteArrayOf(0x09, infoType.toByte())), infoType)
+            }
+            EcuVehicleInfo(
+                ecuId = target + 8,
+                supportedInfoTypes = supported,
+                vin = data[0x02]?.let { VehicleInfoDecoder.vin(it) },
+                calibrationIds = data[0x04]?.let { VehicleInfoDecoder.calibrationIds(it) }.orEmpty(),
+                cvns = data[0x06]?.let { VehicleInfoDecoder.cvns(it) } ?: IntArray(0),
+                ecuName = data[0x0A]?.let { VehicleInfoDecoder.ecuName(it) }
+            )
+        }
+
+    private suspend fun <T> TestScope.withChannel(
+        vehicle: VirtualVehicle,
+        block: suspend (Elm327CanChannel) -> T
+    ): Pair<T, Elm327CanChannel> {
+        val connection = SimulatorConnection(
+            Elm327Simulator(vehicle, SimulatorConfig.BLUETOOTH_ELM327.copy(jitterMicros = 0, consecutiveFrameMicros = CONSECUTIVE_FRAME_MICROS)),
+            dispatcher = StandardTestDispatcher(testScheduler)
+        )
+        check(connection.connect("SIM", ConnectionConfig(autoReconnect = false)) is Result.Success)
+        try {
+            check(connection.sendAndReceive("ATSP6", 1_000L) is Result.Success)
+            val channel = Elm327CanChannel(ConnectionLink(connection))
+            return block(channel) to channel
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    /**
+     * [Elm327CommandLink] straight over a connection, one sequence at a
+     * time, as an adapter's command scheduler would hand it out.
+     */
+    private class ConnectionLink(private val connection: ScannerConnection) : Elm327CommandLink {
+        private val lock = Mutex()
+
+        override suspend fun <T> exclusive(block: suspend Elm327CommandLink.Session.() -> T): T = lock.withLock {
+            session.block()
+        }
+
+        private val session = object : Elm327CommandLink.Session {
+            override val requestHeader = Elm327CanChannel.FUNCTIONAL_ID
+
+            override suspend fun command(text: String, timeoutMs: Long): String =
+                when (val result = connection.sendAndReceive(text, timeoutMs)) {
+                    is Result.Success -> result.data
+                    is Result.Error -> throw CommunicationException("$text failed: ${result.exception.message}", result.exception)
+                    else -> throw CommunicationException("$text failed")
+                }
+        }
+    }
+
+    /**
+     * Engine, transmission and four more emissions-related ECUs on 0x7E0 to
+     * 0x7E5, plus an ABS module outside OBD-II. The engine has two
+     * calibrations.
+     */
+    private fun sixEcuVehicle(responseTimeMicros: Long? = null): VirtualVehicle {
+        val names = listOf(
+            "ECM-EngineControl", "TCM-TransmissionCtrl", "HPCM-HybridPowertrn",
+            "BECM-BatteryEnergy", "DCDC-DcDcConverter", "SCR-ReductantControl"
+        )
+        val ecus = names.mapIndexed { index, name ->
+            VirtualEcu(
+                requestId = 0x7E0 + index,
+                name = name,
+                responseTimeMicros = responseTimeMicros ?: (8_000L + index * 5_000L),
+                supportedPids = setOf(0x01, 0x0D),
+                vin = if (index == 0) VIN else null,
+                calibrationIds = if (index == 0) listOf("JMB*36761500", "JMB*47872611") else listOf("CAL-%X-0042".format(index)),
+                cvns = if (index == 0) listOf(0x1791BC82, 0x40DFAE92) else listOf(0x00A0_0000 + index)
+            )
+        }
+        return VirtualVehicle(ecus + VirtualEcu(requestId = 0x760, name = "ABS-BrakeControl"))
+    }
+
+    companion object {
+        private const val VIN = "WVWZZZ1KZAW000001"
+        private const val CONSECUTIVE_FRAME_MICROS = 1_000L
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core.elm327
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [Elm327ResponseCounts] against a simulated ELM327 that waits
+ * out its adaptive timeout unless the request carries a response count.
+ *
+ * `poll latency with learned counts` is the latency benchmark: it reports
+ * the mean request round trip with and without learned counts.
+ *
+ * **Feature: scanner-connection-system, ELM327 Response Count Suffix**
+ */
+class Elm327ResponseCountsTest {
+
+    @Test
+    fun `only whole-byte service 01, 02 and 09 requests are eligible`() {
+        assertEquals("7DF:010C", Elm327ResponseCounts.requestKey("010c"))
+        assertEquals("7DF:010C0D05", Elm327ResponseCounts.requestKey("01 0C 0D 05"))
+        assertEquals("7DF:0902", Elm327ResponseCounts.requestKey("0902"))
+        assertEquals("7DF:02020000", Elm327ResponseCounts.requestKey("02020000"))
+        assertEquals("7E0:0100", Elm327ResponseCounts.requestKey("0100", 0x7E0))
+        assertNull(Elm327ResponseCounts.requestKey("03"))
+        assertNull(Elm327ResponseCounts.requestKey("22F190"))
+        assertNull(Elm327ResponseCounts.requestKey("010C1"))
+        assertNull(Elm327ResponseCounts.requestKey("ATRV"))
+        assertNull(Elm327ResponseCounts.requestKey("010C0D0E0F101112"))
+    }
+
+    @Test
+    fun `count is appended after consistent observations`() {
+        val counts = Elm327ResponseCounts().apply { canHeaders = true }
+
+        counts.record("010C", 0, "7E804410C1AF8")
+        assertEquals(0, counts.expectedCount("010C"))
+        counts.record("010C", 0, "7E804410C1AF8")
+
+        val expected = counts.expectedCount("010C")
+        assertEquals(1, expected)
+        assertEquals("010C1", counts.withExpectedCount("010C", expected))
+    }
+
+    @Test
+    fun `every responding ECU is counted`() {
+        val counts = Elm327ResponseCounts().apply { canHeaders = true }
+        val response = "7E8064100BE3EA813\n7E906410098180001"
+
+        repeat(2) { counts.record("0100", 0, response) }
+
+        assertEquals(2, counts.learnedCount("0100"))
+        assertEquals("01002", counts.withExpectedCount("0100", counts.expectedCount("0100")))
+    }
+
+    @Test
+    fun `short suffixed response falls back to plain requests`() {
+        val counts = Elm327ResponseCounts().apply { canHeaders = true }
+        repeat(2) { counts.record("0100", 0, "7E8064100BE3EA813\n7E906410098180001") }
+        val expected = counts.expectedCount("0100")
+
+        // The transmission ECU missed the window
+        counts.record("0100", expected, "7E8064100BE3EA813")
+
+        assertEquals(0, counts.expectedCount("0100"))
+        assertEquals(1L, counts.fallbacks)
+
+        counts.record("0100", expected, "NO DATA")
+        assertEquals(0, counts.learnedCount("0100"))
+    }
+
+    @Test
+    fun `multi-frame responses are never suffixed`() {
+        val can = Elm327ResponseCounts().apply { canHeaders = true }
+        repeat(3) {
+            can.record("0902", 0, "7E810144902013157\n7E82141553138345A\n7E8224D3531303637")
+        }
+        assertEquals(0, can.expectedCount("0902"))
+
+        val noHeaders = Elm327ResponseCounts()
+        repeat(3) {
+            noHeaders.record("0902", 0, "014\n0:4902013157\n1:41553138345A\n2:4D3531303637")
+        }
+        assertEquals(0, noHeaders.expectedCount("0902"))
+    }
+
+    @Test
+    fun `plain verification picks up a responder the count would cut off`() {
+        val counts = Elm327ResponseCounts(reverifyInterval = 3).apply { canHeaders = true }
+        repeat(2) { counts.record("0100", 0, "7E8064100BE3EA813") }
+
+        repeat(3) { assertEquals(1, counts.expectedCount("0100")) }
+        // Fourth request is sent plain and sees a second ECU
+        assertEquals(0, counts.expectedCount("0100"))
+        counts.record("0100", 0, "7E8064100BE3EA813\n7E906410098180001")
+
+        assertEquals(0, counts.learnedCount("0100"))
+        counts.record("0100", 0, "7E8064100BE3EA813\n7E906410098180001")
+        assertEquals(2, counts.learnedCount("0100"))
+    }
+
+    @Test
+    fun `counts are kept per vehicle`() {
+        val counts = Elm327ResponseCounts().apply { canHeaders = true }
+        counts.selectVehicle("WVWZZZ1KZAW000001")
+        repeat(2) { counts.record("0100", 0, "7E8064100BE3EA813\n7E906410098180001") }
+
+        counts.selectVehicle("JTDKB20U093000002")
+        assertEquals(0, counts.learnedCount("0100"))
+        repeat(2) { counts.record("0100", 0, "7E8064100BE3EA813") }
+
+        counts.selectVehicle("WVWZZZ1KZAW000001")
+        assertEquals(2, counts.learnedCount("0100"))
+        counts.selectVehicle("JTDKB20U093000002")
+        assertEquals(1, counts.learnedCount("0100"))
+    }
+
+    @Test
+    fun `counts are kept per request header`() = runTest {
+        val elm = SimulatedElm327(this, mapOf(0x7E8 to 25L, 0x7E9 to 40L))
+        val counts = Elm327ResponseCounts().apply { canHeaders = true }
+
+        // Functional requests reach both ECUs, physical ones only the engine
+        repeat(10) {
+            assertEquals(2, poll(elm, counts, "0100").lines().size)
+            assertEquals(1, poll(elm, counts, "0100", header = 0x7E0).lines().size)
+        }
+
+        assertEquals(2, counts.learnedCount("0100"))
+        assertEquals(1, counts.learnedCount("0100", 0x7E0))
+        assertEquals("01001", elm.lastWireCommand)
+        assertEquals(0L, counts.fallbacks)
+    }
+
+    @Test
+    fun `unsupported suffix is disabled`() = runTest {
+        val elm = SimulatedElm327(this, mapOf(0x7E8 to 20L), acceptsCount = false)
+        val counts = Elm327ResponseCounts().apply { canHeaders = true }
+
+        repeat(5) { assertEquals("7E804410C1AF8", poll(elm, counts, "010C")) }
+
+        assertFalse(counts.isSupported)
+        assertEquals(0, counts.expectedCount("010C"))
+    }
+
+    @Test
+    fun `poll latency with learned counts`() = runTest {
+        val ecus = mapOf(0x7E8 to 25L, 0x7E9 to 40L)
+
+        val plain = SimulatedElm327(this, ecus)
+        val plainMean = meanLatency(plain) { command -> plain.exchange(command) }
+
+        val learned = SimulatedElm327(this, ecus)
+        val counts = Elm327ResponseCounts().apply { canHeaders = true }
+        val learnedMean = meanLatency(learned) { command -> poll(learned, counts, command) }
+
+        println(
+            "ELM327 poll latency over ${POLLS * COMMANDS.size} requests, " +
+                "${SimulatedElm327.ADAPTIVE_TIMEOUT_MS} ms adaptive timeout: " +
+                "plain %.1f ms, learned count %.1f ms".format(plainMean, learnedMean)
+        )
+
+        assertTrue("plain $plainMean, learned $learnedMean", plainMean - learnedMean >= 50.0)
+        assertEquals(0L, counts.fallbacks)
+    }
+
+    @Test
+    fun `missing reply costs one slow round trip`() = runTest {
+        val elm = SimulatedElm327(this, mapOf(0x7E8 to 25L, 0x7E9 to 40L))
+        val counts = Elm327ResponseCounts().apply { canHeaders = true }
+        repeat(2) { poll(elm, counts, "0100") }
+        assertEquals(2, counts.learnedCount("0100"))
+
+        elm.silent += 0x7E9
+        val response = poll(elm, counts, "0100")
+
+        // The suffixed request waited out the timeout and came back short
+        assertEquals("01002", elm.lastWireCommand)
+        assertEquals(1, response.lines().size)
+        assertEquals(1L, counts.fallbacks)
+
+        // Back to plain requests until the count is relearned
+        poll(elm, counts, "0100")
+        assertEquals("0100", elm.lastWireCommand)
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Mirrors [Elm327Adapter]'s OBD command path.
+     */
+    private suspend fun poll(
+        elm: SimulatedElm327,
+        counts: Elm327ResponseCounts,
+        command: String,
+        header: Int = FUNCTIONAL_HEADER
+    ): String {
+        var expected = counts.expectedCount(command, header)
+        var response = elm.exchange(counts.withExpectedCount(command, expected), header)
+        if (expected > 0 && response == "?") {
+            counts.markUnsupported()
+            expected = 0
+            response = elm.exchange(command, header)
+        }
+        counts.record(command, expected, response, header)
+        return response
+    }
+
+    private suspend fun TestScope.meanLatency(
+        elm: SimulatedElm327,
+        send: suspend (String) -> String
+    ): Double {
+        val start = testScheduler.currentTime
+        repeat(POLLS) {
+            for (command in COMMANDS) {
+                check(send(command).isNotEmpty())
+            }
+        }
+        check(elm.requests >= POLLS * COMMANDS.size)
+        return (testScheduler.currentTime - start).toDouble() / (POLLS * COMMANDS.size)
+    }
+
+    /**
+     * ELM327 with CAN headers on. Each ECU answers after a fixed delay; the
+     * engine ECU (0x7E8) supports every PID, the others only 0x00. Without a
+     * count the prompt follows the last response by the adaptive timeout.
+     * A physical request header (`ATSH 7E0`) reaches only the ECU answering
+     * on that header plus 8.
+     */
+    private class SimulatedElm327(
+        private val scope: TestScope,
+        private val ecus: Map<Int, Long>,
+        private val acceptsCount: Boolean = true
+    ) {
+        val silent = HashSet<Int>()
+        var requests = 0
+            private set
+        var lastWireCommand = ""
+            private set
+
+        suspend fun exchange(wire: String, header: Int = FUNCTIONAL_HEADER): String {
+            requests++
+            lastWireCommand = wire
+            val count = if (wire.length % 2 == 1) wire.last().digitToInt(16) else 0
+            if (count > 0 && !acceptsCount) {
+                delay(LINK_MS)
+                return "?"
+            }
+            val request = if (count > 0) wire.dropLast(1) else wire
+            val pids = request.drop(2).chunked(2).map { it.toInt(16) }
+
+            val answering = ecus.entries
+                .filter { (ecu, _) -> ecu !in silent && (ecu == 0x7E8 || pids == listOf(0x00)) }
+                .filter { (ecu, _) -> header == FUNCTIONAL_HEADER || ecu == header + 8 }
+                .sortedBy { it.value }
+
+            val elapsed = when {
+                count in 1..answering.size -> answering[count - 1].value
+                answering.isEmpty() -> ADAPTIVE_TIMEOUT_MS
+                else -> answering.last().value + ADAPTIVE_TIMEOUT_MS
+            }
+            delay(LINK_MS + elapsed)
+
+            if (answering.isEmpty()) return "NO DATA"
+            val shown = if (count > 0) answering.take(count) else answering
+            return shown.joinToString("\n") { (ecu, _) -> frame(ecu, pids) }
+        }
+
+        private fun frame(ecu: Int, pids: List<Int>): String {
+            val data = StringBuilder("41")
+            for (pid in pids) {
+                data.append("%02X".format(pid))
+                data.append(if (pid == 0x00) "BE3EA813" else if (pid == 0x0C) "1AF8" else "50")
+            }
+            return "%03X%02X%s".format(ecu, data.length / 2, data)
+        }
+
+        companion object {
+            /** ELM327 adaptive timing on a typical CAN car. */
+            const val ADAPTIVE_TIMEOUT_MS = 100L
+            /** Bluetooth round trip for the request and the prompt. */
+            const val LINK_MS = 15L
+        }
+    }
+
+    companion object {
+        private const val POLLS = 100
+        private val COMMANDS = listOf("010C", "010D", "0100", "01050F")
+        private const val FUNCTIONAL_HEADER = 0x7DF
+    }
+}
@@ -29,6 +29,7 @@ import org.junit.runners.Suite
 @Suite.SuiteClasses(
     ScannerConnectionIntegrationTest::class,
     PerformanceValidationTest::class,
+    ReceivePathLatencyTest::class,
     SecurityComplianceTest::class,
     LoggingDiagnosticsTest::class
 )
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core.integration
+
+import com.spacetec.core.common.result.Result
+import com.spacetec.core.domain.models.scanner.ScannerConnectionType
+import com.spacetec.obd.scanner.core.BaseScannerConnection
+import com.spacetec.obd.scanner.core.ConnectionConfig
+import com.spacetec.obd.scanner.core.ConnectionInfo
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Latency benchmark for the event-driven receive path.
+ *
+ * Drives [BaseScannerConnection.sendAndReceive] against an in-process loopback
+ * adapter that answers every command from a separate thread, splitting each
+ * response into several chunks the way a real ELM327 link does. Reports
+ * p50/p99 round-trip latency for both push-mode (background reader) and
+ * pull-mode (doRead) transports.
+ *
+ * The previous receive path polled with `delay(10)`, so its median round trip
+ * sat around 5-10 ms; the parked reader must stay well below that. p99 is
+ * reported but not asserted, as it depends on scheduler noise on the host.
+ *
+ * **Feature: scanner-connection-system, Receive Path Latency**
+ */
+class ReceivePathLatencyTest {
+
+    private lateinit var responder: ExecutorService
+
+    @Before
+    fun setUp() {
+        responder = Executors.newSingleThreadExecutor { r ->
+            Thread(r, "loopback-elm327").apply { isDaemon = true }
+        }
+    }
+
+    @After
+    fun tearDown() {
+        responder.shutdownNow()
+    }
+
+    @Test
+    fun `push mode sendAndReceive latency is not quantized by polling`() = runBlocking {
+        val connection = LoopbackElmConnection(responder, pushMode = true)
+        try {
+            assertTrue(connection.connect("loopback") is Result.Success)
+
+            val latencies = measure(connection)
+            report("push", latencies)
+
+            assertTrue(
+                "p50 should be well below the old 10 ms polling quantum (was ${latencies.percentile(50.0)}µs)",
+                latencies.percentile(50.0) < POLL_QUANTUM_MICROS / 2
+            )
+        } finally {
+            connection.release()
+        }
+    }
+
+    @Test
+    fun `pull mode sendAndReceive latency is not quantized by polling`() = runBlocking {
+        val connection = LoopbackElmConnection(responder, pushMode = false)
+        try {
+            assertTrue(connection.connect("loopback") is Result.Success)
+
+            val latencies = measure(connection)
+            report("pull", latencies)
+
+            assertTrue(
+                "p50 should be well below the old 10 ms polling quantum (was ${latencies.percentile(50.0)}µs)",
+                latencies.percentile(50.0) < POLL_QUANTUM_MICROS / 2
+            )
+        } finally {
+            connection.release()
+        }
+    }
+
+    @Test
+    fun `chunked responses are reassembled intact`() = runBlocking {
+        val connection = LoopbackElmConnection(responder, pushMode = true)
+        try {
+            connection.connect("loopback")
+
+            repeat(100) {
+                val result = connection.sendAndReceive("010C", 1_000)
+                assertTrue(result is Result.Success)
+                assertEquals(LoopbackElmConnection.RPM_RESPONSE, (result as Result.Success).data)
+            }
+        } finally {
+            connection.release()
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private suspend fun measure(connection: BaseScannerConnection): LongArray {
+        repeat(WARMUP_ITERATIONS) {
+            connection.sendAndReceive("010C", 1_000)
+        }
+
+        val latencies = LongArray(MEASURED_ITERATIONS)
+        for (i in latencies.indices) {
+            val start = System.nanoTime()
+            val result = connection.sendAndReceive("010C", 1_000)
+            latencies[i] = (System.nanoTime() - start) / 1_000
+            assertTrue("Iteration $i failed: $result", result is Result.Success)
+        }
+        latencies.sort()
+        return latencies
+    }
+
+    private fun report(mode: String, sortedMicros: LongArray) {
+        println(
+            "sendAndReceive [$mode] n=${sortedMicros.size} " +
+                "p50=${sortedMicros.percentile(50.0)}µs " +
+                "p99=${sortedMicros.percentile(99.0)}µs " +
+                "max=${sortedMicros.last()}µs"
+        )
+    }
+
+    private fun LongArray.percentile(p: Double): Long {
+        val index = ((p / 100.0) * (size - 1)).toInt().coerceIn(0, size - 1)
+        return this[index]
+    }
+
+    /**
+     * Loopback ELM327 stand-in. Every write is answered from the responder
+     * thread after a short turnaround, in three chunks.
+     */
+    private class LoopbackElmConnection(
+        private val responder: ExecutorService,
+        private val pushMode: Boolean
+    ) : BaseScannerConnection() {
+
+        override val connectionType = ScannerConnectionType.WIFI
+
+        // Pull mode hands chunks to doRead through this queue
+        private val pending = java.util.concurrent.LinkedBlockingQueue<ByteArray>()
+
+        override val feedsReceiveBuffer: Boolean
+            get() = pushMode
+
+        override suspend fun doConnect(address: String, config: ConnectionConfig) =
+            ConnectionInfo(remoteAddress = address, connectionType = connectionType)
+
+        override suspend fun doDisconnect(graceful: Boolean) {
+            pending.clear()
+        }
+
+        override suspend fun doWrite(data: ByteArray): Int {
+            responder.execute {
+                LockSupport.parkNanos(TURNAROUND_NANOS)
+                for (chunk in CHUNKS) {
+                    if (pushMode) processIncomingData(chunk) else pending.put(chunk)
+                }
+            }
+            return data.size
+        }
+
+        override suspend fun doRead(buffer: ByteArray, timeout: Long): Int {
+            val chunk = pending.poll(timeout, java.util.concurrent.TimeUnit.MILLISECONDS) ?: return 0
+            System.arraycopy(chunk, 0, buffer, 0, chunk.size)
+            return chunk.size
+        }
+
+        override suspend fun doAvailable(): Int = pending.peek()?.size ?: 0
+
+        override suspend fun doClearBuffers() {
+            pending.clear()
+        }
+
+        companion object {
+            const val RPM_RESPONSE = "41 0C 1A F8"
+            const val TURNAROUND_NANOS = 200_000L
+
+            val CHUNKS = listOf("41 0C", " 1A F8\r", "\r>").map { it.toByteArray(Charsets.US_ASCII) }
+        }
+    }
+
+    companion object {
+        private const val WARMUP_ITERATIONS = 200
+        private const val MEASURED_ITERATIONS = 2_000
+        private const val POLL_QUANTUM_MICROS = 10_000L
+    }
+}
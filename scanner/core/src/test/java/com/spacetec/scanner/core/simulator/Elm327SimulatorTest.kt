@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core.simulator
+
+import com.spacetec.core.common.result.Result
+import com.spacetec.core.common.transport.Elm327ResponseParser
+import com.spacetec.obd.scanner.core.ConnectionConfig
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for [Elm327Simulator], [VirtualEcu] and [SimulatorConnection].
+ *
+ * **Feature: scanner-connection-system, ELM327 Vehicle Simulator**
+ */
+class Elm327SimulatorTest {
+
+    @Test
+    fun `single and multi-frame responses without headers`() {
+        val elm = Elm327Simulator()
+        send(elm, "ATE0")
+        send(elm, "ATSP6")
+
+        assertEquals("41 0C 0C 80 \r\r>", send(elm, "010C"))
+
+        val vin = send(elm, "0902")
+        assertTrue(vin, vin.startsWith("014\r0: 49 02 01 57 56 57 \r1: "))
+        val parser = Elm327ResponseParser()
+        parser.parse(vin.toByteArray(Charsets.US_ASCII))
+        val payload = (0 until parser.frameCount).flatMap { parser.dataOf(it).toList() }.take(parser.messageLength)
+        assertEquals("WVWZZZ1KZAW000001", String(payload.drop(3).toByteArray(), Charsets.US_ASCII))
+    }
+
+    @Test
+    fun `functional request is answered by every OBD ECU`() {
+        val elm = Elm327Simulator()
+        send(elm, "ATE0")
+        send(elm, "ATSP6")
+        send(elm, "ATH1")
+        send(elm, "ATS0")
+
+        val lines = send(elm, "0100").removeSuffix("\r\r>").split("\r")
+
+        assertEquals(listOf("7E8", "7E9"), lines.map { it.take(3) })
+        assertTrue(lines.all { it.substring(3, 9) == "064100" })
+        // The ABS module only speaks UDS
+        assertEquals(0L, elm.vehicle.ecu(0x760)!!.requestsAnswered)
+    }
+
+    @Test
+    fun `first request after ATSP0 searches`() {
+        val elm = Elm327Simulator(config = SimulatorConfig.BLUETOOTH_ELM327)
+        send(elm, "ATE0")
+        send(elm, "ATSP0")
+
+        assertTrue(send(elm, "0100").startsWith("SEARCHING...\r"))
+        assertFalse(send(elm, "0100").startsWith("SEARCHING"))
+        assertEquals("A6", send(elm, "ATDPN").removeSuffix("\r\r>"))
+    }
+
+    @Test
+    fun `response count ends the wait at the last expected frame`() {
+        val elm = Elm327Simulator(config = SimulatorConfig.BLUETOOTH_ELM327.copy(jitterMicros = 0))
+        send(elm, "ATE0")
+        send(elm, "ATSP6")
+
+        val plain = elm.process("0100").last().atMicros
+        val counted = elm.process("01002").last().atMicros
+        val short = elm.process("01001")
+
+        // The transmission answers 22 ms after the request; without a count
+        // the adapter waits out its adaptive timeout after that, counted from
+        // the frame on the bus while the line is still going out over serial
+        val adaptive = SimulatorConfig.BLUETOOTH_ELM327.adaptiveTimeoutMicros
+        assertTrue("${plain - counted}", plain - counted in adaptive - 10_000..adaptive)
+        val lines = text(short).removeSuffix("\r\r>").split("\r")
+        assertEquals(1, lines.size)
+        assertTrue(lines[0].startsWith("41 00 "))
+    }
+
+    @Test
+    fun `UDS session, security access and response pending`() {
+        val elm = Elm327Simulator()
+        send(elm, "ATE0")
+        send(elm, "ATSP6")
+        send(elm, "ATSH7E0")
+
+        assertEquals("7F 2E 7F \r\r>", send(elm, "2EF40C0D00"))
+        assertEquals("50 03 00 32 01 F4 \r\r>", send(elm, "1003"))
+
+        val seed = send(elm, "2701").removeSuffix(" \r\r>").split(" ").drop(2).joinToString("").toLong(16).toInt()
+        assertEquals("7F 27 35 \r\r>", send(elm, "2702%08X".format(seed + 1)))
+        val seedAgain = send(elm, "2701").removeSuffix(" \r\r>").split(" ").drop(2).joinToString("").toLong(16).toInt()
+        assertEquals("67 02 \r\r>", send(elm, "2702%08X".format(VirtualEcu.keyFor(seedAgain))))
+
+        assertEquals("6E F4 0C \r\r>", send(elm, "2EF40C0D00"))
+        assertEquals("62 F4 0C 0D 00 \r\r>", send(elm, "22F40C"))
+        assertEquals("7F 31 78 \r7F 31 78 \r71 01 02 03 00 \r\r>", send(elm, "31010203"))
+        assertEquals("7F 22 31 \r\r>", send(elm, "22ABCD"))
+    }
+
+    @Test
+    fun `freeze frame request carries several PID and frame pairs`() {
+        val elm = Elm327Simulator()
+        send(elm, "ATE0")
+        send(elm, "ATSP6")
+        send(elm, "ATSH7E0")
+
+        assertEquals("42 05 00 82 0D 00 77 \r\r>", send(elm, "0205000D00"))
+        assertEquals("42 02 00 03 01 \r\r>", send(elm, "020200"))
+        // Only P0301 is stored, so there is no frame 1
+        assertEquals("42 05 00 82 \r\r>", send(elm, "0205010500"))
+        assertEquals("NO DATA\r\r>", send(elm, "020201"))
+    }
+
+    @Test
+    fun `unsupported service gets NRC 11 only when physically addressed`() {
+        val elm = Elm327Simulator()
+        send(elm, "ATE0")
+        send(elm, "ATSP6")
+
+        assertEquals("NO DATA\r\r>", send(elm, "2300001000"))
+        send(elm, "ATSH760")
+        assertEquals("7F 23 11 \r\r>", send(elm, "2300001000"))
+        send(elm, "ATSH7E5")
+        assertEquals("NO DATA\r\r>", send(elm, "3E00"))
+    }
+
+    @Test
+    fun `faults are reproducible for a seed`() {
+        val faults = FaultInjection(dropRate = 0.05, noDataRate = 0.05, canErrorRate = 0.05, bufferFullRate = 0.05, corruptRate = 0.05)
+        fun run(seed: Long): List<String> {
+            val elm = Elm327Simulator(config = SimulatorConfig(seed = seed, faults = faults))
+            send(elm, "ATE0")
+            return List(400) { send(elm, "0100") }
+        }
+
+        val first = run(7)
+        assertEquals(first, run(7))
+        assertNotEquals(first, run(8))
+
+        val elm = Elm327Simulator(config = SimulatorConfig(seed = 7, faults = faults))
+        send(elm, "ATE0")
+        repeat(400) { send(elm, "0100") }
+        for (fault in SimulatedFault.values().filter { it != SimulatedFault.DISCONNECT }) {
+            assertTrue("$fault", elm.faultCount(fault) in 5L..45L)
+        }
+        assertEquals(elm.faultCount(SimulatedFault.DROPPED_RESPONSE), first.count { it.isEmpty() }.toLong())
+        assertEquals(elm.faultCount(SimulatedFault.CAN_ERROR), first.count { it.startsWith("CAN ERROR") }.toLong())
+    }
+
+    @Test
+    fun `monitor mode prints the recorded trace with headers`() {
+        val trace = BusTrace.parseCandump(
+            """
+            (1700000000.000000) can0 0C9#840D1A00
+            (1700000000.002500) can0 18FEF100#F3C31400
+            """.trimIndent(),
+            bitrate = 500_000
+        )
+        val elm = Elm327Simulator(VirtualVehicle(VirtualVehicle.typical().ecus, trace))
+        send(elm, "ATE0")
+        send(elm, "ATH1")
+
+        send(elm, "ATSP6")
+        val chunks = elm.process("ATMA")
+        assertEquals("0C9 84 0D 1A 00\r", String(chunks[0].bytes, Charsets.US_ASCII))
+        assertEquals("18 FE F1 00 F3 C3 14 00\r", String(chunks[1].bytes, Charsets.US_ASCII))
+        assertEquals(2_500L, chunks[1].atMicros - chunks[0].atMicros)
+        // Looped until the host interrupts: no prompt
+        assertFalse(text(chunks).contains(">"))
+
+        send(elm, "ATSP8")
+        assertEquals("CAN ERROR\r\r>", send(elm, "ATMA"))
+    }
+
+    @Test
+    fun `connection replays the response in virtual time`() = runTest {
+        val connection = connect(SimulatorConfig.BLUETOOTH_ELM327.copy(jitterMicros = 0))
+        check(connection.sendAndReceive("ATE0") is Result.Success)
+        check(connection.sendAndReceive("ATSP6") is Result.Success)
+
+        val start = testScheduler.currentTime
+        val response = connection.sendAndReceive("010C")
+        val elapsed = testScheduler.currentTime - start
+
+        assertEquals("41 0C 0C 80", (response as Result.Success).data)
+        // Link both ways, serial transfer, engine ECU, adaptive timeout
+        assertEquals((12 + 1 + 8 + 100 + 12 + 2).toDouble(), elapsed.toDouble(), 2.0)
+        assertTrue(connection.getStatistics().latencyByClass.getValue("OBD 01").count == 1L)
+
+        connection.disconnect()
+    }
+
+    @Test
+    fun `command during a response stops it`() = runTest {
+        val connection = connect(SimulatorConfig.BLUETOOTH_ELM327)
+        connection.sendAndReceive("ATE0")
+        connection.sendAndReceive("ATSP6")
+
+        connection.sendCommand("0100")
+        connection.sendCommand("010C")
+
+        assertEquals("STOPPED", (connection.readUntil() as Result.Success).data)
+        connection.disconnect()
+    }
+
+    @Test
+    fun `link drop fails the next write`() = runTest {
+        val connection = connect(SimulatorConfig(faults = FaultInjection(disconnectEvery = 3)))
+
+        repeat(3) { assertTrue(connection.sendAndReceive("ATI") is Result.Success) }
+        assertTrue(connection.sendAndReceive("ATI") is Result.Error)
+        assertEquals(1L, connection.simulator.faultCount(SimulatedFault.DISCONNECT))
+
+        connection.disconnect()
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun send(elm: Elm327Simulator, command: String): String = text(elm.process(command))
+
+    private fun text(chunks: List<Elm327Simulator.Chunk>): String =
+        chunks.joinToString("") { String(it.bytes, Charsets.US_ASCII) }
+
+    private suspend fun TestScope.connect(config: SimulatorConfig): SimulatorConnection {
+        val connection = SimulatorConnection(
+            Elm327Simulator(config = config),
+            dispatcher = StandardTestDispatcher(testScheduler)
+        )
+        val result = connection.connect("SIM", ConnectionConfig(autoReconnect = false))
+        check(result is Result.Success) { "$result" }
+        return connection
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.core.simulator
+
+import com.spacetec.core.common.result.Result
+import com.spacetec.core.common.transport.Elm327ResponseParser
+import com.spacetec.obd.scanner.core.ConnectionConfig
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Soak test of the connection stack against a simulated vehicle.
+ *
+ * Runs a diagnostic session loop (live data, DTCs, VIN, UDS reads and
+ * tester present) through [SimulatorConnection] with no link delays, so the
+ * numbers measure the host side: command dispatch, the receive path and ELM
+ * response parsing. Reports commands per second, latency percentiles from
+ * the connection statistics and heap growth.
+ *
+ * The run lasts `simulator.soak.seconds` seconds (default 2); raise it for a
+ * real soak, e.g. `-Psimulator.soak.seconds=600`.
+ *
+ * **Feature: scanner-connection-system, Simulator Soak**
+ */
+class SimulatorSoakTest {
+
+    @Test
+    fun `session loop sustains throughput without heap growth`() = runBlocking {
+        val connection = SimulatorConnection()
+        try {
+            assertTrue(connection.connect("SIM", ConnectionConfig(autoReconnect = false)) is Result.Success)
+            initialize(connection)
+
+            // Warm up, then take the heap baseline
+            runSession(connection, SESSION.size * 200L)
+            val heapBefore = usedHeap()
+            connection.resetStatistics()
+
+            val run = runSession(connection, deadlineNanos = System.nanoTime() + soakSeconds() * 1_000_000_000L)
+            val heapGrowth = usedHeap() - heapBefore
+            report("clean", connection, run, heapGrowth)
+
+            assertEquals("Failed commands: ${run.lastFailure}", 0L, run.failures)
+            assertTrue("Throughput too low: ${run.perSecond} cmd/s", run.perSecond > MIN_COMMANDS_PER_SECOND)
+            assertTrue("Heap grew by ${heapGrowth / 1024} KiB", heapGrowth < MAX_HEAP_GROWTH_BYTES)
+        } finally {
+            connection.release()
+        }
+    }
+
+    @Test
+    fun `session loop survives injected faults`() = runBlocking {
+        val faults = FaultInjection(
+            dropRate = 0.002,
+            noDataRate = 0.01,
+            canErrorRate = 0.01,
+            bufferFullRate = 0.01,
+            corruptRate = 0.01,
+            disconnectEvery = 2_000
+        )
+        val simulator = Elm327Simulator(config = SimulatorConfig.INSTANT.copy(seed = 42, faults = faults))
+        val connection = SimulatorConnection(simulator)
+        try {
+            assertTrue(connection.connect("SIM", ConnectionConfig()) is Result.Success)
+            initialize(connection)
+
+            val run = runSession(connection, SESSION.size * 1_500L)
+            report("faults", connection, run, heapGrowth = 0)
+
+            assertTrue(simulator.faultCount(SimulatedFault.DISCONNECT) >= 1)
+            // Every failed exchange is accounted for by an injected fault
+            assertTrue(
+                "failures=${run.failures} faults=${simulator.injectedFaults}",
+                run.failures in 1..simulator.injectedFaults
+            )
+            assertTrue(connection.isConnected)
+        } finally {
+            connection.release()
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private class Run(val commands: Long, val failures: Long, val nanos: Long, val lastFailure: String?) {
+        val perSecond: Long get() = if (nanos == 0L) 0 else commands * 1_000_000_000L / nanos
+    }
+
+    private suspend fun initialize(connection: SimulatorConnection) {
+        for (command in INIT) {
+            val result = connection.sendAndReceive(command, TIMEOUT_MS)
+            check(result is Result.Success) { "$command: $result" }
+        }
+    }
+
+    private suspend fun runSession(
+        connection: SimulatorConnection,
+        commands: Long = Long.MAX_VALUE,
+        deadlineNanos: Long = Long.MAX_VALUE
+    ): Run {
+        val parser = Elm327ResponseParser()
+        val start = System.nanoTime()
+        var sent = 0L
+        var failures = 0L
+        var lastFailure: String? = null
+
+        while (sent < commands && System.nanoTime() < deadlineNanos) {
+            val command = SESSION[(sent % SESSION.size).toInt()]
+            sent++
+
+            if (!connection.isConnected && !awaitReconnect(connection)) {
+                throw AssertionError("Connection did not recover after $sent commands")
+            }
+            val result = connection.sendAndReceive(command, TIMEOUT_MS)
+            val text = (result as? Result.Success)?.data
+            if (text == null) {
+                failures++
+                lastFailure = "$command: $result"
+                if (!connection.isConnected && awaitReconnect(connection)) initialize(connection)
+                continue
+            }
+            if (command.startsWith("AT")) continue
+
+            val bytes = text.toByteArray(Charsets.US_ASCII)
+            parser.parse(bytes, headerDigits = Elm327ResponseParser.HEADER_CAN_11BIT)
+            if (parser.frameCount == 0 || parser.status and Elm327ResponseParser.STATUS_FAILURE_MASK != 0 ||
+                parser.hasStatus(Elm327ResponseParser.STATUS_BUFFER_FULL) ||
+                parser.hasStatus(Elm327ResponseParser.STATUS_MALFORMED) ||
+                !expectedReply(command, parser)
+            ) {
+                failures++
+                lastFailure = "$command: $text"
+            }
+        }
+        return Run(sent, failures, System.nanoTime() - start, lastFailure)
+    }
+
+    /**
+     * Checks the first byte of every frame is the positive response to
+     * [command] (or a pending NRC), which also catches corrupted responses
+     * that still parse.
+     */
+    private fun expectedReply(command: String, parser: Elm327ResponseParser): Boolean {
+        val positive = command.substring(0, 2).toInt(16) + 0x40
+        for (frame in 0 until parser.frameCount) {
+            val header = parser.header(frame)
+            if (header !in 0x7E8..0x7EF) return false
+            val first = parser.dataByte(frame, 0)
+            // Single frames carry a PCI length byte before the service ID
+            val sid = if (first in 0x01..0x07) parser.dataByte(frame, 1) else first
+            val consecutive = first and 0xF0 == 0x20
+            val firstFrame = first and 0xF0 == 0x10
+            if (!consecutive && !firstFrame && sid != positive && sid != 0x7F) return false
+            if (firstFrame && parser.dataByte(frame, 2) != positive) return false
+        }
+        return true
+    }
+
+    private suspend fun awaitReconnect(connection: SimulatorConnection): Boolean {
+        repeat(200) {
+            if (connection.isConnected) return true
+            delay(10)
+        }
+        return connection.isConnected
+    }
+
+    private fun report(label: String, connection: SimulatorConnection, run: Run, heapGrowth: Long) {
+        val stats = connection.getStatistics()
+        println(
+            "simulator soak [$label] commands=${run.commands} failures=${run.failures} " +
+                "rate=${run.perSecond} cmd/s " +
+                "p50=${stats.latency.p50Micros}µs p99=${stats.latency.p99Micros}µs " +
+                "p99.9=${stats.latency.p999Micros}µs heapGrowth=${heapGrowth / 1024} KiB " +
+                "faults=${connection.simulator.injectedFaults}"
+        )
+        for ((commandClass, latency) in stats.latencyByClass) {
+            println("  $commandClass n=${latency.count} p50=${latency.p50Micros}µs p99=${latency.p99Micros}µs")
+        }
+    }
+
+    private fun usedHeap(): Long {
+        val runtime = Runtime.getRuntime()
+        repeat(3) {
+            System.gc()
+            Thread.sleep(50)
+        }
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    private fun soakSeconds(): Long =
+        System.getProperty("simulator.soak.seconds")?.toLongOrNull()?.coerceAtLeast(1) ?: 2L
+
+    companion object {
+        private const val TIMEOUT_MS = 250L
+        private const val MIN_COMMANDS_PER_SECOND = 500L
+        private const val MAX_HEAP_GROWTH_BYTES = 8L * 1024 * 1024
+
+        private val INIT = listOf("ATZ", "ATE0", "ATL0", "ATS0", "ATH1", "ATSP0")
+
+        private val SESSION = listOf(
+            "010C0D05", "0111", "010C0D05", "0111", "03", "010C0D05", "0902",
+            "ATSH7E0", "22F190", "3E00", "ATSH7DF"
+        )
+    }
+}
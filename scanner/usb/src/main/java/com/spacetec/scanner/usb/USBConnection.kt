@@ -287,12 +287,14 @@ class USBConnection @Inject constructor(
     // DATA TRANSFER
     // ═══════════════════════════════════════════════════════════════════════
 
-    override suspend fun doWrite(data: ByteArray): Int = streamLock.withLock {
+    override suspend fun doWrite(data: ByteArray): Int = doWrite(data, 0, data.size)
+
+    override suspend fun doWrite(data: ByteArray, offset: Int, length: Int): Int = streamLock.withLock {
         val port = serialPort
             ?: throw CommunicationException("Serial port not available")
 
         try {
-            return port.write(data, config.writeTimeout.toInt())
+            return port.write(data, offset, length, config.writeTimeout.toInt())
         } catch (e: IOException) {
             handleIOException(e)
             throw CommunicationException("Write failed: ${e.message}", e)
@@ -346,9 +348,7 @@ class USBConnection @Inject constructor(
         }
 
         // Clear response buffer
-        responseLock.withLock {
-            responseBuffer.clear()
-        }
+        receiveBuffer.clear()
     }
 
     // ═══════════════════════════════════════════════════════════════════════
@@ -364,8 +364,12 @@ class USBConnection @Inject constructor(
         }
 
         backgroundReaderJob = scope.launch {
+            // Borrowed for the reader's lifetime; chunks are copied into the
+            // receive buffer straight from it
+            val buffer = bufferPool.acquire()
+            val bytes = buffer.array
+
             try {
-                val buffer = ByteArray(USBConstants.READ_BUFFER_SIZE)
 
                 while (isActive && isConnected) {
                     try {
@@ -375,10 +379,9 @@ class USBConnection @Inject constructor(
                             continue
                         }
 
-                        val bytesRead = port.read(buffer, 100)
+                        val bytesRead = port.read(bytes, 100)
                         if (bytesRead > 0) {
-                            val data = buffer.copyOf(bytesRead)
-                            processIncomingData(data)
+                            processIncomingData(bytes, 0, bytesRead)
                         } else if (bytesRead < 0) {
                             // Device disconnected
                             handleDeviceDisconnected()
@@ -394,6 +397,7 @@ class USBConnection @Inject constructor(
                     }
                 }
             } finally {
+                buffer.close()
                 isReading.set(false)
             }
         }
@@ -414,6 +418,9 @@ class USBConnection @Inject constructor(
         }
     }
 
+    override val feedsReceiveBuffer: Boolean
+        get() = isReading.get()
+
     // ═══════════════════════════════════════════════════════════════════════
     // ERROR HANDLING
     // ═══════════════════════════════════════════════════════════════════════
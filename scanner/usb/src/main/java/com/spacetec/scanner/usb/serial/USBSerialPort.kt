@@ -80,6 +80,20 @@ interface USBSerialPort : Closeable {
     @Throws(IOException::class)
     fun write(data: ByteArray, timeout: Int): Int
     
+    /**
+     * Writes a range of bytes to the serial port without copying it.
+     *
+     * @param data Source array
+     * @param offset Start offset in [data]
+     * @param length Number of bytes to write
+     * @param timeout Write timeout in milliseconds
+     * @return Number of bytes written
+     * @throws IOException if write fails
+     */
+    @Throws(IOException::class)
+    fun write(data: ByteArray, offset: Int, length: Int, timeout: Int): Int =
+        write(data.copyOfRange(offset, offset + length), timeout)
+    
     /**
      * Sets the serial port parameters.
      *
@@ -278,32 +292,35 @@ abstract class BaseUSBSerialPort(
     }
     
     @Throws(IOException::class)
-    override fun write(data: ByteArray, timeout: Int): Int {
+    override fun write(data: ByteArray, timeout: Int): Int = write(data, 0, data.size, timeout)
+    
+    @Throws(IOException::class)
+    override fun write(data: ByteArray, offset: Int, length: Int, timeout: Int): Int {
         if (!_isOpen) {
             throw IOException("Port not open")
         }
+        require(offset >= 0 && length >= 0 && offset + length <= data.size) {
+            "Range [$offset, ${offset + length}) out of bounds for size ${data.size}"
+        }
         
         val conn = connection ?: throw IOException("Connection lost")
         val endpoint = writeEndpoint ?: throw IOException("Write endpoint not available")
         
-        var offset = 0
+        val end = offset + length
+        var position = offset
         var totalWritten = 0
         
-        while (offset < data.size) {
-            val chunkSize = minOf(endpoint.maxPacketSize, data.size - offset)
-            val chunk = if (offset == 0 && chunkSize == data.size) {
-                data
-            } else {
-                data.copyOfRange(offset, offset + chunkSize)
-            }
+        while (position < end) {
+            val chunkSize = minOf(endpoint.maxPacketSize, end - position)
             
-            val written = conn.bulkTransfer(endpoint, chunk, chunk.size, timeout)
+            // Offset overload transfers straight from the caller's array
+            val written = conn.bulkTransfer(endpoint, data, position, chunkSize, timeout)
             
             if (written < 0) {
                 throw IOException("Write failed: $written")
             }
             
-            offset += written
+            position += written
             totalWritten += written
             
             if (written < chunkSize) {
@@ -328,9 +345,9 @@ abstract class BaseUSBSerialPort(
             val conn = connection
             val endpoint = readEndpoint
             if (conn != null && endpoint != null) {
-                val tempBuffer = ByteArray(USBConstants.READ_BUFFER_SIZE)
+                // The internal read buffer was just invalidated, so drain into it
                 while (true) {
-                    val read = conn.bulkTransfer(endpoint, tempBuffer, tempBuffer.size, 10)
+                    val read = conn.bulkTransfer(endpoint, readBuffer, readBuffer.size, 10)
                     if (read <= 0) break
                 }
             }
@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.wifi
+
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.io.Closeable
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.SocketChannel
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * Non-blocking TCP transport built on [SocketChannel] and [Selector].
+ *
+ * A single selector thread parks in [Selector.select] and only wakes when the
+ * kernel reports the channel readable, writable or closed, so an idle link
+ * costs no CPU and received bytes are handed to [Listener.onData] as soon as
+ * they arrive instead of on the next polling tick. End-of-stream and socket
+ * errors are surfaced through [Listener.onClosed] from the same thread, which
+ * replaces timer-based disconnect monitoring.
+ *
+ * Reads and writes go through direct [ByteBuffer]s allocated once per
+ * transport. The received bytes are copied into a reusable heap array before
+ * being passed to the listener; the array is only valid for the duration of
+ * the callback.
+ *
+ * ## Threading
+ *
+ * [Listener] callbacks run on the selector thread and must not block.
+ * [write] may be called from any coroutine, but calls must not overlap
+ * ([WiFiConnection] serializes them with its stream lock).
+ *
+ * @param listener Receives data and close notifications
+ * @param bufferSize Size of the direct read and write buffers
+ *
+ * @author SpaceTec Development Team
+ * @since 1.1.0
+ */
+class NioSocketTransport(
+    private val listener: Listener,
+    bufferSize: Int = WiFiConstants.READ_BUFFER_SIZE
+) : Closeable {
+
+    /**
+     * Callbacks invoked from the selector thread.
+     */
+    interface Listener {
+
+        /**
+         * Called with each chunk read from the socket.
+         * [data] is reused after the callback returns.
+         */
+        fun onData(data: ByteArray, offset: Int, length: Int)
+
+        /**
+         * Called once when the channel closes.
+         *
+         * @param cause null if the remote end closed the connection cleanly,
+         *              otherwise the I/O error that broke the channel
+         */
+        fun onClosed(cause: IOException?)
+    }
+
+    private val readBuffer = ByteBuffer.allocateDirect(bufferSize)
+    private val writeBuffer = ByteBuffer.allocateDirect(bufferSize)
+    private val chunk = ByteArray(bufferSize)
+
+    private var channel: SocketChannel? = null
+    private var selector: Selector? = null
+    private var selectionKey: SelectionKey? = null
+    private var selectorThread: Thread? = null
+
+    private val open = AtomicBoolean(false)
+    private val closeNotified = AtomicBoolean(false)
+    private val writableWaiter = AtomicReference<CancellableContinuation<Unit>?>(null)
+
+    /**
+     * Returns true while the channel is connected and not closed.
+     */
+    val isOpen: Boolean
+        get() = open.get()
+
+    /**
+     * The underlying socket, for address and option queries.
+     */
+    val socket: Socket?
+        get() = channel?.socket()
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // CONNECTION
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Connects to [address] and starts the selector thread.
+     *
+     * The connect itself is performed in blocking mode (call from an I/O
+     * dispatcher); the channel switches to non-blocking mode once connected.
+     *
+     * @param address Remote endpoint
+     * @param timeoutMs Connect timeout in milliseconds
+     * @param configure Applies socket options before connecting
+     * @throws IOException if the connection cannot be established
+     */
+    @Throws(IOException::class)
+    fun connect(
+        address: InetSocketAddress,
+        timeoutMs: Int,
+        configure: (Socket) -> Unit = {}
+    ) {
+        check(channel == null) { "Transport already connected" }
+
+        val ch = SocketChannel.open()
+        try {
+            configure(ch.socket())
+            ch.socket().connect(address, timeoutMs)
+            ch.configureBlocking(false)
+
+            val sel = Selector.open()
+            selectionKey = ch.register(sel, SelectionKey.OP_READ)
+            channel = ch
+            selector = sel
+        } catch (e: IOException) {
+            try { ch.close() } catch (_: IOException) {}
+            throw e
+        }
+
+        open.set(true)
+        selectorThread = Thread(::selectLoop, "${THREAD_NAME_PREFIX}-${address.port}").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * Closes the channel and stops the selector thread.
+     * [Listener.onClosed] is not invoked for a local close.
+     */
+    override fun close() {
+        closeNotified.set(true)
+        shutdown(null)
+
+        val thread = selectorThread
+        selectorThread = null
+        if (thread != null && thread !== Thread.currentThread()) {
+            try {
+                thread.join(SELECTOR_JOIN_TIMEOUT)
+            } catch (_: InterruptedException) {
+                Thread.currentThread().interrupt()
+            }
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // DATA TRANSFER
+    // ═══════════════════════════════════════════════════════════════════════
+
+    /**
+     * Writes a range of bytes, suspending while the socket send buffer is full.
+     *
+     * @return Number of bytes written (always [length] on success)
+     * @throws IOException if the channel is closed or the write fails
+     */
+    @Throws(IOException::class)
+    suspend fun write(data: ByteArray, offset: Int = 0, length: Int = data.size - offset): Int {
+        val ch = channel
+        if (ch == null || !open.get()) throw ClosedChannelException()
+
+        val end = offset + length
+        var position = offset
+        while (position < end) {
+            val count = minOf(end - position, writeBuffer.capacity())
+            writeBuffer.clear()
+            writeBuffer.put(data, position, count)
+            writeBuffer.flip()
+
+            while (writeBuffer.hasRemaining()) {
+                if (ch.write(writeBuffer) == 0) {
+                    awaitWritable()
+                }
+            }
+            position += count
+        }
+        return length
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // SELECTOR LOOP
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private fun selectLoop() {
+        val sel = selector ?: return
+        var failure: IOException? = null
+
+        try {
+            while (open.get()) {
+                sel.select()
+                if (!open.get()) break
+
+                val keys = sel.selectedKeys().iterator()
+                while (keys.hasNext()) {
+                    val key = keys.next()
+                    keys.remove()
+                    if (!key.isValid) continue
+
+                    if (key.isReadable && !drainReadable()) {
+                        // Remote end closed the connection
+                        shutdown(null)
+                        return
+                    }
+                    if (key.isValid && key.isWritable) {
+                        key.interestOps(SelectionKey.OP_READ)
+                        writableWaiter.getAndSet(null)?.resume(Unit)
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            failure = e
+        } catch (e: java.nio.channels.ClosedSelectorException) {
+            // Local close raced with select()
+        } catch (e: java.nio.channels.CancelledKeyException) {
+            // Local close raced with key access
+        }
+
+        shutdown(failure)
+    }
+
+    /**
+     * Reads until the channel has no more data.
+     *
+     * @return false on end-of-stream
+     */
+    private fun drainReadable(): Boolean {
+        val ch = channel ?: return false
+        while (true) {
+            readBuffer.clear()
+            val count = ch.read(readBuffer)
+            when {
+                count > 0 -> {
+                    readBuffer.flip()
+                    readBuffer.get(chunk, 0, count)
+                    listener.onData(chunk, 0, count)
+                }
+                count == 0 -> return true
+                else -> return false
+            }
+        }
+    }
+
+    private suspend fun awaitWritable() {
+        val key = selectionKey ?: throw ClosedChannelException()
+        suspendCancellableCoroutine<Unit> { cont ->
+            writableWaiter.set(cont)
+            cont.invokeOnCancellation { writableWaiter.compareAndSet(cont, null) }
+            try {
+                key.interestOps(SelectionKey.OP_READ or SelectionKey.OP_WRITE)
+                selector?.wakeup()
+            } catch (e: java.nio.channels.CancelledKeyException) {
+                if (writableWaiter.compareAndSet(cont, null)) {
+                    cont.resumeWithException(ClosedChannelException())
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes channel and selector exactly once, failing any parked writer and
+     * reporting remote closes to the listener.
+     */
+    private fun shutdown(cause: IOException?) {
+        val wasOpen = open.getAndSet(false)
+
+        writableWaiter.getAndSet(null)?.resumeWithException(cause ?: ClosedChannelException())
+
+        if (wasOpen) {
+            try { channel?.close() } catch (_: IOException) {}
+            selector?.let { sel ->
+                sel.wakeup()
+                try { sel.close() } catch (_: IOException) {}
+            }
+        }
+
+        if (!closeNotified.getAndSet(true)) {
+            listener.onClosed(cause)
+        }
+    }
+
+    companion object {
+        private const val THREAD_NAME_PREFIX = "wifi-nio"
+        private const val SELECTOR_JOIN_TIMEOUT = 1_000L
+    }
+}
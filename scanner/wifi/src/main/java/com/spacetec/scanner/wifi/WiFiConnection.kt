@@ -22,24 +22,16 @@ import com.spacetec.obd.scanner.core.ConnectionState
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
-import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 import kotlinx.coroutines.withTimeout
 import java.io.IOException
-import java.io.InputStream
-import java.io.OutputStream
 import java.net.InetAddress
 import java.net.InetSocketAddress
-import java.net.Socket
-import java.net.SocketException
-import java.net.SocketTimeoutException
 import java.net.UnknownHostException
-import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
 import javax.inject.Inject
@@ -53,13 +45,13 @@ import javax.inject.Inject
  *
  * ## Features
  *
- * - TCP socket-based communication with configurable timeouts
+ * - Non-blocking TCP transport ([NioSocketTransport]) with configurable timeouts
  * - Hostname resolution and direct IP connection support
  * - Dynamic timeout adjustment based on response times
  * - Network condition monitoring and quality assessment
  * - Automatic reconnection with exponential backoff
- * - Background data reading with coroutines
- * - Disconnection detection within 5 seconds (per requirement 2.3)
+ * - Readiness-driven receive path: no polling while waiting for a response
+ * - Disconnection detection from channel events (per requirement 2.3)
  *
  * ## Usage Example
  *
@@ -93,16 +85,10 @@ class WiFiConnection @Inject constructor(
 
     override val connectionType: ScannerConnectionType = ScannerConnectionType.WIFI
 
-    private var socket: Socket? = null
-    private var inputStream: InputStream? = null
-    private var outputStream: OutputStream? = null
-
-    private val readBuffer = ByteArray(WiFiConstants.READ_BUFFER_SIZE)
+    @Volatile
+    private var transport: NioSocketTransport? = null
     private val streamLock = Mutex()
 
-    private var backgroundReaderJob: Job? = null
-    private var disconnectionMonitorJob: Job? = null
-    private val isReading = AtomicBoolean(false)
     private val connectionAttempt = AtomicInteger(0)
 
     // Network condition monitoring
@@ -151,51 +137,38 @@ class WiFiConnection @Inject constructor(
             connectionAttempt.set(attempt)
 
             try {
-                // Create socket
-                socket = Socket().apply {
-                    // Configure socket options
-                    soTimeout = config.readTimeout.toInt()
-                    tcpNoDelay = wifiConfig.enableNoDelay
-                    keepAlive = wifiConfig.enableKeepAlive
-                    
-                    if (wifiConfig.socketLingerTimeout >= 0) {
-                        setSoLinger(true, wifiConfig.socketLingerTimeout)
-                    }
-                    
-                    receiveBufferSize = config.bufferSize
-                    sendBufferSize = config.bufferSize
-                }
+                // Create transport; received bytes go straight to the receive
+                // buffer from the selector thread
+                val nio = NioSocketTransport(transportListener, config.bufferSize)
+                transport = nio
 
                 // Connect with timeout
-                socket?.let { sock ->
-                    withTimeout(config.connectionTimeout) {
-                        sock.connect(
-                            InetSocketAddress(inetAddress, port),
-                            config.connectionTimeout.toInt()
-                        )
-                    }
+                withTimeout(config.connectionTimeout) {
+                    nio.connect(
+                        InetSocketAddress(inetAddress, port),
+                        config.connectionTimeout.toInt()
+                    ) { sock ->
+                        // Configure socket options
+                        sock.tcpNoDelay = wifiConfig.enableNoDelay
+                        sock.keepAlive = wifiConfig.enableKeepAlive
+
+                        if (wifiConfig.socketLingerTimeout >= 0) {
+                            sock.setSoLinger(true, wifiConfig.socketLingerTimeout)
+                        }
 
-                    // Get streams
-                    inputStream = sock.getInputStream()
-                    outputStream = sock.getOutputStream()
-                } ?: run {
-                    throw IOException("Failed to create socket")
+                        sock.receiveBufferSize = config.bufferSize
+                        sock.sendBufferSize = config.bufferSize
+                    }
                 }
 
                 // Reset network condition monitor
                 networkConditionMonitor.reset()
                 currentDynamicTimeout.set(config.readTimeout)
 
-                // Start background reader
-                startBackgroundReaderInternal()
-
-                // Start disconnection monitor
-                startDisconnectionMonitor()
-
                 // Build connection info
                 return@withContext ConnectionInfo(
                     connectedAt = System.currentTimeMillis(),
-                    localAddress = socket?.localAddress?.hostAddress,
+                    localAddress = nio.socket?.localAddress?.hostAddress,
                     remoteAddress = "$host:$port",
                     mtu = WiFiConstants.DEFAULT_MTU,
                     signalStrength = null,
@@ -241,24 +214,14 @@ class WiFiConnection @Inject constructor(
     }
 
     /**
-     * Cleans up socket and streams.
+     * Closes the transport.
      */
     private fun cleanupSocket() {
         try {
-            inputStream?.close()
+            transport?.close()
         } catch (_: Exception) {}
 
-        try {
-            outputStream?.close()
-        } catch (_: Exception) {}
-
-        try {
-            socket?.close()
-        } catch (_: Exception) {}
-
-        inputStream = null
-        outputStream = null
-        socket = null
+        transport = null
     }
 
     // ═══════════════════════════════════════════════════════════════════════
@@ -266,20 +229,8 @@ class WiFiConnection @Inject constructor(
     // ═══════════════════════════════════════════════════════════════════════
 
     override suspend fun doDisconnect(graceful: Boolean) = withContext(dispatcher) {
-        // Stop background jobs
-        stopBackgroundReader()
-        stopDisconnectionMonitor()
-
-        // Close streams and socket
+        // Close channel; writes are unbuffered, so there is nothing to flush
         streamLock.withLock {
-            if (graceful) {
-                try {
-                    // Flush output before closing
-                    outputStream?.flush()
-                    delay(50)
-                } catch (_: Exception) {}
-            }
-
             cleanupSocket()
         }
     }
@@ -288,16 +239,16 @@ class WiFiConnection @Inject constructor(
     // DATA TRANSFER
     // ═══════════════════════════════════════════════════════════════════════
 
-    override suspend fun doWrite(data: ByteArray): Int = streamLock.withLock {
-        val stream = outputStream
+    override suspend fun doWrite(data: ByteArray): Int = doWrite(data, 0, data.size)
+
+    override suspend fun doWrite(data: ByteArray, offset: Int, length: Int): Int = streamLock.withLock {
+        val nio = transport
             ?: throw CommunicationException("Output stream not available")
 
         try {
-            stream.write(data)
-            if (config.flushAfterWrite) {
-                stream.flush()
-            }
-            return data.size
+            // Channel writes go straight to the kernel; flushAfterWrite has no
+            // buffered stream to act on
+            return nio.write(data, offset, length)
         } catch (e: IOException) {
             handleIOException(e)
             throw CommunicationException("Write failed: ${e.message}", e)
@@ -305,8 +256,9 @@ class WiFiConnection @Inject constructor(
     }
 
     override suspend fun doRead(buffer: ByteArray, timeout: Long): Int {
-        val stream = inputStream
-            ?: throw CommunicationException("Input stream not available")
+        if (transport == null) {
+            throw CommunicationException("Input stream not available")
+        }
 
         val effectiveTimeout = if (wifiConfig.enableDynamicTimeout) {
             currentDynamicTimeout.get().coerceIn(
@@ -319,184 +271,72 @@ class WiFiConnection @Inject constructor(
 
         val startTime = System.currentTimeMillis()
 
-        try {
-            // Set socket timeout for this read
-            socket?.soTimeout = effectiveTimeout.toInt()
-
-            val available = stream.available()
-            if (available > 0) {
-                val toRead = minOf(available, buffer.size)
-                val bytesRead = stream.read(buffer, 0, toRead)
-                
-                // Record response time for network condition monitoring
-                val responseTime = System.currentTimeMillis() - startTime
-                networkConditionMonitor.recordResponseTime(responseTime)
-                updateDynamicTimeout()
-                
-                return bytesRead
-            }
-
-            // Wait for data with polling
-            val deadline = startTime + effectiveTimeout
-            while (System.currentTimeMillis() < deadline) {
-                val nowAvailable = stream.available()
-                if (nowAvailable > 0) {
-                    val toRead = minOf(nowAvailable, buffer.size)
-                    val bytesRead = stream.read(buffer, 0, toRead)
-                    
-                    val responseTime = System.currentTimeMillis() - startTime
-                    networkConditionMonitor.recordResponseTime(responseTime)
-                    updateDynamicTimeout()
-                    
-                    return bytesRead
-                }
-                delay(WiFiConstants.BACKGROUND_READ_INTERVAL)
-            }
-
-            return 0 // Timeout, no data
-
-        } catch (e: SocketTimeoutException) {
+        // The selector thread fills the receive buffer; park until it does
+        if (receiveBuffer.isEmpty && !receiveBuffer.awaitData(effectiveTimeout)) {
             networkConditionMonitor.recordTimeout()
             updateDynamicTimeout()
             return 0
-        } catch (e: IOException) {
-            handleIOException(e)
-            throw CommunicationException("Read failed: ${e.message}", e)
         }
-    }
 
-    override suspend fun doAvailable(): Int {
-        return try {
-            inputStream?.available() ?: 0
-        } catch (e: IOException) {
-            0
-        }
-    }
+        val bytesRead = receiveBuffer.read(buffer)
 
-    override suspend fun doClearBuffers() {
-        val stream = inputStream ?: return
+        // Record response time for network condition monitoring
+        networkConditionMonitor.recordResponseTime(System.currentTimeMillis() - startTime)
+        updateDynamicTimeout()
 
-        try {
-            // Drain input buffer
-            while (stream.available() > 0) {
-                val toSkip = stream.available().toLong()
-                stream.skip(toSkip)
-            }
-        } catch (e: IOException) {
-            // Ignore errors during clear
-        }
-
-        // Clear response buffer
-        responseLock.withLock {
-            responseBuffer.clear()
-        }
+        return bytesRead
     }
 
-    // ═══════════════════════════════════════════════════════════════════════
-    // BACKGROUND READER
-    // ═══════════════════════════════════════════════════════════════════════
-
-    /**
-     * Starts the background reader coroutine.
-     */
-    private fun startBackgroundReaderInternal() {
-        if (isReading.getAndSet(true)) {
-            return // Already reading
-        }
-
-        backgroundReaderJob = scope.launch {
-            try {
-                val buffer = ByteArray(WiFiConstants.READ_BUFFER_SIZE)
-
-                while (isActive && isConnected) {
-                    try {
-                        val stream = inputStream
-                        if (stream == null) {
-                            delay(100)
-                            continue
-                        }
-
-                        val available = stream.available()
-                        if (available > 0) {
-                            val bytesRead = stream.read(buffer, 0, minOf(available, buffer.size))
-                            if (bytesRead > 0) {
-                                val data = buffer.copyOf(bytesRead)
-                                processIncomingData(data)
-                            } else if (bytesRead == -1) {
-                                // Stream closed
-                                handleStreamClosed()
-                                break
-                            }
-                        } else {
-                            delay(WiFiConstants.BACKGROUND_READ_INTERVAL)
-                        }
-                    } catch (e: IOException) {
-                        if (isActive && isConnected) {
-                            handleIOException(e)
-                        }
-                        break
-                    }
-                }
-            } finally {
-                isReading.set(false)
-            }
-        }
-    }
+    override suspend fun doAvailable(): Int = receiveBuffer.size
 
-    /**
-     * Stops the background reader.
-     */
-    private fun stopBackgroundReader() {
-        isReading.set(false)
-        backgroundReaderJob?.cancel()
-        backgroundReaderJob = null
+    override suspend fun doClearBuffers() {
+        // The selector thread drains the socket eagerly, so everything pending
+        // is already in the receive buffer
+        receiveBuffer.clear()
     }
 
-    override fun startBackgroundReader() {
-        if (isConnected && !isReading.get()) {
-            startBackgroundReaderInternal()
-        }
-    }
+    override val feedsReceiveBuffer: Boolean
+        get() = transport?.isOpen == true
 
     // ═══════════════════════════════════════════════════════════════════════
-    // DISCONNECTION MONITOR
+    // TRANSPORT EVENTS
     // ═══════════════════════════════════════════════════════════════════════
 
     /**
-     * Starts the disconnection monitor to detect connection loss within 5 seconds.
-     * Per requirement 2.3: detect disconnection within 5 seconds.
+     * Receives data and close events from the selector thread.
+     *
+     * Disconnects are detected from channel events (end-of-stream or an I/O
+     * error on read) as soon as the kernel reports them, rather than by a
+     * periodic socket check.
      */
-    private fun startDisconnectionMonitor() {
-        disconnectionMonitorJob?.cancel()
-        disconnectionMonitorJob = scope.launch {
-            while (isActive && isConnected) {
-                delay(1000) // Check every second
-
-                if (!isSocketConnected()) {
-                    // Connection lost - detected within 5 seconds
-                    handleConnectionLost()
-                    break
+    private val transportListener = object : NioSocketTransport.Listener {
+
+        override fun onData(data: ByteArray, offset: Int, length: Int) {
+            processIncomingData(data, offset, length)
+        }
+
+        override fun onClosed(cause: IOException?) {
+            scope.launch {
+                if (cause == null) {
+                    handleStreamClosed()
+                } else {
+                    handleConnectionLost(cause)
                 }
             }
         }
     }
 
-    /**
-     * Stops the disconnection monitor.
-     */
-    private fun stopDisconnectionMonitor() {
-        disconnectionMonitorJob?.cancel()
-        disconnectionMonitorJob = null
-    }
-
     /**
      * Handles detected connection loss.
      */
-    private suspend fun handleConnectionLost() {
+    private suspend fun handleConnectionLost(cause: IOException) {
         if (!isConnected) return
 
+        stats.recordError()
+        networkConditionMonitor.recordError()
+
         _connectionState.value = ConnectionState.Error(
-            ConnectionException("WiFi connection lost"),
+            ConnectionException("WiFi connection lost: ${cause.message}", cause),
             isRecoverable = true
         )
 
@@ -556,12 +396,7 @@ class WiFiConnection @Inject constructor(
      * Checks if the socket is still connected.
      */
     private fun isSocketConnected(): Boolean {
-        return try {
-            val s = socket
-            s != null && s.isConnected && !s.isClosed && !s.isInputShutdown && !s.isOutputShutdown
-        } catch (e: Exception) {
-            false
-        }
+        return transport?.isOpen == true
     }
 
     // ═══════════════════════════════════════════════════════════════════════
@@ -640,14 +475,14 @@ class WiFiConnection @Inject constructor(
      * Gets the connected host address.
      */
     fun getHostAddress(): String? {
-        return socket?.inetAddress?.hostAddress
+        return transport?.socket?.inetAddress?.hostAddress
     }
 
     /**
      * Gets the connected port.
      */
     fun getPort(): Int? {
-        return socket?.port
+        return transport?.socket?.port
     }
 
     // ═══════════════════════════════════════════════════════════════════════
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.wifi
+
+import java.io.Closeable
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Minimal ELM327 emulator listening on the loopback interface.
+ *
+ * Accepts TCP clients and answers each carriage-return terminated command the
+ * way a WiFi OBD dongle does: response lines followed by `\r\r>`. Responses are
+ * split into [chunkCount] writes so clients exercise terminator scanning
+ * across TCP segments, and are sent after [turnaroundNanos] to model the
+ * adapter's processing time (a real ELM327 needs at least a few ms).
+ *
+ * @param responses Command to response body; unknown commands answer `?`
+ * @param chunkCount Number of writes each response is split into
+ * @param turnaroundNanos Delay between receiving a command and answering it
+ */
+class LoopbackElm327Server(
+    private val responses: Map<String, String> = DEFAULT_RESPONSES,
+    private val chunkCount: Int = 3,
+    private val turnaroundNanos: Long = DEFAULT_TURNAROUND_NANOS
+) : Closeable {
+
+    private val server = ServerSocket(0, 4, InetAddress.getLoopbackAddress())
+    private val clients = CopyOnWriteArrayList<Socket>()
+
+    @Volatile
+    private var running = true
+
+    /**
+     * Address clients should connect to.
+     */
+    val address: InetSocketAddress
+        get() = InetSocketAddress(server.inetAddress, server.localPort)
+
+    init {
+        Thread(::acceptLoop, "loopback-elm327-accept").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * Closes all client sockets from the server side, as a dongle that loses
+     * power or drops the link would.
+     */
+    fun dropClients() {
+        for (client in clients) {
+            try { client.close() } catch (_: IOException) {}
+        }
+        clients.clear()
+    }
+
+    override fun close() {
+        running = false
+        try { server.close() } catch (_: IOException) {}
+        dropClients()
+    }
+
+    private fun acceptLoop() {
+        while (running) {
+            val client = try {
+                server.accept()
+            } catch (_: IOException) {
+                return
+            }
+            client.tcpNoDelay = true
+            clients.add(client)
+            Thread({ serve(client) }, "loopback-elm327-client").apply {
+                isDaemon = true
+                start()
+            }
+        }
+    }
+
+    private fun serve(client: Socket) {
+        val input = client.getInputStream()
+        val output = client.getOutputStream()
+        val command = StringBuilder()
+
+        try {
+            while (running) {
+                val value = input.read()
+                if (value < 0) break
+
+                val c = value.toChar()
+                if (c == '\r') {
+                    val body = responses[command.toString().trim().uppercase()] ?: "?"
+                    command.setLength(0)
+                    if (turnaroundNanos > 0) LockSupport.parkNanos(turnaroundNanos)
+                    writeChunked(output, "$body\r\r>".toByteArray(Charsets.US_ASCII))
+                } else if (c != '\n') {
+                    command.append(c)
+                }
+            }
+        } catch (_: IOException) {
+            // Client went away
+        } finally {
+            clients.remove(client)
+            try { client.close() } catch (_: IOException) {}
+        }
+    }
+
+    private fun writeChunked(output: java.io.OutputStream, response: ByteArray) {
+        val size = (response.size + chunkCount - 1) / chunkCount
+        var offset = 0
+        while (offset < response.size) {
+            val length = minOf(size, response.size - offset)
+            output.write(response, offset, length)
+            output.flush()
+            offset += length
+        }
+    }
+
+    companion object {
+        const val DEFAULT_TURNAROUND_NANOS = 1_000_000L
+
+        val DEFAULT_RESPONSES = mapOf(
+            "ATZ" to "ELM327 v1.5",
+            "ATE0" to "OK",
+            "ATSP0" to "OK",
+            "0100" to "41 00 BE 3E B8 11",
+            "010C" to "41 0C 1A F8",
+            "010D" to "41 0D 32"
+        )
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2024 SpaceTec Automotive Diagnostics
+ * All rights reserved.
+ *
+ * This file is part of the SpaceTec professional automotive diagnostic system.
+ */
+
+package com.spacetec.obd.scanner.wifi
+
+import com.spacetec.obd.scanner.core.ReceiveBuffer
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.IOException
+import java.lang.management.ManagementFactory
+import java.net.Socket
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Tests for [NioSocketTransport] against [LoopbackElm327Server].
+ *
+ * Besides functional checks (chunked responses, batched writes, disconnect
+ * detection) this compares round-trip latency and process CPU time with the
+ * previous blocking-socket receive loop, which polled `available()` every
+ * [WiFiConstants.BACKGROUND_READ_INTERVAL] ms.
+ *
+ * **Feature: scanner-connection-system, Non-blocking WiFi Transport**
+ */
+class NioSocketTransportTest {
+
+    private lateinit var server: LoopbackElm327Server
+
+    private val prompt = ">".toByteArray(Charsets.US_ASCII)
+
+    @Before
+    fun setUp() {
+        server = LoopbackElm327Server()
+    }
+
+    @After
+    fun tearDown() {
+        server.close()
+    }
+
+    @Test
+    fun `chunked response is delivered intact`() = runBlocking {
+        val client = NioClient()
+        try {
+            client.connect()
+            assertEquals("41 0C 1A F8", client.roundTrip("010C"))
+            assertEquals("ELM327 v1.5", client.roundTrip("ATZ"))
+        } finally {
+            client.close()
+        }
+    }
+
+    @Test
+    fun `writes larger than the direct buffer are sent in batches`() = runBlocking {
+        val client = NioClient(bufferSize = 256)
+        try {
+            client.connect()
+            // 8 KB command spans 32 direct-buffer batches; the emulator answers "?"
+            assertEquals("?", client.roundTrip("X".repeat(8 * 1024)))
+            assertEquals("41 0D 32", client.roundTrip("010D"))
+        } finally {
+            client.close()
+        }
+    }
+
+    @Test
+    fun `remote close is reported without polling`() {
+        val closed = CountDownLatch(1)
+        val closeCause = AtomicReference<IOException?>()
+        val transport = NioSocketTransport(object : NioSocketTransport.Listener {
+            override fun onData(data: ByteArray, offset: Int, length: Int) {}
+            override fun onClosed(cause: IOException?) {
+                closeCause.set(cause)
+                closed.countDown()
+            }
+        })
+
+        try {
+            transport.connect(server.address, CONNECT_TIMEOUT)
+            awaitClientAccepted()
+
+            val start = System.nanoTime()
+            server.dropClients()
+
+            assertTrue("Close not detected", closed.await(1, TimeUnit.SECONDS))
+            val detectionMillis = (System.nanoTime() - start) / 1_000_000
+            println("Remote close detected after ${detectionMillis}ms")
+
+            assertFalse(transport.isOpen)
+            assertNull(closeCause.get())
+        } finally {
+            transport.close()
+        }
+    }
+
+    @Test
+    fun `local close does not report a remote close`() {
+        val closedCount = AtomicInteger()
+        val transport = NioSocketTransport(object : NioSocketTransport.Listener {
+            override fun onData(data: ByteArray, offset: Int, length: Int) {}
+            override fun onClosed(cause: IOException?) {
+                closedCount.incrementAndGet()
+            }
+        })
+
+        transport.connect(server.address, CONNECT_TIMEOUT)
+        transport.close()
+        Thread.sleep(50)
+
+        assertFalse(transport.isOpen)
+        assertEquals(0, closedCount.get())
+    }
+
+    @Test
+    fun `write after close fails`() = runBlocking {
+        val client = NioClient()
+        client.connect()
+        client.close()
+
+        try {
+            client.transport.write("010C\r".toByteArray())
+            fail("Write on a closed transport should throw")
+        } catch (expected: IOException) {
+            // Expected
+        }
+    }
+
+    @Test
+    fun `nio round trip is faster and cheaper than polling`() = runBlocking {
+        val legacy = PollingClient()
+        val nio = NioClient()
+        try {
+            legacy.connect()
+            nio.connect()
+
+            val legacyRun = measure("polling", legacy::roundTrip)
+            val nioRun = measure("nio", nio::roundTrip)
+
+            assertTrue(
+                "NIO p50 (${nioRun.p50}µs) should beat polling p50 (${legacyRun.p50}µs)",
+                nioRun.p50 < legacyRun.p50
+            )
+            assertTrue(
+                "NIO p50 should be well below one polling interval (was ${nioRun.p50}µs)",
+                nioRun.p50 < WiFiConstants.BACKGROUND_READ_INTERVAL * 1_000 / 2
+            )
+        } finally {
+            legacy.close()
+            nio.close()
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════════════════
+    // HELPERS
+    // ═══════════════════════════════════════════════════════════════════════
+
+    private class Run(val p50: Long, val p99: Long, val cpuMicrosPerRoundTrip: Long)
+
+    private suspend fun measure(label: String, roundTrip: suspend (String) -> String): Run {
+        repeat(WARMUP_ITERATIONS) { roundTrip("010C") }
+
+        val cpuStart = processCpuNanos()
+        val latencies = LongArray(MEASURED_ITERATIONS)
+        for (i in latencies.indices) {
+            val start = System.nanoTime()
+            val response = roundTrip("010C")
+            latencies[i] = (System.nanoTime() - start) / 1_000
+            assertEquals("41 0C 1A F8", response)
+        }
+        val cpuMicros = (processCpuNanos() - cpuStart) / 1_000 / MEASURED_ITERATIONS
+
+        latencies.sort()
+        val run = Run(latencies.percentile(50.0), latencies.percentile(99.0), cpuMicros)
+        println(
+            "WiFi round trip [$label] n=$MEASURED_ITERATIONS " +
+                "p50=${run.p50}µs p99=${run.p99}µs cpu=${run.cpuMicrosPerRoundTrip}µs/round trip"
+        )
+        return run
+    }
+
+    private fun processCpuNanos(): Long {
+        val bean = ManagementFactory.getOperatingSystemMXBean() as? com.sun.management.OperatingSystemMXBean
+        return bean?.processCpuTime ?: 0L
+    }
+
+    private fun LongArray.percentile(p: Double): Long {
+        val index = ((p / 100.0) * (size - 1)).toInt().coerceIn(0, size - 1)
+        return this[index]
+    }
+
+    private fun awaitClientAccepted() {
+        // The accept loop registers clients asynchronously
+        Thread.sleep(50)
+    }
+
+    /**
+     * Client on the new transport: selector thread feeds a [ReceiveBuffer]
+     * and the caller parks until the prompt arrives.
+     */
+    private inner class NioClient(bufferSize: Int = WiFiConstants.READ_BUFFER_SIZE) {
+
+        private val buffer = ReceiveBuffer()
+
+        val transport = NioSocketTransport(object : NioSocketTransport.Listener {
+            override fun onData(data: ByteArray, offset: Int, length: Int) {
+                buffer.write(data, offset, length)
+            }
+
+            override fun onClosed(cause: IOException?) {}
+        }, bufferSize)
+
+        fun connect() {
+            transport.connect(server.address, CONNECT_TIMEOUT) { it.tcpNoDelay = true }
+        }
+
+        suspend fun roundTrip(command: String): String {
+            transport.write("$command\r".toByteArray(Charsets.US_ASCII))
+            while (true) {
+                val index = buffer.indexOf(prompt)
+                if (index >= 0) {
+                    val response = buffer.readString(index).trim()
+                    buffer.skip(prompt.size)
+                    return response
+                }
+                if (!buffer.awaitData(RESPONSE_TIMEOUT)) throw IOException("Response timeout")
+            }
+        }
+
+        fun close() = transport.close()
+    }
+
+    /**
+     * Client reproducing the previous blocking-socket receive loop: check
+     * `available()` and sleep for the background read interval when empty.
+     */
+    private inner class PollingClient {
+
+        private lateinit var socket: Socket
+        private val chunk = ByteArray(WiFiConstants.READ_BUFFER_SIZE)
+        private val response = StringBuilder()
+
+        fun connect() {
+            socket = Socket().apply { tcpNoDelay = true }
+            socket.connect(server.address, CONNECT_TIMEOUT)
+        }
+
+        suspend fun roundTrip(command: String): String {
+            socket.getOutputStream().write("$command\r".toByteArray(Charsets.US_ASCII))
+            val input = socket.getInputStream()
+            response.setLength(0)
+
+            val deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT
+            while (System.currentTimeMillis() < deadline) {
+                val available = input.available()
+                if (available > 0) {
+                    val count = input.read(chunk, 0, minOf(available, chunk.size))
+                    response.append(String(chunk, 0, count, Charsets.US_ASCII))
+                    val end = response.indexOf(">")
+                    if (end >= 0) return response.substring(0, end).trim()
+                } else {
+                    delay(WiFiConstants.BACKGROUND_READ_INTERVAL)
+                }
+            }
+            throw IOException("Response timeout")
+        }
+
+        fun close() = socket.close()
+    }
+
+    companion object {
+        private const val CONNECT_TIMEOUT = 2_000
+        private const val RESPONSE_TIMEOUT = 2_000L
+        private const val WARMUP_ITERATIONS = 50
+        private const val MEASURED_ITERATIONS = 300
+    }
+}
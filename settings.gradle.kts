@@ -33,6 +33,7 @@ include(":app")
 // CORE MODULES - Foundation layer providing shared utilities and infrastructure
 // ============================================================================
 include(":core:common")
+include(":core:jvm")
 // include(":core:database") // Commented out due to KSP errors
 include(":core:network")
 include(":core:datastore")
@@ -133,6 +134,11 @@ include(":compliance:emissions")
 // ============================================================================
 include(":transport:contract")
 
+// ============================================================================
+// BENCHMARK MODULE - JVM-only JMH suites for protocol and data hot paths
+// ============================================================================
+include(":benchmarks")
+
 // ============================================================================
 // Enable type-safe project accessors
 // ============================================================================